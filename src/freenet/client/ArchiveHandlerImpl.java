@@ -52,7 +52,8 @@ class ArchiveHandlerImpl implements ArchiveHandler {
 		// Fetch from cache
 		if(logMINOR)
 			Logger.minor(this, "Checking cache: "+key+ ' ' +internalName);
-		if((data = manager.getCached(key, internalName)) != null) {
+		// Don't block the database thread waiting for an extraction.
+		if((data = manager.getCached(key, internalName, container == null)) != null) {
 			return data;
 		}
 
@@ -3,15 +3,25 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -43,8 +53,15 @@ import freenet.support.io.Closer;
  * Cache of recently decoded archives:
  * - Keep up to N ArchiveHandler's in RAM (this can be large; we don't keep the
  * files open due to the limitations of the java.util.zip API)
- * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
- * (the OS is quite capable of determining what to keep in actual RAM)
+ * - Keep up to Y bytes of decoded data, of which up to Z bytes may be in RAM. When
+ * there is too much in RAM, the least recently used elements are moved to disk
+ * rather than dropped. Only when there is more than Y bytes in total are elements
+ * dropped, least recently used first.
+ *
+ * Looking up an element doesn't take any lock, since a freesite with many files in
+ * one container will look up many of them at once. Elements record when they were
+ * last used, and the cache is trimmed in batches, down to a little under the limits,
+ * so the cost of sorting by last use is spread over many additions.
  *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
@@ -120,19 +137,46 @@ public class ArchiveManager {
 	/** Maximum number of cached ArchiveStoreItems */
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
-	final long maxCachedData;
+	private volatile long maxCachedData;
+	/** Maximum cached data in RAM in bytes. Above this we move data to disk. */
+	private volatile long maxCachedDataInRAM;
 	/** Currently cached data in bytes */
-	private long cachedData;
+	private final AtomicLong cachedData = new AtomicLong();
+	/** Currently cached data in RAM in bytes. May be an overestimate, because the temp
+	 * bucket factory may move data to disk itself; corrected whenever we trim. */
+	private final AtomicLong cachedDataInRAM = new AtomicLong();
 	/** Map from ArchiveKey to ArchiveStoreElement */
-	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
+	private final ConcurrentHashMap<ArchiveKey, ArchiveStoreItem> storedData;
+	/** Clock for ArchiveStoreItem.lastAccessed */
+	private final AtomicLong accessClock = new AtomicLong();
+	/** Only one thread trims at a time */
+	private final Object trimLock = new Object();
+	/** When we trim, we trim to this fraction below the limits */
+	static final int TRIM_FRACTION = 8;
+	/** Maximum time to wait for a file while another thread extracts its archive */
+	static final long MAX_WAIT_FOR_EXTRACTION = 60*1000;
+	/** Maximum number of threads extracting one ZIP */
+	static final int MAX_EXTRACT_THREADS = 4;
+	/** Bigger files in a ZIP are decompressed as they are read, by the reading thread */
+	static final int MAX_QUEUED_ZIP_ENTRY = 256*1024;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+	private final AtomicLong extractions = new AtomicLong();
+	private final AtomicLong extractionsAvoided = new AtomicLong();
+
 	/**
 	 * Create an ArchiveManager.
 	 * @param maxHandlers The maximum number of cached ArchiveHandler's i.e. the
 	 * maximum number of containers to track.
-	 * @param maxCachedData The maximum size of the cache directory, in bytes.
+	 * @param maxCachedData The maximum size of the cache, in bytes.
+	 * @param maxCachedDataInRAM The maximum size of the part of the cache kept in RAM, in
+	 * bytes.
 	 * @param maxArchiveSize The maximum size of an archive.
 	 * @param maxArchivedFileSize The maximum extracted size of a single file in any
 	 * archive.
@@ -143,14 +187,15 @@ public class ArchiveManager {
 	 * @param random A cryptographicaly secure random source
 	 * @param weakRandom A weak and cheap random source
 	 */
-	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
+	public ArchiveManager(int maxHandlers, long maxCachedData, long maxCachedDataInRAM, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
 		maxArchiveHandlers = maxHandlers;
 		// FIXME PERFORMANCE I'm assuming there isn't much locality here, so it's faster to use the FAST_COMPARATOR.
 		// This may not be true if there are a lot of sites with many containers all inserted as individual SSKs?
 		archiveHandlers = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
-		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
+		this.maxCachedDataInRAM = maxCachedDataInRAM;
+		storedData = new ConcurrentHashMap<ArchiveKey, ArchiveStoreItem>();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
@@ -213,34 +258,112 @@ public class ArchiveManager {
 	 * @throws ArchiveFailureException
 	 */
 	public Bucket getCached(FreenetURI key, String filename) throws ArchiveFailureException {
+		return getCached(key, filename, false);
+	}
+
+	/**
+	 * Get a cached, previously extracted, file from an archive.
+	 * @param key The key used to fetch the archive.
+	 * @param filename The name of the file within the archive.
+	 * @param waitForExtraction If the archive is being extracted, wait until the file has
+	 * been extracted or the extraction has finished, rather than returning null.
+	 * Extraction is fast compared to fetching, so this is worth it, but it blocks, so
+	 * don't set it on the database thread.
+	 * @return A Bucket containing the data requested, or null.
+	 * @throws ArchiveFailureException
+	 */
+	public Bucket getCached(FreenetURI key, String filename, boolean waitForExtraction) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
-		ArchiveStoreItem asi = null;
-		synchronized (this) {
-			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+		ArchiveStoreItem asi = storedData.get(k);
+		if(asi == null && waitForExtraction)
+			asi = waitForExtraction(key, k);
+		if(asi == null) {
+			misses.incrementAndGet();
+			return null;
 		}
+		hits.incrementAndGet();
+		// Promote to top of LRU
+		touch(asi);
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
 
+	/** Wait for an element of an archive which is being extracted by another thread.
+	 * @return The element, or null if it isn't in the archive, or we gave up waiting. */
+	private ArchiveStoreItem waitForExtraction(FreenetURI key, ArchiveKey k) {
+		ArchiveStoreContext ctx = makeContext(key, null, null, true);
+		if(ctx == null) return null;
+		long deadline = System.currentTimeMillis() + MAX_WAIT_FOR_EXTRACTION;
+		boolean waited = false;
+		while(true) {
+			int progress = ctx.getProgress();
+			ArchiveStoreItem asi = storedData.get(k);
+			if(asi != null) {
+				if(waited && logMINOR) Logger.minor(this, "Got "+k+" while extracting");
+				return asi;
+			}
+			if(!ctx.isExtractingElsewhere()) return null;
+			long now = System.currentTimeMillis();
+			if(now >= deadline) {
+				Logger.normal(this, "Timed out waiting for "+k+" to be extracted");
+				return null;
+			}
+			waited = true;
+			ctx.waitForProgress(progress, deadline - now);
+		}
+	}
+
+	private void touch(ArchiveStoreItem item) {
+		item.lastAccessed = accessClock.incrementAndGet();
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
-	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
-		storedData.removeKey(item.key);
-		// Hard disk space limit = remove it here.
-		// Soft disk space limit would be to remove it outside the lock.
-		// Soft disk space limit = we go over the limit significantly when we
-		// are overloaded.
-		cachedData -= size;
+	void removeCachedItem(ArchiveStoreItem item) {
 		if(logMINOR) Logger.minor(this, "removeCachedItem: "+item);
+		dropItem(item);
+	}
+
+	/** Remove an item from the cache, if it is still there, and free its data. Hard disk
+	 * space limit: we free the data here, rather than later.
+	 * @return True if it was removed by this call. */
+	private boolean dropItem(ArchiveStoreItem item) {
+		// Before removing it, so anyone who can't find it knows the archive isn't complete.
+		item.context.setIncomplete();
+		boolean removed = storedData.remove(item.key, item);
+		if(removed) uncount(item);
 		item.close();
+		return removed;
+	}
+
+	private void uncount(ArchiveStoreItem item) {
+		cachedData.addAndGet(-item.spaceUsed());
+		synchronized(item) {
+			cachedDataInRAM.addAndGet(-item.ramCounted);
+			item.ramCounted = 0;
+		}
+	}
+
+	/** Add an item to the cache, replacing and freeing any item with the same key. */
+	private void putItem(ArchiveStoreItem item) {
+		touch(item);
+		// Count it first, so that the totals are never less than what is in the map.
+		cachedData.addAndGet(item.spaceUsed());
+		synchronized(item) {
+			item.ramCounted = item.ramUsed();
+			cachedDataInRAM.addAndGet(item.ramCounted);
+		}
+		ArchiveStoreItem oldItem = storedData.put(item.key, item);
+		if(oldItem != null) {
+			uncount(oldItem);
+			if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
+			oldItem.close();
+		}
+		item.context.itemCached();
 	}
 
 	/**
@@ -264,10 +387,121 @@ public class ArchiveManager {
 	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 
+		synchronized(ctx.extractLock) {
+			// Several fetches for the same container often finish together, e.g. when
+			// loading a freesite. If another one has already extracted it, use that.
+			// Only KSKs can have different data for the same key.
+			if(!key.isKSK() && ctx.isComplete(data.size()) &&
+					getFromCompleteArchive(ctx, key, data.size(), element, callback, container, context)) {
+				extractionsAvoided.incrementAndGet();
+				return;
+			}
+			extractions.incrementAndGet();
+			ctx.removeAllCachedItems(this); // flush cache anyway
+			int drops = ctx.countDrops();
+			ctx.startExtracting();
+			try {
+				innerExtractToCache(key, archiveType, ctype, data, archiveContext, ctx, element, callback, container, context);
+			} finally {
+				ctx.endExtracting();
+			}
+			// Unless the archive is too big for the cache.
+			ctx.setComplete(data.size(), drops);
+		}
+	}
+
+	/**
+	 * Call the callback for an element of an archive which has already been extracted, and
+	 * which is still completely cached.
+	 * @return False if we can't, because the element was too big to cache, or something
+	 * has been dropped from the cache in the meantime, in which case the caller must
+	 * extract the archive.
+	 */
+	private boolean getFromCompleteArchive(ArchiveStoreContext ctx, FreenetURI key, long archiveSize, String element, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
+		if(element == null) return true;
+		ArchiveStoreItem item = storedData.get(new ArchiveKey(key, element));
+		if(item == null) {
+			// Check it wasn't dropped while we were looking.
+			if(!ctx.isComplete(archiveSize)) return false;
+			if(logMINOR) Logger.minor(this, "Already extracted "+key+" and "+element+" is not in it");
+			callback.notInArchive(container, context);
+			return true;
+		}
+		if(item instanceof ErrorArchiveStoreItem) return false;
+		Bucket data = item.getReaderBucket();
+		if(data == null) return false;
+		touch(item);
+		if(logMINOR) Logger.minor(this, "Already extracted "+key+", returning "+element);
+		deliver(callback, data, container, context);
+		return true;
+	}
+
+	/** Give an element to the callback. */
+	private void deliver(ArchiveExtractCallback callback, Bucket data, ObjectContainer container, ClientContext context) {
+		callback.gotBucket(data, container, context);
+	}
+
+	/**
+	 * Wrap a transient callback so that gotBucket() runs on another thread, so that we can
+	 * go on extracting while the caller handles the element: often it will want another
+	 * file from the same archive, which it can then get as soon as that file has been
+	 * extracted (see getCached()). Only for callers which don't need the element by the time
+	 * extractToCache() returns.
+	 * @return Null if the callback is null.
+	 */
+	public static ArchiveExtractCallback deliverOffThread(ArchiveExtractCallback callback, ClientContext context) {
+		if(callback == null) return null;
+		return new OffThreadCallback(callback, context);
+	}
+
+	private static class OffThreadCallback implements ArchiveExtractCallback {
+
+		private final ArchiveExtractCallback callback;
+		private final ClientContext context;
+
+		OffThreadCallback(ArchiveExtractCallback callback, ClientContext context) {
+			this.callback = callback;
+			this.context = context;
+		}
+
+		@Override
+		public void gotBucket(final Bucket data, ObjectContainer container, ClientContext context) {
+			this.context.mainExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					callback.gotBucket(data, null, OffThreadCallback.this.context);
+				}
+
+			}, "Archive element callback");
+		}
+
+		@Override
+		public void notInArchive(ObjectContainer container, ClientContext context) {
+			callback.notInArchive(container, context);
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ObjectContainer container, ClientContext context) {
+			callback.onFailed(e, container, context);
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ObjectContainer container, ClientContext context) {
+			callback.onFailed(e, container, context);
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			callback.removeFrom(container);
+		}
+
+	}
+
+	private void innerExtractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
-		ctx.removeAllCachedItems(this); // flush cache anyway
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -298,6 +532,21 @@ public class ArchiveManager {
 		else if(logMINOR)
 			Logger.minor(this, "Container size (possibly compressed): "+archiveSize+" for "+data);
 
+		if(ARCHIVE_TYPE.ZIP == archiveType) {
+			ZipCentralDirectory dir;
+			try {
+				dir = ZipCentralDirectory.read(data);
+			} catch (IOException e) {
+				// Let ZipInputStream decide what is wrong with it.
+				if(logMINOR) Logger.minor(this, "Unable to read ZIP central directory for "+key+" : "+e);
+				dir = null;
+			}
+			if(dir != null) {
+				handleZIPArchive(ctx, key, data, dir, element, callback, gotElement, throwAtExit, container, context);
+				return;
+			}
+		}
+
 		InputStream is = null;
 		try {
 			final ExceptionWrapper wrapper;
@@ -431,7 +680,7 @@ outerTAR:		while(true) {
 						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
-						callback.gotBucket(output, container, context);
+						deliver(callback, output, container, context);
 						gotElement.value = true;
 						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
 					}
@@ -511,7 +760,7 @@ outerZIP:		while(true) {
 						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
-						callback.gotBucket(output, container, context);
+						deliver(callback, output, container, context);
 						gotElement.value = true;
 						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
 					}
@@ -541,6 +790,180 @@ outerZIP:		while(true) {
 		}
 	}
 
+	/**
+	 * Extract a ZIP using its central directory. We read all the files in a single pass, in
+	 * the order they are stored, and decompress several at once. The file the caller wants
+	 * is decompressed by this thread as soon as we reach it.
+	 */
+	private void handleZIPArchive(final ArchiveStoreContext ctx, final FreenetURI key, final Bucket data, ZipCentralDirectory dir, final String element, final ArchiveExtractCallback callback, final MutableBoolean gotElement, boolean throwAtExit, final ObjectContainer container, final ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive with "+dir.entries.size()+" entries");
+		HashSet<String> seen = new HashSet<String>();
+		final HashSet<String> names = new HashSet<String>();
+		boolean gotMetadata = false;
+		ZipCentralDirectory.Entry wanted = null;
+		ArrayList<ZipCentralDirectory.Entry> toExtract = new ArrayList<ZipCentralDirectory.Entry>();
+		for(ZipCentralDirectory.Entry entry : dir.entries) {
+			if(entry.isDirectory()) continue;
+			String name = stripLeadingSlashes(entry.name);
+			if(!seen.add(name)) {
+				Logger.error(this, "Duplicate key "+name+" in archive "+key);
+				continue;
+			}
+			if(name.equals(".metadata"))
+				gotMetadata = true;
+			if(name.equals(element)) {
+				wanted = entry;
+				toExtract.add(entry);
+			} else if(entry.size > maxArchivedFileSize) {
+				addErrorElement(ctx, key, name, "File too big: "+entry.size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+			} else {
+				toExtract.add(entry);
+			}
+		}
+		Collections.sort(toExtract, ZipCentralDirectory.IN_FILE_ORDER);
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		byte[] buf = new byte[32768];
+
+		int threads = 1;
+		if(context != null)
+			threads = Math.max(1, Math.min(Math.min(MAX_EXTRACT_THREADS, Runtime.getRuntime().availableProcessors()), toExtract.size()));
+		// Small files are read by this thread, and decompressed by whichever thread is free.
+		final ArrayBlockingQueue<CompressedZipEntry> queue = new ArrayBlockingQueue<CompressedZipEntry>(threads * 2);
+		final AtomicBoolean readAll = new AtomicBoolean();
+		final CountDownLatch helpersDone = new CountDownLatch(threads - 1);
+		for(int i = 1; i < threads; i++) {
+			context.mainExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] buf = new byte[32768];
+					try {
+						while(failure.get() == null) {
+							CompressedZipEntry c;
+							try {
+								c = queue.poll(100, TimeUnit.MILLISECONDS);
+							} catch (InterruptedException e) {
+								continue;
+							}
+							if(c == null) {
+								if(readAll.get()) return;
+								continue;
+							}
+							try {
+								extractZipEntry(ctx, key, c.entry, null, c.data, buf, names, element, callback, gotElement, container, context);
+							} catch (Exception e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+					} finally {
+						helpersDone.countDown();
+					}
+				}
+
+			}, "Extracting "+key);
+		}
+		try {
+			ZipCentralDirectory.SequentialReader reader = new ZipCentralDirectory.SequentialReader(data);
+			try {
+				for(ZipCentralDirectory.Entry entry : toExtract) {
+					if(failure.get() != null) break;
+					if(threads > 1 && entry != wanted && entry.compressedSize <= MAX_QUEUED_ZIP_ENTRY) {
+						byte[] compressed = reader.readCompressed(entry);
+						CompressedZipEntry c = new CompressedZipEntry(entry, compressed);
+						// If the helpers are busy, or haven't started, don't wait for them.
+						if(!queue.offer(c))
+							extractZipEntry(ctx, key, entry, null, compressed, buf, names, element, callback, gotElement, container, context);
+					} else
+						extractZipEntry(ctx, key, entry, reader, null, buf, names, element, callback, gotElement, container, context);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			readAll.set(true);
+		}
+		CompressedZipEntry c;
+		while(failure.get() == null && (c = queue.poll()) != null) {
+			try {
+				extractZipEntry(ctx, key, c.entry, null, c.data, buf, names, element, callback, gotElement, container, context);
+			} catch (Exception e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+		try {
+			helpersDone.await();
+		} catch (InterruptedException e) {
+			throw new ArchiveFailureException("Interrupted extracting archive");
+		}
+		Exception e = failure.get();
+		if(e instanceof ArchiveFailureException)
+			throw (ArchiveFailureException) e;
+		else if(e instanceof IOException)
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		else if(e != null)
+			throw new ArchiveFailureException("Error extracting archive: "+e, e);
+
+		// If no metadata, generate some
+		if(!gotMetadata) {
+			generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
+			trimStoredData();
+		}
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+
+		if((!gotElement.value) && element != null)
+			callback.notInArchive(container, context);
+	}
+
+	/** A file from a ZIP, read but not yet decompressed. */
+	private static class CompressedZipEntry {
+		final ZipCentralDirectory.Entry entry;
+		final byte[] data;
+
+		CompressedZipEntry(ZipCentralDirectory.Entry entry, byte[] data) {
+			this.entry = entry;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Extract a file from a ZIP and cache it.
+	 * @param reader If not null, read the file from here.
+	 * @param compressed Otherwise, the file's compressed data.
+	 */
+	private void extractZipEntry(ArchiveStoreContext ctx, FreenetURI key, ZipCentralDirectory.Entry entry, ZipCentralDirectory.SequentialReader reader, byte[] compressed, byte[] buf, HashSet<String> names, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, ObjectContainer container, ClientContext context) throws IOException, ArchiveFailureException {
+		String name = stripLeadingSlashes(entry.name);
+		Bucket output = tempBucketFactory.makeBucket(entry.size);
+		OutputStream out = output.getOutputStream();
+		boolean succeeded = false;
+		try {
+			if(reader != null)
+				reader.extract(entry, out, entry.size, buf);
+			else
+				ZipCentralDirectory.inflate(new ByteArrayInputStream(compressed), entry, out, entry.size, buf);
+			out.close();
+			out = null;
+			succeeded = true;
+		} finally {
+			Closer.close(out);
+			if(!succeeded) output.free();
+		}
+		if(entry.size <= maxArchivedFileSize) {
+			addStoreElement(ctx, key, name, output, gotElement, element, callback, container, context);
+			synchronized(names) {
+				names.add(name);
+			}
+			trimStoredData();
+		} else {
+			// We are here because they asked for this file.
+			deliver(callback, output, container, context);
+			gotElement.value = true;
+			addErrorElement(ctx, key, name, "File too big: "+entry.size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+		}
+	}
+
 	private String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
@@ -648,16 +1071,7 @@ outerZIP:		while(true) {
 	private void addErrorElement(ArchiveStoreContext ctx, FreenetURI key, String name, String error, boolean tooBig) {
 		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
 		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
-		}
+		putItem(element);
 	}
 
 	/**
@@ -674,55 +1088,168 @@ outerZIP:		while(true) {
 	private ArchiveStoreItem addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
 		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
-		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
-			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-				oldItem.close();
-			}
-		}
+		putItem(element);
 		if(matchBucket != null) {
-			callback.gotBucket(matchBucket, container, context);
+			deliver(callback, matchBucket, container, context);
 			gotElement.value = true;
 		}
 		return element;
 	}
 
 	/**
-	 * Drop any stored data beyond the limit.
-	 * Call synchronized on storedData.
+	 * Drop any stored data beyond the limits, and move data beyond the RAM limit to disk.
+	 * Does nothing unless we are over a limit, in which case it drops or moves the least
+	 * recently used elements until we are TRIM_FRACTION below it.
 	 */
 	private void trimStoredData() {
-		synchronized(this) {
-		while(true) {
-			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
-				if(storedData.isEmpty()) {
-					// Race condition? cachedData out of sync?
-					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
+		if(!overLimits()) return;
+		synchronized(trimLock) {
+			if(!overLimits()) return;
+			// Sort by a snapshot of the access times, since they change while we sort.
+			ArrayList<TrimCandidate> candidates = new ArrayList<TrimCandidate>(storedData.size());
+			for(ArchiveStoreItem item : storedData.values())
+				candidates.add(new TrimCandidate(item));
+			Collections.sort(candidates);
+			long maxData = maxCachedData;
+			long targetData = maxData - maxData / TRIM_FRACTION;
+			int targetElements = maxCachedElements - maxCachedElements / TRIM_FRACTION;
+			int i = 0;
+			if(cachedData.get() > maxData || storedData.size() > maxCachedElements) {
+				for(; i < candidates.size(); i++) {
+					if(cachedData.get() <= targetData && storedData.size() <= targetElements) break;
+					ArchiveStoreItem item = candidates.get(i).item;
+					if(logMINOR)
+						Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxData+" stored items : "+storedData.size()+" of "+maxCachedElements);
+					if(dropItem(item))
+						evictions.incrementAndGet();
 				}
-				item = storedData.popValue();
-				long space = item.spaceUsed();
-				cachedData -= space;
-				// Hard limits = delete file within lock, soft limits = delete outside of lock
-				// Here we use a hard limit
-			if(logMINOR)
-				Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
-			item.close();
+			}
+			// Recount what is in RAM, since the temp bucket factory moves data to disk too.
+			long inRAM = 0;
+			for(int j = i; j < candidates.size(); j++)
+				inRAM += recount(candidates.get(j).item);
+			long maxRAM = maxCachedDataInRAM;
+			if(inRAM > maxRAM) {
+				long targetRAM = maxRAM - maxRAM / TRIM_FRACTION;
+				for(; i < candidates.size() && inRAM > targetRAM; i++) {
+					ArchiveStoreItem item = candidates.get(i).item;
+					long size = item.ramUsed();
+					if(size == 0) continue;
+					try {
+						if(item.spill()) {
+							inRAM -= size;
+							spilledBytes.addAndGet(size);
+							if(logMINOR) Logger.minor(this, "Moved "+item+" to disk : "+inRAM+" of "+maxRAM+" in RAM");
+						}
+					} catch (IOException e) {
+						// Leave it in RAM, it will still be dropped eventually.
+						Logger.error(this, "Unable to move "+item+" to disk: "+e, e);
+					}
+					recount(item);
+				}
+			}
+		}
+	}
+
+	/** Update the count of data in RAM for an item, if it is still cached.
+	 * @return The data it has in RAM. */
+	private long recount(ArchiveStoreItem item) {
+		synchronized(item) {
+			long ram = item.ramUsed();
+			if(storedData.get(item.key) != item) return 0;
+			cachedDataInRAM.addAndGet(ram - item.ramCounted);
+			item.ramCounted = ram;
+			return ram;
+		}
+	}
+
+	private boolean overLimits() {
+		return cachedData.get() > maxCachedData || cachedDataInRAM.get() > maxCachedDataInRAM ||
+			storedData.size() > maxCachedElements;
+	}
+
+	/** An item, and when it was last used as of when we started trimming. */
+	private static class TrimCandidate implements Comparable<TrimCandidate> {
+		final ArchiveStoreItem item;
+		final long lastAccessed;
+
+		TrimCandidate(ArchiveStoreItem item) {
+			this.item = item;
+			this.lastAccessed = item.lastAccessed;
 		}
+
+		@Override
+		public int compareTo(TrimCandidate c) {
+			if(lastAccessed < c.lastAccessed) return -1;
+			if(lastAccessed > c.lastAccessed) return 1;
+			return 0;
 		}
 	}
 
+	public void setMaxCachedData(long maxCachedData) {
+		this.maxCachedData = maxCachedData;
+		trimStoredData();
+	}
+
+	public long getMaxCachedData() {
+		return maxCachedData;
+	}
+
+	public void setMaxCachedDataInRAM(long maxCachedDataInRAM) {
+		this.maxCachedDataInRAM = maxCachedDataInRAM;
+		trimStoredData();
+	}
+
+	public long getMaxCachedDataInRAM() {
+		return maxCachedDataInRAM;
+	}
+
+	public long getCachedData() {
+		return cachedData.get();
+	}
+
+	public long getCachedDataInRAM() {
+		return cachedDataInRAM.get();
+	}
+
+	public int countCachedElements() {
+		return storedData.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Number of elements dropped because the cache was full. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Total bytes moved from RAM to disk because there was too much in RAM. */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	/** Number of times we have extracted an archive. */
+	public long getExtractions() {
+		return extractions.get();
+	}
+
+	/** Number of times we didn't need to extract an archive, because another fetch of it
+	 * had already done so. */
+	public long getExtractionsAvoided() {
+		return extractionsAvoided.get();
+	}
+
 	public static void init(ObjectContainer container, ClientContext context, final long nodeDBHandle) {
 		ArchiveHandlerImpl.init(container, context, nodeDBHandle);
 	}
@@ -31,6 +31,19 @@ class ArchiveStoreContext {
 	 * we must not take the ArchiveManager lock while holding this lock. It must be
 	 * the inner lock to avoid deadlocks. */
 	private final DoublyLinkedListImpl<ArchiveStoreItem> myItems;
+	/** The size of the archive if everything in it is still cached since it was last
+	 * extracted, otherwise -1. Protected by myItems. */
+	private long completeSize = -1;
+	/** Number of times an item has been dropped. Protected by myItems. */
+	private int drops;
+	/** The thread extracting the archive, or null. Protected by myItems. */
+	private Thread extractingThread;
+	/** Incremented when an item is cached, or an extraction finishes. Protected by
+	 * myItems, waited on and notified on myItems. */
+	private int progress;
+	/** Held while extracting the archive, so that when several fetches of the same
+	 * archive finish at once, it is only extracted once. Taken before any other lock. */
+	final Object extractLock = new Object();
 
         private static volatile boolean logMINOR;
 	static {
@@ -74,6 +87,7 @@ class ArchiveStoreContext {
 	 */
 	void removeAllCachedItems(ArchiveManager manager) {
 		ArchiveStoreItem item = null;
+		setIncomplete();
 		while(true) {
 			synchronized (myItems) {
 				// removeCachedItem() will call removeItem(), so don't remove it here.
@@ -101,10 +115,98 @@ class ArchiveStoreContext {
 					Logger.minor(this, "Not removing: "+item+" for "+this+" - already removed");
 				return; // only removed once
 			}
+			completeSize = -1;
+			drops++;
 		}
 		item.innerClose();
 	}
 
+	/** Record that every file in the archive has been extracted to the cache. Cleared
+	 * as soon as any of them is dropped.
+	 * @param drops The value of countDrops() before extracting. If anything has been
+	 * dropped since, the archive is not completely cached. */
+	void setComplete(long archiveSize, int drops) {
+		synchronized(myItems) {
+			if(this.drops == drops)
+				completeSize = archiveSize;
+		}
+	}
+
+	int countDrops() {
+		synchronized(myItems) {
+			return drops;
+		}
+	}
+
+	/** Called before dropping an item, so that anyone who can't find an item knows it may
+	 * have been dropped. */
+	void setIncomplete() {
+		synchronized(myItems) {
+			completeSize = -1;
+			drops++;
+		}
+	}
+
+	/** Is everything in the archive still cached since it was extracted from an archive
+	 * of this size? */
+	boolean isComplete(long archiveSize) {
+		synchronized(myItems) {
+			return completeSize != -1 && completeSize == archiveSize;
+		}
+	}
+
+	void startExtracting() {
+		synchronized(myItems) {
+			extractingThread = Thread.currentThread();
+		}
+	}
+
+	void endExtracting() {
+		synchronized(myItems) {
+			extractingThread = null;
+			progress++;
+			myItems.notifyAll();
+		}
+	}
+
+	/** Called after an item has been added to the ArchiveManager's cache. */
+	void itemCached() {
+		synchronized(myItems) {
+			progress++;
+			myItems.notifyAll();
+		}
+	}
+
+	int getProgress() {
+		synchronized(myItems) {
+			return progress;
+		}
+	}
+
+	/** Is another thread extracting the archive? If we are, waiting would deadlock. */
+	boolean isExtractingElsewhere() {
+		synchronized(myItems) {
+			return extractingThread != null && extractingThread != Thread.currentThread();
+		}
+	}
+
+	/** Wait until an item is cached or the extraction finishes, if it hasn't since
+	 * getProgress() returned progress. */
+	void waitForProgress(int progress, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(myItems) {
+			while(this.progress == progress && extractingThread != null) {
+				long now = System.currentTimeMillis();
+				if(now >= deadline) return;
+				try {
+					myItems.wait(deadline - now);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
 	public short getArchiveType() {
 		return archiveType.metadataID;
 	}
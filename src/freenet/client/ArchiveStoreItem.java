@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.io.IOException;
+
 import com.db4o.ObjectContainer;
 
 import freenet.support.DoublyLinkedListImpl;
@@ -15,6 +17,11 @@ import freenet.support.api.Bucket;
 abstract class ArchiveStoreItem extends DoublyLinkedListImpl.Item<ArchiveStoreItem> {
 	final ArchiveKey key;
 	final ArchiveStoreContext context;
+	/** When the item was last used, on ArchiveManager's access clock. Updated without
+	 * locking, so it is only an approximate LRU order. */
+	volatile long lastAccessed;
+	/** What ArchiveManager has counted as in RAM for this item. Protected by this. */
+	long ramCounted;
 	
 	/** Basic constructor. */
 	ArchiveStoreItem(ArchiveKey key, ArchiveStoreContext context) {
@@ -46,6 +53,23 @@ abstract class ArchiveStoreItem extends DoublyLinkedListImpl.Item<ArchiveStoreIt
 	 * locks so should not take any nontrivial locks or take long.
 	 */
 	abstract long spaceUsed();
+
+	/**
+	 * Return the amount of cache space used by the item which is in RAM. Like spaceUsed(),
+	 * may be called inside locks.
+	 */
+	long ramUsed() {
+		return 0;
+	}
+
+	/**
+	 * Move the item's data from RAM to disk, if it is in RAM. May block on disk I/O, so
+	 * must not be called with locks held.
+	 * @return True if data was moved.
+	 */
+	boolean spill() throws IOException {
+		return false;
+	}
 	
 	/**
 	 * Get the data as a Bucket, and guarantee that it won't be freed until the
@@ -6,6 +6,8 @@ package freenet.client;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.db4o.ObjectContainer;
 import com.onionnetworks.fec.FECCode;
@@ -13,12 +15,15 @@ import com.onionnetworks.fec.Native8Code;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
 
 /**
  * FEC (forward error correction) handler.
@@ -34,6 +39,12 @@ public abstract class FECCodec {
 	// Striping is very costly I/O wise.
 	// So set a maximum buffer size and calculate the stripe size accordingly.
 	static final int MAX_MEMORY_BUFFER = 8*1024*1024;
+	/** Don't split a stripe into pieces smaller than this to run them in parallel. */
+	static final int MIN_PARALLEL_PIECE = 4096;
+	/** Stripe buffers are up to MAX_MEMORY_BUFFER, and most jobs use one of a few sizes, so
+	 * keep a few around rather than allocating a new one for every segment. */
+	static final int MAX_POOLED_BUFFERS = 4;
+	private static final ArrayList<byte[]> bufferPool = new ArrayList<byte[]>();
 
         private static volatile boolean logMINOR;
 	static {
@@ -123,7 +134,144 @@ public abstract class FECCodec {
 	 */
 	public abstract int countCheckBlocks();
 
+	/** Get a stripe buffer, from the pool if possible. The contents are undefined. */
+	static byte[] allocateBuffer(int size) {
+		synchronized(bufferPool) {
+			for(int i=bufferPool.size()-1;i>=0;i--) {
+				if(bufferPool.get(i).length == size)
+					return bufferPool.remove(i);
+			}
+		}
+		return new byte[size];
+	}
+
+	static void releaseBuffer(byte[] buf) {
+		synchronized(bufferPool) {
+			if(bufferPool.size() >= MAX_POOLED_BUFFERS)
+				bufferPool.remove(0);
+			bufferPool.add(buf);
+		}
+	}
+
+	/** Called when memory is low. */
+	static void clearBufferPool() {
+		synchronized(bufferPool) {
+			bufferPool.clear();
+		}
+	}
+
+	static int pooledBuffers() {
+		synchronized(bufferPool) {
+			return bufferPool.size();
+		}
+	}
+
+	/** Runs the codec on a range of bytes of every block in the current stripe. */
+	private interface StripeOperation {
+		void run(int offset, int length);
+	}
+
+	/** Tracks the pieces of a stripe which are being run in parallel. */
+	private static class PieceTracker {
+		private int running;
+		private Throwable failure;
+
+		synchronized void started() {
+			running++;
+		}
+
+		synchronized void completed(Throwable t) {
+			running--;
+			if(t != null && failure == null)
+				failure = t;
+			notifyAll();
+		}
+
+		synchronized void waitForAll() throws IOException {
+			// The pieces use the stripe buffer, so we must wait for them even if interrupted.
+			while(running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(failure instanceof Error)
+				throw (Error) failure;
+			if(failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if(failure instanceof IOException)
+				throw (IOException) failure;
+			if(failure != null)
+				throw new IOException("FEC failed: "+failure, failure);
+		}
+	}
+
+	/**
+	 * Run the codec over the current stripe. The codec works on each byte (or pair of bytes 
+	 * for a 16-bit code) independently, so if there is more than one thread available, 
+	 * split the stripe into pieces and run them in parallel on the executor, with the first 
+	 * piece on this thread.
+	 */
+	private void runStriped(final StripeOperation op, int stripeSize, Executor executor, int threads) throws IOException {
+		int pieces = Math.min(threads, stripeSize / MIN_PARALLEL_PIECE);
+		if(executor == null || pieces <= 1) {
+			op.run(0, stripeSize);
+			return;
+		}
+		int pieceLength = (stripeSize + pieces - 1) / pieces;
+		// Must be even if 16-bit code.
+		if((k > 256 || n > 256) && ((pieceLength & 1) == 1))
+			pieceLength++;
+		final PieceTracker tracker = new PieceTracker();
+		for(int offset = pieceLength; offset < stripeSize; offset += pieceLength) {
+			final int pieceOffset = offset;
+			final int length = Math.min(pieceLength, stripeSize - offset);
+			tracker.started();
+			executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					Throwable failure = null;
+					try {
+						op.run(pieceOffset, length);
+					} catch (Throwable t) {
+						failure = t;
+					} finally {
+						tracker.completed(failure);
+					}
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.LOW_PRIORITY;
+				}
+
+			}, "FEC stripe piece");
+		}
+		tracker.started();
+		Throwable failure = null;
+		try {
+			op.run(0, Math.min(pieceLength, stripeSize));
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			tracker.completed(failure);
+		}
+		tracker.waitForAll();
+	}
+
 	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf) throws IOException {
+		realDecode(dataBlockStatus, checkBlockStatus, blockLength, bf, null, 1);
+	}
+
+	/**
+	 * Decode a segment.
+	 * @param executor If not null, and threads is more than 1, large stripes will be split
+	 * into pieces which are decoded in parallel.
+	 * @param threads The maximum number of threads to use.
+	 */
+	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf, Executor executor, int threads) throws IOException {
 		loadFEC();
 		if(logMINOR)
 			Logger.minor(this, "Doing decode: " + dataBlockStatus.length + " data blocks, " + checkBlockStatus.length + " check blocks, block length " + blockLength + " with " + this, new Exception("debug"));
@@ -131,7 +279,6 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		if(dataBlockStatus.length != k)
 			throw new IllegalArgumentException();
-		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
@@ -145,21 +292,16 @@ public abstract class FECCodec {
 			stripeSize++;
 		if(logMINOR && stripeSize != 32768) Logger.minor(this, "Stripe size is "+stripeSize);
 
+		final byte[] realBuffer = allocateBuffer(k * stripeSize);
 		try {
 
-			byte[] realBuffer = new byte[k * stripeSize];
-
 			// Indicates where the data is for each block. Many of the blocks won't have any data.
-			int[] packetIndexes = new int[k];
+			final int[] packetIndexes = new int[k];
 			for(int i = 0; i < packetIndexes.length; i++)
 				packetIndexes[i] = -1;
 
 			int idx = 0;
 
-			for(int i = 0; i < k; i++)
-				packets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			// Due to the not-fetching-last-block code, we need to check here.
 			
 			boolean needDecode = false;
@@ -237,10 +379,21 @@ public abstract class FECCodec {
 						}
 					}
 				}
-				// The FEC codec will change the indexes in disposableIndexes. We need them to stay the same for multiple stripes.
-				int[] disposableIndexes = packetIndexes.clone();
-				// Do the decode, not shuffled
-				fec.decode(packets, disposableIndexes);
+				final int currentStripeSize = stripeSize;
+				runStriped(new StripeOperation() {
+
+					@Override
+					public void run(int pieceOffset, int length) {
+						Buffer[] packets = new Buffer[k];
+						for(int i = 0; i < k; i++)
+							packets[i] = new Buffer(realBuffer, i * currentStripeSize + pieceOffset, length);
+						// The FEC codec will change the indexes in disposableIndexes. We need them to stay the same for multiple stripes.
+						int[] disposableIndexes = packetIndexes.clone();
+						// Do the decode, not shuffled
+						fec.decode(packets, disposableIndexes);
+					}
+
+				}, currentStripeSize, executor, threads);
 				// packets now contains an array of decoded blocks, in order
 				// Write the data out
 				for(int i = 0; i < k; i++) {
@@ -268,6 +421,7 @@ public abstract class FECCodec {
 				Closer.close(writers[i]);
 			for(int i = 0; i < n; i++)
 				Closer.close(readers[i]);
+			releaseBuffer(realBuffer);
 		}
 		// Set new buckets only after have a successful decode.
 		// Note that the last data bucket will be overwritten padded.
@@ -289,6 +443,18 @@ public abstract class FECCodec {
 	protected void realEncode(Bucket[] dataBlockStatus,
 		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf)
 		throws IOException {
+		realEncode(dataBlockStatus, checkBlockStatus, blockLength, bf, null, 1);
+	}
+
+	/**
+	 * Do the actual encode.
+	 * @param executor If not null, and threads is more than 1, large stripes will be split
+	 * into pieces which are encoded in parallel.
+	 * @param threads The maximum number of threads to use.
+	 */
+	protected void realEncode(Bucket[] dataBlockStatus,
+		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf, Executor executor, int threads)
+		throws IOException {
 		if(bf == null) throw new NullPointerException();
 		loadFEC();
 		//		Runtime.getRuntime().gc();
@@ -303,15 +469,14 @@ public abstract class FECCodec {
 		if((dataBlockStatus.length + checkBlockStatus.length != n) ||
 			(dataBlockStatus.length != k))
 			throw new IllegalArgumentException("Data blocks: " + dataBlockStatus.length + ", Check blocks: " + checkBlockStatus.length + ", n: " + n + ", k: " + k);
-		Buffer[] dataPackets = new Buffer[k];
-		Buffer[] checkPackets;
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[k];
 		OutputStream[] writers = null;
+		byte[] buffer = null;
 		
 		try {
 
-			int[] toEncode;
+			final int[] toEncode;
 			int numberToEncode = 0; // can be less than n-k
 
 			int created = 0;
@@ -325,7 +490,6 @@ public abstract class FECCodec {
 			}
 			
 			toEncode = new int[numberToEncode];
-			checkPackets = new Buffer[numberToEncode];
 			writers = new OutputStream[numberToEncode];
 			
 			int stripeSize = MAX_MEMORY_BUFFER / (k + numberToEncode);
@@ -336,22 +500,17 @@ public abstract class FECCodec {
 				stripeSize++;
 			if(logMINOR && stripeSize != 32768) Logger.minor(this, "Stripe size is "+stripeSize);
 
-			byte[] realBuffer = new byte[(k + numberToEncode) * stripeSize];
+			final byte[] realBuffer = buffer = allocateBuffer((k + numberToEncode) * stripeSize);
 			
 			int x = 0;
 			for(int i = 0; i < checkBlockStatus.length; i++) {
 				if(checkBlockStatus[i] == null) {
 					toEncode[x] = i + k;
-					checkPackets[x] = new Buffer(realBuffer, (x + k) * stripeSize, stripeSize);
 					if(stripeSize != blockLength)
 						writers[x] = buckets[i + k].getOutputStream();
 					x++;
 				}
 			}
-			
-			for(int i = 0; i < k; i++)
-				dataPackets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
 
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i];
@@ -410,7 +569,23 @@ public abstract class FECCodec {
 						long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
 					}
-					fec.encode(dataPackets, checkPackets, toEncode);
+					// The buffer may be reused, clear the check blocks.
+					Arrays.fill(realBuffer, k * stripeSize, (k + toEncode.length) * stripeSize, (byte) 0);
+					final int currentStripeSize = stripeSize;
+					runStriped(new StripeOperation() {
+
+						@Override
+						public void run(int pieceOffset, int length) {
+							Buffer[] dataPackets = new Buffer[k];
+							for(int i = 0; i < k; i++)
+								dataPackets[i] = new Buffer(realBuffer, i * currentStripeSize + pieceOffset, length);
+							Buffer[] checkPackets = new Buffer[toEncode.length];
+							for(int i = 0; i < toEncode.length; i++)
+								checkPackets[i] = new Buffer(realBuffer, (i + k) * currentStripeSize + pieceOffset, length);
+							fec.encode(dataPackets, checkPackets, toEncode.clone());
+						}
+
+					}, currentStripeSize, executor, threads);
 					if(logMINOR) {
 						long memUsedAfterStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use after stripe: " + memUsedAfterStripe);
@@ -442,6 +617,8 @@ public abstract class FECCodec {
 				for(int i = 0; i < writers.length; i++)
 					Closer.close(writers[i]);
 			}
+			if(buffer != null)
+				releaseBuffer(buffer);
 		}
 		// Set new buckets only after have a successful decode.
 		for(int i = 0; i < checkBlockStatus.length; i++) {
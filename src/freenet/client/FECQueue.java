@@ -30,7 +30,8 @@ import freenet.support.io.NativeThread;
 /**
  * The FEC queue. Uses a limited number of threads (at most one per core), a non-persistent queue,
  * a persistent queue (kept in the database), and a transient cache of the persistent queue.
- * Sorted by priority and then by time added.
+ * Sorted by priority and then by time added. Each job may also split its stripes across 
+ * the cores which aren't running other FEC jobs, see FECCodec.
  * 
  * Note that the FECQueue must be pulled from the database, because FECJob's are queried based
  * on their referring to it.
@@ -204,6 +205,7 @@ public class FECQueue implements OOMHook {
 			try {
 				while(true) {
 					final FECJob job;
+					final int threads;
 					// Get a job
 					synchronized (FECQueue.this) {
 						job = getFECJobBlockingNoDBAccess();
@@ -216,6 +218,8 @@ public class FECQueue implements OOMHook {
 							continue;
 						}
 						job.running = true;
+						// Split large segments across the cores not being used by other FEC threads.
+						threads = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, runningFECThreads));
 					}
 
 					if(logMINOR)
@@ -224,9 +228,9 @@ public class FECQueue implements OOMHook {
 					try {
 						if (job.isADecodingJob)
 							job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
-							        job.bucketFactory);
+							        job.bucketFactory, executor, threads);
 						else {
-							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
+							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory, executor, threads);
 							// Update SplitFileBlocks from buckets if necessary
 							if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
 								for (int i = 0; i < job.dataBlocks.length; i++) {
@@ -574,12 +578,14 @@ public class FECQueue implements OOMHook {
 
 	@Override
 	public synchronized void handleLowMemory() throws Exception {
+		FECCodec.clearBufferPool();
 		maxRunningFECThreads = Math.max(1, maxRunningFECThreads - 1);
 		notify(); // not notifyAll()
 	}
 
 	@Override
 	public synchronized void handleOutOfMemory() throws Exception {
+		FECCodec.clearBufferPool();
 		maxRunningFECThreads = 1;
 		notifyAll();
 	}
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.io.IOException;
+
 import com.db4o.ObjectContainer;
 
 import freenet.keys.FreenetURI;
@@ -11,11 +13,14 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.TempBucketFactory.TempBucket;
 
 class RealArchiveStoreItem extends ArchiveStoreItem {
 
 	private final MultiReaderBucket mb;
 	private final Bucket bucket;
+	/** The bucket the data was extracted to, which may be a RAM temp bucket. */
+	private final Bucket underlying;
 	private final long spaceUsed;
 
         private static volatile boolean logMINOR;
@@ -42,6 +47,7 @@ class RealArchiveStoreItem extends ArchiveStoreItem {
 		this.bucket = mb.getReaderBucket();
 		if(this.bucket == null) throw new NullPointerException();
 		bucket.setReadOnly();
+		underlying = bucket;
 		spaceUsed = bucket.size();
 	}
 
@@ -67,6 +73,20 @@ class RealArchiveStoreItem extends ArchiveStoreItem {
 		return spaceUsed;
 	}
 	
+	@Override
+	long ramUsed() {
+		if(underlying instanceof TempBucket && ((TempBucket)underlying).isRAMBucket())
+			return spaceUsed;
+		return 0;
+	}
+
+	@Override
+	boolean spill() throws IOException {
+		if(ramUsed() == 0) return false;
+		((TempBucket)underlying).migrateToFileBucket();
+		return ramUsed() == 0;
+	}
+
 	@Override
 	void innerClose() {
 		if(logMINOR)
@@ -0,0 +1,322 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.BaseFileBucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * The central directory of a ZIP file: where each file is, and how big it is. Unlike
+ * ZipInputStream, this lets us read one file without reading the others, and decompress
+ * several at once.
+ *
+ * Only handles the common case: a single disk, no ZIP64, no encryption, and files that
+ * are either stored or deflated. read() returns null for anything else, and the caller
+ * should fall back to ZipInputStream.
+ */
+class ZipCentralDirectory {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_LENGTH = 22;
+	private static final int MAX_COMMENT_LENGTH = 65535;
+	private static final int LOCAL_HEADER_LENGTH = 30;
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+	/** Read this much of the end of the file, so that we usually get the central directory
+	 * along with the end of central directory record. */
+	private static final int TAIL_LENGTH = 256*1024;
+
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	static class Entry {
+		final String name;
+		final int method;
+		final long compressedSize;
+		final long size;
+		final long crc;
+		final long localHeaderOffset;
+
+		Entry(String name, int method, long compressedSize, long size, long crc, long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.crc = crc;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+			return name+" ("+size+" bytes)";
+		}
+	}
+
+	final List<Entry> entries;
+
+	private ZipCentralDirectory(List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Read the central directory of a ZIP file.
+	 * @return The central directory, or null if the file uses anything we don't support.
+	 * @throws ZipException If it is not a valid ZIP file.
+	 */
+	static ZipCentralDirectory read(Bucket data) throws IOException {
+		long size = data.size();
+		if(size < END_LENGTH) throw new ZipException("Too short to be a ZIP file");
+		int tailLength = (int) Math.min(size, Math.max(TAIL_LENGTH, END_LENGTH + MAX_COMMENT_LENGTH));
+		long tailStart = size - tailLength;
+		byte[] tail = readAt(data, tailStart, tailLength);
+		int end = -1;
+		for(int i = tailLength - END_LENGTH; i >= 0; i--) {
+			if(getInt(tail, i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if(end == -1) throw new ZipException("No end of central directory record");
+		int disk = getShort(tail, end + 4);
+		int centralDisk = getShort(tail, end + 6);
+		int count = getShort(tail, end + 10);
+		long centralSize = getInt(tail, end + 12) & 0xFFFFFFFFL;
+		long centralOffset = getInt(tail, end + 16) & 0xFFFFFFFFL;
+		// Multiple disks or ZIP64.
+		if(disk != 0 || centralDisk != 0 || count == 0xFFFF || centralOffset == 0xFFFFFFFFL) return null;
+		if(centralOffset + centralSize > tailStart + end || centralSize > Integer.MAX_VALUE)
+			throw new ZipException("Invalid central directory");
+		byte[] central;
+		int offset;
+		if(centralOffset >= tailStart) {
+			central = tail;
+			offset = (int) (centralOffset - tailStart);
+		} else {
+			central = readAt(data, centralOffset, (int) centralSize);
+			offset = 0;
+		}
+		int limit = offset + (int) centralSize;
+		ArrayList<Entry> entries = new ArrayList<Entry>(count);
+		for(int i = 0; i < count; i++) {
+			if(offset + CENTRAL_HEADER_LENGTH > limit || getInt(central, offset) != CENTRAL_HEADER_SIGNATURE)
+				throw new ZipException("Invalid central directory entry");
+			int flags = getShort(central, offset + 8);
+			int method = getShort(central, offset + 10);
+			long crc = getInt(central, offset + 16) & 0xFFFFFFFFL;
+			long compressedSize = getInt(central, offset + 20) & 0xFFFFFFFFL;
+			long entrySize = getInt(central, offset + 24) & 0xFFFFFFFFL;
+			int nameLength = getShort(central, offset + 28);
+			int extraLength = getShort(central, offset + 30);
+			int commentLength = getShort(central, offset + 32);
+			long localHeaderOffset = getInt(central, offset + 42) & 0xFFFFFFFFL;
+			if(offset + CENTRAL_HEADER_LENGTH + nameLength > limit)
+				throw new ZipException("Invalid central directory entry");
+			// Same as ZipInputStream.
+			String name = new String(central, offset + CENTRAL_HEADER_LENGTH, nameLength, "UTF-8");
+			// Encrypted, or ZIP64.
+			if((flags & 1) != 0 || compressedSize == 0xFFFFFFFFL || entrySize == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL)
+				return null;
+			if(method != STORED && method != DEFLATED) return null;
+			if(localHeaderOffset + LOCAL_HEADER_LENGTH + compressedSize > size)
+				throw new ZipException("Invalid central directory entry for "+name);
+			entries.add(new Entry(name, method, compressedSize, entrySize, crc, localHeaderOffset));
+			offset += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+		}
+		return new ZipCentralDirectory(entries);
+	}
+
+	/**
+	 * Reads files in the order they are stored, from a single stream on the bucket. Temp
+	 * buckets are usually encrypted, so opening a new stream and skipping to each file
+	 * would read and decrypt the archive once per file.
+	 */
+	static class SequentialReader {
+
+		private final DataInputStream dis;
+		private long position;
+
+		SequentialReader(Bucket data) throws IOException {
+			dis = new DataInputStream(data.getInputStream());
+		}
+
+		/** Skip to the compressed data of a file. Files must be read in order of
+		 * localHeaderOffset: see IN_FILE_ORDER. */
+		private void seek(Entry entry) throws IOException {
+			if(entry.localHeaderOffset < position)
+				throw new ZipException("Overlapping files in archive: "+entry.name);
+			FileUtil.skipFully(dis, entry.localHeaderOffset - position);
+			position = entry.localHeaderOffset + skipLocalHeader(dis, entry);
+		}
+
+		/**
+		 * Extract a file.
+		 * @param maxSize Stop with an exception if the file turns out to be bigger than this.
+		 * @throws ZipException If the data is corrupt, or bigger than maxSize.
+		 */
+		void extract(Entry entry, OutputStream out, long maxSize, byte[] buf) throws IOException {
+			seek(entry);
+			position += inflate(dis, entry, out, maxSize, buf);
+		}
+
+		/** Read the compressed data of a file, to be passed to inflate() by another thread. */
+		byte[] readCompressed(Entry entry) throws IOException {
+			if(entry.compressedSize > Integer.MAX_VALUE)
+				throw new ZipException("File too big: "+entry.name);
+			seek(entry);
+			byte[] compressed = new byte[(int) entry.compressedSize];
+			dis.readFully(compressed);
+			position += compressed.length;
+			return compressed;
+		}
+
+		void close() {
+			Closer.close(dis);
+		}
+
+	}
+
+	static final Comparator<Entry> IN_FILE_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.localHeaderOffset < e2.localHeaderOffset) return -1;
+			if(e1.localHeaderOffset > e2.localHeaderOffset) return 1;
+			return 0;
+		}
+
+	};
+
+	/** @return The length of the local header, which we have skipped. */
+	private static int skipLocalHeader(DataInputStream dis, Entry entry) throws IOException {
+		byte[] header = new byte[LOCAL_HEADER_LENGTH];
+		dis.readFully(header);
+		if(getInt(header, 0) != LOCAL_HEADER_SIGNATURE)
+			throw new ZipException("Invalid local header for "+entry.name);
+		int skip = getShort(header, 26) + getShort(header, 28);
+		FileUtil.skipFully(dis, skip);
+		return LOCAL_HEADER_LENGTH + skip;
+	}
+
+	/**
+	 * Decompress a file and check its CRC.
+	 * @param is Positioned at the start of the file's compressed data.
+	 * @param maxSize Stop with an exception if the file turns out to be bigger than this.
+	 * @return The number of bytes read from is.
+	 * @throws ZipException If the data is corrupt, or bigger than maxSize.
+	 */
+	static long inflate(InputStream is, Entry entry, OutputStream out, long maxSize, byte[] buf) throws IOException {
+		Inflater inflater = null;
+		try {
+			CRC32 crc = new CRC32();
+			long written = 0;
+			long remaining = entry.compressedSize;
+			if(entry.method == STORED) {
+				if(entry.compressedSize != entry.size)
+					throw new ZipException("Invalid size for stored file "+entry.name);
+				while(remaining > 0) {
+					int read = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+					if(read <= 0) throw new EOFException();
+					remaining -= read;
+					written += read;
+					if(written > maxSize) throw new ZipException("File too big: "+entry.name);
+					crc.update(buf, 0, read);
+					out.write(buf, 0, read);
+				}
+			} else {
+				inflater = new Inflater(true);
+				byte[] inBuf = new byte[buf.length];
+				boolean padded = false;
+				while(!inflater.finished()) {
+					if(inflater.needsInput()) {
+						int read;
+						if(remaining > 0) {
+							read = is.read(inBuf, 0, (int) Math.min(inBuf.length, remaining));
+							if(read <= 0) throw new EOFException();
+							remaining -= read;
+						} else if(!padded) {
+							// With nowrap, the inflater may need one byte more than the compressed data.
+							inBuf[0] = 0;
+							read = 1;
+							padded = true;
+						} else
+							throw new ZipException("Truncated data for "+entry.name);
+						inflater.setInput(inBuf, 0, read);
+					}
+					int inflated;
+					try {
+						inflated = inflater.inflate(buf);
+					} catch (DataFormatException e) {
+						throw new ZipException("Corrupt data for "+entry.name+": "+e.getMessage());
+					}
+					if(inflated == 0 && inflater.needsDictionary())
+						throw new ZipException("Corrupt data for "+entry.name);
+					written += inflated;
+					if(written > maxSize) throw new ZipException("File too big: "+entry.name);
+					crc.update(buf, 0, inflated);
+					out.write(buf, 0, inflated);
+				}
+			}
+			if(written != entry.size || crc.getValue() != entry.crc)
+				throw new ZipException("Corrupt data for "+entry.name);
+			return entry.compressedSize - remaining;
+		} finally {
+			if(inflater != null) inflater.end();
+		}
+	}
+
+	/** Read part of a bucket. Seeks if it is a plain file, otherwise reads everything before
+	 * the part we want. */
+	private static byte[] readAt(Bucket data, long offset, int length) throws IOException {
+		byte[] buf = new byte[length];
+		if(data instanceof BaseFileBucket) {
+			RandomAccessFile raf = new RandomAccessFile(((BaseFileBucket) data).getFile(), "r");
+			try {
+				raf.seek(offset);
+				raf.readFully(buf);
+				return buf;
+			} finally {
+				raf.close();
+			}
+		}
+		InputStream is = data.getInputStream();
+		try {
+			DataInputStream dis = new DataInputStream(is);
+			FileUtil.skipFully(dis, offset);
+			dis.readFully(buf);
+			return buf;
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private static int getShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8);
+	}
+
+	private static int getInt(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8) | ((buf[offset+2] & 0xFF) << 16) | ((buf[offset+3] & 0xFF) << 24);
+	}
+
+}
@@ -63,6 +63,7 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient final CooldownTracker cooldownTracker;
+	public transient final KeyListenerRestorer keyListenerRestorer;
 	public transient DownloadCache downloadCache;
 
 	/** Provider for link filter exceptions. */
@@ -94,6 +95,7 @@ public class ClientContext {
 		this.checker = checker;
 		this.linkFilterExceptionProvider = linkFilterExceptionProvider;
 		this.cooldownTracker = new CooldownTracker();
+		this.keyListenerRestorer = new KeyListenerRestorer();
 	}
 	
 	public void init(RequestStarterGroup starters, UserAlertManager alerts) {
@@ -78,6 +78,9 @@ abstract class ClientRequestSchedulerBase {
 	protected transient ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. */
 	protected transient ArrayList<KeyListener> keyListeners;
+	/** The same listeners, indexed by the keys they want, so that we only call
+	 * probablyWantKey() on those which might want a key. Transient. */
+	protected transient KeyListenerIndex keyListenerIndex;
 
 	abstract boolean persistent();
 	
@@ -86,6 +89,7 @@ abstract class ClientRequestSchedulerBase {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		keyListeners = new ArrayList<KeyListener>();
+		keyListenerIndex = new KeyListenerIndex();
 		newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
 		random.nextBytes(globalSalt);
@@ -257,11 +261,13 @@ abstract class ClientRequestSchedulerBase {
 
 	public void addPendingKeys(KeyListener listener) {
 		if(listener == null) throw new NullPointerException();
+		KeySummary summary = listener.getKeySummary(this);
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(keyListeners.contains(listener))
 				return;
 			keyListeners.add(listener);
+			keyListenerIndex.add(listener, summary);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
@@ -271,6 +277,7 @@ abstract class ClientRequestSchedulerBase {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			keyListenerIndex.remove(listener);
 			while(logMINOR && keyListeners.remove(listener))
 				Logger.error(this, "Still in pending keys after removal, must be in twice or more: "+listener, new Exception("error"));
 			listener.onRemove();
@@ -292,6 +299,7 @@ abstract class ClientRequestSchedulerBase {
 			if(listener.getHasKeyListener() == hasListener) {
 				found = true;
 				i.remove();
+				keyListenerIndex.remove(listener);
 				listener.onRemove();
 				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
 			}
@@ -304,7 +312,7 @@ abstract class ClientRequestSchedulerBase {
 		byte[] saltedKey = saltKey(key);
 		ArrayList<KeyListener> matches = null;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
+			for(KeyListener listener : keyListenerIndex.candidates(saltedKey)) {
 				if(!listener.probablyWantKey(key, saltedKey)) continue;
 				if(matches == null) matches = new ArrayList<KeyListener> ();
 				matches.add(listener);
@@ -331,7 +339,7 @@ abstract class ClientRequestSchedulerBase {
 		byte[] saltedKey = saltKey(key);
 		ArrayList<KeyListener> matches = null;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
+			for(KeyListener listener : keyListenerIndex.candidates(saltedKey)) {
 				if(!listener.probablyWantKey(key, saltedKey)) continue;
 				if(matches == null) matches = new ArrayList<KeyListener> ();
 				matches.add(listener);
@@ -349,7 +357,7 @@ abstract class ClientRequestSchedulerBase {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
+		for(KeyListener listener : keyListenerIndex.candidates(saltedKey)) {
 			if(listener.probablyWantKey(key, saltedKey))
 				return true;
 		}
@@ -369,7 +377,7 @@ abstract class ClientRequestSchedulerBase {
 		byte[] saltedKey = saltKey(key);
 		ArrayList<KeyListener> matches = null;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
+			for(KeyListener listener : keyListenerIndex.candidates(saltedKey)) {
 				if(!listener.probablyWantKey(key, saltedKey)) continue;
 				if(matches == null) matches = new ArrayList<KeyListener> ();
 				if(matches.contains(listener)) {
@@ -395,6 +403,7 @@ abstract class ClientRequestSchedulerBase {
 				if(listener.isEmpty()) {
 					synchronized(this) {
 						keyListeners.remove(listener);
+						keyListenerIndex.remove(listener);
 					}
 					listener.onRemove();
 				}
@@ -462,7 +471,7 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
+		for(KeyListener listener : keyListenerIndex.candidates(saltedKey)) {
 			if(!listener.probablyWantKey(key, saltedKey)) continue;
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
@@ -476,6 +485,7 @@ abstract class ClientRequestSchedulerBase {
 	
 	public void onStarted(ObjectContainer container, ClientContext context) {
 		keyListeners = new ArrayList<KeyListener>();
+		keyListenerIndex = new KeyListenerIndex();
 		if(newPriorities == null) {
 			newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 			if(persistent()) container.store(this);
@@ -321,6 +321,10 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 			SectoredRandomGrabArray trans = null;
 			if(!notTransient)
 				trans = schedTransient.newPriorities[choosenPriorityClass];
+			if(perm != null && !isInsertScheduler && !context.keyListenerRestorer.isRestored(choosenPriorityClass)) {
+				// Can't receive the blocks yet.
+				perm = null;
+			}
 			if(perm == null && trans == null) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
@@ -142,6 +142,8 @@ public class DatastoreChecker implements PrioRunnable {
 			}
 		}
 		for(short p = RequestStarter.MAXIMUM_PRIORITY_CLASS; p <= RequestStarter.MINIMUM_PRIORITY_CLASS; p++) {
+			// Found blocks go to the KeyListener's. KeyListenerRestorer will wake us up.
+			if(!context.keyListenerRestorer.isRestored(p)) break;
 			final short prio = p;
 			Query query = container.query();
 			query.constrain(DatastoreCheckerItem.class);
@@ -23,6 +23,12 @@ public interface HasKeyListener {
 	 */
 	boolean isCancelled(ObjectContainer container);
 
+	/**
+	 * Priority class of the request, used to restore the highest priority requests first
+	 * on startup.
+	 */
+	short getPriorityClass(ObjectContainer container);
+
 	/**
 	 * Notify that makeKeyListener() failed.
 	 */
@@ -1,8 +1,6 @@
 package freenet.client.async;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -19,8 +17,9 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressJob;
-import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.CompressionRace;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.RealCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketChainBucketFactory;
 import freenet.support.io.Closer;
@@ -114,124 +113,76 @@ public class InsertCompressor implements CompressJob {
 
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
-		long origSize = origData.size();
 		COMPRESSOR_TYPE bestCodec = null;
 		Bucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
 		
 		HashResult[] hashes = null;
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
-		// Stop when run out of algorithms, or the compressed data fits in a single block.
+		// Try all the algorithms at once, as far as we have compression threads for them.
+		// The result is the same as trying each in turn, starting with the fastest and
+		// weakest, and stopping when run out of algorithms or the compressed data fits in
+		// a single block; the others give up as soon as they can't do better.
 		try {
 			BucketChainBucketFactory bucketFactory2 = new BucketChainBucketFactory(bucketFactory, CHKBlock.DATA_LENGTH, persistent ? context.jobRunner : null, 1024, true);
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				Bucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new DBJob() {
-
-							@Override
-							public boolean run(ObjectContainer container, ClientContext context) {
-								if(!container.ext().isStored(inserter)) {
-									if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
-									return false;
-								}
-								if(container.ext().isActive(inserter))
-									Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
-								container.activate(inserter, 1);
-								inserter.onStartCompression(comp, container, context);
-								container.deactivate(inserter, 1);
-								return false;
-							}
+			Hasher hasher = null;
+			if(generateHashes != 0) {
+				if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+				hasher = new Hasher();
+				context.mainExecutor.execute(hasher, "Hashing for "+this);
+			}
+			CompressionRace race = new CompressionRace(comps, origData, bucketFactory2, minSize);
+			int best;
+			try {
+				best = race.run(context.mainExecutor, RealCompressor.compressorSemaphore, new CompressionRace.Listener() {
+					
+					@Override
+					public void onStart(final COMPRESSOR_TYPE comp) {
+						if(logMINOR)
+							Logger.minor(this, "Attempt to compress using " + comp);
+						if(persistent) {
+							try {
+								context.jobRunner.queue(new DBJob() {
 
-						}, NativeThread.NORM_PRIORITY+1, false);
-					} else {
-						try {
-							inserter.onStartCompression(comp, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+									@Override
+									public boolean run(ObjectContainer container, ClientContext context) {
+										if(!container.ext().isStored(inserter)) {
+											if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
+											return false;
+										}
+										if(container.ext().isActive(inserter))
+											Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
+										container.activate(inserter, 1);
+										inserter.onStartCompression(comp, container, context);
+										container.deactivate(inserter, 1);
+										return false;
+									}
 
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory2.makeBucket(-1);
-						os = result.getOutputStream();
-						long maxOutputSize = bestCompressedDataSize;
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, maxOutputSize);
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						} catch (CompressionOutputSizeException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
+								}, NativeThread.NORM_PRIORITY+1, false);
+							} catch (DatabaseDisabledException e) {
+								Logger.error(this, "Database disabled compressing data", new Exception("error"));
+							}
+						} else {
+							try {
+								inserter.onStartCompression(comp, null, context);
+							} catch (Throwable t) {
+								Logger.error(this, "Transient insert callback threw "+t, t);
 							}
-							continue; // try next compressor type
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
 						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" smaller then minSize "+minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultSize < bestCompressedDataSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" better than old best "+bestCompressedDataSize);
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
 					}
-				} catch (DatabaseDisabledException e) {
-					Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
-				}
+					
+				});
+			} finally {
+				if(hasher != null)
+					hashes = hasher.getResults();
+			}
+			if(best >= 0) {
+				bestCodec = comps[best];
+				bestCompressedData = race.getResult(best);
+				if(logMINOR)
+					Logger.minor(this, "Compressed "+origData.size()+" bytes to "+bestCompressedData.size()+" with "+bestCodec);
 			}
 			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
@@ -288,6 +239,55 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** Hashes the original data while it is being compressed. */
+	private class Hasher implements PrioRunnable {
+		
+		private HashResult[] results;
+		private boolean finished;
+		
+		@Override
+		public void run() {
+			HashResult[] r = null;
+			MultiHashInputStream is = null;
+			try {
+				is = new MultiHashInputStream(origData.getInputStream(), generateHashes);
+				is.skip(Long.MAX_VALUE);
+				r = is.getResults();
+			} catch (IOException e) {
+				// Compression will fail too.
+				Logger.error(this, "Failed to read data to hash it: "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" hashing data", t);
+			} finally {
+				Closer.close(is);
+				synchronized(this) {
+					results = r;
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+		
+		/** Wait for the hashes.
+		 * @return Null if they could not be generated. */
+		synchronized HashResult[] getResults() {
+			while(!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return results;
+		}
+		
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+		
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.Journal;
+
+/**
+ * PersistentRequestStore on a Journal: each request's state is one record, so changing a
+ * request costs a sequential append rather than a database transaction, and loading is a
+ * sequential read of the last snapshot and the journal since.
+ */
+public class JournalRequestStore implements PersistentRequestStore {
+
+	/** Write a snapshot once the journal reaches this size, if it is bigger than the
+	 * snapshot. */
+	static final long MIN_CHECKPOINT_LENGTH = 4*1024*1024;
+
+	private final Journal journal;
+
+	/** @param base The files used are this with .snapshot and .journal appended. */
+	public JournalRequestStore(File base) throws IOException {
+		journal = new Journal(base, MIN_CHECKPOINT_LENGTH);
+	}
+
+	@Override
+	public void store(String key, SimpleFieldSet state) throws IOException {
+		journal.put(key, state.toString().getBytes("UTF-8"));
+	}
+
+	@Override
+	public void remove(String key) throws IOException {
+		journal.remove(key);
+	}
+
+	@Override
+	public void commit() throws IOException {
+		journal.commit();
+	}
+
+	@Override
+	public Map<String, SimpleFieldSet> load() throws IOException {
+		Map<String, byte[]> all = journal.getAll();
+		LinkedHashMap<String, SimpleFieldSet> ret = new LinkedHashMap<String, SimpleFieldSet>(all.size() * 2);
+		for(Map.Entry<String, byte[]> entry : all.entrySet()) {
+			try {
+				ret.put(entry.getKey(), decode(entry.getValue()));
+			} catch (IOException e) {
+				// The record passed its checksum, so this is a bug or a format change.
+				Logger.error(this, "Unable to parse stored state for "+entry.getKey()+" : "+e, e);
+			}
+		}
+		return ret;
+	}
+
+	private static SimpleFieldSet decode(byte[] data) throws IOException {
+		return new SimpleFieldSet(new String(data, "UTF-8"), false, true, false);
+	}
+
+	@Override
+	public int size() {
+		return journal.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		journal.close();
+	}
+
+}
@@ -30,6 +30,16 @@ public interface KeyListener {
 	 */
 	public boolean probablyWantKey(Key key, byte[] saltedKey);
 	
+	/**
+	 * Summary of the keys we want, so that the scheduler only calls probablyWantKey()
+	 * for keys which might match. Every key we want must be added to it, including any
+	 * added after we have been registered.
+	 * @param sched The scheduler we are being registered on, whose global salt must
+	 * be used.
+	 * @return The summary, or null if we must be asked about every key.
+	 */
+	public KeySummary getKeySummary(ClientRequestSchedulerBase sched);
+	
 	/**
 	 * Do we want the key? This is called by the ULPR code, because fetching the
 	 * key will involve significant work. tripPendingKey() on the other hand
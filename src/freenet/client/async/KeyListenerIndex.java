@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Finds the KeyListener's which might want a key, so that ClientRequestSchedulerBase only
+ * calls probablyWantKey() on those, rather than on every listener for every block.
+ *
+ * Listeners which provide a KeySummary are put in groups of up to 64 with summaries of
+ * the same size. The summaries are stored bit-sliced: bit j of word p of a group is bit p
+ * of member j's summary. So looking up a key ANDs K words per group, and the bits left
+ * are the members which might want it. Listeners without a summary are always
+ * candidates, as before. The listeners still make the final decision in
+ * probablyWantKey(), so the index can only remove false positives, not add them.
+ *
+ * LOCKING: Synchronized on this. Must not call out to listeners or take any other lock
+ * except a KeySummary's while holding it.
+ */
+class KeyListenerIndex {
+
+	private static final int GROUP_SIZE = 64;
+	private static final KeyListener[] NONE = new KeyListener[0];
+
+	private static final class Group {
+		final int sizeLog;
+		/** Bit j of slices[p] is set if member j's summary has bit p set. */
+		final long[] slices;
+		final KeyListener[] members = new KeyListener[GROUP_SIZE];
+		/** Bit j is set if members[j] is in use. */
+		long used;
+
+		Group(int sizeLog) {
+			this.sizeLog = sizeLog;
+			slices = new long[1 << sizeLog];
+		}
+	}
+
+	/** Where a summary's bits are kept in the index. */
+	final class Slot {
+		final Group group;
+		final int member;
+		final KeySummary summary;
+
+		Slot(Group group, int member, KeySummary summary) {
+			this.group = group;
+			this.member = member;
+			this.summary = summary;
+		}
+
+		/** A key has been added to the summary after it was registered. */
+		void add(byte[] saltedKey) {
+			synchronized(KeyListenerIndex.this) {
+				if(slots.get(group.members[member]) != this) return;
+				for(int i=0;i<KeySummary.K;i++)
+					group.slices[KeySummary.position(saltedKey, i, group.sizeLog)] |= 1L << member;
+			}
+		}
+	}
+
+	private final ArrayList<Group> groups = new ArrayList<Group>();
+	private final IdentityHashMap<KeyListener, Slot> slots = new IdentityHashMap<KeyListener, Slot>();
+	/** Listeners without a summary, which are candidates for every key. */
+	private final ArrayList<KeyListener> unindexed = new ArrayList<KeyListener>();
+
+	/** @param summary The listener's summary, or null if it must be asked about every key. */
+	synchronized void add(KeyListener listener, KeySummary summary) {
+		if(summary == null) {
+			unindexed.add(listener);
+			return;
+		}
+		Group group = null;
+		for(Group g : groups) {
+			if(g.sizeLog == summary.sizeLog && g.used != -1L) {
+				group = g;
+				break;
+			}
+		}
+		if(group == null) {
+			group = new Group(summary.sizeLog);
+			groups.add(group);
+		}
+		int member = Long.numberOfTrailingZeros(~group.used);
+		Slot slot = new Slot(group, member, summary);
+		group.members[member] = listener;
+		group.used |= 1L << member;
+		slots.put(listener, slot);
+		long[] bits = summary.attach(slot);
+		long mask = 1L << member;
+		for(int word=0;word<bits.length;word++) {
+			long w = bits[word];
+			while(w != 0) {
+				group.slices[(word << 6) + Long.numberOfTrailingZeros(w)] |= mask;
+				w &= w - 1;
+			}
+		}
+	}
+
+	synchronized void remove(KeyListener listener) {
+		Slot slot = slots.remove(listener);
+		if(slot == null) {
+			unindexed.remove(listener);
+			return;
+		}
+		slot.summary.detach(slot);
+		Group group = slot.group;
+		long mask = ~(1L << slot.member);
+		for(int i=0;i<group.slices.length;i++)
+			group.slices[i] &= mask;
+		group.members[slot.member] = null;
+		group.used &= mask;
+		if(group.used == 0)
+			groups.remove(group);
+	}
+
+	/** @return The listeners which might want the key, each at most once. */
+	synchronized KeyListener[] candidates(byte[] saltedKey) {
+		ArrayList<KeyListener> ret = null;
+		for(Group group : groups) {
+			long match = group.used;
+			for(int i=0;i<KeySummary.K && match != 0;i++)
+				match &= group.slices[KeySummary.position(saltedKey, i, group.sizeLog)];
+			while(match != 0) {
+				if(ret == null) ret = new ArrayList<KeyListener>(unindexed.size() + 4);
+				ret.add(group.members[Long.numberOfTrailingZeros(match)]);
+				match &= match - 1;
+			}
+		}
+		if(ret == null) {
+			if(unindexed.isEmpty()) return NONE;
+			return unindexed.toArray(new KeyListener[unindexed.size()]);
+		}
+		ret.addAll(unindexed);
+		return ret.toArray(new KeyListener[ret.size()]);
+	}
+
+	synchronized int size() {
+		return slots.size() + unindexed.size();
+	}
+
+	synchronized int unindexedSize() {
+		return unindexed.size();
+	}
+
+}
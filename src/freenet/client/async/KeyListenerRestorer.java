@@ -0,0 +1,286 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Arrays;
+
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.ext.Db4oException;
+
+import freenet.node.RequestStarter;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Restores the KeyListener's of persistent requests after a restart, in the background.
+ * Constructing them means reading every splitfile's Bloom filters, which with a big queue
+ * takes many minutes, and used to hold up the rest of startup, including FCP.
+ *
+ * On startup we just find the requests which need a listener. Then a database job scans
+ * them in batches to find their priority classes, and another restores them in batches,
+ * highest priority class first. The jobs run below the priority of FCP jobs, so clients
+ * can list and change the queue while we restore.
+ *
+ * Blocks for a request are only delivered through its KeyListener, so a priority class
+ * must not send persistent requests, or check the datastore for them, until all its
+ * listeners are restored: see isRestored(). If a request changes priority class during
+ * the restore, it may run before its listener is restored, and will have to fetch the
+ * blocks it finds before then again.
+ */
+public class KeyListenerRestorer implements DBJob {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Activating a request to find its priority is cheap. */
+	static final int SCAN_BATCH = 500;
+	/** Restoring a listener may read a Bloom filter from disk. */
+	static final int RESTORE_BATCH = 50;
+	/** Below FCP jobs, which run at HIGH_PRIORITY-1. */
+	static final int JOB_PRIORITY = NativeThread.NORM_PRIORITY;
+
+	/** Priority classes up to and including this one have all their listeners restored.
+	 * Everything is restored until start() finds something to do. */
+	private volatile int restoredPriority = RequestStarter.MINIMUM_PRIORITY_CLASS;
+	/** Database IDs of the requests, from the query. */
+	private long[] ids;
+	/** How many of ids have been sorted into byPriority. */
+	private int scanned;
+	/** Database IDs of the requests in each priority class. */
+	private long[][] byPriority;
+	private int[] counts;
+	/** How many of the current priority class we have restored. */
+	private int restored;
+	private int totalRestored;
+	private long startTime;
+
+	/** Can persistent requests in this priority class run? */
+	public boolean isRestored(int priorityClass) {
+		return priorityClass <= restoredPriority;
+	}
+
+	/** @return True until every listener is restored. */
+	public boolean isRestoring() {
+		return restoredPriority < RequestStarter.MINIMUM_PRIORITY_CLASS;
+	}
+
+	/**
+	 * Find the requests which need a listener, and queue the job which restores them.
+	 * Called on startup, before the database thread starts.
+	 * @throws Db4oException If the database is broken. The caller should disable it.
+	 */
+	public void start(ObjectContainer container, ClientContext context) {
+		ObjectSet<HasKeyListener> results = Db4oBugs.query(container, HasKeyListener.class);
+		long[] found;
+		try {
+			found = results.ext().getIDs();
+		} catch (RuntimeException e) {
+			throw new Db4oException("Something is broken: "+e, e);
+			// Allow caller to terminate database.
+		}
+		System.out.println("Restoring "+found.length+" persistent request key listeners in the background");
+		if(!init(found)) return;
+		try {
+			context.jobRunner.queue(this, JOB_PRIORITY, false);
+		} catch (DatabaseDisabledException e) {
+			// Nothing persistent will run anyway.
+			restoredPriority = RequestStarter.MINIMUM_PRIORITY_CLASS;
+		}
+	}
+
+	/**
+	 * Set up to restore the listeners for the given requests.
+	 * @param found Database IDs of the requests.
+	 * @return False if there is nothing to do.
+	 */
+	synchronized boolean init(long[] found) {
+		if(found.length == 0) return false;
+		ids = found;
+		scanned = 0;
+		byPriority = new long[RequestStarter.NUMBER_OF_PRIORITY_CLASSES][];
+		counts = new int[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<byPriority.length;i++)
+			byPriority[i] = new long[16];
+		restored = 0;
+		totalRestored = 0;
+		startTime = System.currentTimeMillis();
+		restoredPriority = RequestStarter.MAXIMUM_PRIORITY_CLASS - 1;
+		return true;
+	}
+
+	@Override
+	public boolean run(ObjectContainer container, ClientContext context) {
+		boolean scanning = true;
+		try {
+			scanning = step(container, context);
+		} finally {
+			// Carry on even if something unexpected broke, or nothing persistent would
+			// ever run again.
+			if(isRestoring()) {
+				try {
+					context.jobRunner.queue(this, JOB_PRIORITY, false);
+				} catch (DatabaseDisabledException e) {
+					// Ignore
+				}
+			}
+		}
+		// Restoring may delete the old Bloom filter files' records.
+		return !scanning;
+	}
+
+	/**
+	 * Scan or restore the next batch.
+	 * @return True if we scanned.
+	 */
+	boolean step(ObjectContainer container, ClientContext context) {
+		boolean scanning;
+		synchronized(this) {
+			scanning = ids != null;
+		}
+		if(scanning)
+			scan(container);
+		else
+			restore(container, context);
+		return scanning;
+	}
+
+	private void scan(ObjectContainer container) {
+		int end = Math.min(ids.length, scanned + SCAN_BATCH);
+		for(int i=scanned;i<end;i++) {
+			HasKeyListener l;
+			try {
+				l = get(ids[i], container);
+			} catch (Throwable t) {
+				Logger.error(this, "Unable to load request "+ids[i]+" : "+t, t);
+				continue;
+			}
+			if(l == null) continue;
+			short prio;
+			try {
+				if(l.isCancelled(container)) {
+					deactivate(l, container);
+					continue;
+				}
+				prio = l.getPriorityClass(container);
+			} catch (Throwable t) {
+				// Broken, but let restoreKeyListener() deal with it.
+				Logger.error(this, "Unable to get priority of "+l+" : "+t, t);
+				prio = RequestStarter.MINIMUM_PRIORITY_CLASS;
+			}
+			if(prio < RequestStarter.MAXIMUM_PRIORITY_CLASS || prio > RequestStarter.MINIMUM_PRIORITY_CLASS)
+				prio = RequestStarter.MINIMUM_PRIORITY_CLASS;
+			deactivate(l, container);
+			synchronized(this) {
+				if(counts[prio] == byPriority[prio].length)
+					byPriority[prio] = Arrays.copyOf(byPriority[prio], counts[prio] * 2);
+				byPriority[prio][counts[prio]++] = ids[i];
+			}
+		}
+		synchronized(this) {
+			scanned = end;
+			if(scanned == ids.length) {
+				if(logMINOR) Logger.minor(this, "Scanned "+ids.length+" requests in "+(System.currentTimeMillis() - startTime)+"ms: "+Arrays.toString(counts));
+				ids = null;
+			}
+		}
+	}
+
+	/** @return The request, activated, or null if it has been deleted. */
+	HasKeyListener get(long id, ObjectContainer container) {
+		Object o = container.ext().getByID(id);
+		if(!(o instanceof HasKeyListener)) {
+			// Deleted since the query.
+			return null;
+		}
+		container.activate(o, 1);
+		return (HasKeyListener) o;
+	}
+
+	private void deactivate(HasKeyListener l, ObjectContainer container) {
+		try {
+			container.deactivate(l, 1);
+		} catch (Throwable t) {
+			Logger.error(this, "Unable to deactivate request: "+t, t);
+		}
+	}
+
+	private void restore(ObjectContainer container, ClientContext context) {
+		int prio = restoredPriority + 1;
+		long[] batch;
+		int end;
+		synchronized(this) {
+			end = Math.min(counts[prio], restored + RESTORE_BATCH);
+			batch = Arrays.copyOfRange(byPriority[prio], restored, end);
+		}
+		for(long id : batch) {
+			// A broken request must not stop the rest being restored.
+			HasKeyListener l;
+			try {
+				l = get(id, container);
+			} catch (Throwable t) {
+				Logger.error(this, "Unable to load request "+id+" : "+t, t);
+				continue;
+			}
+			if(l == null) continue;
+			try {
+				restoreKeyListener(l, container, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Unable to restore key listener for request "+id+" : "+t, t);
+			}
+			deactivate(l, container);
+		}
+		boolean finishedClass;
+		synchronized(this) {
+			restored = end;
+			totalRestored += batch.length;
+			finishedClass = restored == counts[prio];
+			if(finishedClass) {
+				byPriority[prio] = null;
+				restored = 0;
+				// Skip any empty classes.
+				while(prio < RequestStarter.MINIMUM_PRIORITY_CLASS && counts[prio+1] == 0)
+					prio++;
+				restoredPriority = prio;
+				System.out.println("Restored persistent request key listeners up to priority class "+prio+" ("+totalRestored+" in "+(System.currentTimeMillis() - startTime)+"ms)");
+				if(prio == RequestStarter.MINIMUM_PRIORITY_CLASS) {
+					byPriority = null;
+					counts = null;
+				}
+			}
+		}
+		if(finishedClass)
+			onRestored(context);
+	}
+
+	void restoreKeyListener(HasKeyListener l, ObjectContainer container, ClientContext context) {
+		ClientRequestScheduler.restoreKeyListener(l, container, context);
+	}
+
+	/** Called when a priority class has been restored. Start the requests we have restored,
+	 * and check the datastore for them. */
+	void onRestored(ClientContext context) {
+		for(boolean realTime : new boolean[] { false, true }) {
+			context.getChkFetchScheduler(realTime).wakeStarter();
+			context.getSskFetchScheduler(realTime).wakeStarter();
+		}
+		context.checker.wakeUp();
+	}
+
+	@Override
+	public String toString() {
+		return "KeyListenerRestorer";
+	}
+
+}
@@ -0,0 +1,81 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * A small bloom filter over the globally salted keys a KeyListener wants, which
+ * KeyListenerIndex uses to find the listeners that might want a key without asking each of
+ * them. The salted key is already a SHA-256 hash, so we take the hash functions straight
+ * from its bytes rather than running a MersenneTwister as BloomFilter does. Keys are never
+ * removed: a summary which says yes too often only costs an extra call to probablyWantKey().
+ *
+ * LOCKING: Synchronized on this when changing the bits. Keys may be added after the
+ * listener has been registered, in which case they are passed on to the index.
+ */
+// WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
+public class KeySummary {
+
+	static final int MIN_SIZE_LOG = 6;
+	/** Summaries are mirrored in the index in groups of 64, so this limits the index to
+	 * 512KB per group. Beyond about 10,000 keys the summary fills up, and the listener is
+	 * asked about most keys, as it would have been without the index. */
+	static final int MAX_SIZE_LOG = 16;
+	/** Number of hash functions, each taking 4 bytes of the salted key. */
+	static final int K = 2;
+	private static final int BITS_PER_KEY = 8;
+
+	/** log2 of the number of bits. */
+	final int sizeLog;
+	private final long[] bits;
+	/** Where our bits are mirrored in the index, if the listener is registered. */
+	private transient KeyListenerIndex.Slot slot;
+
+	/** @param keys The number of keys we expect to add, used to choose the size. */
+	public KeySummary(long keys) {
+		long wanted = Math.max(1, keys) * BITS_PER_KEY;
+		int log = 64 - Long.numberOfLeadingZeros(wanted - 1);
+		sizeLog = Math.max(MIN_SIZE_LOG, Math.min(MAX_SIZE_LOG, log));
+		bits = new long[(1 << sizeLog) >> 6];
+	}
+
+	static int position(byte[] saltedKey, int i, int sizeLog) {
+		int off = i * 4;
+		int h = ((saltedKey[off] & 0xFF) << 24) | ((saltedKey[off+1] & 0xFF) << 16) |
+			((saltedKey[off+2] & 0xFF) << 8) | (saltedKey[off+3] & 0xFF);
+		return h >>> (32 - sizeLog);
+	}
+
+	public void add(byte[] saltedKey) {
+		KeyListenerIndex.Slot s;
+		synchronized(this) {
+			for(int i=0;i<K;i++) {
+				int pos = position(saltedKey, i, sizeLog);
+				bits[pos >> 6] |= 1L << pos;
+			}
+			s = slot;
+		}
+		// If we are registered after this point, the index copies the bits we just set.
+		if(s != null) s.add(saltedKey);
+	}
+
+	public synchronized boolean mightContain(byte[] saltedKey) {
+		for(int i=0;i<K;i++) {
+			int pos = position(saltedKey, i, sizeLog);
+			if((bits[pos >> 6] & (1L << pos)) == 0) return false;
+		}
+		return true;
+	}
+
+	/** Called by the index, which holds its own lock. Sets the slot and returns a copy of
+	 * the bits, atomically with respect to add(). */
+	synchronized long[] attach(KeyListenerIndex.Slot s) {
+		slot = s;
+		return bits.clone();
+	}
+
+	synchronized void detach(KeyListenerIndex.Slot s) {
+		if(slot == s) slot = null;
+	}
+
+}
@@ -0,0 +1,37 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.Map;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Somewhere to keep the state of persistent requests, as SimpleFieldSet's keyed by a
+ * unique name, e.g. the client name and the request identifier. This lets request state
+ * be kept outside the client database (node.db4o), where every change goes through the
+ * database thread and a commit.
+ * @see JournalRequestStore
+ */
+public interface PersistentRequestStore {
+
+	/** Add or replace the state of a request. Not durable until commit(). */
+	public void store(String key, SimpleFieldSet state) throws IOException;
+
+	/** Forget a request. Not durable until commit(). */
+	public void remove(String key) throws IOException;
+
+	/** Make all changes so far durable. */
+	public void commit() throws IOException;
+
+	/** @return The state of every request, in the order they were first stored. */
+	public Map<String, SimpleFieldSet> load() throws IOException;
+
+	public int size();
+
+	/** Commit and close. */
+	public void close() throws IOException;
+
+}
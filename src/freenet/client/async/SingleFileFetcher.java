@@ -1173,7 +1173,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 						Closer.close(is);
 					}
 				}
-				ah.extractToCache(data, actx, element, callback, context.archiveManager, container, context);
+				// Transient, so we can carry on extracting while the callback runs.
+				ah.extractToCache(data, actx, element, ArchiveManager.deliverOffThread(callback, context), context.archiveManager, container, context);
 			} catch (ArchiveFailureException e) {
 				SingleFileFetcher.this.onFailure(new FetchException(e), false, container, context);
 				return;
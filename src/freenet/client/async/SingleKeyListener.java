@@ -91,6 +91,13 @@ public class SingleKeyListener implements KeyListener {
 		return key.equals(this.key);
 	}
 
+	@Override
+	public KeySummary getKeySummary(ClientRequestSchedulerBase sched) {
+		KeySummary summary = new KeySummary(1);
+		summary.add(sched.saltKey(key));
+		return summary;
+	}
+
 	@Override
 	public synchronized void onRemove() {
 		done = true;
@@ -102,6 +102,9 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 	// The above are obsolete. We now store the bloom filter in the database.
 	CountingBloomFilter cachedMainBloomFilter;
 	BinaryBloomFilter[] cachedSegmentBloomFilters;
+	/** Summary of the globally salted keys for the scheduler's KeyListenerIndex. Null for
+	 * downloads started before we had them. */
+	KeySummary cachedKeySummary;
 	
 	/** Size of the main Bloom filter in bytes. */
 	final int mainBloomFilterSizeBytes;
@@ -275,7 +278,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		if(logMINOR)
 			Logger.minor(this, "Creating block filter for "+this+": keys="+(splitfileDataBlocks+splitfileCheckBlocks)+" main bloom size "+mainBloomFilterSizeBytes+" bytes, K="+mainBloomK+", filename="+mainBloomFile+" alt bloom filter: filename="+altBloomFile+" segments: "+segments.length+" each is "+perSegmentBloomFilterSizeBytes+" bytes k="+perSegmentK);
 		try {
-			tempListener = new SplitFileFetcherKeyListener(this, keyCount, mainBloomFile, altBloomFile, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, true, null, null, container, false, realTimeFlag);
+			tempListener = new SplitFileFetcherKeyListener(this, keyCount, mainBloomFile, altBloomFile, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, true, null, null, null, container, false, realTimeFlag);
 		} catch (IOException e) {
 			throw new FetchException(FetchException.BUCKET_ERROR, "Unable to write Bloom filters for splitfile");
 		}
@@ -614,7 +617,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 				if(logMINOR)
 					Logger.minor(this, "Attempting to read Bloom filter for "+this+" main file="+main+" alt file="+alt);
 				tempListener =
-					new SplitFileFetcherKeyListener(this, keyCount, main, alt, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, false, cachedMainBloomFilter, cachedSegmentBloomFilters, container, onStartup, realTimeFlag);
+					new SplitFileFetcherKeyListener(this, keyCount, main, alt, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, false, cachedMainBloomFilter, cachedSegmentBloomFilters, cachedKeySummary, container, onStartup, realTimeFlag);
 				if(main != null) {
 					try {
 						FileUtil.secureDelete(main, context.fastWeakRandom);
@@ -649,7 +652,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 
 				try {
 					tempListener =
-						new SplitFileFetcherKeyListener(this, keyCount, mainBloomFile, altBloomFile, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, true, cachedMainBloomFilter, cachedSegmentBloomFilters, container, onStartup, realTimeFlag);
+						new SplitFileFetcherKeyListener(this, keyCount, mainBloomFile, altBloomFile, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, true, cachedMainBloomFilter, cachedSegmentBloomFilters, cachedKeySummary, container, onStartup, realTimeFlag);
 				} catch (IOException e1) {
 					throw new KeyListenerConstructionException(new FetchException(FetchException.BUCKET_ERROR, "Unable to reconstruct Bloom filters: "+e1, e1));
 				}
@@ -663,6 +666,20 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		return finished;
 	}
 
+	@Override
+	public short getPriorityClass(ObjectContainer container) {
+		boolean deactivate = false;
+		if(persistent) {
+			// Called for every request when restoring the KeyListener's, so don't leave
+			// them all active.
+			deactivate = !container.ext().isActive(parent);
+			container.activate(parent, 1);
+		}
+		short prio = parent.getPriorityClass();
+		if(deactivate) container.deactivate(parent, 1);
+		return prio;
+	}
+
 	public SplitFileFetcherSegment getSegment(int i) {
 		return segments[i];
 	}
@@ -774,6 +791,8 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			container.activate(cachedSegmentBloomFilters[i], Integer.MAX_VALUE);
 			cachedSegmentBloomFilters[i].removeFrom(container);
 		}
+		if(cachedKeySummary != null)
+			container.delete(cachedKeySummary);
 		container.delete(this);
 	}
 
@@ -865,6 +884,10 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		this.cachedMainBloomFilter = filter;
 	}
 
+	public void setCachedKeySummary(KeySummary summary) {
+		this.cachedKeySummary = summary;
+	}
+
 	public void setCachedSegFilters(BinaryBloomFilter[] segmentFilters) {
 		this.cachedSegmentBloomFilters = segmentFilters;
 	}
@@ -37,6 +37,10 @@ import freenet.support.io.NativeThread;
  * - When a block is actually found, on the database thread, we load the per-
  * segment bloom filters from the SplitFileFetcher, and thus determine which 
  * segment it belongs to. These are non-counting and static.
+ * - We also keep a KeySummary of the globally salted keys for the scheduler's
+ * KeyListenerIndex. This is only ever added to, and is stored in the database
+ * with the filters. Downloads created before it existed don't have one, and are
+ * asked about every key.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  * 
  * LOCKING: Synchronize when changing something, and writing to disk. 
@@ -63,6 +67,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	private int keyCount;
 	private final CountingBloomFilter filter;
 	private final BinaryBloomFilter[] segmentFilters;
+	/** Null if the download predates key summaries. */
+	private final KeySummary summary;
 	/** Wait for this period for new data to come in before writing the filter.
 	 * The filter is only ever subtracted from, so if we crash we just have a
 	 * few more false positives. On a fast node with slow disk, writing on every 
@@ -83,7 +89,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	 * should be created from scratch.
 	 * @throws IOException 
 	 */
-	public SplitFileFetcherKeyListener(SplitFileFetcher parent, int keyCount, File bloomFile, File altBloomFile, int mainBloomSizeBytes, int mainBloomK, byte[] localSalt, int segments, int segmentFilterSizeBytes, int segmentBloomK, boolean persistent, boolean newFilter, CountingBloomFilter cachedMainFilter, BinaryBloomFilter[] cachedSegFilters, ObjectContainer container, boolean onStartup, boolean realTime) throws IOException {
+	public SplitFileFetcherKeyListener(SplitFileFetcher parent, int keyCount, File bloomFile, File altBloomFile, int mainBloomSizeBytes, int mainBloomK, byte[] localSalt, int segments, int segmentFilterSizeBytes, int segmentBloomK, boolean persistent, boolean newFilter, CountingBloomFilter cachedMainFilter, BinaryBloomFilter[] cachedSegFilters, KeySummary cachedSummary, ObjectContainer container, boolean onStartup, boolean realTime) throws IOException {
 		fetcher = parent;
 		this.loadedOnStartup = onStartup;
 		this.persistent = persistent;
@@ -171,6 +177,21 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 				container.store(parent);
 			}
 		}
+		if(cachedSummary != null) {
+			summary = cachedSummary;
+			if(persistent) container.activate(summary, Integer.MAX_VALUE);
+		} else if(newFilter && cachedMainFilter == null) {
+			// The keys are about to be added, to both the filter and the summary.
+			summary = new KeySummary(keyCount);
+			parent.setCachedKeySummary(summary);
+			if(persistent) {
+				container.store(summary);
+				container.store(parent);
+			}
+		} else {
+			// We can't rebuild it from the filter.
+			summary = null;
+		}
 		if(logMINOR)
 			Logger.minor(this, "Created "+this+" for "+fetcher);
 	}
@@ -187,6 +208,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	void addKey(Key key, int segNo, ClientContext context) {
 		byte[] saltedKey = context.getChkFetchScheduler(realTime).saltKey(persistent, key);
 		filter.addKey(saltedKey);
+		if(summary != null)
+			summary.add(saltedKey);
 		byte[] localSalted = localSaltKey(key);
 		segmentFilters[segNo].addKey(localSalted);
 //		if(!segmentFilters[segNo].checkFilter(localSalted))
@@ -216,6 +239,11 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		return false;
 	}
 
+	@Override
+	public KeySummary getKeySummary(ClientRequestSchedulerBase sched) {
+		return summary;
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container,
 			ClientContext context) {
@@ -353,6 +381,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 			if(killed) return;
 		}
 		filter.storeTo(container);
+		if(summary != null)
+			container.store(summary);
 		for(int i=0;i<segmentFilters.length;i++) {
 			if(logMINOR)
 				Logger.minor(this, "Storing segment "+i+" filter to database ("+reason+") k="+segmentFilters[i].getK()+" size = "+segmentFilters[i].getSizeBytes()+" bytes = "+segmentFilters[i].getLength()+" elements, filled: "+segmentFilters[i].getFilledCount());
@@ -1658,6 +1658,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return false;
 	}
 
+	@Override
+	public KeySummary getKeySummary(ClientRequestSchedulerBase sched) {
+		// The keys we watch for change as new editions are found.
+		return null;
+	}
+
 	@Override
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
 		if(!(key instanceof NodeSSK)) return false;
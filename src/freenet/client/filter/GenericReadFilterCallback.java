@@ -409,6 +409,11 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 			cb.onText(s, type, baseURI);
 	}
 
+	/** If false, onText() does nothing. */
+	boolean hasFoundURICallback() {
+		return cb != null;
+	}
+
 	static final String PLUGINS_PREFIX = "/plugins/";
 	
 	/**
@@ -138,6 +138,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		String charset;
 		String detectedCharset;
 		final FilterCallback cb;
+		/** False if nobody will look at the text passed to cb.onText(), so we needn't decode it. */
+		final boolean wantsText;
 		final boolean onlyDetectingCharset;
 		boolean isXHTML=false;
 		Stack<String> openElements;
@@ -153,6 +155,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			this.w = w;
 			this.charset = charset;
 			this.cb = cb;
+			this.wantsText = wantsText(cb);
 			this.onlyDetectingCharset = onlyDetectingCharset;
 			openElements=new Stack<String>();
 		}
@@ -198,7 +201,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			 * </p>
 			 */
 			StringBuilder b = new StringBuilder(100);
-			StringBuilder balt = new StringBuilder(4000);
+			// The first character of the current tag, used to spot an un-escaped < in a script.
+			char tagFirstChar = 0;
+			boolean inTagStart = true;
+			// Read a block at a time rather than a character at a time.
+			char[] window = new char[WINDOW_SIZE];
+			int windowStart = 0;
+			int windowEnd = 0;
 			List<String> splitTag = new ArrayList<String>();
 			String currentTag = null;
 			char pprevC = 0;
@@ -221,7 +230,16 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				int x;
 				
 				try {
-					x = r.read();
+					if(windowStart == windowEnd) {
+						windowStart = 0;
+						windowEnd = 0;
+						int read;
+						do {
+							read = r.read(window, 0, window.length);
+						} while(read == 0);
+						if(read > 0) windowEnd = read;
+					}
+					x = windowStart < windowEnd ? window[windowStart++] : -1;
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -298,19 +316,39 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								b.setLength(0);
-								balt.setLength(0);
+								inTagStart = true;
 								mode = INTAG;
 							} else {
 								b.append(c);
+								// Copy the rest of the text in the window in one go. Stop at
+								// anything the loop above treats specially, and at '/', which
+								// the tag modes do.
+								int end = windowStart;
+								while(end < windowEnd) {
+									char d = window[end];
+									if(d == '<' || d == '/' || d == 0 || d == 0xFEFF) break;
+									end++;
+								}
+								int n = end - windowStart;
+								if(n > 0) {
+									b.append(window, windowStart, n);
+									pprevC = n >= 3 ? window[end-3] : (n == 2 ? c : prevC);
+									prevC = n >= 2 ? window[end-2] : c;
+									c = window[end-1];
+									windowStart = end;
+								}
 							}
 							break;
 						case INTAG :
-							balt.append(c);
+							if(inTagStart) {
+								tagFirstChar = c;
+								inTagStart = false;
+							}
 							if (HTMLDecoder.isWhitespace(c)) {
 								splitTag.add(b.toString());
 								mode = INTAGWHITESPACE;
 								b.setLength(0);
-							} else if ((c == '<') && Character.isWhitespace(balt.charAt(0))) {
+							} else if ((c == '<') && Character.isWhitespace(tagFirstChar)) {
 								// Previous was an un-escaped < in a script.
 								
 								if(textAllowed) {
@@ -320,7 +358,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 
-								balt.setLength(0);
+								inTagStart = true;
 								b.setLength(0);
 								splitTag.clear();
 							} else if (c == '>') {
@@ -329,7 +367,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								String s = processTag(splitTag, w, this);
 								currentTag = s;
 								splitTag.clear();
-								balt.setLength(0);
+								inTagStart = true;
 								mode = INTEXT;
 								if(s != null && (allowNoHTMLTag || (s.equals("html") || (!isXHTML) && s.equalsIgnoreCase("html"))))
 									textAllowed = true;
@@ -369,6 +407,15 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							}
 							else {
 								b.append(c);
+								int end = quotedRunEnd(window, windowStart, windowEnd, '"');
+								int n = end - windowStart;
+								if(n > 0) {
+									b.append(window, windowStart, n);
+									pprevC = n >= 3 ? window[end-3] : (n == 2 ? c : prevC);
+									prevC = n >= 2 ? window[end-2] : c;
+									c = window[end-1];
+									windowStart = end;
+								}
 							}
 							break;
 						case INTAGSQUOTES :
@@ -386,6 +433,15 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							} 
 							else {
 								b.append(c);
+								int end = quotedRunEnd(window, windowStart, windowEnd, '\'');
+								int n = end - windowStart;
+								if(n > 0) {
+									b.append(window, windowStart, n);
+									pprevC = n >= 3 ? window[end-3] : (n == 2 ? c : prevC);
+									prevC = n >= 2 ? window[end-2] : c;
+									c = window[end-1];
+									windowStart = end;
+								}
 							}
 							break;
 							/*
@@ -443,11 +499,11 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								killTag = false;
 								splitTag.clear();
 								b.setLength(0);
-								balt.setLength(0);
+								inTagStart = true;
 								mode = INTEXT;
 								if(currentTag != null && (allowNoHTMLTag || (currentTag.equals("html") || (!isXHTML) && currentTag.equalsIgnoreCase("html"))))
 									textAllowed = true;
-							} else if ((c == '<') && Character.isWhitespace(balt.charAt(0))) {
+							} else if ((c == '<') && Character.isWhitespace(tagFirstChar)) {
 								// Previous was an un-escaped < in a script.
 								
 								if(textAllowed) {
@@ -456,7 +512,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 									if(!b.toString().trim().equals(""))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
-								balt.setLength(0);
+								inTagStart = true;
 								b.setLength(0);
 								splitTag.clear();
 								mode = INTAG;
@@ -485,7 +541,21 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			w.flush();
 			return;
 		}
+
+		/** The end of the run of characters starting at start which can be copied as is
+		 * inside a quoted attribute value: stops at the closing quote, and at anything
+		 * which has to be escaped or dropped. */
+		private int quotedRunEnd(char[] window, int start, int end, char quote) {
+			int i = start;
+			while(i < end) {
+				char d = window[i];
+				if(d == quote || d == '<' || d == '>' || d == '\u00A0' || d == 0 || d == 0xFEFF) break;
+				i++;
+			}
+			return i;
+		}
 		int mode;
+		static final int WINDOW_SIZE = 4096;
 		static final int INTEXT = 0;
 		static final int INTAG = 1;
 		static final int INTAGQUOTES = 2;
@@ -534,9 +604,37 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
+		boolean escapeLT = !(pc.inStyle || pc.inScript);
+		int len = s.length();
+		int i = 0;
+		// Usually there is nothing to change, so avoid copying it twice.
+		for(;i<len;i++) {
+			char c = s.charAt(i);
+			if((c == '<' && escapeLT) || ((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')))
+				break;
+		}
+		String sout;
+		if(i == len) {
+			sout = s.toString();
+		} else {
+			sout = escapeText(s, i, pc);
+		}
 		
-		for(int i=0;i<s.length();i++) {
+		if (pc.inStyle || pc.inScript) {
+			pc.currentStyleScriptChunk += sout;
+			return; // is parsed and written elsewhere
+		}
+		if(pc.wantsText)
+			pc.cb.onText(HTMLDecoder.decode(sout), tagName); /* Tag name is given as type for the text */
+		
+		w.write(sout);
+	}
+
+	/** The slow path of saveText(): s has something to escape or remove at or after start. */
+	private String escapeText(StringBuilder s, int start, HTMLParseContext pc) {
+		StringBuilder out = new StringBuilder(s.length()*2);
+		out.append(s, 0, start);
+		for(int i=start;i<s.length();i++) {
 			char c = s.charAt(i);
 			if(c == '<' && !(pc.inStyle || pc.inScript)) {
 				//Scripts and styles parsed elsewhere
@@ -553,16 +651,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				out.append(c);
 			}
 		}
-		String sout = out.toString();
-		
-		if (pc.inStyle || pc.inScript) {
-			pc.currentStyleScriptChunk += sout;
-			return; // is parsed and written elsewhere
-		}
-		if(pc.cb != null)
-			pc.cb.onText(HTMLDecoder.decode(sout), tagName); /* Tag name is given as type for the text */
-		
-		w.write(sout);
+		return out.toString();
 	}
 
 	String processTag(List<String> splitTag, Writer w, HTMLParseContext pc)
@@ -697,6 +786,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		w.write(" -->");
 	}
 
+	private static boolean wantsText(FilterCallback cb) {
+		if(cb == null || cb instanceof NullFilterCallback) return false;
+		if(cb instanceof GenericReadFilterCallback)
+			return ((GenericReadFilterCallback)cb).hasFoundURICallback();
+		return true;
+	}
+
 	static void throwFilterException(String msg) throws DataFilterException {
 		// FIXME
 		String longer = l10n("failedToParseLabel");
@@ -2428,10 +2524,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			HTMLParseContext pc) throws DataFilterException {
 			Map<String, Object> hn = super.sanitizeHash(h, p, pc);
 			// events (default and added)
-			for (String name: eventAttrs) {
-				String arg = getHashString(h, name);
-				if (arg != null) {
-					arg = sanitizeScripting(arg);
+			// Look at the attributes the tag has rather than at every possible event.
+			for (Map.Entry<String, Object> entry : h.entrySet()) {
+				String name = entry.getKey();
+				if (!eventAttrs.contains(name)) continue;
+				Object o = entry.getValue();
+				if (o instanceof String) {
+					String arg = sanitizeScripting((String) o);
 					if (arg != null)
 						hn.put(name, arg);
 				}
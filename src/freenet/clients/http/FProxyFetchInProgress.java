@@ -195,6 +195,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
+		if(checkFilteredCache()) return true;
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -285,6 +286,19 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in the cache of filtered output. Filtered by this node run, with
+	 * the same settings, so as good as filtering it again unless we must re-fetch.
+	 * @return True if it was found. */
+	private boolean checkFilteredCache() {
+		FilteredOutputCache cache = tracker.filteredCache;
+		if(cache == null || !fctx.filterData || refilterPolicy == REFILTER_POLICY.RE_FETCH) return false;
+		CacheFetchResult result = cache.get(uri, fctx, maxSize);
+		if(result == null) return false;
+		// The data can't go away until we free it, so we can stay in the tracker.
+		onSuccess(result, null, null);
+		return true;
+	}
+
 	/** If the key is a USK and a) we are requested to do an exhaustive search, or b) 
 	 * there is a later version, then we can't use the download queue as a cache.
 	 * @return True if we can't use the download queue, false if we can. */
@@ -400,11 +414,15 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
 		Bucket droppedData = null;
+		Bucket fetched = result.asBucket();
+		FilteredOutputCache cache = tracker.filteredCache;
+		if(state != null && fctx.filterData && cache != null)
+			fetched = cache.put(uri, result.getMimeType(), fctx, fetched);
 		synchronized(this) {
 			if(cancelled)
-				droppedData = result.asBucket();
+				droppedData = fetched;
 			else
-				this.data = result.asBucket();
+				this.data = fetched;
 			this.mimeType = result.getMimeType();
 			this.finished = true;
 		}
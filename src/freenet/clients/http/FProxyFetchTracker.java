@@ -30,6 +30,8 @@ public class FProxyFetchTracker implements Runnable {
 	
 	final MultiValueTable<FreenetURI, FProxyFetchInProgress> fetchers;
 	final ClientContext context;
+	/** Filtered output of completed fetches, or null. */
+	final FilteredOutputCache filteredCache;
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
@@ -37,8 +39,13 @@ public class FProxyFetchTracker implements Runnable {
 	private boolean requeue;
 
 	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+		this(context, fctx, rc, null);
+	}
+
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc, FilteredOutputCache filteredCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
+		this.filteredCache = filteredCache;
 		this.fctx = fctx;
 		this.rc = rc;
 	}
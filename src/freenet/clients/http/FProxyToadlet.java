@@ -7,7 +7,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -68,7 +67,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -142,6 +140,14 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	}
 
 	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+		handleDownload(context, data, bucketFactory, mimeType, requestedMimeType, forceString, forceDownload, basePath, key, extras, referrer, downloadLink, ctx, core, dontFreeData, maybeCharset, null);
+	}
+
+	/**
+	 * @param etag The entity tag for the data, from getETag(), or null. If set, it is sent
+	 * with the data, and an If-Range header must match it for a range to be sent.
+	 */
+	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -225,6 +231,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
 			headers.put("Cache-Control", "private");
 			headers.put("Content-Transfer-Encoding", "binary");
+			if(etag != null)
+				headers.put("ETag", etag);
 			// really the above should be enough, but ...
 			// was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
 			// it is important that this type not be understandable, but application/octet-stream doesn't work.
@@ -237,6 +245,17 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// Send the data, intact
 			MultiValueTable<String, String> hdr = context.getHeaders();
 			String rangeStr = hdr.get("range");
+			MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+			retHdr.put("Accept-Ranges", "bytes");
+			if(etag != null) {
+				putETagHeaders(retHdr, etag, core);
+				// Only send part of the data if the client's copy is the same as ours.
+				String ifRange = hdr.get("if-range");
+				if(ifRange != null && !ifRange.trim().equals(etag))
+					rangeStr = null;
+			} else if(hdr.get("if-range") != null) {
+				rangeStr = null;
+			}
 			// was a range request
 			if (rangeStr != null) {
 
@@ -247,36 +266,90 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
+				if (range[0] == -1) {
+					// The last range[1] bytes.
+					range[0] = Math.max(0, size - range[1]);
+					range[1] = size - 1;
+				} else if (range[1] == -1 || range[1] >= size) {
 					range[1] = size - 1;
 				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
+				if (range[0] >= size) {
+					MultiValueTable<String, String> errHdr = new MultiValueTable<String, String>();
+					errHdr.put("Content-Range", "bytes */" + size);
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", errHdr, null, 0);
+					return;
 				}
-				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+				long length = range[1] - range[0] + 1;
 				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-				context.sendReplyHeaders(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+				context.sendReplyHeaders(206, "Partial content", retHdr, mimeType, length);
+				context.writeData(data, range[0], length);
 			} else {
-				context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), mimeType, size);
+				context.sendReplyHeaders(200, "OK", retHdr, mimeType, size);
 				context.writeData(data);
 			}
 		}
 	}
 
+	/**
+	 * Get a strong entity tag for the filtered content of a key. Only CHKs are immutable,
+	 * so only they get one. Everything which decides what we send for the key is included,
+	 * as is our random seed, so the tag doesn't reveal which key was fetched and a restart
+	 * (perhaps with a changed filter) invalidates old tags.
+	 * @param tagsReplaced True if the filter rewrites the page for each request, e.g. for
+	 * web pushing, in which case what we send is not determined by the key.
+	 * @return The quoted tag, or null if the key is not a CHK or the tags are replaced.
+	 */
+	static String getETag(FreenetURI key, String requestedMimeType, String maybeCharset, boolean force, boolean forceDownload, FProxyFetchInProgress.REFILTER_POLICY refilterPolicy, boolean tagsReplaced) {
+		if(!key.isCHK() || tagsReplaced) return null;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		try{
+			bos.write(random);
+			bos.write(key.toString().getBytes("UTF-8"));
+			bos.write(0);
+			if(requestedMimeType != null)
+				bos.write(requestedMimeType.getBytes("UTF-8"));
+			bos.write(0);
+			if(maybeCharset != null)
+				bos.write(maybeCharset.getBytes("UTF-8"));
+			bos.write(0);
+			bos.write(force ? 1 : 0);
+			bos.write(forceDownload ? 1 : 0);
+			bos.write(refilterPolicy.name().getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+
+		return '"' + HexUtil.bytesToHex(SHA256.digest(bos.toByteArray())) + '"';
+	}
+
+	/**
+	 * Does an If-None-Match header match the tag? Weak comparison, as RFC 2616 14.26 says.
+	 * "*" only means the browser has some version of the resource, which tells us nothing:
+	 * we may never have fetched the key, and it may not be fetchable at all. So only the
+	 * tag itself matches.
+	 */
+	static boolean matchesETag(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) return false;
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if(tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if(tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	private static void putETagHeaders(MultiValueTable<String, String> headers, String etag, NodeClientCore core) {
+		headers.put("ETag", etag);
+		// The content can't change, so the browser could keep it, but it must revalidate so
+		// we can still refuse to serve it. Otherwise we tell it not to store anything, so
+		// only allow caching if the user doesn't mind what's on the disk.
+		if(core.node.securityLevels.getPhysicalThreatLevel() == PHYSICAL_THREAT_LEVEL.LOW)
+			headers.put("cache-control", "private, no-cache");
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -689,6 +762,16 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			else override = override+"&forcedownload";
 		}
 
+		String etag = getETag(key, requestedMimeType, maybeCharset, force, httprequest.isParameterSet("forcedownload"), ctx.getReFilterPolicy(),
+				fctx.tagReplacer != null || container.isFProxyWebPushingEnabled());
+		if(etag != null && matchesETag(ctx.getHeaders().get("if-none-match"), etag)) {
+			// CHKs never change, and the browser has already seen what we would send.
+			MultiValueTable<String, String> notModifiedHeaders = new MultiValueTable<String, String>();
+			putETagHeaders(notModifiedHeaders, etag, core);
+			ctx.sendReplyHeaders(304, "Not Modified", notModifiedHeaders, null, -1);
+			return;
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -846,7 +929,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1138,6 +1221,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		random = new byte[32];
 		core.random.nextBytes(random);
 
+		FilteredOutputCache filteredCache = new FilteredOutputCache(server.getFilteredCacheSize(), core.tempBucketFactory);
+		server.setFilteredOutputCache(filteredCache);
+
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
 		        new RequestClient() {
 
@@ -1156,7 +1242,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				return true;
 			}
 
-		});
+		}, filteredCache);
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
@@ -1333,7 +1419,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/**
+	 * @return {from, to}, inclusive. to is -1 for an open range ("500-"), and from is -1
+	 * for a suffix range ("-500"), in which case to is the number of bytes.
+	 */
+	static long[] parseRange(String hdrrange) throws HTTPRangeException {
 
 		long result[] = new long[2];
 		try {
@@ -1344,13 +1434,21 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
 			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
+			if (range[0].trim().length() == 0) {
+				// Suffix range, e.g. "-500" for the last 500 bytes. The caller knows the size.
+				result[0] = -1;
+				result[1] = Long.parseLong(range[1].trim());
+				if (result[1] <= 0)
+					throw new HTTPRangeException("Empty suffix range");
+				return result;
+			}
+			result[0] = Long.parseLong(range[0].trim());
 			if (result[0] < 0)
 				throw new HTTPRangeException("Negative 'from' value");
 			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
+				result[1] = Long.parseLong(range[1].trim());
+				if (result[1] < result[0])
+					throw new HTTPRangeException("'from' value must not be more than 'to' value");
 			} else {
 				result[1] = -1;
 			}
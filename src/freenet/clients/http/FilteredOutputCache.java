@@ -0,0 +1,351 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.async.CacheFetchResult;
+import freenet.client.async.ClientContext;
+import freenet.client.async.DownloadCache;
+import freenet.keys.FreenetURI;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Keeps the filtered output of recent FProxy fetches, so popular pages don't have to be
+ * fetched from the store and run through the content filter again every time their
+ * FProxyFetchInProgress expires. Entries are keyed by the key and everything else which
+ * decides what the filter produces (the MIME type override and the charset), and are
+ * dropped least recently used first when the total size exceeds the limit.
+ *
+ * Output filtered with a TagReplacerCallback is never cached or looked up: with web
+ * pushing on, it contains elements and an ID belonging to one browser's page, and
+ * whether it is used depends on the web pushing and javascript settings. Without one,
+ * the per-request settings which change the output are all in the key.
+ *
+ * The data is kept in the buckets the fetches produced, which are normally temp buckets,
+ * so they are moved to disk when RAM is short. Buckets handed out are references: freeing
+ * one only releases the reference, and the data is freed once it has been dropped from
+ * the cache and every reference has been released. So it is safe to drop an entry while
+ * a browser is still downloading it.
+ *
+ * KSKs are not cached, since anyone can insert to them.
+ *
+ * LOCKING: Synchronizes on this, and never calls out while holding the lock.
+ */
+public class FilteredOutputCache implements DownloadCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Don't let one entry use more than this fraction of the cache. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	private static final class Entry {
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		/** The cache itself holds one reference until the entry is dropped. */
+		private int refs = 1;
+
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+	}
+
+	/** Access ordered, so iteration starts at the least recently used. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final BucketFactory bucketFactory;
+	private long maxSize;
+	private long cachedBytes;
+
+	private long hits;
+	private long misses;
+	private long bytesHit;
+	private long bytesAdded;
+	private long evictions;
+
+	/**
+	 * @param maxSize The maximum total size of the cached data. 0 disables the cache.
+	 * @param bucketFactory Used to copy the data when a caller of the DownloadCache
+	 * interface needs its own copy.
+	 */
+	public FilteredOutputCache(long maxSize, BucketFactory bucketFactory) {
+		this.maxSize = maxSize;
+		this.bucketFactory = bucketFactory;
+	}
+
+	/** @return The key for output filtered with these settings, or null if it must not
+	 * be cached. */
+	private static String cacheKey(FreenetURI uri, FetchContext fctx) {
+		if(!fctx.filterData || fctx.tagReplacer != null) return null;
+		return cacheKey(uri, fctx.overrideMIME, fctx.charset);
+	}
+
+	private static String cacheKey(FreenetURI uri, String overrideMIME, String charset) {
+		if(uri.isKSK()) return null;
+		StringBuilder sb = new StringBuilder();
+		sb.append(uri.toString());
+		sb.append('\0');
+		if(overrideMIME != null) sb.append(overrideMIME);
+		sb.append('\0');
+		if(charset != null) sb.append(charset);
+		return sb.toString();
+	}
+
+	/**
+	 * Look up the filtered output for a key.
+	 * @param fctx The settings the data would be filtered with.
+	 * @param maxLength Don't return data larger than this.
+	 * @return The data, as a reference the caller must free, or null.
+	 */
+	public CacheFetchResult get(FreenetURI uri, FetchContext fctx, long maxLength) {
+		return get(uri, cacheKey(uri, fctx), maxLength);
+	}
+
+	private CacheFetchResult get(FreenetURI uri, String cacheKey, long maxLength) {
+		if(cacheKey == null) return null;
+		synchronized(this) {
+			Entry entry = entries.get(cacheKey);
+			if(entry == null || entry.size > maxLength) {
+				misses++;
+				return null;
+			}
+			hits++;
+			bytesHit += entry.size;
+			entry.refs++;
+			if(logMINOR) Logger.minor(this, "Hit for "+uri+" : "+entry.size+" bytes");
+			return new CacheFetchResult(new ClientMetadata(entry.mimeType), new CachedBucket(entry), true);
+		}
+	}
+
+	/**
+	 * Add the filtered output of a fetch. The cache takes ownership of the data if it
+	 * keeps it, so the caller must use the returned bucket in its place.
+	 * @param mimeType The MIME type of the filtered data.
+	 * @param fctx The settings the data was filtered with.
+	 * @return A reference to the cached data, which the caller must free when done, or
+	 * the original data if it wasn't cached.
+	 */
+	public Bucket put(FreenetURI uri, String mimeType, FetchContext fctx, Bucket data) {
+		String cacheKey = cacheKey(uri, fctx);
+		if(cacheKey == null) return data;
+		long size = data.size();
+		ArrayList<Bucket> toFree;
+		CachedBucket ret;
+		synchronized(this) {
+			if(maxSize <= 0 || size > maxSize / MAX_ENTRY_FRACTION) return data;
+			// Fetches of the same key race; keep the copy we already have.
+			if(entries.containsKey(cacheKey)) return data;
+			Entry entry = new Entry(data, mimeType);
+			entries.put(cacheKey, entry);
+			cachedBytes += size;
+			bytesAdded += size;
+			entry.refs++;
+			ret = new CachedBucket(entry);
+			toFree = shrink();
+		}
+		if(logMINOR) Logger.minor(this, "Cached "+size+" bytes for "+uri);
+		freeAll(toFree);
+		return ret;
+	}
+
+	/** Drop entries until we are within the size limit. Caller must free the buckets
+	 * returned, outside the lock. */
+	private synchronized ArrayList<Bucket> shrink() {
+		ArrayList<Bucket> toFree = null;
+		Iterator<Entry> it = entries.values().iterator();
+		while(cachedBytes > maxSize && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			cachedBytes -= entry.size;
+			evictions++;
+			if(--entry.refs == 0) {
+				if(toFree == null) toFree = new ArrayList<Bucket>();
+				toFree.add(entry.data);
+			}
+		}
+		return toFree;
+	}
+
+	private static void freeAll(ArrayList<Bucket> buckets) {
+		if(buckets == null) return;
+		for(Bucket b : buckets)
+			b.free();
+	}
+
+	private void release(Entry entry) {
+		synchronized(this) {
+			if(--entry.refs > 0) return;
+		}
+		entry.data.free();
+	}
+
+	public void setMaxSize(long maxSize) {
+		ArrayList<Bucket> toFree;
+		synchronized(this) {
+			this.maxSize = maxSize;
+			toFree = shrink();
+		}
+		freeAll(toFree);
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int countEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Total bytes served from the cache. */
+	public synchronized long getBytesHit() {
+		return bytesHit;
+	}
+
+	/** Total bytes added to the cache. */
+	public synchronized long getBytesAdded() {
+		return bytesAdded;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** We only have filtered data, so this returns null if noFilter is set. The data is
+	 * filtered with no MIME type override or charset. */
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		if(noFilter) return null;
+		CacheFetchResult result = get(key, cacheKey(key, null, null), Long.MAX_VALUE);
+		if(result == null || !mustCopy) return result;
+		Bucket origData = result.asBucket();
+		Bucket newData = null;
+		try {
+			if(preferred != null) newData = preferred;
+			else newData = bucketFactory.makeBucket(origData.size());
+			BucketTools.copy(origData, newData);
+			return new CacheFetchResult(new ClientMetadata(result.getMimeType()), newData, true);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to copy data: "+e, e);
+			if(newData != null && newData != preferred) newData.free();
+			return null;
+		} finally {
+			origData.free();
+		}
+	}
+
+	/** The cache is not persistent, so this is the same as lookupInstant(). */
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
+			ObjectContainer container, boolean mustCopy, Bucket preferred) {
+		return lookupInstant(key, noFilter, mustCopy, preferred);
+	}
+
+	/** A reference to the data of an entry. Read only. */
+	private class CachedBucket implements Bucket {
+
+		private final Entry entry;
+		private boolean freed;
+
+		CachedBucket(Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Cached data is read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			synchronized(this) {
+				if(freed) throw new IOException("Already freed");
+			}
+			return entry.data.getInputStream();
+		}
+
+		@Override
+		public String getName() {
+			return "FilteredOutputCache:"+entry.data.getName();
+		}
+
+		@Override
+		public long size() {
+			return entry.size;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only.
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			release(entry);
+		}
+
+		@Override
+		public void storeTo(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+	}
+
+}
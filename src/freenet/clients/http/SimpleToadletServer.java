@@ -103,9 +103,15 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private final Random random;
 	private BucketFactory bf;
 	private volatile NodeClientCore core;
+	private long filteredCacheSize;
+	/** Created with FProxy, see setFilteredOutputCache(). */
+	private FilteredOutputCache filteredCache;
 	
 	// HTTP Option
 	private boolean doRobots;
+	/** Accept plain HTTP connections through channels, so big files can be sent with
+	 * FileChannel.transferTo(). Takes effect on restart. */
+	private boolean useSocketChannels;
 	private boolean enablePersistentConnections;
 	private boolean enableInlinePrefetch;
 	private boolean enableActivelinks;
@@ -651,6 +657,29 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		FProxyToadlet.MAX_LENGTH_NO_PROGRESS = fproxyConfig.getLong("passthroughMaxSize");
 		fproxyConfig.register("passthroughMaxSizeProgress", FProxyToadlet.MAX_LENGTH_WITH_PROGRESS, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSizeProgress", "SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
+		fproxyConfig.register("filteredCacheSize", 16*1024*1024L, configItemOrder++, true, false, "SimpleToadletServer.filteredCacheSize", "SimpleToadletServer.filteredCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						synchronized(SimpleToadletServer.this) {
+							return filteredCacheSize;
+						}
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("filteredCacheSizeNegative"));
+						FilteredOutputCache cache;
+						synchronized(SimpleToadletServer.this) {
+							filteredCacheSize = val;
+							cache = filteredCache;
+						}
+						if(cache != null) cache.setMaxSize(val);
+					}
+			
+		}, true);
+		filteredCacheSize = fproxyConfig.getLong("filteredCacheSize");
 		System.out.println("Set fproxy max length to "+FProxyToadlet.MAX_LENGTH_NO_PROGRESS+" and max length with progress to "+FProxyToadlet.MAX_LENGTH_WITH_PROGRESS+" = "+fproxyConfig.getLong("passthroughMaxSizeProgress"));
 		
 		fproxyConfig.register("allowedHosts", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedHosts", "SimpleToadletServer.allowedHostsLong",
@@ -687,6 +716,20 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					}
 		});
 		doRobots = fproxyConfig.getBoolean("doRobots");
+		fproxyConfig.register("useSocketChannels", false, configItemOrder++, true, false, "SimpleToadletServer.useSocketChannels", "SimpleToadletServer.useSocketChannelsLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return useSocketChannels;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(useSocketChannels == val) return;
+						useSocketChannels = val;
+						throw new NodeNeedRestartException(l10n("useSocketChannelsNeedsRestart"));
+					}
+		});
+		useSocketChannels = fproxyConfig.getBoolean("useSocketChannels");
 		
 		// We may not know what the overall thread limit is yet so just set it to 100.
 		fproxyConfig.register("maxFproxyConnections", 100, configItemOrder++, true, false, "SimpleToadletServer.maxFproxyConnections", "SimpleToadletServer.maxFproxyConnectionsLong",
@@ -818,7 +861,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, useSocketChannels);
 		}
 	}		
 
@@ -1211,6 +1254,18 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	public NodeClientCore getCore(){
 		return core;
 	}
+
+	public synchronized long getFilteredCacheSize() {
+		return filteredCacheSize;
+	}
+
+	public synchronized void setFilteredOutputCache(FilteredOutputCache cache) {
+		filteredCache = cache;
+	}
+
+	public synchronized FilteredOutputCache getFilteredOutputCache() {
+		return filteredCache;
+	}
 	
 	private REFILTER_POLICY refilterPolicy;
 
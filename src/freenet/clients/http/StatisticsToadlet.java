@@ -16,6 +16,7 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.ArchiveManager;
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
@@ -45,6 +46,7 @@ import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
 
@@ -456,6 +458,11 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode databaseJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawDatabaseJobsBox(databaseJobsInfobox);
 
+			FProxyToadlet fproxy = core.getFProxy();
+			if(fproxy != null && fproxy.fetchTracker.filteredCache != null)
+				drawFilteredCacheBox(nextTableCell.addChild("div", "class", "infobox"), fproxy.fetchTracker.filteredCache);
+			drawArchiveCacheBox(nextTableCell.addChild("div", "class", "infobox"), core.archiveManager);
+
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
 				// opennet stats box
@@ -640,15 +647,64 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		WorkStealingExecutor executor = null;
+		int[] queued = null;
+		long[] jobsRun = null;
+		long[] waitTime = null;
+		long[] runTime = null;
+		if(this.node.executor instanceof WorkStealingExecutor) {
+			executor = (WorkStealingExecutor) this.node.executor;
+			queued = executor.queuedJobs();
+			jobsRun = executor.jobsRun();
+			waitTime = executor.waitTime();
+			runTime = executor.runTime();
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("jobsRun"));
+			row.addChild("th", l10n("averageWait"));
+			row.addChild("th", l10n("averageRun"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(executor != null) {
+				row.addChild("td", String.valueOf(queued[i]));
+				row.addChild("td", String.valueOf(jobsRun[i]));
+				row.addChild("td", formatAverageNanos(waitTime[i], jobsRun[i]));
+				row.addChild("td", formatAverageNanos(runTime[i], jobsRun[i]));
+			}
+		}
+		if(executor != null) {
+			threadsInfoboxContent.addChild("p", l10n("softCap", "cap", Integer.toString(executor.getSoftCap())));
+			drawExecutorJobsTable(threadsInfoboxContent, executor);
 		}
 	}
 
+	/** The jobs that have used the most thread time, by normalised name. */
+	private void drawExecutorJobsTable(HTMLNode content, WorkStealingExecutor executor) {
+		WorkStealingExecutor.JobStats[] jobs = executor.jobStats();
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("jobName"));
+		row.addChild("th", l10n("jobsRun"));
+		row.addChild("th", l10n("averageWait"));
+		row.addChild("th", l10n("averageRun"));
+		for(int i = 0; i < Math.min(jobs.length, 20); i++) {
+			row = table.addChild("tr");
+			row.addChild("td", jobs[i].name);
+			row.addChild("td", Long.toString(jobs[i].count));
+			row.addChild("td", formatAverageNanos(jobs[i].waitNanos, jobs[i].count));
+			row.addChild("td", formatAverageNanos(jobs[i].runNanos, jobs[i].count));
+		}
+	}
+
+	private static String formatAverageNanos(long totalNanos, long count) {
+		if(count == 0) return "-";
+		return TimeUtil.formatTime(totalNanos / count / 1000000, 2, true);
+	}
+
 	private void drawDatabaseJobsBox(HTMLNode node) {
 		// Job count by priority
 		node.addChild("div", "class", "infobox-header", l10n("databaseJobsByPriority"));
@@ -871,6 +927,39 @@ public class StatisticsToadlet extends Toadlet {
 
 	}
 
+	private void drawFilteredCacheBox(HTMLNode node, FilteredOutputCache cache) {
+		node.addChild("div", "class", "infobox-header", l10n("filteredCacheTitle"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		HTMLNode list = content.addChild("ul");
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		double hitRate = hits + misses == 0 ? 0.0 : ((double) hits) / ((double) (hits + misses));
+		list.addChild("li", l10n("filteredCacheEntries", new String[] { "count", "size", "max" },
+				new String[] { Integer.toString(cache.countEntries()), SizeUtil.formatSize(cache.getCachedBytes(), true), SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		list.addChild("li", l10n("filteredCacheHits", new String[] { "hits", "misses", "rate" },
+				new String[] { Long.toString(hits), Long.toString(misses), fix3p1pct.format(hitRate) }));
+		list.addChild("li", l10n("filteredCacheBytes", new String[] { "hit", "added", "evictions" },
+				new String[] { SizeUtil.formatSize(cache.getBytesHit(), true), SizeUtil.formatSize(cache.getBytesAdded(), true), Long.toString(cache.getEvictions()) }));
+	}
+
+	private void drawArchiveCacheBox(HTMLNode node, ArchiveManager manager) {
+		node.addChild("div", "class", "infobox-header", l10n("archiveCacheTitle"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		HTMLNode list = content.addChild("ul");
+		long hits = manager.getHits();
+		long misses = manager.getMisses();
+		double hitRate = hits + misses == 0 ? 0.0 : ((double) hits) / ((double) (hits + misses));
+		list.addChild("li", l10n("archiveCacheEntries", new String[] { "count", "size", "max", "ram", "maxRAM" },
+				new String[] { Integer.toString(manager.countCachedElements()), SizeUtil.formatSize(manager.getCachedData(), true), SizeUtil.formatSize(manager.getMaxCachedData(), true),
+				SizeUtil.formatSize(manager.getCachedDataInRAM(), true), SizeUtil.formatSize(manager.getMaxCachedDataInRAM(), true) }));
+		list.addChild("li", l10n("filteredCacheHits", new String[] { "hits", "misses", "rate" },
+				new String[] { Long.toString(hits), Long.toString(misses), fix3p1pct.format(hitRate) }));
+		list.addChild("li", l10n("archiveCacheEvictions", new String[] { "evictions", "spilled" },
+				new String[] { Long.toString(manager.getEvictions()), SizeUtil.formatSize(manager.getSpilledBytes(), true) }));
+		list.addChild("li", l10n("archiveCacheExtractions", new String[] { "extractions", "avoided" },
+				new String[] { Long.toString(manager.getExtractions()), Long.toString(manager.getExtractionsAvoided()) }));
+	}
+
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
 		
 		unclaimedFIFOMessageCountsInfobox.addChild("div", "class", "infobox-header", "unclaimedFIFO Message Counts");
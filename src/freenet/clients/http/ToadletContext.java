@@ -76,6 +76,16 @@ public interface ToadletContext {
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, e.g. for a range request. You must send reply headers first.
+	 *
+	 * @param data The Bucket which contains the data. As for writeData(Bucket), this 
+	 *        function assumes ownership of the Bucket, calling free() on it when done.
+	 * @param offset The offset of the first byte to send.
+	 * @param length The number of bytes to send.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
 	/**
 	 * Get the page maker object.
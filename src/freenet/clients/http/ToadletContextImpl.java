@@ -3,6 +3,7 @@ package freenet.clients.http;
 import static java.util.concurrent.TimeUnit.DAYS;
 
 import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,6 +15,8 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -40,6 +43,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
@@ -65,6 +69,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** The socket's channel, if it has one, for sending files with transferTo(). */
+	private final SocketChannel sockChannel;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -104,6 +110,7 @@ public class ToadletContextImpl implements ToadletContext {
 		this.closed = false;
 		this.uri=uri;
 		sockOutputStream = sock.getOutputStream();
+		sockChannel = sock.getChannel();
 		remoteAddr = sock.getInetAddress();
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
@@ -374,7 +381,8 @@ public class ToadletContextImpl implements ToadletContext {
 		
 		mvt.put("last-modified", lastModString);
 		mvt.put("date", nowString);
-		if (mTime == null) {
+		// The caller can set its own cache-control, e.g. for immutable content.
+		if (mTime == null && !mvt.containsKey("cache-control")) {
 			mvt.put("pragma", "no-cache");
 			mvt.put("cache-control", "max-age=0, must-revalidate, no-cache, no-store, post-check=0, pre-check=0");
 		}
@@ -749,9 +757,39 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
+		writeData(data, 0, data.size());
+	}
+	
+	/**
+	 * If the bucket is a plain file and the socket has a channel, the data is sent with
+	 * FileChannel.transferTo(), so it doesn't have to be copied through the JVM.
+	 */
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
-		data.free();
+		InputStream is = null;
+		try {
+			is = data.getInputStream();
+			if(sockChannel != null && is instanceof FileInputStream) {
+				FileChannel fc = ((FileInputStream)is).getChannel();
+				long position = offset;
+				long remaining = length;
+				while(remaining > 0) {
+					long written = fc.transferTo(position, remaining, sockChannel);
+					if(written <= 0 && position >= fc.size())
+						throw new IOException("Bucket too short: "+fc.size()+" bytes but sending "+length+" from "+offset);
+					position += written;
+					remaining -= written;
+				}
+			} else {
+				if(offset > 0)
+					FileUtil.skipFully(is, offset);
+				FileUtil.copy(is, sockOutputStream, length);
+			}
+		} finally {
+			Closer.close(is);
+			data.free();
+		}
 	}
 	
 	@Override
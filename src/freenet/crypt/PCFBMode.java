@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import freenet.crypt.ciphers.Rijndael;
+
 /**
  * Control mechanism for the Periodic Cipher Feed Back mode.  This is
  * a CFB variant used apparently by a number of programs, including PGP. 
@@ -64,6 +66,28 @@ public class PCFBMode {
     	return new PCFBMode(c, iv, offset);
     }
     
+    /**
+     * Encrypt a whole buffer in place with a fresh IV. For Rijndael this doesn't create
+     * any shared state, so many threads can use the same cipher at once.
+     */
+    public static void blockEncipher(BlockCipher c, byte[] iv, byte[] buf, int off, int len) {
+    	if(c instanceof Rijndael)
+    		((Rijndael) c).encipherCFB(iv, buf, off, len);
+    	else
+    		create(c, iv).blockEncipher(buf, off, len);
+    }
+
+    /**
+     * Decrypt a whole buffer in place with a fresh IV.
+     * @see #blockEncipher(BlockCipher, byte[], byte[], int, int)
+     */
+    public static void blockDecipher(BlockCipher c, byte[] iv, byte[] buf, int off, int len) {
+    	if(c instanceof Rijndael)
+    		((Rijndael) c).decipherCFB(iv, buf, off, len);
+    	else
+    		create(c, iv).blockDecipher(buf, off, len);
+    }
+
     protected PCFBMode(BlockCipher c) {
         this.c = c;
         feedback_register = new byte[c.getBlockSize() >> 3];
@@ -21,10 +21,14 @@ import freenet.support.Logger;
 
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
- * algorithm
+ * algorithm.
+ *
+ * Once initialized, the expanded key is never modified, so encipher(), decipher() and
+ * the bulk CFB and CTR methods need no locking and can be called by many threads at
+ * once, e.g. for every packet on a session key.
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	private volatile Object sessionKey;
 	private final int keysize, blocksize;
 
 	public static final Provider AesCtrProvider = getAesCtrProvider();
@@ -165,16 +169,83 @@ public class Rijndael implements BlockCipher {
 	}
 
 	@Override
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 
 	@Override
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
 	}
+
+	/**
+	 * Encrypt a buffer in place in CFB mode. Gives the same result as
+	 * PCFBMode.create(this, iv).blockEncipher(buf, off, len), but keeps the feedback
+	 * register on the stack, so it is safe to call concurrently.
+	 * @param iv The IV, of the block size. Not modified.
+	 */
+	public final void encipherCFB(byte[] iv, byte[] buf, int off, int len) {
+		final int bs = blocksize/8;
+		final Object key = sessionKey;
+		byte[] register = new byte[bs];
+		System.arraycopy(iv, 0, register, 0, bs);
+		while(len > 0) {
+			Rijndael_Algorithm.blockEncrypt(register, register, 0, key, bs);
+			int l = Math.min(bs, len);
+			for(int i = 0; i < l; i++, off++)
+				buf[off] = (register[i] ^= buf[off]);
+			len -= l;
+		}
+	}
+
+	/**
+	 * Decrypt a buffer in place in CFB mode. Gives the same result as
+	 * PCFBMode.create(this, iv).blockDecipher(buf, off, len), but is safe to call
+	 * concurrently.
+	 * @param iv The IV, of the block size. Not modified.
+	 */
+	public final void decipherCFB(byte[] iv, byte[] buf, int off, int len) {
+		final int bs = blocksize/8;
+		final Object key = sessionKey;
+		byte[] register = new byte[bs];
+		System.arraycopy(iv, 0, register, 0, bs);
+		while(len > 0) {
+			Rijndael_Algorithm.blockEncrypt(register, register, 0, key, bs);
+			int l = Math.min(bs, len);
+			for(int i = 0; i < l; i++, off++) {
+				byte b = buf[off];
+				buf[off] ^= register[i];
+				register[i] = b;
+			}
+			len -= l;
+		}
+	}
+
+	/**
+	 * Encrypt or decrypt in CTR mode, starting with the counter at iv. Gives the same
+	 * result as a CTRBlockCipher on this cipher initialized with iv, but is safe to call
+	 * concurrently. Input and output may be the same buffer.
+	 * @param iv The initial counter, of the block size. Not modified.
+	 */
+	public final void processCTR(byte[] iv, byte[] input, int inOff, int len, byte[] output, int outOff) {
+		final int bs = blocksize/8;
+		final Object key = sessionKey;
+		byte[] counter = new byte[bs];
+		byte[] keystream = new byte[bs];
+		System.arraycopy(iv, 0, counter, 0, bs);
+		while(len > 0) {
+			Rijndael_Algorithm.blockEncrypt(counter, keystream, 0, key, bs);
+			for(int i = counter.length; i-- > 0 && (++counter[i]) == (byte)0;) {
+				/* nothing here */
+			}
+			int l = Math.min(bs, len);
+			for(int i = 0; i < l; i++)
+				output[outOff++] = (byte) (input[inOff++] ^ keystream[i]);
+			len -= l;
+		}
+	}
 }
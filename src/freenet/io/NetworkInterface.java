@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -98,11 +99,24 @@ public class NetworkInterface implements Closeable {
 	
 	private final Executor executor;
 
+	/** If true, server sockets are created from channels, so accepted sockets have channels too. */
+	private boolean useChannels;
+
 	// FIXME make configurable
 	static final int maxQueueLength = 100;
 
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+
+	/**
+	 * @param useChannels If true, accepted sockets will have a SocketChannel, so they can be
+	 * used with non-blocking IO. Such sockets shouldn't be read and written by different
+	 * threads in blocking mode, as some JVMs use one lock for both.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean useChannels) throws IOException {
 		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		iface.useChannels = useChannels;
 		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		if(failedBind != null) {
 			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
@@ -126,6 +140,8 @@ public class NetworkInterface implements Closeable {
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(useChannels)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
@@ -24,11 +24,12 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+import freenet.support.Buffer;
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
@@ -48,6 +49,9 @@ import freenet.support.Logger.LogLevel;
  * colluding nodes along a request route, and just wasting bytes.
  * 
  * FIXME we should get rid of sub-messages.
+ * 
+ * Fields are stored in the slots given to them by the MessageType. Primitive fields are
+ * kept unboxed, and are read and written directly from and to the packet buffer.
  *
  * @author ian
  */
@@ -70,7 +74,12 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive fields by slot: the value, or the raw bits for Float and Double. */
+	private final long[] _primitives;
+	/** Non-primitive fields by slot. */
+	private final Object[] _objects;
+	/** Bit mask of which slots have been set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +116,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m.readFields(bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -167,6 +168,9 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		int slots = spec.slotCount();
+		_primitives = new long[slots];
+		_objects = new Object[slots];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +178,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.clone();
+		_objects = m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +189,144 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** Read the fields in the order defined by the MessageType. */
+	private void readFields(ByteBufferInputStream bb) throws IOException {
+		for (int slot : _spec.wireOrder()) {
+			long value;
+			switch (_spec.slotKind(slot)) {
+			case MessageType.FIELD_BOOLEAN:
+				byte bool = bb.readByte();
+				// Only 0 and 1 are written, anything else indicates a problem.
+				if (bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: " + bool);
+				value = bool;
+				break;
+			case MessageType.FIELD_BYTE:
+				value = bb.readByte();
+				break;
+			case MessageType.FIELD_SHORT:
+				value = bb.readShort();
+				break;
+			case MessageType.FIELD_INT:
+			case MessageType.FIELD_FLOAT: // Raw bits
+				value = bb.readInt();
+				break;
+			case MessageType.FIELD_LONG:
+			case MessageType.FIELD_DOUBLE: // Raw bits
+				value = bb.readLong();
+				break;
+			default:
+				String name = _spec.slotName(slot);
+				Class<?> type = _spec.slotType(slot);
+				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
+					set(name, Serializer
+					      .readListFromDataInputStream(_spec.getLinkedListTypes().get(name), bb));
+				} else {
+					set(name, Serializer.readFromDataInputStream(type, bb));
+				}
+				continue;
+			}
+			_primitives[slot] = value;
+			_set |= 1L << slot;
+		}
+	}
+
+	/**
+	 * Get a primitive field. Throws the same exceptions as unboxing the field would: 
+	 * NullPointerException if it is not set, ClassCastException if it is the wrong type.
+	 */
+	private long getPrimitive(String key, byte kind) {
+		int slot = _spec.slotOf(key);
+		if (slot < 0 || (_set & (1L << slot)) == 0)
+			throw new NullPointerException("Field " + key + " not set in " + _spec.getName());
+		if (_spec.slotKind(slot) != kind)
+			throw new ClassCastException("Field " + key + " is a " + _spec.slotType(slot).getName());
+		return _primitives[slot];
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getPrimitive(key, MessageType.FIELD_BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return (byte) getPrimitive(key, MessageType.FIELD_BYTE);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return (short) getPrimitive(key, MessageType.FIELD_SHORT);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return (int) getPrimitive(key, MessageType.FIELD_INT);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getPrimitive(key, MessageType.FIELD_LONG);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return Double.longBitsToDouble(getPrimitive(key, MessageType.FIELD_DOUBLE));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return Float.intBitsToFloat((int) getPrimitive(key, MessageType.FIELD_FLOAT));
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int slot = _spec.slotOf(key);
+		if (slot < 0 || (_set & (1L << slot)) == 0) return null;
+		long value = _primitives[slot];
+		switch (_spec.slotKind(slot)) {
+		case MessageType.FIELD_BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case MessageType.FIELD_BYTE:
+			return Byte.valueOf((byte) value);
+		case MessageType.FIELD_SHORT:
+			return Short.valueOf((short) value);
+		case MessageType.FIELD_INT:
+			return Integer.valueOf((int) value);
+		case MessageType.FIELD_LONG:
+			return Long.valueOf(value);
+		case MessageType.FIELD_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		case MessageType.FIELD_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		default:
+			return _objects[slot];
+		}
+	}
+
+	/** Same as value.equals(getObject(key)), but doesn't box integer fields. */
+	boolean fieldEquals(String key, Object value) {
+		int slot = _spec.slotOf(key);
+		if (slot < 0 || (_set & (1L << slot)) == 0) return false;
+		long bits = _primitives[slot];
+		switch (_spec.slotKind(slot)) {
+		case MessageType.FIELD_BOOLEAN:
+			return value instanceof Boolean && ((Boolean) value).booleanValue() == (bits != 0);
+		case MessageType.FIELD_BYTE:
+			return value instanceof Byte && ((Byte) value).byteValue() == bits;
+		case MessageType.FIELD_SHORT:
+			return value instanceof Short && ((Short) value).shortValue() == bits;
+		case MessageType.FIELD_INT:
+			return value instanceof Integer && ((Integer) value).intValue() == bits;
+		case MessageType.FIELD_LONG:
+			return value instanceof Long && ((Long) value).longValue() == bits;
+		default:
+			return value.equals(getObject(key));
+		}
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +335,73 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_BOOLEAN) {
+			_primitives[slot] = b ? 1 : 0;
+			_set |= 1L << slot;
+		} else {
+			set(key, Boolean.valueOf(b));
+		}
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_BYTE) {
+			_primitives[slot] = b;
+			_set |= 1L << slot;
+		} else {
+			set(key, Byte.valueOf(b));
+		}
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_SHORT) {
+			_primitives[slot] = s;
+			_set |= 1L << slot;
+		} else {
+			set(key, Short.valueOf(s));
+		}
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_INT) {
+			_primitives[slot] = i;
+			_set |= 1L << slot;
+		} else {
+			set(key, Integer.valueOf(i));
+		}
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_LONG) {
+			_primitives[slot] = l;
+			_set |= 1L << slot;
+		} else {
+			set(key, Long.valueOf(l));
+		}
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_DOUBLE) {
+			_primitives[slot] = Double.doubleToRawLongBits(d);
+			_set |= 1L << slot;
+		} else {
+			set(key, Double.valueOf(d));
+		}
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		int slot = _spec.slotOf(key);
+		if (slot >= 0 && _spec.slotKind(slot) == MessageType.FIELD_FLOAT) {
+			_primitives[slot] = Float.floatToRawIntBits(f);
+			_set |= 1L << slot;
+		} else {
+			set(key, Float.valueOf(f));
+		}
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +411,33 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int slot = _spec.slotOf(key);
+		switch (_spec.slotKind(slot)) {
+		case MessageType.FIELD_BOOLEAN:
+			_primitives[slot] = ((Boolean) value).booleanValue() ? 1 : 0;
+			break;
+		case MessageType.FIELD_BYTE:
+			_primitives[slot] = ((Byte) value).byteValue();
+			break;
+		case MessageType.FIELD_SHORT:
+			_primitives[slot] = ((Short) value).shortValue();
+			break;
+		case MessageType.FIELD_INT:
+			_primitives[slot] = ((Integer) value).intValue();
+			break;
+		case MessageType.FIELD_LONG:
+			_primitives[slot] = ((Long) value).longValue();
+			break;
+		case MessageType.FIELD_FLOAT:
+			_primitives[slot] = Float.floatToRawIntBits((Float) value);
+			break;
+		case MessageType.FIELD_DOUBLE:
+			_primitives[slot] = Double.doubleToRawLongBits((Double) value);
+			break;
+		default:
+			_objects[slot] = value;
+		}
+		_set |= 1L << slot;
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,37 +447,177 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+		byte[][] subMessages = null;
+		int subMessagesLength = 0;
+		if (_subMessages != null && includeSubMessages) {
+			subMessages = new byte[_subMessages.size()][];
+			for (int i = 0; i < subMessages.length; i++) {
+				subMessages[i] = _subMessages.get(i).encodeToPacket(false, true);
+				subMessagesLength += 2 + subMessages[i].length;
 			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
 		}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
+		byte[] buf;
+		int length = encodedLength();
+		if (length >= 0) {
+			// Common case: we know the exact length, write straight into the array.
+			buf = new byte[length + subMessagesLength];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			bb.putInt(_spec.getName().hashCode());
+			writeFields(bb);
+			if (subMessages != null) {
+				for (byte[] temp : subMessages) {
+					bb.putShort((short) temp.length);
+					bb.put(temp);
 				}
 			}
+		} else {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			try {
+				dos.writeInt(_spec.getName().hashCode());
+				writeFields(dos);
+				if (subMessages != null) {
+					for (byte[] temp : subMessages) {
+						dos.writeShort(temp.length);
+						dos.write(temp);
+					}
+				}
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new IllegalStateException(e.getMessage());
+			}
+			buf = baos.toByteArray();
 		}
 
-		byte[] buf = baos.toByteArray();
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
 
+	/**
+	 * @return The encoded length of the message without sub-messages, or -1 if it 
+	 * contains a field whose length we can't determine without serializing it.
+	 */
+	private int encodedLength() {
+		int length = 4; // _spec.getName().hashCode()
+		for (int slot : _spec.wireOrder()) {
+			switch (_spec.slotKind(slot)) {
+			case MessageType.FIELD_BOOLEAN:
+			case MessageType.FIELD_BYTE:
+				length += 1;
+				break;
+			case MessageType.FIELD_SHORT:
+				length += 2;
+				break;
+			case MessageType.FIELD_INT:
+			case MessageType.FIELD_FLOAT:
+				length += 4;
+				break;
+			case MessageType.FIELD_LONG:
+			case MessageType.FIELD_DOUBLE:
+				length += 8;
+				break;
+			default:
+				Object o = _objects[slot];
+				if (o == null) return -1;
+				Class<?> type = o.getClass();
+				if (type == String.class)
+					length += 4 + ((String) o).length() * 2;
+				else if (type == ShortBuffer.class)
+					length += 2 + ((ShortBuffer) o).getLength();
+				else if (type == Buffer.class)
+					length += 4 + ((Buffer) o).getLength();
+				else
+					return -1;
+			}
+		}
+		return length;
+	}
+
+	/** Write the fields directly to a buffer. Caller must check encodedLength() first. */
+	private void writeFields(ByteBuffer bb) {
+		byte[] buf = bb.array();
+		for (int slot : _spec.wireOrder()) {
+			checkSet(slot);
+			long value = _primitives[slot];
+			switch (_spec.slotKind(slot)) {
+			case MessageType.FIELD_BOOLEAN:
+			case MessageType.FIELD_BYTE:
+				bb.put((byte) value);
+				break;
+			case MessageType.FIELD_SHORT:
+				bb.putShort((short) value);
+				break;
+			case MessageType.FIELD_INT:
+				bb.putInt((int) value);
+				break;
+			case MessageType.FIELD_LONG:
+				bb.putLong(value);
+				break;
+			case MessageType.FIELD_FLOAT:
+				bb.putFloat(Float.intBitsToFloat((int) value));
+				break;
+			case MessageType.FIELD_DOUBLE:
+				bb.putDouble(Double.longBitsToDouble(value));
+				break;
+			default:
+				Object o = _objects[slot];
+				if (o instanceof String) {
+					String s = (String) o;
+					bb.putInt(s.length());
+					for (int x = 0; x < s.length(); x++)
+						bb.putChar(s.charAt(x));
+				} else if (o instanceof ShortBuffer) {
+					ShortBuffer sb = (ShortBuffer) o;
+					bb.putShort((short) sb.getLength());
+					sb.copyTo(buf, bb.arrayOffset() + bb.position());
+					bb.position(bb.position() + sb.getLength());
+				} else {
+					Buffer b = (Buffer) o;
+					bb.putInt(b.getLength());
+					b.copyTo(buf, bb.arrayOffset() + bb.position());
+					bb.position(bb.position() + b.getLength());
+				}
+			}
+		}
+	}
+
+	private void writeFields(DataOutputStream dos) throws IOException {
+		for (int slot : _spec.wireOrder()) {
+			checkSet(slot);
+			long value = _primitives[slot];
+			switch (_spec.slotKind(slot)) {
+			case MessageType.FIELD_BOOLEAN:
+			case MessageType.FIELD_BYTE:
+				dos.writeByte((int) value);
+				break;
+			case MessageType.FIELD_SHORT:
+				dos.writeShort((int) value);
+				break;
+			case MessageType.FIELD_INT:
+				dos.writeInt((int) value);
+				break;
+			case MessageType.FIELD_LONG:
+				dos.writeLong(value);
+				break;
+			case MessageType.FIELD_FLOAT:
+				dos.writeFloat(Float.intBitsToFloat((int) value));
+				break;
+			case MessageType.FIELD_DOUBLE:
+				dos.writeDouble(Double.longBitsToDouble(value));
+				break;
+			default:
+				Serializer.writeToDataOutputStream(_objects[slot], dos);
+			}
+		}
+	}
+
+	private void checkSet(int slot) {
+		if ((_set & (1L << slot)) == 0)
+			throw new NullPointerException("Field " + _spec.slotName(slot) + " not set in " + _spec.getName());
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder(1000);
@@ -315,7 +625,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +645,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int slot = _spec.slotOf(fieldName);
+		return slot >= 0 && (_set & (1L << slot)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
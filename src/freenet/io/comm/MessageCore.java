@@ -24,8 +24,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 
@@ -56,8 +56,8 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	/** _filters serves as lock for both. Indexed by type, source and UID, see MessageFilterIndex. */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
@@ -123,46 +123,31 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		List<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			// Filters are kept in order of timeout, but some filters may be timed out
+			// because their client callbacks say they should be, so the index checks those too.
+			// See also the end of waitFor() for another weird case.
+			nextTimeout = _filters.removeTimedOut(tStart, nextTimeout, timedOutFilters);
+			for (MessageFilter f : timedOutFilters) {
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+f);
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		
 		long tEnd = System.currentTimeMillis();
@@ -197,11 +182,10 @@ public class MessageCore {
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			for (MessageFilter f : _filters.candidates(m)) {
 				if (f.matched()) {
 					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				}
 				MATCHED status = f.match(m, tStart);
@@ -209,11 +193,11 @@ public class MessageCore {
 					if(timedOut == null)
 						timedOut = new ArrayList<MessageFilter>();
 					timedOut.add(f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				} else if(status == MATCHED.MATCHED) {
 					matched = true;
-					i.remove();
+					_filters.remove(f);
 					match = f;
 					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
 					f.setMessage(m);
@@ -268,13 +252,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
+				for (MessageFilter f : _filters.candidates(m)) {
 					MATCHED status = f.match(m, tStart);
 					if(status == MATCHED.MATCHED) {
 						matched = true;
 						match = f;
-						i.remove();
+						_filters.remove(f);
 						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
 						match.setMessage(m);
 						break; // Only one match permitted per message
@@ -282,7 +265,7 @@ public class MessageCore {
 						if(timedOut == null)
 							timedOut = new ArrayList<MessageFilter>();
 						timedOut.add(f);
-						i.remove();
+						_filters.remove(f);
 						continue;
 					}
 				}
@@ -324,14 +307,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.filtersFrom(ctx)) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -346,14 +327,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.filtersFrom(ctx)) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -413,22 +392,9 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -496,22 +462,8 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -564,9 +516,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -139,6 +139,23 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/** The type this filter matches, not including the or() chain. Null means any type. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The value this filter requires for a field, not including the or() chain, or null. */
+	Object getFieldValue(String fieldName) {
+		synchronized (_fields) {
+			return _fields.get(fieldName);
+		}
+	}
+
+	/** The next filter in the or() chain, or null. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -230,7 +247,7 @@ public final class MessageFilter {
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
 				}
-				if (!_fields.get(fieldName).equals(m.getFromPayload(fieldName))) {
+				if (!m.fieldEquals(fieldName, _fields.get(fieldName))) {
 					if(_timeout < now)
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.support.Logger;
+
+/**
+ * The filters waiting in a MessageCore, indexed so that dispatching a message only looks
+ * at the filters which could match it.
+ *
+ * Each filter is indexed under the type, source and UID of itself and of every filter in
+ * its or() chain, any of which may be null (meaning any). A message can only match a
+ * filter in one of the (at most 8) buckets formed from its own type, source and UID or
+ * null. Candidates are returned in the same order the old filter list was kept in: the
+ * nearest timeout first, and then the order they were added.
+ *
+ * The filters are also kept in a set ordered by timeout, so expired filters can be found
+ * without looking at the rest. Filters with a callback may be timed out by the callback
+ * at any time, so those are also checked each time removeTimedOut() is called.
+ *
+ * Not thread-safe: the caller must synchronize.
+ */
+final class MessageFilterIndex {
+
+	private static final class Key {
+		MessageType type;
+		PeerContext source;
+		Object uid;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			set(type, source, uid);
+		}
+
+		void set(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = type == null ? 0 : type.hashCode();
+			h = h * 31 + (source == null ? 0 : source.hashCode());
+			h = h * 31 + (uid == null ? 0 : uid.hashCode());
+			return h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return eq(type, k.type) && eq(source, k.source) && eq(uid, k.uid);
+		}
+
+		private static boolean eq(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private static final class Entry {
+		final MessageFilter filter;
+		/** The timeout when the filter was added. Determines the order. */
+		final long timeout;
+		final long seq;
+		final Key[] keys;
+		final boolean hasCallback;
+		/** Last candidates() call which returned this entry, to avoid returning it twice. */
+		int visited;
+
+		Entry(MessageFilter filter, long seq, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+			this.hasCallback = filter.hasCallback();
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.timeout != e2.timeout)
+				return e1.timeout < e2.timeout ? -1 : 1;
+			if(e1.seq != e2.seq)
+				return e1.seq < e2.seq ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	/** MessageFilter doesn't override equals(), so this is by identity. */
+	private final HashMap<MessageFilter, Entry> entries = new HashMap<MessageFilter, Entry>();
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>(ORDER);
+	private final HashMap<Key, TreeSet<Entry>> byKey = new HashMap<Key, TreeSet<Entry>>();
+	private final HashMap<PeerContext, HashSet<Entry>> bySource = new HashMap<PeerContext, HashSet<Entry>>();
+	private final HashSet<Entry> withCallbacks = new HashSet<Entry>();
+	/** Number of keys with no type. Usually zero, in which case we skip half the lookups. */
+	private int anyTypeKeys;
+	private long seq;
+	private int visit;
+	private final Key probe = new Key(null, null, null);
+
+	void add(MessageFilter filter) {
+		Entry old = entries.get(filter);
+		if(old != null) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!");
+			remove(old);
+		}
+		ArrayList<Key> keys = new ArrayList<Key>(1);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key k = new Key(f.getType(), f.getSource(), f.getFieldValue(DMT.UID));
+			if(!keys.contains(k)) keys.add(k);
+		}
+		Entry e = new Entry(filter, seq++, keys.toArray(new Key[keys.size()]));
+		entries.put(filter, e);
+		byTimeout.add(e);
+		for(Key k : e.keys) {
+			TreeSet<Entry> bucket = byKey.get(k);
+			if(bucket == null) {
+				bucket = new TreeSet<Entry>(ORDER);
+				byKey.put(k, bucket);
+			}
+			bucket.add(e);
+			if(k.type == null) anyTypeKeys++;
+			if(k.source != null) {
+				HashSet<Entry> fromSource = bySource.get(k.source);
+				if(fromSource == null) {
+					fromSource = new HashSet<Entry>();
+					bySource.put(k.source, fromSource);
+				}
+				fromSource.add(e);
+			}
+		}
+		if(e.hasCallback) withCallbacks.add(e);
+	}
+
+	/** @return True if the filter was in the index. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.get(filter);
+		if(e == null) return false;
+		remove(e);
+		return true;
+	}
+
+	private void remove(Entry e) {
+		entries.remove(e.filter);
+		byTimeout.remove(e);
+		for(Key k : e.keys) {
+			TreeSet<Entry> bucket = byKey.get(k);
+			if(bucket != null) {
+				bucket.remove(e);
+				if(bucket.isEmpty()) byKey.remove(k);
+			}
+			if(k.type == null) anyTypeKeys--;
+			if(k.source != null) {
+				HashSet<Entry> fromSource = bySource.get(k.source);
+				if(fromSource != null) {
+					fromSource.remove(e);
+					if(fromSource.isEmpty()) bySource.remove(k.source);
+				}
+			}
+		}
+		if(e.hasCallback) withCallbacks.remove(e);
+	}
+
+	boolean contains(MessageFilter filter) {
+		return entries.containsKey(filter);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The filters which might match the message, in priority order. The caller
+	 * still needs to call match() on each.
+	 */
+	List<MessageFilter> candidates(Message m) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.getObject(DMT.UID);
+		visit++;
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		int buckets = 0;
+		for(int t = 0; t < (anyTypeKeys > 0 ? 2 : 1); t++) {
+			MessageType probeType = t == 0 ? type : null;
+			buckets += collect(probeType, source, uid, found);
+			if(uid != null)
+				buckets += collect(probeType, source, null, found);
+			if(source != null) {
+				buckets += collect(probeType, null, uid, found);
+				if(uid != null)
+					buckets += collect(probeType, null, null, found);
+			}
+		}
+		// Each bucket is already in order.
+		if(buckets > 1) Collections.sort(found, ORDER);
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(found.size());
+		for(Entry e : found)
+			ret.add(e.filter);
+		return ret;
+	}
+
+	private int collect(MessageType type, PeerContext source, Object uid, ArrayList<Entry> found) {
+		probe.set(type, source, uid);
+		TreeSet<Entry> bucket = byKey.get(probe);
+		probe.set(null, null, null);
+		if(bucket == null) return 0;
+		for(Entry e : bucket) {
+			if(e.visited == visit) continue;
+			e.visited = visit;
+			found.add(e);
+		}
+		return 1;
+	}
+
+	/** @return The filters which have the given source anywhere in their or() chain, in priority order. */
+	List<MessageFilter> filtersFrom(PeerContext source) {
+		HashSet<Entry> fromSource = bySource.get(source);
+		if(fromSource == null) return Collections.emptyList();
+		ArrayList<Entry> found = new ArrayList<Entry>(fromSource);
+		Collections.sort(found, ORDER);
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(found.size());
+		for(Entry e : found)
+			ret.add(e.filter);
+		return ret;
+	}
+
+	/**
+	 * Remove filters which have timed out, either because their timeout has passed or
+	 * because their callback says they should.
+	 * @param now The current time.
+	 * @param nextTimeout The time we would otherwise check again.
+	 * @param timedOut Filters which have timed out are removed and added to this list.
+	 * @return The earlier of nextTimeout and the timeout of the first remaining filter with
+	 * a callback.
+	 */
+	long removeTimedOut(long now, long nextTimeout, List<MessageFilter> timedOut) {
+		while(!byTimeout.isEmpty()) {
+			Entry e = byTimeout.first();
+			if(e.timeout >= now) break;
+			remove(e);
+			if(e.filter.timedOut(now))
+				timedOut.add(e.filter);
+			else
+				add(e.filter); // The timeout was changed after the filter was added.
+		}
+		ArrayList<Entry> callbackTimedOut = null;
+		for(Entry e : withCallbacks) {
+			MessageFilter f = e.filter;
+			if(f.timedOut(now)) {
+				if(callbackTimedOut == null)
+					callbackTimedOut = new ArrayList<Entry>();
+				callbackTimedOut.add(e);
+			} else if(nextTimeout > f.getTimeout()) {
+				nextTimeout = f.getTimeout();
+			}
+		}
+		if(callbackTimedOut != null) {
+			for(Entry e : callbackTimedOut) {
+				remove(e);
+				timedOut.add(e.filter);
+			}
+		}
+		return nextTimeout;
+	}
+
+}
@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -27,10 +28,29 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 
+/**
+ * The definition of a message: its name, and its fields in the order they are sent.
+ * 
+ * Each field is given a fixed slot when it is added. Message stores fields by slot, and
+ * fields of the primitive wrapper types (Boolean, Byte, Short, Integer, Long, Float,
+ * Double) are stored unboxed in a long, so decoding and encoding them doesn't allocate.
+ */
 public class MessageType {
 
     public static final String VERSION = "$Id: MessageType.java,v 1.6 2005/08/25 17:28:19 amphibian Exp $";
 
+	/** Field kinds for the slots. Anything which isn't a primitive is stored as an Object. */
+	static final byte FIELD_OBJECT = 0;
+	static final byte FIELD_BOOLEAN = 1;
+	static final byte FIELD_BYTE = 2;
+	static final byte FIELD_SHORT = 3;
+	static final byte FIELD_INT = 4;
+	static final byte FIELD_LONG = 5;
+	static final byte FIELD_FLOAT = 6;
+	static final byte FIELD_DOUBLE = 7;
+	/** Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
 	private static HashMap<Integer, MessageType> _specs = new HashMap<Integer, MessageType>();
 
 	private final String _name;
@@ -40,6 +60,12 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	private final HashMap<String, Integer> _slots = new HashMap<String, Integer>();
+	private byte[] _slotKinds = new byte[0];
+	private Class<?>[] _slotTypes = new Class<?>[0];
+	private String[] _slotNames = new String[0];
+	/** Slots in the order they are sent, same as _orderedFields. */
+	private int[] _wireOrder = new int[0];
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -70,6 +96,60 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		Integer slot = _slots.get(name);
+		if(slot == null) {
+			int count = _slotKinds.length;
+			if(count == MAX_FIELDS)
+				throw new IllegalStateException("Too many fields in message type \"" + getName() + "\"");
+			slot = count;
+			_slots.put(name, slot);
+			_slotKinds = Arrays.copyOf(_slotKinds, count + 1);
+			_slotTypes = Arrays.copyOf(_slotTypes, count + 1);
+			_slotNames = Arrays.copyOf(_slotNames, count + 1);
+			_slotNames[count] = name;
+		}
+		_slotKinds[slot] = kindOf(type);
+		_slotTypes[slot] = type;
+		_wireOrder = Arrays.copyOf(_wireOrder, _wireOrder.length + 1);
+		_wireOrder[_wireOrder.length - 1] = slot;
+	}
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return FIELD_BOOLEAN;
+		if(type == Byte.class) return FIELD_BYTE;
+		if(type == Short.class) return FIELD_SHORT;
+		if(type == Integer.class) return FIELD_INT;
+		if(type == Long.class) return FIELD_LONG;
+		if(type == Float.class) return FIELD_FLOAT;
+		if(type == Double.class) return FIELD_DOUBLE;
+		return FIELD_OBJECT;
+	}
+
+	/** @return The slot for a field, or -1 if it is not defined. */
+	int slotOf(String fieldName) {
+		Integer slot = _slots.get(fieldName);
+		return slot == null ? -1 : slot;
+	}
+
+	int slotCount() {
+		return _slotKinds.length;
+	}
+
+	byte slotKind(int slot) {
+		return _slotKinds[slot];
+	}
+
+	Class<?> slotType(int slot) {
+		return _slotTypes[slot];
+	}
+
+	String slotName(int slot) {
+		return _slotNames[slot];
+	}
+
+	/** Slots in the order they are sent. Do not modify. */
+	int[] wireOrder() {
+		return _wireOrder;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -27,6 +27,12 @@ public class InsertTag extends UIDTag {
 		this.ssk = ssk;
 	}
 	
+	InsertTag(boolean ssk, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
+		this.start = start;
+		this.ssk = ssk;
+	}
+	
 	public synchronized void startedSender() {
 		senderStarted = true;
 	}
@@ -398,8 +398,7 @@ public class NewPacketFormat implements PacketFormat {
 
 		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, payload, hash)) return null;
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+		PCFBMode.blockDecipher(sessionKey.incommingCipher, IV, payload, 0, payload.length);
 
 		NPFPacket p = NPFPacket.create(payload, pn);
 
@@ -435,8 +434,7 @@ public class NewPacketFormat implements PacketFormat {
 		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
 		ivCipher.encipher(IV, IV);
 
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
+		PCFBMode.blockEncipher(sessionKey.incommingCipher, IV, seqNumBytes, 0, seqNumBytes.length);
 
 		return seqNumBytes;
 	}
@@ -498,8 +496,7 @@ public class NewPacketFormat implements PacketFormat {
 
 		ivCipher.encipher(IV, IV);
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
+		PCFBMode.blockEncipher(sessionKey.outgoingCipher, IV, data, hmacLength, paddedLen - hmacLength);
 
 		//Add hash
 		byte[] text = new byte[paddedLen - hmacLength];
@@ -153,12 +153,13 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.OOMHandler;
 import freenet.support.PooledExecutor;
-import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
 import freenet.support.Ticker;
+import freenet.support.TimingWheelTicker;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -546,6 +547,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeSaltHashMemoryMapped;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -691,7 +693,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final TimingWheelTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -1002,7 +1004,6 @@ public class Node implements TimeSkewDetectorCallback {
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
-		getPubKey = new NodeGetPubkey(this);
 		startupTime = System.currentTimeMillis();
 		SimpleFieldSet oldConfig = config.getSimpleFieldSet();
 		// Setup node-specific configuration
@@ -1147,6 +1148,7 @@ public class Node implements TimeSkewDetectorCallback {
 		secureRandom.nextBytes(new byte[16]); // Force it to seed itself so it blocks now not later.
 		isPRNGReady = true;
 		toadlets.getStartupToadlet().setIsPRNGReady();
+		getPubKey = new NodeGetPubkey(this);
 		if(weakRandom == null) {
 			byte buffer[] = new byte[16];
 			random.nextBytes(buffer);
@@ -1583,9 +1585,11 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ticker = new TimingWheelTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -2057,6 +2061,23 @@ public class Node implements TimeSkewDetectorCallback {
 			
 		}, false);
 
+		nodeConfig.register("storeSaltHashSlotFilterOffHeap", false, sortOrder++, true, false,
+				"Node.storeSaltHashSlotFilterOffHeap", "Node.storeSaltHashSlotFilterOffHeapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return ResizablePersistentIntBuffer.getDefaultStorage() == ResizablePersistentIntBuffer.Storage.DIRECT;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				ResizablePersistentIntBuffer.setDefaultStorage(val ? ResizablePersistentIntBuffer.Storage.DIRECT : ResizablePersistentIntBuffer.Storage.HEAP);
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashSlotFilterOffHeap");
+			}
+		});
+		ResizablePersistentIntBuffer.setDefaultStorage(nodeConfig.getBoolean("storeSaltHashSlotFilterOffHeap") ? 
+				ResizablePersistentIntBuffer.Storage.DIRECT : ResizablePersistentIntBuffer.Storage.HEAP);
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -2071,6 +2092,57 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashCleanerThreads", SaltedHashFreenetStore.getCleanerThreads(), sortOrder++, true, false,
+				"Node.storeSaltHashCleanerThreads", "Node.storeSaltHashCleanerThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return SaltedHashFreenetStore.getCleanerThreads();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 1 || val > 64)
+					throw new InvalidConfigValueException(l10n("cleanerThreadsError"));
+				SaltedHashFreenetStore.setCleanerThreads(val);
+			}
+		}, false);
+		SaltedHashFreenetStore.setCleanerThreads(nodeConfig.getInt("storeSaltHashCleanerThreads"));
+
+		nodeConfig.register("storeSaltHashCleanerBandwidthLimit", SaltedHashFreenetStore.DEFAULT_CLEANER_BANDWIDTH_LIMIT, sortOrder++, true, false,
+				"Node.storeSaltHashCleanerBandwidthLimit", "Node.storeSaltHashCleanerBandwidthLimitLong", new LongCallback() {
+			@Override
+			public Long get() {
+				return SaltedHashFreenetStore.getCleanerBandwidthLimit();
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("cleanerBandwidthLimitError"));
+				SaltedHashFreenetStore.setCleanerBandwidthLimit(val);
+			}
+		}, true);
+		SaltedHashFreenetStore.setCleanerBandwidthLimit(nodeConfig.getLong("storeSaltHashCleanerBandwidthLimit"));
+
+		nodeConfig.register("storeSaltHashMemoryMapped", false, sortOrder++, true, false,
+				"Node.storeSaltHashMemoryMapped", "Node.storeSaltHashMemoryMappedLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeSaltHashMemoryMapped;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeSaltHashMemoryMapped = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashMemoryMapped");
+			}
+		});
+		storeSaltHashMemoryMapped = nodeConfig.getBoolean("storeSaltHashMemoryMapped");
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 
 		final String suffix = getStoreSuffix();
@@ -3600,7 +3672,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashMemoryMapped);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, fs, ticker);
@@ -153,7 +153,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 	private static int maxBackgroundUSKFetchers;	// Client stuff that needs to be configged - FIXME
 	static final int MAX_ARCHIVE_HANDLERS = 200; // don't take up much RAM... FIXME
-	static final long MAX_CACHED_ARCHIVE_DATA = 32 * 1024 * 1024; // make a fixed fraction of the store by default? FIXME
+	static final long MAX_CACHED_ARCHIVE_DATA = 64 * 1024 * 1024; // make a fixed fraction of the store by default? FIXME
+	static final long MAX_CACHED_ARCHIVE_DATA_IN_RAM = 16 * 1024 * 1024;
 	static final long MAX_ARCHIVED_FILE_SIZE = 1024 * 1024; // arbitrary... FIXME
 	static final int MAX_CACHED_ELEMENTS = 256 * 1024; // equally arbitrary! FIXME hopefully we can cache many of these though
 	/** Each FEC item can take a fair amount of RAM, since it's fully activated with all the buckets, potentially 256
@@ -315,7 +316,39 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		});
 		tempBucketFactory = new TempBucketFactory(node.executor, tempFilenameGenerator, nodeConfig.getLong("maxRAMBucketSize"), nodeConfig.getLong("RAMBucketPoolSize"), random, node.fastWeakRandom, nodeConfig.getBoolean("encryptTempBuckets"));
 
-		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, MAX_CACHED_ARCHIVE_DATA, MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory);
+		nodeConfig.register("archiveCacheSize", SizeUtil.formatSizeWithoutSpace(MAX_CACHED_ARCHIVE_DATA), sortOrder++, true, false, "NodeClientCore.archiveCacheSize", "NodeClientCore.archiveCacheSizeLong", new LongCallback() {
+
+			@Override
+			public Long get() {
+				return (archiveManager == null ? MAX_CACHED_ARCHIVE_DATA : archiveManager.getMaxCachedData());
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("archiveCacheSizeNegative"));
+				if (get().equals(val) || (archiveManager == null))
+					        return;
+				archiveManager.setMaxCachedData(val);
+			}
+		}, true);
+
+		nodeConfig.register("archiveCacheRAMSize", SizeUtil.formatSizeWithoutSpace(MAX_CACHED_ARCHIVE_DATA_IN_RAM), sortOrder++, true, false, "NodeClientCore.archiveCacheRAMSize", "NodeClientCore.archiveCacheRAMSizeLong", new LongCallback() {
+
+			@Override
+			public Long get() {
+				return (archiveManager == null ? MAX_CACHED_ARCHIVE_DATA_IN_RAM : archiveManager.getMaxCachedDataInRAM());
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("archiveCacheSizeNegative"));
+				if (get().equals(val) || (archiveManager == null))
+					        return;
+				archiveManager.setMaxCachedDataInRAM(val);
+			}
+		}, true);
+
+		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, nodeConfig.getLong("archiveCacheSize"), nodeConfig.getLong("archiveCacheRAMSize"), MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory);
 
 		healingQueue = new SimpleHealingQueue(
 				new InsertContext(
@@ -528,7 +561,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 	private void initKeys(ObjectContainer container) {
 		if(!killedDatabase) {
 			try {
-				ClientRequestScheduler.loadKeyListeners(container, clientContext);
+				clientContext.keyListenerRestorer.start(container, clientContext);
 			} catch (Db4oException e) {
 				killedDatabase = true;
 			}
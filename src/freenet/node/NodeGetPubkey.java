@@ -9,9 +9,8 @@ import freenet.crypt.DSAPublicKey;
 import freenet.store.BlockMetadata;
 import freenet.store.GetPubkey;
 import freenet.store.PubkeyStore;
-import freenet.support.ByteArrayWrapper;
+import freenet.support.ByteArrayLRUMap;
 import freenet.support.HexUtil;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 
 public class NodeGetPubkey implements GetPubkey {
@@ -25,7 +24,7 @@ public class NodeGetPubkey implements GetPubkey {
 	private static final boolean USE_RAM_PUBKEYS_CACHE = true;
 	private static final int MAX_MEMORY_CACHED_PUBKEYS = 1000;
 	
-	private final LRUMap<ByteArrayWrapper, DSAPublicKey> cachedPubKeys;
+	private final ByteArrayLRUMap<DSAPublicKey> cachedPubKeys;
 
 	private PubkeyStore pubKeyDatastore;
 	private PubkeyStore pubKeyDatacache;
@@ -35,7 +34,7 @@ public class NodeGetPubkey implements GetPubkey {
 	private final Node node;
 	
 	NodeGetPubkey(Node node) {
-		cachedPubKeys = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		cachedPubKeys = new ByteArrayLRUMap<DSAPublicKey>(MAX_MEMORY_CACHED_PUBKEYS, node.random);
 		this.node = node;
 	}
 
@@ -51,19 +50,15 @@ public class NodeGetPubkey implements GetPubkey {
 	public DSAPublicKey getKey(byte[] hash, boolean canReadClientCache, boolean forULPR, BlockMetadata meta) {
 		boolean ignoreOldBlocks = !node.getWriteLocalToDatastore();
 		if(canReadClientCache) ignoreOldBlocks = false;
-		ByteArrayWrapper w = new ByteArrayWrapper(hash);
 		if (logMINOR)
 			Logger.minor(this, "Getting pubkey: " + HexUtil.bytesToHex(hash));
 
 		if (USE_RAM_PUBKEYS_CACHE) {
-			synchronized (cachedPubKeys) {
-				DSAPublicKey key = cachedPubKeys.get(w);
-				if (key != null) {
-					cachedPubKeys.push(w, key);
-					if (logMINOR)
-						Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from in-memory cache");
-					return key;
-				}
+			DSAPublicKey key = cachedPubKeys.touch(hash);
+			if (key != null) {
+				if (logMINOR)
+					Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from in-memory cache");
+				return key;
 			}
 		}
 		try {
@@ -123,15 +118,11 @@ public class NodeGetPubkey implements GetPubkey {
 	public void cacheKey(byte[] hash, DSAPublicKey key, boolean deep, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, boolean writeLocalToDatastore) {
 		if (logMINOR)
 			Logger.minor(this, "Cache key: " + HexUtil.bytesToHex(hash) + " : " + key);
-		ByteArrayWrapper w = new ByteArrayWrapper(hash);
-		synchronized (cachedPubKeys) {
-			DSAPublicKey key2 = cachedPubKeys.get(w);
-			if ((key2 != null) && !key2.equals(key))
-				throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
-			cachedPubKeys.push(w, key);
-			while (cachedPubKeys.size() > MAX_MEMORY_CACHED_PUBKEYS)
-				cachedPubKeys.popKey();
-		}
+		DSAPublicKey key2 = cachedPubKeys.get(hash);
+		if ((key2 != null) && !key2.equals(key))
+			throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
+		// Bounded, so this drops an old key if necessary.
+		cachedPubKeys.push(hash, key);
 		try {
 			if (canWriteClientCache && !(canWriteDatastore || writeLocalToDatastore)) {
 				if(pubKeyClientcache != null) {
@@ -26,6 +26,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.io.NativeThread;
 
 /**
@@ -134,7 +135,12 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = new SubConfig("logger", cfg);
 
-		PooledExecutor executor = new PooledExecutor();
+		Executor executor;
+		// The work-stealing executor is experimental for now.
+		if("workstealing".equals(System.getProperty("freenet.executor")))
+			executor = new WorkStealingExecutor(Integer.getInteger("freenet.executor.softCap", WorkStealingExecutor.DEFAULT_SOFT_CAP));
+		else
+			executor = new PooledExecutor();
 
 		try {
 			System.out.println("Creating logger...");
@@ -146,7 +152,8 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof PooledExecutor)
+			((PooledExecutor) executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -31,9 +31,6 @@ import freenet.support.math.MersenneTwister;
  *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
  *         Acknowledgments or resend requests need to be sent urgently.
  */
-// j16sdiz (22-Dec-2008):
-// FIXME this is the only class implements Ticker, everbody is using this as
-// a generic task scheduler. Either rename this class, or create another tricker for non-Packet tasks
 public class PacketSender implements Runnable {
 
 	private static volatile boolean logMINOR;
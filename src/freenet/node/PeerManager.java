@@ -65,6 +65,12 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** Connected peers sorted by location, for closerPeer(). Updated lazily. */
+	private volatile RoutingSnapshot<PeerNode> routingSnapshot;
+	/** Peers whose locations have changed since routingSnapshot was updated. LOCKING: 
+	 * Also used as the lock for updating routingSnapshot. */
+	private final HashSet<PeerNode> routingSnapshotChanged = new HashSet<PeerNode>();
+	private volatile boolean routingSnapshotDirty;
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -970,51 +976,15 @@ public class PeerManager {
 			totalSelectionRate += selectionRates[i];
 		}
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
-		for(int i = 0; i < peers.length; i++) {
+		int[] candidates = null;
+		if(addUnpickedLocsTo == null && (recentlyFailed == null || entry == null))
+			candidates = routingCandidates(peers, pn, routedTo, target, ignoreSelf ? maxDistance : Math.min(maxDistance, maxDiff), minVersion, entry, outgoingHTL, ignoreBackoffUnder, realTime, ignoreTimeout, now, newLoadManagement, enableFOAFMitigationHack, selectionRates, totalSelectionRate, myLoc, prevLoc);
+		int count = candidates == null ? peers.length : candidates.length;
+		for(int j = 0; j < count; j++) {
+			int i = candidates == null ? j : candidates[j];
 			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
-				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
-				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
-			if(enableFOAFMitigationHack) {
-				double selectionRate = selectionRates[i];
-				double selectionSamplesPercentage = selectionRate / totalSelectionRate;
-				if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
-					if(logMINOR)
-						Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
-					continue;
-				}
-			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement, enableFOAFMitigationHack, selectionRates[i], totalSelectionRate))
 				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1248,6 +1218,134 @@ public class PeerManager {
 		return best;
 	}
 
+	/** Can we route to the peer at all? Checks everything except distance, backoff and
+	 * failure table timeouts. Used by closerPeer(). */
+	private boolean canRouteTo(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion, boolean realTime, long now, boolean newLoadManagement, boolean enableFOAFMitigationHack, double selectionRate, double totalSelectionRate) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(enableFOAFMitigationHack) {
+			double selectionSamplesPercentage = selectionRate / totalSelectionRate;
+			if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
+				if(logMINOR)
+					Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
+				return false;
+			}
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the peers closerPeer() needs to consider, without looking at all of them, using 
+	 * the RoutingSnapshot. See RoutingSnapshot.candidates(). closerPeer() makes the final 
+	 * decision exactly as before.
+	 * @param maxDistance Ignore peers further away than this.
+	 * @return Indexes into peers, in increasing order.
+	 */
+	private int[] routingCandidates(PeerNode[] peers, final PeerNode pn, final Set<PeerNode> routedTo, double target, double maxDistance, final int minVersion, final TimedOutNodesList entry, final short outgoingHTL, final long ignoreBackoffUnder, final boolean realTime, final boolean ignoreTimeout, final long now, final boolean newLoadManagement, final boolean enableFOAFMitigationHack, final double[] selectionRates, final double totalSelectionRate, final double myLoc, final double prevLoc) {
+		RoutingSnapshot<PeerNode> snapshot = getRoutingSnapshot(peers);
+		int[] found = snapshot.candidates(target, maxDistance, new RoutingSnapshot.CandidateFilter<PeerNode>() {
+
+			private double[] routedToLocs;
+
+			@Override
+			public boolean usePeersLocation(PeerNode p, double l) {
+				// Same rules as closerPeer() for using our peers' peers' locations.
+				if(!p.shallWeRouteAccordingToOurPeersLocation()) return false;
+				if(Math.abs(l - myLoc) < Double.MIN_VALUE * 2 ||
+						Math.abs(l - prevLoc) < Double.MIN_VALUE * 2)
+					return false;
+				if(routedToLocs == null) {
+					routedToLocs = new double[routedTo.size()];
+					int k = 0;
+					for(PeerNode cmpPN : routedTo)
+						routedToLocs[k++] = cmpPN.getLocation();
+				}
+				for(double cmpLoc : routedToLocs)
+					if(Math.abs(l - cmpLoc) < Double.MIN_VALUE * 2)
+						return false;
+				return true;
+			}
+
+			@Override
+			public boolean canRouteTo(PeerNode p, int i) {
+				return PeerManager.this.canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement, enableFOAFMitigationHack, selectionRates[i], totalSelectionRate);
+			}
+
+			@Override
+			public boolean isAvailable(PeerNode p) {
+				long timeoutFT = -1;
+				if(entry != null && !ignoreTimeout)
+					timeoutFT = entry.getTimeoutTime(p, outgoingHTL, now, true);
+				return timeoutFT <= now && !p.isRoutingBackedOff(ignoreBackoffUnder, realTime);
+			}
+
+		});
+		if(logMINOR)
+			Logger.minor(this, "Routing snapshot: considering "+found.length+" of "+peers.length+" peers");
+		return found;
+	}
+
+	/** Get the RoutingSnapshot for the given connected peers, updating it if peers have 
+	 * connected or disconnected or their locations have changed. */
+	private RoutingSnapshot<PeerNode> getRoutingSnapshot(PeerNode[] peers) {
+		RoutingSnapshot<PeerNode> snapshot = routingSnapshot;
+		if(snapshot != null && snapshot.peers == peers && !routingSnapshotDirty)
+			return snapshot;
+		synchronized(routingSnapshotChanged) {
+			snapshot = routingSnapshot;
+			if(snapshot != null && snapshot.peers == peers && !routingSnapshotDirty)
+				return snapshot;
+			routingSnapshotDirty = false;
+			if(snapshot == null)
+				snapshot = RoutingSnapshot.create(peers);
+			else
+				snapshot = snapshot.update(peers, routingSnapshotChanged);
+			routingSnapshotChanged.clear();
+			routingSnapshot = snapshot;
+			return snapshot;
+		}
+	}
+
+	/** Called when a peer's location, or its peers' locations, have changed. */
+	void onPeerLocationChanged(PeerNode pn) {
+		synchronized(routingSnapshotChanged) {
+			routingSnapshotChanged.add(pn);
+			routingSnapshotDirty = true;
+		}
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
@@ -105,7 +105,7 @@ import freenet.support.transport.ip.IPUtil;
  * LOCKING: Can hold PeerManager and then lock PeerNode. Cannot hold
  * PeerNode and then lock PeerManager.
  */
-public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, PeerNodeUnlocked {
+public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, PeerNodeUnlocked, RoutingSnapshot.RoutablePeer {
 
 	private String lastGoodVersion;
 	/**
@@ -1818,10 +1818,12 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.peers.updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+			node.peers.onPeerLocationChanged(this);
 			// Not urgent. This makes up the majority of the total writes.
 			// Writing it on shutdown is sufficient.
 			node.peers.writePeers(isOpennet());
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2628,6 +2630,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
+					if(node.peers != null)
+						node.peers.onPeerLocationChanged(this);
 				}
 			}
 		}
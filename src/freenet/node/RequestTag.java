@@ -49,6 +49,12 @@ public class RequestTag extends UIDTag {
 		this.isSSK = isSSK;
 	}
 
+	RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
+		this.start = start;
+		this.isSSK = isSSK;
+	}
+
 	public void setRequestSenderFinished(int status) {
 		boolean noRecordUnlock;
 		synchronized(this) {
@@ -192,8 +198,11 @@ public class RequestTag extends UIDTag {
 	
 	private boolean completedDownstreamTransfers;
 
-	public synchronized void completedDownstreamTransfers() {
-		this.completedDownstreamTransfers = true;
+	public void completedDownstreamTransfers() {
+		synchronized(this) {
+			this.completedDownstreamTransfers = true;
+		}
+		tracker.onTagStateChanged(this);
 	}
 
 	@Override
@@ -57,6 +57,12 @@ public class RequestTracker {
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
 	
+	/** Running totals of what countRequests() would count, for each class of request, so
+	 * that load management doesn't have to look at every running request each time it
+	 * decides whether to accept one. Indexed by countsIndex(). LOCKING: Each is protected
+	 * by the overall (non-local) map for its class, like the maps themselves. */
+	private final ClassCounts[] counts;
+	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
@@ -85,6 +91,10 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
+		
+		counts = new ClassCounts[32];
+		for(int i=0;i<counts.length;i++)
+			counts[i] = new ClassCounts();
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -137,6 +147,10 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			if(tag.counted == null) {
+				tag.counted = new TagCounts(tag);
+				getCounts(tag).add(tag.counted, 1);
+			}
 		}
 		return true;
 	}
@@ -189,8 +203,13 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				if(tag.counted != null) {
+					getCounts(tag).add(tag.counted, -1);
+					tag.counted = null;
+				}
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -224,7 +243,127 @@ public class RequestTracker {
 		}
 	}
 
+	/** What a single tag contributes to the counters, as of when it was last counted.
+	 * The expected transfers depend on ignoreLocalVsRemote and (linearly) on the number of
+	 * transfers per insert, which are only known when counting, so we keep both variants,
+	 * split into a fixed part and a part per insert transfer. Immutable. */
+	static final class TagCounts {
+		/** Indexed by ignoreLocalVsRemote ? 1 : 0. */
+		private final int[] inFixed = new int[2];
+		private final int[] inPerInsert = new int[2];
+		private final int[] outFixed = new int[2];
+		private final int[] outPerInsert = new int[2];
+		private final boolean sourceRestarted;
+		private final PeerNode source;
+
+		TagCounts(UIDTag tag) {
+			synchronized(tag) {
+				for(int i=0;i<2;i++) {
+					boolean ignoreLocalVsRemote = i == 1;
+					inFixed[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, true);
+					inPerInsert[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 1, true) - inFixed[i];
+					outFixed[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, true);
+					outPerInsert[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, true) - outFixed[i];
+				}
+				sourceRestarted = tag.countAsSourceRestarted();
+				source = tag.getSource();
+			}
+		}
+	}
+
+	/** Sums of TagCounts. */
+	private static final class RunningCounts {
+		private int total;
+		private final int[] inFixed = new int[2];
+		private final int[] inPerInsert = new int[2];
+		private final int[] outFixed = new int[2];
+		private final int[] outPerInsert = new int[2];
+
+		void add(TagCounts c, int sign) {
+			total += sign;
+			for(int i=0;i<2;i++) {
+				inFixed[i] += sign * c.inFixed[i];
+				inPerInsert[i] += sign * c.inPerInsert[i];
+				outFixed[i] += sign * c.outFixed[i];
+				outPerInsert[i] += sign * c.outPerInsert[i];
+			}
+		}
+
+		void addTo(CountedRequests counter, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			counter.total += total;
+			counter.expectedTransfersIn += inFixed[i] + inPerInsert[i] * transfersPerInsert;
+			counter.expectedTransfersOut += outFixed[i] + outPerInsert[i] * transfersPerInsert;
+		}
+	}
+
+	/** The counters for one class of request: all of them, those whose source restarted,
+	 * and the same two by source. */
+	private static final class ClassCounts {
+		final RunningCounts all = new RunningCounts();
+		final RunningCounts sourceRestarted = new RunningCounts();
+		/** The source may be null, see UIDTag.getSource(). [0] is all requests from that
+		 * source, [1] is those whose source restarted. */
+		final HashMap<PeerNode, RunningCounts[]> bySource = new HashMap<PeerNode, RunningCounts[]>();
+
+		void add(TagCounts c, int sign) {
+			all.add(c, sign);
+			if(c.sourceRestarted) sourceRestarted.add(c, sign);
+			RunningCounts[] s = bySource.get(c.source);
+			if(s == null) {
+				s = new RunningCounts[] { new RunningCounts(), new RunningCounts() };
+				bySource.put(c.source, s);
+			}
+			s[0].add(c, sign);
+			if(c.sourceRestarted) s[1].add(c, sign);
+			if(s[0].total == 0) bySource.remove(c.source);
+		}
+	}
+
+	private static int countsIndex(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		return (local ? 1 : 0) | (ssk ? 2 : 0) | (insert ? 4 : 0) | (offer ? 8 : 0) | (realTimeFlag ? 16 : 0);
+	}
+
+	/** The counters for the class the tag is counted in. The non-local counts exclude
+	 * local requests, so each tag is in exactly one class. */
+	private ClassCounts getCounts(UIDTag tag) {
+		boolean offer = tag.isOfferReply();
+		return counts[countsIndex(tag.wasLocal && !offer, tag.isSSK(), tag.isInsert() && !offer, offer, tag.realTimeFlag)];
+	}
+
+	private ClassCounts getCounts(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		return counts[countsIndex(local && !offer, ssk, insert && !offer, offer, realTimeFlag)];
+	}
+
+	/** Called by the tag, without holding its own lock, when something that affects how it
+	 * is counted has changed: whether it was accepted or routed onwards, its source, etc. */
+	void onTagStateChanged(UIDTag tag) {
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.realTimeFlag);
+		synchronized(mapLock) {
+			// Not locked yet, or already unlocked.
+			if(tag.counted == null) return;
+			ClassCounts c = getCounts(tag);
+			c.add(tag.counted, -1);
+			tag.counted = new TagCounts(tag);
+			c.add(tag.counted, 1);
+		}
+	}
+
+	/** As onTagStateChanged(), but for callers which hold the tag's lock. */
+	void onTagStateChangedOffThread(final UIDTag tag) {
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				onTagStateChanged(tag);
+			}
+
+		}, 0);
+	}
+
 	/** Count all requests running globally which match particular parameters.
+	 * This is constant time: the counts are kept up to date as requests are locked, 
+	 * unlocked and change state.
 	 * @param local If true, only include requests which originated locally.
 	 * @param ssk If true, count SSK requests, if false, count CHK requests.
 	 * @param insert If true, count inserts, otherwise count requests.
@@ -238,52 +377,21 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
-			}
+		ClassCounts c = getCounts(local, ssk, insert, offer, realTimeFlag);
+		// Counts are locked by the non-local map.
+		synchronized(getTracker(false, ssk, insert, offer, realTimeFlag)) {
+			c.all.addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+			if(counterSourceRestarted != null)
+				c.sourceRestarted.addTo(counterSourceRestarted, ignoreLocalVsRemote, transfersPerInsert);
 		}
 	}
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: Requests accepted from a peer are counted in constant time, as for 
+	 * countRequests() above. Requests routed to a peer are counted by looking at every 
+	 * running request of the given type (local, ssk, etc). FIXME ideally we would 
+	 * countRequests for all PeerNode's simultaneously when we need data on more than one.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -306,45 +414,21 @@ public class RequestTracker {
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
 			if(!requestsToNode) {
 				// If a request is adopted by us as a result of a timeout, it can be in the
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
 				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					if(tag.getSource() == source) {
-						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-						count++;
-						transfersOut += out;
-						transfersIn += in;
-						if(counterSR != null && tag.countAsSourceRestarted()) {
-							countSR++;
-							transfersOutSR += out;
-							transfersInSR += in;
-						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
-				if(counterSR != null) {
-					counterSR.total += countSR;
-					counterSR.expectedTransfersIn += transfersInSR;
-					counterSR.expectedTransfersOut += transfersOutSR;
-				}
+				RunningCounts[] c = getCounts(local, ssk, insert, offer, realTimeFlag).bySource.get(source);
+				if(c == null) return;
+				c[0].addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+				if(counterSR != null)
+					c[1].addTo(counterSR, ignoreLocalVsRemote, transfersPerInsert);
+				if(logMINOR) Logger.minor(this, "Counted "+c[0].total+" from "+source);
 			} else {
+				int count = 0;
+				int transfersOut = 0;
+				int transfersIn = 0;
 				// hasSourceRestarted is irrelevant for requests *to* a node.
 				// FIXME improve efficiency!
 				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
@@ -390,36 +474,21 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
+		if(requestsToNode) return;
+		ClassCounts c = getCounts(local, ssk, insert, offer, realTimeFlag);
+		synchronized(getTracker(false, ssk, insert, offer, realTimeFlag)) {
+			for(Map.Entry<PeerNode, RunningCounts[]> entry : c.bySource.entrySet()) {
+				PeerNode source = entry.getKey(); // Can be null in various cases
+				CountedRequests counter = counterMap.get(source);
+				if(counter == null) {
+					counter = new CountedRequests();
+					counterMap.put(source, counter);
 				}
+				entry.getValue()[0].addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
 			}
 		}
 	}
-	
+
 	public class WaitingForSlots {
 		int local;
 		int remote;
@@ -0,0 +1,294 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The locations of our connected peers, and of their peers (for FOAF routing), sorted
+ * around the circular keyspace. Used by PeerManager.closerPeer() to visit peers in order
+ * of distance from the target, so it only has to look at the few peers which could be
+ * chosen, instead of all of them. Everything that changes per request or over time
+ * (backoff, failure table timeouts, load) is still checked by closerPeer() on the peers
+ * it visits; only locations are kept here.
+ *
+ * Immutable. When a peer's locations change, or peers connect or disconnect, a new
+ * snapshot is derived from the old one by update(), which only re-reads the peers which
+ * changed.
+ */
+final class RoutingSnapshot<T extends RoutingSnapshot.RoutablePeer> {
+
+	/** What we need to know about a peer. Implemented by PeerNode. */
+	interface RoutablePeer {
+		double getLocation();
+		/** @return The locations of the peer's peers, or null. */
+		double[] getPeersLocation();
+	}
+
+	/** Decides which of the peers visited by candidates() closerPeer() may use. */
+	interface CandidateFilter<T> {
+		/** Can we route towards this location of one of the peer's peers? */
+		boolean usePeersLocation(T peer, double location);
+		/** Can we route to the peer at all, ignoring distance, backoff and timeouts? */
+		boolean canRouteTo(T peer, int index);
+		/** Is the peer neither backed off nor timed out, so closerPeer() will pick it if
+		 * it is the closest? */
+		boolean isAvailable(T peer);
+	}
+
+	/** Extra distance we visit past a limit, in case floating point rounding makes the
+	 * distances we visit very slightly out of order. closerPeer() applies the limits
+	 * exactly. */
+	static final double SLACK = 1e-12;
+
+	/** A location we can route towards: a peer's own location, or one of its peers. */
+	private static final class Point {
+		final double location;
+		final RoutablePeer peer;
+		/** True for the peer's own location, false for one of its peers' locations. */
+		final boolean direct;
+
+		Point(double location, RoutablePeer peer, boolean direct) {
+			this.location = location;
+			this.peer = peer;
+			this.direct = direct;
+		}
+	}
+
+	private static final Comparator<Point> BY_LOCATION = new Comparator<Point>() {
+
+		@Override
+		public int compare(Point p1, Point p2) {
+			return Double.compare(p1.location, p2.location);
+		}
+
+	};
+
+	/** The connected peers array this snapshot was built for. */
+	final T[] peers;
+	/** Index of each peer in peers. */
+	private final IdentityHashMap<T, Integer> indexes;
+	/** Sorted by location. */
+	private final Point[] points;
+
+	private RoutingSnapshot(T[] peers, IdentityHashMap<T, Integer> indexes, Point[] points) {
+		this.peers = peers;
+		this.indexes = indexes;
+		this.points = points;
+	}
+
+	static <T extends RoutablePeer> RoutingSnapshot<T> create(T[] peers) {
+		return new RoutingSnapshot<T>(Arrays.copyOf(peers, 0), new IdentityHashMap<T, Integer>(), new Point[0]).update(peers, null);
+	}
+
+	/**
+	 * Create a snapshot for a new set of connected peers, and/or after some peers' locations
+	 * have changed. Points for peers which haven't changed are reused, so this is linear in
+	 * the number of points rather than needing a full sort.
+	 * @param peers The connected peers.
+	 * @param changed Peers whose locations have changed, or null.
+	 */
+	RoutingSnapshot<T> update(T[] peers, Set<? extends RoutablePeer> changed) {
+		IdentityHashMap<T, Integer> newIndexes = indexes;
+		if(peers != this.peers) {
+			newIndexes = new IdentityHashMap<T, Integer>();
+			for(int i=0;i<peers.length;i++)
+				newIndexes.put(peers[i], i);
+		}
+		ArrayList<Point> added = new ArrayList<Point>();
+		HashSet<T> reread = new HashSet<T>();
+		for(T p : peers) {
+			if(!indexes.containsKey(p) || (changed != null && changed.contains(p))) {
+				if(reread.add(p))
+					addPoints(p, added);
+			}
+		}
+		Point[] newPoints = added.toArray(new Point[added.size()]);
+		Arrays.sort(newPoints, BY_LOCATION);
+		// Merge the points we keep with the new ones.
+		Point[] merged = new Point[points.length + newPoints.length];
+		int count = 0;
+		int j = 0;
+		for(Point p : points) {
+			if(!newIndexes.containsKey(p.peer) || reread.contains(p.peer)) continue;
+			while(j < newPoints.length && newPoints[j].location < p.location)
+				merged[count++] = newPoints[j++];
+			merged[count++] = p;
+		}
+		while(j < newPoints.length)
+			merged[count++] = newPoints[j++];
+		return new RoutingSnapshot<T>(peers, newIndexes, Arrays.copyOf(merged, count));
+	}
+
+	private static void addPoints(RoutablePeer p, ArrayList<Point> points) {
+		double loc = p.getLocation();
+		// Peers without a valid location are not routable.
+		if(!Location.isValid(loc)) return;
+		points.add(new Point(loc, p, true));
+		double[] peersLocation = p.getPeersLocation();
+		if(peersLocation == null) return;
+		for(double l : peersLocation) {
+			if(Location.isValid(l))
+				points.add(new Point(l, p, false));
+		}
+	}
+
+	/** The index of the peer in peers, or -1. */
+	int indexOf(T p) {
+		Integer i = indexes.get(p);
+		return i == null ? -1 : i;
+	}
+
+	int size() {
+		return points.length;
+	}
+
+	/** Start visiting points in order of distance from the target. */
+	Cursor cursor(double target) {
+		return new Cursor(target);
+	}
+
+	/**
+	 * Find the peers closerPeer() needs to consider. We visit peers in order of distance
+	 * from the target until we have found the closest available one, and any others at
+	 * the same distance. If no peer is available, we return every usable peer within the
+	 * maximum distance, so the fallbacks in closerPeer() see the same peers they would
+	 * have seen anyway. The result may include a few extra peers.
+	 * @param maxDistance Ignore peers further away than this.
+	 * @return Indexes into peers, in increasing order.
+	 */
+	int[] candidates(double target, double maxDistance, CandidateFilter<T> filter) {
+		HashSet<T> seen = new HashSet<T>();
+		int[] found = new int[8];
+		int count = 0;
+		double bestDistance = Double.MAX_VALUE;
+		Cursor cursor = cursor(target);
+		while(cursor.next()) {
+			double diff = cursor.distance();
+			if(diff > maxDistance + SLACK || diff > bestDistance + SLACK) break;
+			T p = cursor.peer();
+			if(seen.contains(p)) continue;
+			if(!cursor.direct() && !filter.usePeersLocation(p, cursor.location())) continue;
+			// This is the closest usable location for this peer.
+			seen.add(p);
+			int i = indexOf(p);
+			if(i < 0) continue;
+			if(!filter.canRouteTo(p, i)) continue;
+			if(count == found.length) found = Arrays.copyOf(found, count * 2);
+			found[count++] = i;
+			if(bestDistance == Double.MAX_VALUE && filter.isAvailable(p))
+				bestDistance = diff;
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * Visits the points in (very nearly, see SLACK) non-decreasing order of distance
+	 * from the target, by walking outwards from it in both directions.
+	 */
+	final class Cursor {
+
+		private final double target;
+		/** Next point going up, and going down. */
+		private int up;
+		private int down;
+		private int stepsUp;
+		private int stepsDown;
+		private boolean upDone;
+		private boolean downDone;
+		private Point current;
+		private double distance;
+
+		private Cursor(double target) {
+			this.target = target;
+			int lo = 0;
+			int hi = points.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(points[mid].location < target)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			up = lo;
+			down = lo - 1;
+			upDone = points.length == 0;
+			downDone = points.length == 0;
+		}
+
+		private double offsetUp() {
+			double d = points[wrap(up)].location - target;
+			if(up >= points.length) d += 1.0;
+			return d;
+		}
+
+		private double offsetDown() {
+			double d = target - points[wrap(down)].location;
+			if(down < 0) d += 1.0;
+			return d;
+		}
+
+		private int wrap(int i) {
+			if(i >= points.length) return i - points.length;
+			if(i < 0) return i + points.length;
+			return i;
+		}
+
+		/** Move to the next point.
+		 * @return False if there are no more points within half the keyspace. */
+		boolean next() {
+			if(!upDone && (stepsUp + stepsDown >= points.length || offsetUp() > 0.5 + SLACK))
+				upDone = true;
+			if(!downDone && (stepsUp + stepsDown >= points.length || offsetDown() > 0.5 + SLACK))
+				downDone = true;
+			if(upDone && downDone) return false;
+			boolean goUp;
+			if(upDone)
+				goUp = false;
+			else if(downDone)
+				goUp = true;
+			else
+				goUp = offsetUp() <= offsetDown();
+			if(goUp) {
+				current = points[wrap(up)];
+				up++;
+				stepsUp++;
+			} else {
+				current = points[wrap(down)];
+				down--;
+				stepsDown++;
+			}
+			distance = Location.distance(current.location, target);
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		T peer() {
+			// Only peers from a T[] are added.
+			return (T) current.peer;
+		}
+
+		double location() {
+			return current.location;
+		}
+
+		boolean direct() {
+			return current.direct;
+		}
+
+		/** Location.distance() from the current point to the target. */
+		double distance() {
+			return distance;
+		}
+
+	}
+
+}
@@ -57,12 +57,20 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** How the tracker last counted us. LOCKING: Protected by the tracker's lock on the
+	 * map we are registered in, not by this. */
+	RequestTracker.TagCounts counted;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
+		this(source, realTimeFlag, uid, node.tracker);
+	}
+	
+	UIDTag(PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
 		wasLocal = source == null;
 		this.realTimeFlag = realTimeFlag;
-		this.tracker = node.tracker;
+		this.tracker = tracker;
 		this.uid = uid;
 		if(logMINOR)
 			Logger.minor(this, "Created "+this);
@@ -213,8 +221,11 @@ public abstract class UIDTag {
 	 */
 	public abstract int expectedTransfersOut(boolean ignoreLocalVsRemote, int outwardTransfersPerInsert, boolean forAccept);
 	
-	public synchronized void setNotRoutedOnwards() {
-		this.notRoutedOnwards = true;
+	public void setNotRoutedOnwards() {
+		synchronized(this) {
+			this.notRoutedOnwards = true;
+		}
+		tracker.onTagStateChanged(this);
 	}
 
 	private boolean reassigned;
@@ -228,9 +239,19 @@ public abstract class UIDTag {
 	}
 
 	/** Reassign the tag to us rather than its original sender. */
-	public synchronized void reassignToSelf() {
+	public void reassignToSelf() {
 		if(wasLocal) return;
+		synchronized(this) {
+			reassigned = true;
+		}
+		tracker.onTagStateChanged(this);
+	}
+	
+	/** Reassign to self when we already hold the lock. The tracker takes its own lock 
+	 * before ours, so it must update its counts on another thread. */
+	private void reassignToSelfLocked() {
 		reassigned = true;
+		tracker.onTagStateChangedOffThread(this);
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -279,7 +300,7 @@ public abstract class UIDTag {
 					else
 						Logger.error(this, "Unlocked handler but still routing to "+currentlyRoutingTo+" yet not reassigned on "+this, new Exception("debug"));
 				} else
-					reassignToSelf();
+					reassignToSelfLocked();
 			}
 			return false;
 		}
@@ -300,7 +321,7 @@ public abstract class UIDTag {
 					// Fork succeeds can't happen for fetch-offered-keys.
 					Logger.error(this, "Unlocked handler but still fetching offered keys from "+fetchingOfferedKeyFrom+" yet not reassigned on "+this, new Exception("debug"));
 				else
-					reassignToSelf();
+					reassignToSelfLocked();
 			}
 			return false;
 		}
@@ -329,6 +350,7 @@ public abstract class UIDTag {
 		if(canUnlock)
 			innerUnlock(noRecordUnlock);
 		else {
+			tracker.onTagStateChanged(this);
 			Logger.normal(this, "Cannot unlock yet in unlockHandler, still sending requests");
 		}
 	}
@@ -394,8 +416,11 @@ public abstract class UIDTag {
 		}
 	}
 
-	public synchronized void setAccepted() {
-		accepted = true;
+	public void setAccepted() {
+		synchronized(this) {
+			accepted = true;
+		}
+		tracker.onTagStateChanged(this);
 	}
 	
 	private boolean timedOutButContinued;
@@ -404,13 +429,19 @@ public abstract class UIDTag {
 	 * but can't terminate it yet. We will terminate the request if we have to
 	 * reroute it, and we count it towards the peer's limit, but we don't stop
 	 * messages to the request source. */
-	public synchronized void timedOutToHandlerButContinued() {
-		timedOutButContinued = true;
+	public void timedOutToHandlerButContinued() {
+		synchronized(this) {
+			timedOutButContinued = true;
+		}
+		tracker.onTagStateChanged(this);
 	}
 	
 	/** The handler disconnected or restarted. */
-	public synchronized void onRestartOrDisconnectSource() {
-		sourceRestarted = true;
+	public void onRestartOrDisconnectSource() {
+		synchronized(this) {
+			sourceRestarted = true;
+		}
+		tracker.onTagStateChanged(this);
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
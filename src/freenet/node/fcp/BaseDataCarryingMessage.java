@@ -18,6 +18,11 @@ public abstract class BaseDataCarryingMessage extends FCPMessage {
 		writeData(os);
 	}
 
+	/** Write the message without its data, for a transport which writes the data itself. */
+	void sendHeader(OutputStream os) throws IOException {
+		super.send(os);
+	}
+
 	protected abstract void writeData(OutputStream os) throws IOException;
 
 }
@@ -100,18 +100,19 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	}
 
 	/**
-	 * Create one for a global-queued request not made by FCP.
+	 * Create one for a request not made by FCP: on the global queue, or restored from a
+	 * PersistentRequestStore.
 	 * @throws IdentifierCollisionException
 	 * @throws NotAllowedException
 	 * @throws IOException
 	 */
-	public ClientGet(FCPClient globalClient, FreenetURI uri, boolean dsOnly, boolean ignoreDS,
+	public ClientGet(FCPClient client, FreenetURI uri, boolean dsOnly, boolean ignoreDS,
 			boolean filterData, int maxSplitfileRetries, int maxNonSplitfileRetries,
 			long maxOutputLength, short returnType, boolean persistRebootOnly, String identifier, int verbosity,
-			short prioClass, File returnFilename, File returnTempFilename, String charset, boolean writeToClientCache, boolean realTimeFlag, FCPServer server, ObjectContainer container) throws IdentifierCollisionException, NotAllowedException, IOException {
-		super(uri, identifier, verbosity, charset, null, globalClient,
+			short prioClass, File returnFilename, File returnTempFilename, String charset, String clientToken, boolean writeToClientCache, boolean realTimeFlag, FCPServer server, ObjectContainer container) throws IdentifierCollisionException, NotAllowedException, IOException {
+		super(uri, identifier, verbosity, charset, null, client,
 				prioClass,
-				(persistRebootOnly ? ClientRequest.PERSIST_REBOOT : ClientRequest.PERSIST_FOREVER), realTimeFlag, null, true, container);
+				(persistRebootOnly ? ClientRequest.PERSIST_REBOOT : ClientRequest.PERSIST_FOREVER), realTimeFlag, clientToken, client.isGlobalQueue, container);
 
 		fctx = new FetchContext(server.defaultFetchContext, FetchContext.IDENTICAL_MASK, false, null);
 		fctx.eventProducer.addEventListener(this);
@@ -54,6 +54,11 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 	protected void writeData(OutputStream os) throws IOException {
 		long len = dataLength();
 		if(len > 0) BucketTools.copyTo(bucket, os, len);
+		onDataSent();
+	}
+
+	/** Called once the data has been written. */
+	void onDataSent() {
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
 	
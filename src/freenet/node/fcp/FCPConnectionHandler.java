@@ -65,6 +65,8 @@ public class FCPConnectionHandler implements Closeable {
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
+	/** Set if the connection uses the non-blocking transport rather than the input and output handler threads. */
+	volatile FCPSelector.Connection channel;
 	private boolean isClosed;
 	private boolean inputClosed;
 	private boolean outputClosed;
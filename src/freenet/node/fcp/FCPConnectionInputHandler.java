@@ -35,6 +35,8 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** Only accessed by the thread handling messages. */
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -70,8 +72,6 @@ public class FCPConnectionInputHandler implements Runnable {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
-		boolean firstMessage = true;
-
 		while(true) {
 			SimpleFieldSet fs;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
@@ -90,69 +90,95 @@ public class FCPConnectionInputHandler implements Runnable {
 				continue;
 			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
-			}
-
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
+			FCPMessage msg = null;
+			MessageInvalidException invalid = null;
+			if(firstMessage || isValidEndMarker(fs)) {
+				try {
+					msg = create(messageType, fs);
+				} catch (MessageInvalidException e) {
+					invalid = e;
 				}
-				continue;
 			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-				handler.outputHandler.queue(err);
-				handler.close();
+			if(!handle(fs, msg, invalid, lis)) {
 				Closer.close(is);
 				return;
 			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+		}
+	}
+
+	/** Only a message after the first one needs a valid end marker. */
+	static boolean isValidEndMarker(SimpleFieldSet fs) {
+		return fs.getEndMarker() == null || fs.getEndMarker().startsWith("End") || "Data".equals(fs.getEndMarker());
+	}
+
+	FCPMessage create(String messageType, SimpleFieldSet fs) throws MessageInvalidException {
+		if(logDEBUG)
+			Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+		return FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+	}
+
+	/**
+	 * Handle a message from the client: read its data if any, check it and run it.
+	 * Messages on a connection must be handled one at a time, in order.
+	 * @param fs The fields of the message.
+	 * @param msg The message, or null if it wasn't created.
+	 * @param invalid If the message couldn't be created, why not.
+	 * @param data The stream to read any data attached to the message from.
+	 * @return False if the connection should be closed.
+	 */
+	boolean handle(SimpleFieldSet fs, FCPMessage msg, MessageInvalidException invalid, InputStream data) throws IOException {
+		// check for valid endmarker
+		if (!firstMessage && !isValidEndMarker(fs)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return true;
+		}
+
+		if(invalid != null) {
+			if(firstMessage) {
+				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+				handler.outputHandler.queue(err);
+				handler.close();
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(invalid.protocolCode, false, invalid.getMessage(), invalid.ident, invalid.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return true;
+		}
+		if(msg == null) return true;
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(data, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+				return true;
 			}
 		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		firstMessage = false;
+		return !handler.isClosed();
 	}
 
 	public boolean objectCanNew(ObjectContainer container) {
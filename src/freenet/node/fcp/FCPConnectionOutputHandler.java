@@ -146,9 +146,40 @@ public class FCPConnectionOutputHandler implements Runnable {
 			outQueue.add(msg);
 			outQueue.notifyAll();
 		}
+		FCPSelector.Connection channel = handler.channel;
+		if(channel != null) channel.wake();
+	}
+
+	/** For the non-blocking transport, which sends messages itself. @return The next message to send, or null. */
+	FCPMessage poll() {
+		synchronized(outQueue) {
+			FCPMessage msg = outQueue.pollFirst();
+			if(outQueue.isEmpty()) outQueue.notifyAll();
+			return msg;
+		}
+	}
+
+	boolean hasQueued() {
+		synchronized(outQueue) {
+			return !outQueue.isEmpty();
+		}
+	}
+
+	/** For the non-blocking transport: the socket has closed, nothing more will be sent. */
+	void closedQueue() {
+		synchronized(outQueue) {
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
 	}
 
 	public void onClosed() {
+		FCPSelector.Connection channel = handler.channel;
+		if(channel != null) {
+			channel.wake();
+			// The selector thread can't wait for itself to send the queue.
+			if(channel.isSelectorThread()) return;
+		}
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -0,0 +1,125 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The data attached to an incoming FCP message, on the non-blocking transport. The
+ * selector thread offer()s bytes as they arrive, and the thread handling the message
+ * reads them, blocking if necessary. The buffer is bounded: when it is full the selector
+ * stops reading from the socket until the reader has made space, so a client uploading
+ * faster than we can store the data is slowed down by TCP rather than using memory.
+ */
+final class FCPDataInputStream extends InputStream {
+
+	private final byte[] buf;
+	/** Next byte to read. */
+	private int readPos;
+	/** Bytes in the buffer. */
+	private int count;
+	/** Bytes not yet offered by the selector. */
+	private long toOffer;
+	/** Bytes not yet read. */
+	private long toRead;
+	private boolean aborted;
+	/** Called when the buffer goes from full to not full. */
+	private final Runnable onSpace;
+	private boolean full;
+
+	/**
+	 * @param length The number of bytes of data.
+	 * @param bufferSize The maximum number of bytes to buffer.
+	 * @param onSpace Called, outside the lock, when space is made in a full buffer.
+	 */
+	FCPDataInputStream(long length, int bufferSize, Runnable onSpace) {
+		buf = new byte[(int) Math.max(1, Math.min(length, bufferSize))];
+		toOffer = length;
+		toRead = length;
+		this.onSpace = onSpace;
+	}
+
+	/**
+	 * Copy as much data as will fit from src. Called by the selector thread.
+	 * @return False if the buffer is full and more data is needed, in which case the
+	 * caller should stop reading until onSpace is called.
+	 */
+	synchronized boolean offer(ByteBuffer src) {
+		while(toOffer > 0 && src.hasRemaining() && count < buf.length) {
+			int writePos = (readPos + count) % buf.length;
+			int len = (int) Math.min(toOffer, Math.min(src.remaining(),
+					Math.min(buf.length - count, buf.length - writePos)));
+			src.get(buf, writePos, len);
+			count += len;
+			toOffer -= len;
+			notifyAll();
+		}
+		if(toOffer > 0 && count == buf.length) {
+			full = true;
+			return false;
+		}
+		return true;
+	}
+
+	/** @return The number of bytes the selector still has to offer. */
+	synchronized long remainingToOffer() {
+		return toOffer;
+	}
+
+	/** The connection has closed. Any thread waiting for data gets an IOException. */
+	synchronized void abort() {
+		aborted = true;
+		notifyAll();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int r = read(b, 0, 1);
+		return r < 0 ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		int r;
+		boolean wasFull;
+		synchronized(this) {
+			if(toRead == 0) return -1;
+			while(count == 0) {
+				if(aborted) throw new IOException("Connection closed");
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			r = Math.min(len, Math.min(count, buf.length - readPos));
+			System.arraycopy(buf, readPos, b, off, r);
+			readPos = (readPos + r) % buf.length;
+			count -= r;
+			toRead -= r;
+			wasFull = full;
+			full = false;
+		}
+		if(wasFull) onSpace.run();
+		return r;
+	}
+
+	@Override
+	public synchronized int available() {
+		return count;
+	}
+
+	/** Read and discard whatever the handler didn't read. */
+	void skipRemaining() throws IOException {
+		byte[] b = new byte[4096];
+		while(read(b, 0, b.length) > 0) {
+			// Discard
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Parses the header of an FCP message (the name, the fields and the end marker)
+ * incrementally, from whatever bytes have arrived so far. Used by the non-blocking FCP
+ * transport, which can't block on a LineReadingInputStream. Any data after the header
+ * is left in the buffer for the caller.
+ *
+ * Lines are terminated by \n or \r\n and are UTF-8, as for FCPConnectionInputHandler.
+ */
+final class FCPMessageReader {
+
+	/** Maximum length of the message name line, as for FCPConnectionInputHandler. */
+	static final int MAX_NAME_LENGTH = 128;
+	/** Maximum length of a field line. */
+	static final int MAX_LINE_LENGTH = 4096;
+
+	private byte[] line = new byte[MAX_NAME_LENGTH];
+	private int lineLength;
+	private String messageType;
+	private final ArrayList<String> fields = new ArrayList<String>();
+	private boolean complete;
+
+	/**
+	 * Read as much of the header as possible from the buffer.
+	 * @return True if the header is complete. The caller must then get the message type
+	 * and field set, and call reset() before reading the next one.
+	 * @throws IOException If a line is too long.
+	 */
+	boolean read(ByteBuffer buf) throws IOException {
+		if(complete) return true;
+		while(buf.hasRemaining()) {
+			byte b = buf.get();
+			if(b != '\n') {
+				int max = messageType == null ? MAX_NAME_LENGTH : MAX_LINE_LENGTH;
+				if(lineLength == max)
+					throw new IOException("Line too long: "+lineLength+" bytes");
+				if(lineLength == line.length) {
+					byte[] newLine = new byte[Math.min(max, line.length * 2)];
+					System.arraycopy(line, 0, newLine, 0, lineLength);
+					line = newLine;
+				}
+				line[lineLength++] = b;
+				continue;
+			}
+			String s = takeLine();
+			if(messageType == null) {
+				// Blank lines between messages are ignored.
+				if(s.length() != 0) messageType = s;
+				continue;
+			}
+			fields.add(s);
+			if(isEndMarker(s)) {
+				complete = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String takeLine() throws UnsupportedEncodingException {
+		int len = lineLength;
+		if(len > 0 && line[len-1] == '\r') len--;
+		lineLength = 0;
+		return new String(line, 0, len, "UTF-8");
+	}
+
+	/** The same test SimpleFieldSet uses: the first line which is not blank, a comment or a field. */
+	private static boolean isEndMarker(String s) {
+		return s.length() != 0 && s.charAt(0) != '#' && s.indexOf(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) < 0;
+	}
+
+	/** True if some of the next header has been read, but not all of it. */
+	boolean inProgress() {
+		return !complete && (messageType != null || lineLength > 0);
+	}
+
+	String getMessageType() {
+		return messageType;
+	}
+
+	/** Parse the fields, exactly as FCPConnectionInputHandler would. */
+	SimpleFieldSet getFieldSet() throws IOException {
+		return new SimpleFieldSet(fields.toArray(new String[fields.size()]), true, true, false);
+	}
+
+	void reset() {
+		messageType = null;
+		fields.clear();
+		complete = false;
+		if(line.length > MAX_NAME_LENGTH)
+			line = new byte[MAX_NAME_LENGTH];
+	}
+
+}
@@ -0,0 +1,489 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.tanukisoftware.wrapper.WrapperManager;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+import freenet.support.io.NullInputStream;
+
+/**
+ * Non-blocking transport for FCP. Instead of an input and an output thread for every
+ * connection, one thread reads and writes all the connections with a Selector.
+ *
+ * Incoming messages are parsed incrementally by an FCPMessageReader, and handed to a job
+ * on the executor which handles them one at a time, in order, exactly as
+ * FCPConnectionInputHandler does on the blocking transport; so a connection only uses a
+ * thread while it has messages to handle. Data attached to a message is passed through a
+ * bounded FCPDataInputStream. We stop reading from a connection while either that or
+ * the queue of messages waiting to be handled is full.
+ *
+ * Outgoing messages are taken from the connection's FCPConnectionOutputHandler queue
+ * only when the socket can take more, so its length limit still applies. The data of a
+ * DataCarryingMessage is written with FileChannel.transferTo() when its bucket is a
+ * plain file, and copied in chunks otherwise.
+ *
+ * SSL sockets don't have channels, so they always use the blocking transport.
+ */
+final class FCPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int READ_BUFFER_SIZE = 32768;
+	static final int WRITE_CHUNK_SIZE = 32768;
+	/** Data attached to a message buffered before we stop reading. */
+	static final int DATA_BUFFER_SIZE = 65536;
+	/** Messages waiting to be handled before we stop reading. */
+	static final int MAX_QUEUED_MESSAGES = 32;
+
+	private final Selector selector;
+	private final Executor executor;
+	/** Connections to register, or which need their state checked on the selector thread. */
+	private final ArrayDeque<Connection> pending = new ArrayDeque<Connection>();
+	private Thread thread;
+
+	FCPSelector(Executor executor) throws IOException {
+		this.selector = Selector.open();
+		this.executor = executor;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "FCP selector");
+		t.setDaemon(true);
+		synchronized(this) {
+			thread = t;
+		}
+		t.start();
+	}
+
+	/** Start handling a connection, whose socket must have a channel. */
+	void register(FCPConnectionHandler handler) throws IOException {
+		SocketChannel channel = handler.sock.getChannel();
+		channel.configureBlocking(false);
+		Connection c = new Connection(handler, channel);
+		handler.channel = c;
+		schedule(c);
+	}
+
+	private void schedule(Connection c) {
+		synchronized(pending) {
+			// Already waiting to be checked, and the selector has been woken.
+			if(c.scheduled) return;
+			c.scheduled = true;
+			pending.add(c);
+		}
+		selector.wakeup();
+	}
+
+	synchronized boolean isSelectorThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				processPending();
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Connection c = (Connection) key.attachment();
+					try {
+						if(key.isValid() && key.isReadable())
+							c.onReadable();
+						if(key.isValid() && key.isWritable())
+							c.onWritable();
+						c.updateInterest();
+					} catch (IOException e) {
+						if(logMINOR) Logger.minor(this, "Caught "+e+" on "+c.handler, e);
+						c.closeChannel();
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+						c.closeChannel();
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" on "+c.handler, t);
+						c.closeChannel();
+					}
+				}
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+	}
+
+	private void processPending() {
+		while(true) {
+			Connection c;
+			synchronized(pending) {
+				c = pending.poll();
+				if(c == null) return;
+				// Anything which happens from now on needs another check.
+				c.scheduled = false;
+			}
+			try {
+				c.update();
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e+" on "+c.handler, e);
+				c.closeChannel();
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				c.closeChannel();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" on "+c.handler, t);
+				c.closeChannel();
+			}
+		}
+	}
+
+	/** A message read from the client, waiting to be handled. */
+	private static class Incoming {
+		final SimpleFieldSet fs;
+		FCPMessage msg;
+		MessageInvalidException invalid;
+		FCPDataInputStream data;
+
+		/** @param fs Null means the client closed the connection. */
+		Incoming(SimpleFieldSet fs) {
+			this.fs = fs;
+		}
+	}
+
+	/** The state of one connection. Apart from the incoming queue, only used on the selector thread. */
+	final class Connection implements Runnable {
+
+		final FCPConnectionHandler handler;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private boolean closed;
+		/** True if in pending. Synchronized on pending. */
+		private boolean scheduled;
+
+		/** Kept ready for reading into: position is the number of unprocessed bytes. */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final FCPMessageReader reader = new FCPMessageReader();
+		/** Data for the last message, which is still arriving. */
+		private FCPDataInputStream data;
+		/** True once a message has been created. Until then, any end marker is accepted, as for the blocking transport. */
+		private boolean createdMessage;
+		private boolean inputClosed;
+		private boolean sentEndOfInput;
+
+		/** Synchronized on itself. */
+		private final ArrayDeque<Incoming> incoming = new ArrayDeque<Incoming>();
+		/** True if a job is handling incoming messages. Synchronized on incoming. */
+		private boolean handling;
+
+		/** Bytes waiting to be written. */
+		private ByteBuffer writeBuffer;
+		/** The message whose data is being written. */
+		private DataCarryingMessage sending;
+		private InputStream dataStream;
+		private FileChannel dataChannel;
+		private long dataRemaining;
+
+		private final Runnable wake = new Runnable() {
+
+			@Override
+			public void run() {
+				wake();
+			}
+
+		};
+
+		Connection(FCPConnectionHandler handler, SocketChannel channel) {
+			this.handler = handler;
+			this.channel = channel;
+		}
+
+		/** Check the connection on the selector thread: there is more output, space for more input, or it has closed. */
+		void wake() {
+			schedule(this);
+		}
+
+		boolean isSelectorThread() {
+			return FCPSelector.this.isSelectorThread();
+		}
+
+		void update() throws IOException {
+			if(closed) return;
+			if(key == null) {
+				try {
+					key = channel.register(selector, SelectionKey.OP_READ, this);
+				} catch (ClosedChannelException e) {
+					closeChannel();
+					return;
+				}
+			}
+			// Retry input which was held up by a full buffer or queue.
+			processInput();
+			onWritable();
+			updateInterest();
+		}
+
+		void updateInterest() {
+			if(closed) return;
+			int ops = 0;
+			if(!inputClosed && readBuffer.hasRemaining())
+				ops |= SelectionKey.OP_READ;
+			if(writeBuffer != null || dataStream != null || handler.outputHandler.hasQueued())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		void onReadable() throws IOException {
+			int read = channel.read(readBuffer);
+			if(read < 0) inputClosed = true;
+			processInput();
+		}
+
+		private void processInput() throws IOException {
+			readBuffer.flip();
+			try {
+				while(readBuffer.hasRemaining()) {
+					if(data != null) {
+						if(!data.offer(readBuffer)) break;
+						if(data.remainingToOffer() == 0) data = null;
+						continue;
+					}
+					synchronized(incoming) {
+						if(incoming.size() >= MAX_QUEUED_MESSAGES) break;
+					}
+					if(!reader.read(readBuffer)) break;
+					readMessage();
+				}
+				if(inputClosed && !readBuffer.hasRemaining() && !sentEndOfInput) {
+					sentEndOfInput = true;
+					if(data != null) data.abort();
+					if(reader.inProgress() && logMINOR)
+						Logger.minor(this, "Connection closed in the middle of a message on "+handler);
+					queue(new Incoming(null));
+				}
+			} finally {
+				readBuffer.compact();
+			}
+		}
+
+		private void readMessage() throws IOException {
+			String messageType = reader.getMessageType();
+			Incoming in = new Incoming(reader.getFieldSet());
+			reader.reset();
+			if(!createdMessage || FCPConnectionInputHandler.isValidEndMarker(in.fs)) {
+				try {
+					in.msg = handler.inputHandler.create(messageType, in.fs);
+				} catch (MessageInvalidException e) {
+					in.invalid = e;
+				}
+			}
+			if(in.msg != null) {
+				createdMessage = true;
+				if(in.msg instanceof BaseDataCarryingMessage) {
+					long length = ((BaseDataCarryingMessage)in.msg).dataLength();
+					if(length > 0)
+						data = in.data = new FCPDataInputStream(length, DATA_BUFFER_SIZE, wake);
+				}
+			}
+			queue(in);
+		}
+
+		private void queue(Incoming in) {
+			boolean start;
+			synchronized(incoming) {
+				incoming.add(in);
+				start = !handling;
+				handling = true;
+			}
+			if(start)
+				executor.execute(this, "FCP message handler for "+handler.sock.getRemoteSocketAddress());
+		}
+
+		/** Handle incoming messages, in order, until there are none left. */
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				Incoming in;
+				boolean wasFull;
+				synchronized(incoming) {
+					in = incoming.poll();
+					if(in == null) {
+						handling = false;
+						return;
+					}
+					wasFull = incoming.size() == MAX_QUEUED_MESSAGES - 1;
+				}
+				if(wasFull) wake();
+				if(!handle(in)) {
+					handler.close();
+					synchronized(incoming) {
+						for(Incoming i : incoming)
+							if(i.data != null) i.data.abort();
+						incoming.clear();
+						handling = false;
+					}
+					closeInput();
+					return;
+				}
+			}
+		}
+
+		/** @return False if the connection should be closed. */
+		private boolean handle(Incoming in) {
+			if(in.fs == null || handler.isClosed()) return false;
+			try {
+				if(WrapperManager.hasShutdownHookBeenTriggered()) {
+					FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+					handler.outputHandler.queue(msg);
+					return false;
+				}
+				InputStream is = in.data == null ? new NullInputStream() : in.data;
+				if(!handler.inputHandler.handle(in.fs, in.msg, in.invalid, is))
+					return false;
+				if(in.data != null)
+					in.data.skipRemaining();
+				return true;
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+			return false;
+		}
+
+		/** Stop reading, once the handler has closed. */
+		private void closeInput() {
+			try {
+				channel.socket().shutdownInput();
+			} catch (IOException e) {
+				// Ignore
+			}
+			// The selector will close the channel once all queued output has been written.
+			wake();
+		}
+
+		void onWritable() throws IOException {
+			while(!closed) {
+				if(writeBuffer != null) {
+					channel.write(writeBuffer);
+					if(writeBuffer.hasRemaining()) return;
+					writeBuffer = null;
+				}
+				if(dataChannel != null && dataRemaining > 0) {
+					long written = dataChannel.transferTo(dataChannel.position(), dataRemaining, channel);
+					if(written == 0 && dataChannel.position() >= dataChannel.size())
+						throw new IOException("Bucket too short sending "+sending);
+					dataChannel.position(dataChannel.position() + written);
+					dataRemaining -= written;
+					if(dataRemaining > 0) return;
+				} else if(dataStream != null && dataRemaining > 0) {
+					byte[] buf = new byte[(int) Math.min(WRITE_CHUNK_SIZE, dataRemaining)];
+					int read = dataStream.read(buf);
+					if(read < 0)
+						throw new IOException("Bucket too short sending "+sending);
+					dataRemaining -= read;
+					writeBuffer = ByteBuffer.wrap(buf, 0, read);
+					continue;
+				}
+				if(sending != null) {
+					Closer.close(dataStream);
+					dataStream = null;
+					dataChannel = null;
+					sending.onDataSent();
+					sending = null;
+				}
+				FCPMessage msg = handler.outputHandler.poll();
+				if(msg == null) {
+					// Everything queued before the handler closed has been sent.
+					if(handler.isClosed()) closeChannel();
+					return;
+				}
+				startSending(msg);
+			}
+		}
+
+		private void startSending(FCPMessage msg) throws IOException {
+			if(logMINOR) Logger.minor(this, "Sending "+msg);
+			ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+			if(msg instanceof DataCarryingMessage) {
+				DataCarryingMessage dcm = (DataCarryingMessage) msg;
+				dcm.sendHeader(os);
+				sending = dcm;
+				long length = dcm.dataLength();
+				if(length > 0) {
+					dataStream = dcm.bucket.getInputStream();
+					dataRemaining = length;
+					if(dataStream instanceof FileInputStream)
+						dataChannel = ((FileInputStream)dataStream).getChannel();
+				}
+			} else {
+				msg.send(os);
+			}
+			writeBuffer = ByteBuffer.wrap(os.toByteArray());
+		}
+
+		/** Close the socket, and close the handler if it isn't closed already. */
+		void closeChannel() {
+			if(closed) return;
+			closed = true;
+			if(key != null) key.cancel();
+			Closer.close(channel);
+			if(data != null) data.abort();
+			synchronized(incoming) {
+				for(Incoming i : incoming)
+					if(i.data != null) i.data.abort();
+			}
+			Closer.close(dataStream);
+			dataStream = null;
+			handler.outputHandler.closedQueue();
+			if(!handler.isClosed()) {
+				// Closing the handler cancels its requests, which may take a while.
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						handler.close();
+					}
+
+				}, "FCP close for "+handler.sock.getRemoteSocketAddress());
+			}
+		}
+
+	}
+
+}
@@ -26,9 +26,12 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
 import freenet.client.async.DownloadCache;
+import freenet.client.async.JournalRequestStore;
+import freenet.client.async.PersistentRequestStore;
 import freenet.clients.http.SimpleToadletServer;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
@@ -80,8 +83,14 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
-
-	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, ObjectContainer container) throws IOException, InvalidConfigValueException {
+	/** If true, connections use the non-blocking transport, see FCPSelector. Can't be changed on the fly. */
+	private final boolean nonBlockingIO;
+	private FCPSelector selector;
+	/** Import the requests exported to this PersistentRequestStore, if not empty. */
+	private String importRequestsFrom;
+	private boolean importQueued;
+
+	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, boolean nonBlockingIO, ObjectContainer container) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
 		this.allowedHosts=allowedHosts;
 		this.allowedHostsFullAccess = new AllowedHosts(allowedHostsFullAccess);
@@ -93,6 +102,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		this.assumeUploadDDAIsAllowed = assumeDDAUploadAllowed;
 		this.neverDropAMessage = neverDropAMessage;
 		this.maxMessageQueueLength = maxMessageQueueLength;
+		this.nonBlockingIO = nonBlockingIO;
 		rebootClientsByName = new WeakHashMap<String, FCPClient>();
 
 		// This one is only used to get the default settings. Individual FCP conns
@@ -111,6 +121,95 @@ public class FCPServer implements Runnable, DownloadCache {
 	public void load(ObjectContainer container) {
 		persistentRoot = FCPPersistentRoot.create(node.nodeDBHandle, new RequestStatusCache(), container);
 		globalForeverClient = persistentRoot.globalForeverClient;
+		maybeImportRequests();
+	}
+
+	/** Add the requests exported by PersistentRequestExporter to the queue, if configured
+	 * to, once the database thread starts. */
+	private synchronized void maybeImportRequests() {
+		final String from = importRequestsFrom;
+		if(from == null || from.length() == 0 || importQueued) return;
+		if(!(new File(from+".snapshot").exists() || new File(from+".journal").exists())) {
+			Logger.error(this, "No exported persistent requests to import at "+from);
+			System.err.println("No exported persistent requests to import at "+from);
+			return;
+		}
+		try {
+			core.clientContext.jobRunner.queue(new DBJob() {
+
+				@Override
+				public boolean run(ObjectContainer container, ClientContext context) {
+					final PersistentRequestStore store;
+					final List<String> done = new ArrayList<String>();
+					final int count;
+					try {
+						store = new JournalRequestStore(new File(from));
+					} catch (IOException e) {
+						importFailed(from, e);
+						return false;
+					}
+					try {
+						count = PersistentRequestImporter.importRequests(store, done, FCPServer.this, container, context);
+					} catch (IOException e) {
+						importFailed(from, e);
+						closeImportStore(store, from);
+						return false;
+					}
+					// Only forget the requests once they are in the database, which happens when
+					// we return; if we crash first, importing again will skip them.
+					try {
+						context.jobRunner.queue(new DBJob() {
+
+							@Override
+							public boolean run(ObjectContainer container, ClientContext context) {
+								try {
+									if(!context.jobRunner.killedDatabase())
+										PersistentRequestImporter.removeImported(store, done);
+									System.out.println("Imported "+count+" persistent requests from "+from+
+											(store.size() > 0 ? ", unable to import "+store.size()+", see the log" : ""));
+								} catch (IOException e) {
+									importFailed(from, e);
+								} finally {
+									closeImportStore(store, from);
+								}
+								return false;
+							}
+
+							@Override
+							public String toString() {
+								return "Remove imported persistent requests";
+							}
+
+						}, NativeThread.NORM_PRIORITY, false);
+					} catch (DatabaseDisabledException e) {
+						closeImportStore(store, from);
+					}
+					return true;
+				}
+
+				@Override
+				public String toString() {
+					return "Import persistent requests";
+				}
+
+			}, NativeThread.NORM_PRIORITY, false);
+			importQueued = true;
+		} catch (DatabaseDisabledException e) {
+			// Try again when the database is enabled.
+		}
+	}
+
+	private void importFailed(String from, IOException e) {
+		Logger.error(this, "Unable to import persistent requests from "+from+" : "+e, e);
+		System.err.println("Unable to import persistent requests from "+from+" : "+e);
+	}
+
+	private void closeImportStore(PersistentRequestStore store, String from) {
+		try {
+			store.close();
+		} catch (IOException e) {
+			importFailed(from, e);
+		}
 	}
 
 	private void maybeGetNetworkInterface() {
@@ -121,7 +220,7 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true, nonBlockingIO);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -140,6 +239,14 @@ public class FCPServer implements Runnable, DownloadCache {
 			System.out.println("Starting FCP server on "+bindTo+ ':' +port+ '.');
 
 			if (this.networkInterface != null) {
+				if(nonBlockingIO && !ssl) {
+					try {
+						selector = new FCPSelector(node.executor);
+						selector.start();
+					} catch (IOException e) {
+						Logger.error(this, "Unable to open selector, using blocking IO for FCP: "+e, e);
+					}
+				}
 				Thread t = new Thread(this, "FCP server");
 				t.setDaemon(true);
 				t.start();
@@ -178,7 +285,10 @@ public class FCPServer implements Runnable, DownloadCache {
 		// Accept a connection
 		Socket s = networkInterface.accept();
 		FCPConnectionHandler ch = new FCPConnectionHandler(s, this);
-		ch.start();
+		if(selector != null && s.getChannel() != null)
+			selector.register(ch);
+		else
+			ch.start();
 	}
 
 	static class FCPPortNumberCallback extends IntCallback  {
@@ -398,6 +508,44 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class NonBlockingIOCallback extends BooleanCallback {
+		boolean value;
+
+		@Override
+		public Boolean get() {
+			return value;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			value = val;
+			throw new NodeNeedRestartException(l10n("nonBlockingIONeedsRestart"));
+		}
+	}
+
+	static class ImportPersistentRequestsCallback extends StringCallback {
+		FCPServer server;
+
+		@Override
+		public String get() {
+			synchronized(server) {
+				return server.importRequestsFrom;
+			}
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			if(get().equals(val))
+				return;
+			synchronized(server) {
+				server.importRequestsFrom = val;
+			}
+			// Takes effect on the next startup.
+		}
+	}
+
 	static class MaxMessageQueueLengthCallback extends IntCallback {
 		FCPServer server;
 
@@ -433,18 +581,25 @@ public class FCPServer implements Runnable, DownloadCache {
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		NonBlockingIOCallback cb8 = new NonBlockingIOCallback();
+		fcpConfig.register("nonBlockingIO", false, sortOrder++, true, false, "FcpServer.nonBlockingIO", "FcpServer.nonBlockingIOLong", cb8);
+		cb8.value = fcpConfig.getBoolean("nonBlockingIO");
+		ImportPersistentRequestsCallback cb9 = new ImportPersistentRequestsCallback();
+		fcpConfig.register("importPersistentRequests", "", sortOrder++, true, false, "FcpServer.importPersistentRequests", "FcpServer.importPersistentRequestsLong", cb9);
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
 		}
 
-		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), container);
+		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), cb8.value, container);
 
 		if(fcp != null) {
 			cb4.server = fcp;
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb9.server = fcp;
+			fcp.importRequestsFrom = fcpConfig.getString("importPersistentRequests");
 		}
 
 		fcpConfig.finishedInitialization();
@@ -829,7 +984,7 @@ public class FCPServer implements Runnable, DownloadCache {
 			new ClientGet(persistRebootOnly ? globalRebootClient : globalForeverClient, fetchURI, defaultFetchContext.localRequestOnly,
 					defaultFetchContext.ignoreStore, filterData, QUEUE_MAX_RETRIES,
 					QUEUE_MAX_RETRIES, QUEUE_MAX_DATA_SIZE, returnType, persistRebootOnly, id,
-					Integer.MAX_VALUE, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, returnFilename, returnTempFilename, null, false, realTimeFlag, this, container);
+					Integer.MAX_VALUE, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, returnFilename, returnTempFilename, null, null, false, realTimeFlag, this, container);
 		cg.register(container, false);
 		cg.start(container, core.clientContext);
 	}
@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.db4o.Db4o;
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.config.Configuration;
+import com.db4o.query.Query;
+
+import freenet.client.async.JournalRequestStore;
+import freenet.client.async.PersistentRequestStore;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Copies the persistent requests in the client database to a PersistentRequestStore.
+ * Each request is stored as the PersistentGet, PersistentPut or PersistentPutDir message
+ * we send to FCP clients for it, which describes everything needed to start it again,
+ * under the key client name/identifier. Progress is not copied, and nor is data uploaded
+ * directly over FCP, which is only in the database.
+ *
+ * Run with the node stopped, on an unencrypted node.db4o:
+ * java freenet.node.fcp.PersistentRequestExporter node.db4o requests
+ * which writes requests.snapshot and requests.journal. Set fcp.importPersistentRequests
+ * to the output name to add them to a node's queue on startup: see
+ * PersistentRequestImporter.
+ */
+public class PersistentRequestExporter {
+
+	/** Added to each stored SimpleFieldSet: the name of the message it came from. */
+	public static final String MESSAGE_NAME = "MessageName";
+
+	/**
+	 * Store every persistent request in the database, and commit.
+	 * @return The number of requests stored.
+	 */
+	public static int export(ObjectContainer container, PersistentRequestStore store) throws IOException {
+		Query query = container.query();
+		query.constrain(ClientRequest.class);
+		query.descend("persistenceType").constrain(ClientRequest.PERSIST_FOREVER);
+		@SuppressWarnings("unchecked")
+		ObjectSet<ClientRequest> results = query.execute();
+		int count = 0;
+		while(results.hasNext()) {
+			ClientRequest req = results.next();
+			container.activate(req, 1);
+			try {
+				container.activate(req.client, 1);
+				FCPMessage msg = req.persistentTagMessage(container);
+				SimpleFieldSet fs = msg.getFieldSet();
+				fs.putSingle(MESSAGE_NAME, msg.getName());
+				store.store(req.client.name+"/"+req.identifier, fs);
+				count++;
+			} catch (RuntimeException e) {
+				// Old databases have all sorts of corruption.
+				Logger.error(PersistentRequestExporter.class, "Unable to export "+req+" : "+e, e);
+			}
+			container.deactivate(req, 1);
+		}
+		store.commit();
+		return count;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.err.println("Usage: java "+PersistentRequestExporter.class.getName()+" <node.db4o> <output name>");
+			System.exit(1);
+			return;
+		}
+		File dbFile = new File(args[0]);
+		if(!dbFile.exists()) {
+			System.err.println("No such file: "+dbFile);
+			System.exit(2);
+			return;
+		}
+		Configuration config = Db4o.newConfiguration();
+		config.readOnly(true);
+		config.activationDepth(1);
+		ObjectContainer container = Db4o.openFile(config, dbFile.toString());
+		try {
+			PersistentRequestStore store = new JournalRequestStore(new File(args[1]));
+			try {
+				long start = System.currentTimeMillis();
+				int count = export(container, store);
+				System.out.println("Exported "+count+" persistent requests to "+args[1]+" in "+(System.currentTimeMillis() - start)+"ms");
+			} finally {
+				store.close();
+			}
+		} finally {
+			container.close();
+		}
+	}
+
+}
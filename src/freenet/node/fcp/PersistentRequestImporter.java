@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.InsertContext;
+import freenet.client.async.ClientContext;
+import freenet.client.async.PersistentRequestStore;
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.node.RequestStarter;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileBucket;
+
+/**
+ * Recreates the persistent requests stored by PersistentRequestExporter, e.g. to move a
+ * queue to a new node.db4o. Requests are started again from scratch, on the client they
+ * belonged to. Each request is removed from the store once the database transaction
+ * which put it on the queue has been committed, so an import can be interrupted and run
+ * again: anything already on the queue is skipped because its identifier is in use.
+ * Those we can't recreate are logged and left in the store:
+ * - Inserts of data uploaded directly over FCP, which was only in the database.
+ * - Site inserts, since PersistentPutDir doesn't say where the files came from.
+ * - Requests for binary blobs.
+ */
+public class PersistentRequestImporter {
+
+	/**
+	 * Add every request in the store to the queue. Must be called on the database thread.
+	 * The store is not changed: once the transaction has been committed, pass the keys to
+	 * removeImported().
+	 * @param done The keys of the requests which are now on the queue, whether we added
+	 * them or they were imported already, are added to this.
+	 * @return The number of requests added.
+	 */
+	public static int importRequests(PersistentRequestStore store, List<String> done, FCPServer server, ObjectContainer container, ClientContext context) throws IOException {
+		int count = 0;
+		for(Map.Entry<String, SimpleFieldSet> entry : store.load().entrySet()) {
+			String key = entry.getKey();
+			SimpleFieldSet fs = entry.getValue();
+			try {
+				ClientRequest req = makeRequest(key, fs, server, container);
+				if(req == null) continue;
+				try {
+					req.register(container, false);
+					container.store(req);
+				} catch (IdentifierCollisionException e) {
+					// Imported already, or the client has reused the identifier.
+					Logger.normal(PersistentRequestImporter.class, "Not importing "+key+" : identifier already in use");
+					done.add(key);
+					continue;
+				}
+				req.start(container, context);
+				container.deactivate(req, 1);
+				done.add(key);
+				count++;
+			} catch (Exception e) {
+				Logger.error(PersistentRequestImporter.class, "Unable to import "+key+" : "+e, e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove the requests which importRequests() put on the queue from the store, and
+	 * commit it. Must only be called once the database transaction has been committed.
+	 */
+	public static void removeImported(PersistentRequestStore store, List<String> done) throws IOException {
+		for(String key : done)
+			store.remove(key);
+		store.commit();
+	}
+
+	/** @return The request, or null if we can't recreate it. */
+	private static ClientRequest makeRequest(String key, SimpleFieldSet fs, FCPServer server, ObjectContainer container) throws Exception {
+		String type = fs.get(PersistentRequestExporter.MESSAGE_NAME);
+		String identifier = fs.get("Identifier");
+		if(identifier == null || !key.endsWith("/"+identifier)) {
+			Logger.error(PersistentRequestImporter.class, "Invalid stored request "+key);
+			return null;
+		}
+		if(fs.getBoolean("BinaryBlob", false)) {
+			Logger.error(PersistentRequestImporter.class, "Unable to import "+key+" : binary blobs are not supported");
+			return null;
+		}
+		FCPClient client;
+		if(fs.getBoolean("Global", false))
+			client = server.globalForeverClient;
+		else
+			client = server.registerForeverClient(key.substring(0, key.length() - identifier.length() - 1), server.core, null, container);
+		FreenetURI uri = new FreenetURI(fs.get("URI"));
+		int verbosity = fs.getInt("Verbosity", 0);
+		short priorityClass = fs.getShort("PriorityClass", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+		if(priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS || priorityClass > RequestStarter.MINIMUM_PRIORITY_CLASS)
+			priorityClass = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+		int maxRetries = fs.getInt("MaxRetries", 0);
+		String clientToken = fs.get("ClientToken");
+		boolean realTime = fs.getBoolean("RealTime", false);
+		if(PersistentGet.name.equals(type)) {
+			short returnType = ClientGetMessage.parseReturnType(fs.get("ReturnType"));
+			File filename = null;
+			File tempFilename = null;
+			if(returnType == ClientGetMessage.RETURN_TYPE_DISK) {
+				filename = new File(fs.get("Filename"));
+				tempFilename = new File(fs.get("TempFilename"));
+			}
+			long maxSize = fs.getLong("MaxSize", Long.MAX_VALUE);
+			return new ClientGet(client, uri, false, false, false, maxRetries, maxRetries, maxSize, returnType, false,
+					identifier, verbosity, priorityClass, filename, tempFilename, null, clientToken, false, realTime, server, container);
+		} else if(PersistentPut.name.equals(type)) {
+			String uploadFrom = fs.get("UploadFrom");
+			short uploadFromType;
+			File filename = null;
+			FreenetURI target = null;
+			if(ClientPutMessage.uploadFromString(ClientPutMessage.UPLOAD_FROM_DISK).equals(uploadFrom)) {
+				uploadFromType = ClientPutMessage.UPLOAD_FROM_DISK;
+				filename = new File(fs.get("Filename"));
+			} else if(ClientPutMessage.uploadFromString(ClientPutMessage.UPLOAD_FROM_REDIRECT).equals(uploadFrom)) {
+				uploadFromType = ClientPutMessage.UPLOAD_FROM_REDIRECT;
+				target = new FreenetURI(fs.get("TargetURI"));
+			} else {
+				Logger.error(PersistentRequestImporter.class, "Unable to import "+key+" : the data was uploaded directly");
+				return null;
+			}
+			// URI is the public URI. We need the insert URI.
+			String privateURI = fs.get("PrivateURI");
+			if(privateURI != null)
+				uri = new FreenetURI(privateURI);
+			else if("CHK".equals(uri.getKeyType()))
+				uri = new FreenetURI("CHK@");
+			String mode = fs.get("CompatibilityMode");
+			InsertContext.CompatibilityMode compatMode = mode == null ? InsertContext.CompatibilityMode.COMPAT_CURRENT : InsertContext.CompatibilityMode.valueOf(mode);
+			String cryptoKey = fs.get("SplitfileCryptoKey");
+			ClientPut put = new ClientPut(client, uri, identifier, verbosity, null, priorityClass, ClientRequest.PERSIST_FOREVER, clientToken,
+					false, fs.getBoolean("DontCompress", false), maxRetries, uploadFromType, filename, fs.get("Metadata.ContentType"),
+					filename == null ? null : new FileBucket(filename, true, false, false, false, false), target, fs.get("TargetFilename"),
+					false, false, Node.FORK_ON_CACHEABLE_DEFAULT, HighLevelSimpleClientImpl.EXTRA_INSERTS_SINGLE_BLOCK,
+					HighLevelSimpleClientImpl.EXTRA_INSERTS_SPLITFILE_HEADER, realTime, compatMode,
+					cryptoKey == null ? null : HexUtil.hexToBytes(cryptoKey), server, container);
+			put.ctx.compressorDescriptor = fs.get("Codecs");
+			return put;
+		} else {
+			Logger.error(PersistentRequestImporter.class, "Unable to import "+key+" : "+type+" is not supported");
+			return null;
+		}
+	}
+
+}
@@ -1,7 +1,11 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -9,6 +13,8 @@ import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore.PendingBlock;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -17,24 +23,36 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * Write cache in front of another store. Blocks are kept in memory until either the
+ * cache is full or the period expires, and then written back in one go. The pending
+ * blocks are split across a number of stripes, each with its own lock, so that puts and
+ * fetches for different keys don't contend. If the underlying store is a
+ * {@link SaltedHashFreenetStore}, the blocks are written with
+ * {@link SaltedHashFreenetStore#putAll(List)}, which sorts them by slot and coalesces
+ * writes to adjacent slots.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
 public class CachingFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
     private static volatile boolean logMINOR;
     
-	private long size;
-	private boolean startJob;
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	/** Number of stripes. Routing keys are hashes so any power of two will spread evenly. */
+	private static final int STRIPES = 16;
+	
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicBoolean startJob = new AtomicBoolean();
+	private volatile boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
 	
 	private final long maxSize;
 	private final long period;
-	private final TreeMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	private final Stripe<T>[] stripes;
 	private final StoreCallback<T> callback;
 	private final FreenetStore<T> backDatastore;
 	private final Ticker ticker;
 	private final boolean collisionPossible;
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
+	/** Only one write-back at a time. Taken before any stripe lock. */
+	private final Object flushLock = new Object();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -44,6 +62,12 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		byte[] header;
 		boolean overwrite;
 		boolean isOldBlock;
+		long size;
+	}
+	
+	private final static class Stripe<T> {
+		final TreeMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey = new TreeMap<ByteArrayWrapper, Block<T>>(ByteArrayWrapper.FAST_COMPARATOR);
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
 	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, long maxSize, long period, FreenetStore<T> backDatastore, Ticker ticker) {
@@ -54,10 +78,13 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		this.period = period;
 		this.backDatastore = backDatastore;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = new TreeMap<ByteArrayWrapper, Block<T>>(ByteArrayWrapper.FAST_COMPARATOR);
+		// Can't create a generic array.
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Stripe<T>[] stripes = new Stripe[STRIPES];
+		this.stripes = stripes;
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new Stripe<T>();
 		this.ticker = ticker;
-		this.size = 0;
-		this.startJob = false;
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		
@@ -70,6 +97,20 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			}
 		});
 	}
+	
+	private Stripe<T> stripeFor(ByteArrayWrapper key) {
+		return stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+	}
+	
+	private Block<T> getPending(ByteArrayWrapper key) {
+		Stripe<T> stripe = stripeFor(key);
+		stripe.lock.readLock().lock();
+		try {
+			return stripe.blocksByRoutingKey.get(key);
+		} finally {
+			stripe.lock.readLock().unlock();
+		}
+	}
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey,
@@ -78,14 +119,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
+		Block<T> block = getPending(key);
 		
 		if(block != null) {
 			try {
@@ -126,15 +160,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
-		
+		Block<T> block = getPending(key);
 		return block != null || backDatastore.probablyInStore(routingKey);
 	}
 
@@ -153,21 +179,22 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		storeBlock.isOldBlock = isOldBlock;
 		
 		long sizeBlock = data.length+header.length+block.getFullKey().length+routingKey.length;	
+		storeBlock.size = sizeBlock;
 		boolean cacheIt = true;
+		long newSize = 0;
 		
 		//Case cache it
-		configLock.writeLock().lock();
+		Stripe<T> stripe = stripeFor(key);
+		stripe.lock.writeLock().lock();
 		
 		try {
 			if(sizeBlock < maxSize && !shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
+				Block<T> previousBlock = stripe.blocksByRoutingKey.get(key);
 			
 				if(!collisionPossible || overwrite) {
-					blocksByRoutingKey.put(key, storeBlock);
+					stripe.blocksByRoutingKey.put(key, storeBlock);
 					
-					if(previousBlock == null) {
-						size += sizeBlock;
-					}
+					newSize = size.addAndGet(previousBlock == null ? sizeBlock : sizeBlock - previousBlock.size);
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
 					if(previousBlock != null) {
@@ -180,37 +207,15 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 					if(backDatastore.probablyInStore(routingKey)) {
 						cacheIt = false;
 					} else {
-						blocksByRoutingKey.put(key, storeBlock);
-						size += sizeBlock;
-					}
-				}
-				
-				//Check max size
-				if(size > maxSize) {
-					pushAll();
-				} else {
-					//Check period
-					if(!blocksByRoutingKey.isEmpty() && !startJob) {
-						startJob = true;
-						this.ticker.queueTimedJob(new Runnable() {
-							@Override
-							public void run() {
-								configLock.writeLock().lock();
-								try {
-									pushAll();
-								} finally {
-									startJob = false;
-									configLock.writeLock().unlock();
-								}
-							}
-						}, period);
+						stripe.blocksByRoutingKey.put(key, storeBlock);
+						newSize = size.addAndGet(sizeBlock);
 					}
 				}
 			} else {
 				cacheIt = false;
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			stripe.lock.writeLock().unlock();
 		}
 		
 		//Case don't cache it
@@ -218,13 +223,60 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
 			return;
 		}
+		
+		//Check max size
+		if(newSize > maxSize) {
+			pushAll();
+		} else {
+			//Check period
+			if(startJob.compareAndSet(false, true)) {
+				this.ticker.queueTimedJob(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							pushAll();
+						} finally {
+							startJob.set(false);
+						}
+					}
+				}, period);
+			}
+		}
 	}
 	
+	/**
+	 * Write all the pending blocks to the underlying store. The blocks stay visible to
+	 * fetch() until they have been written, and a block which is replaced while we are
+	 * writing it stays in the cache to be written next time.
+	 */
+	@SuppressWarnings("unchecked")
 	private void pushAll() {
-		configLock.writeLock().lock();
-		try
-		{
-			for(Block<T> block : blocksByRoutingKey.values()) {
+		synchronized(flushLock) {
+			List<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>();
+			List<Block<T>> blocks = new ArrayList<Block<T>>();
+			for(Stripe<T> stripe : stripes) {
+				stripe.lock.readLock().lock();
+				try {
+					keys.addAll(stripe.blocksByRoutingKey.keySet());
+					blocks.addAll(stripe.blocksByRoutingKey.values());
+				} finally {
+					stripe.lock.readLock().unlock();
+				}
+			}
+			if(blocks.isEmpty()) return;
+			if(logMINOR) Logger.minor(this, "Writing "+blocks.size()+" blocks to "+backDatastore);
+			
+			if(backDatastore instanceof SaltedHashFreenetStore) {
+				List<PendingBlock<T>> pending = new ArrayList<PendingBlock<T>>(blocks.size());
+				for(Block<T> block : blocks)
+					pending.add(new PendingBlock<T>(block.block, block.data, block.header, block.overwrite, block.isOldBlock));
+				try {
+					((SaltedHashFreenetStore<T>)backDatastore).putAll(pending);
+				} catch (IOException e) {
+					Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+				}
+			} else {
+				for(Block<T> block : blocks) {
 					try {
 						backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
 					} catch (IOException e) {
@@ -233,10 +285,22 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 						if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
 					}
 				}
-			blocksByRoutingKey.clear();
-			size = 0;
-		} finally {
-			configLock.writeLock().unlock();
+			}
+			
+			for(int i=0;i<keys.size();i++) {
+				ByteArrayWrapper key = keys.get(i);
+				Block<T> block = blocks.get(i);
+				Stripe<T> stripe = stripeFor(key);
+				stripe.lock.writeLock().lock();
+				try {
+					if(stripe.blocksByRoutingKey.get(key) == block) {
+						stripe.blocksByRoutingKey.remove(key);
+						size.addAndGet(-block.size);
+					}
+				} finally {
+					stripe.lock.writeLock().unlock();
+				}
+			}
 		}
 	}
 
@@ -284,12 +348,12 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 
 	/** Close this store but not the underlying store. */
 	private void innerClose() {
-		configLock.writeLock().lock();
-		try {
-			shuttingDown = true;
-			pushAll();
-		} finally {
-			configLock.writeLock().unlock();
+		shuttingDown = true;
+		// Wait for any put() which checked the flag before we set it.
+		for(Stripe<T> stripe : stripes) {
+			stripe.lock.writeLock().lock();
+			stripe.lock.writeLock().unlock();
 		}
+		pushAll();
 	}
 }
@@ -18,46 +18,85 @@ import freenet.support.Logger.LogLevel;
  * 
  * Handle locking/unlocking of individual offsets.
  * 
+ * The offsets are spread over a number of stripes, each with its own lock and map of held
+ * entries, so that threads locking unrelated slots don't contend with each other. The number
+ * of stripes scales with the number of processors.
+ * 
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	private static class Stripe {
+		final Lock entryLock = new ReentrantLock();
+		final Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	}
 
 	LockManager() {
+		this(defaultStripes());
+	}
+
+	/**
+	 * @param stripeCount Number of stripes. Will be rounded up to a power of two.
+	 */
+	LockManager(int stripeCount) {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		int count = Integer.highestOneBit(Math.max(1, stripeCount));
+		if (count < stripeCount)
+			count <<= 1;
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe();
+		stripeMask = count - 1;
+	}
+
+	private static int defaultStripes() {
+		return Math.max(16, Runtime.getRuntime().availableProcessors() * 16);
+	}
+
+	int stripeCount() {
+		return stripes.length;
+	}
+
+	private Stripe stripeFor(long offset) {
+		// Adjacent slots go to different stripes, which helps batch puts and the cleaner.
+		int h = (int) (offset ^ (offset >>> 32));
+		h ^= (h >>> 16);
+		return stripes[h & stripeMask];
 	}
 
 	/**
 	 * Lock the entry
 	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * This lock is <strong>not</strong> re-entrance. Threads which need more than one lock
+	 * at a time must take them in ascending order of offset (or deadlock may occur).
 	 */
 	Condition lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
+		Stripe stripe = stripeFor(offset);
 		Condition condition;
 		try {
-			entryLock.lock();
+			stripe.entryLock.lock();
 			try {
 				do {
 					if (shutdown)
 						return null;
 
-					Condition lockCond = lockMap.get(offset);
+					Condition lockCond = stripe.lockMap.get(offset);
 					if (lockCond != null)
 						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
 					else
 						break;
 				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				condition = stripe.entryLock.newCondition();
+				stripe.lockMap.put(offset, condition);
 			} finally {
-				entryLock.unlock();
+				stripe.entryLock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
@@ -76,13 +115,16 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripeFor(offset);
+		stripe.entryLock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
+			Condition cond = stripe.lockMap.remove(offset);
 			assert cond == condition;
-			cond.signal();
+			// Wake everyone waiting for this entry (and shutdown()), not just one of them,
+			// otherwise the rest sleep until the timeout.
+			cond.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.entryLock.unlock();
 		}
 	}
 
@@ -91,14 +133,16 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.entryLock.lock();
+			try {
+				while (!stripe.lockMap.isEmpty()) {
+					Condition cond = stripe.lockMap.values().iterator().next();
+					cond.awaitUninterruptibly();
+				}
+			} finally {
+				stripe.entryLock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,233 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Memory-mapped view of one of the salted hash store files (metadata or header+data).
+ *
+ * The file is mapped in fixed size segments. The segment size is a multiple of the slot
+ * length, so a slot never straddles two mappings, and a slot can be handed to the
+ * <code>Entry</code> decoding code as a single <code>ByteBuffer</code> without copying it
+ * to the heap first.
+ *
+ * There is no way to unmap a <code>MappedByteBuffer</code> explicitly, so when the file
+ * shrinks we simply drop our references to the segments past the end. Accessing a mapping
+ * beyond the end of a truncated file is fatal on most platforms, so every access to a slot
+ * view must happen between {@link #acquireSlot(long)} and {@link #release()}, and
+ * {@link #truncate(long)} takes the write lock.
+ *
+ * Note that on Windows a file cannot be truncated while any part of it is still mapped,
+ * so shrinking a memory-mapped store may not release the disk space until the old
+ * mappings have been garbage collected.
+ */
+class MappedStoreFile {
+
+	/** Target size of a single mapping. Big enough that a large store only needs a few
+	 * hundred mappings, small enough that we don't need huge contiguous chunks of address
+	 * space. */
+	static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final int slotLength;
+	private final int slotsPerSegment;
+	private final long segmentLength;
+	private final String name;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** The mappings. The last one may be shorter than segmentLength. Protected by lock. */
+	private MappedByteBuffer[] segments;
+	/** Number of bytes currently mapped. Protected by lock. */
+	private long mappedLength;
+	private boolean closed;
+
+	MappedStoreFile(FileChannel channel, int slotLength, String name) throws IOException {
+		this(channel, slotLength, DEFAULT_SEGMENT_SIZE, name);
+	}
+
+	MappedStoreFile(FileChannel channel, int slotLength, int segmentSize, String name) throws IOException {
+		if(slotLength <= 0 || slotLength > segmentSize) throw new IllegalArgumentException();
+		this.channel = channel;
+		this.slotLength = slotLength;
+		this.slotsPerSegment = segmentSize / slotLength;
+		this.segmentLength = ((long)slotsPerSegment) * slotLength;
+		this.name = name;
+		this.segments = new MappedByteBuffer[0];
+		lock.writeLock().lock();
+		try {
+			mapTo(channel.size());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Lock the mappings and get a view of a single slot. The caller <b>must</b> call
+	 * {@link #release()} once it has finished with the buffer, even if this method throws.
+	 * The returned buffer is positioned at 0 and has exactly one slot remaining.
+	 * @throws EOFException If the slot is beyond the end of the file.
+	 */
+	ByteBuffer acquireSlot(long slot) throws IOException {
+		lock.readLock().lock();
+		if(closed) throw new IOException("Store file "+name+" already closed");
+		long end = (slot + 1) * slotLength;
+		if(end > mappedLength) {
+			// The file may have grown since we last mapped it (preallocation), or may not.
+			lock.readLock().unlock();
+			lock.writeLock().lock();
+			try {
+				if(!closed && end > mappedLength)
+					mapTo(channel.size());
+			} finally {
+				// Downgrade.
+				lock.readLock().lock();
+				lock.writeLock().unlock();
+			}
+			if(closed) throw new IOException("Store file "+name+" already closed");
+			if(end > mappedLength) throw new EOFException();
+		}
+		ByteBuffer buf = segments[(int)(slot / slotsPerSegment)].duplicate();
+		int pos = (int)(slot % slotsPerSegment) * slotLength;
+		buf.limit(pos + slotLength);
+		buf.position(pos);
+		return buf.slice();
+	}
+
+	/** Release the lock taken by {@link #acquireSlot(long)}. */
+	void release() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Copy whole slots starting at the given slot into a buffer, the way
+	 * {@link FileChannel#read(ByteBuffer, long)} would.
+	 * @return The number of bytes read, or -1 if the first slot is beyond the end of the
+	 * file.
+	 */
+	int read(ByteBuffer dst, long slot) throws IOException {
+		int read = 0;
+		while(dst.remaining() >= slotLength) {
+			ByteBuffer buf;
+			try {
+				buf = acquireSlot(slot++);
+				dst.put(buf);
+			} catch (EOFException e) {
+				return read == 0 ? -1 : read;
+			} finally {
+				release();
+			}
+			read += slotLength;
+		}
+		return read;
+	}
+
+	/**
+	 * Copy whole slots from a buffer into the file starting at the given slot. Unlike
+	 * {@link FileChannel#write(ByteBuffer, long)} this will not extend the file.
+	 * @throws EOFException If a slot is beyond the end of the file.
+	 */
+	void write(ByteBuffer src, long slot) throws IOException {
+		while(src.hasRemaining()) {
+			try {
+				ByteBuffer buf = acquireSlot(slot++);
+				int oldLimit = src.limit();
+				if(src.remaining() > slotLength)
+					src.limit(src.position() + slotLength);
+				buf.put(src);
+				src.limit(oldLimit);
+			} finally {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Shrink the file, dropping any mappings past the new end first. Both happen under the
+	 * write lock, so a concurrent acquireSlot() can't map the old length again in between
+	 * and leave a mapping past the end of the file. Does nothing if the file is already no
+	 * longer than newLength; growing is left to the caller, and the new space is mapped
+	 * lazily.
+	 */
+	void truncate(long newLength) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if(!closed && newLength < mappedLength)
+				mapTo(newLength);
+			if(channel.size() > newLength)
+				channel.truncate(newLength);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Create or drop mappings so that exactly the whole slots within the first length bytes
+	 * of the file are mapped. Caller must hold the write lock. */
+	private void mapTo(long length) throws IOException {
+		length -= length % slotLength;
+		if(length == mappedLength) return;
+		int segmentCount = (int)((length + segmentLength - 1) / segmentLength);
+		MappedByteBuffer[] newSegments = Arrays.copyOf(segments, segmentCount);
+		for(int i=0;i<segmentCount;i++) {
+			long start = i * segmentLength;
+			long size = Math.min(segmentLength, length - start);
+			MappedByteBuffer old = newSegments[i];
+			if(old != null && old.capacity() == size) continue;
+			if(old != null) old.force();
+			newSegments[i] = channel.map(MapMode.READ_WRITE, start, size);
+		}
+		// Flush anything we are about to drop.
+		for(int i=segmentCount;i<segments.length;i++)
+			segments[i].force();
+		segments = newSegments;
+		mappedLength = length;
+		if(Logger.shouldLog(LogLevel.MINOR, this))
+			Logger.minor(this, "Mapped "+mappedLength+" bytes in "+segmentCount+" segments for "+name);
+	}
+
+	/** Write all dirty pages back to the file. Does nothing after close(), which has
+	 * already flushed everything. */
+	void force() {
+		lock.readLock().lock();
+		try {
+			if(closed) return;
+			for(MappedByteBuffer buf : segments)
+				buf.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Flush and drop all mappings. Further accesses will throw IOException. The channel
+	 * itself is not closed. */
+	void close() {
+		lock.writeLock().lock();
+		try {
+			if(closed) return;
+			for(MappedByteBuffer buf : segments)
+				buf.force();
+			closed = true;
+			segments = null;
+			mappedLength = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+}
@@ -1,36 +1,62 @@
 package freenet.store.saltedhash;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
 /** A large resizable block of int's, which is persisted to disk with a specific policy,
  * which is either to write it on shutdown, immediately, or every X millis.
  * 
- * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
- * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
- * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ * The on-disk format is simply the int's in little-endian order, one per slot, with no
+ * header, so the file length is always exactly four times the size. The same layout is used
+ * in memory, in one or more ByteBuffer's with IntBuffer views, so the buffer can be kept on
+ * the heap, off the heap (direct buffers), or memory mapped straight from the file (see 
+ * {@link Storage}). Off-heap storage avoids the garbage collector having to deal with a huge
+ * array; mapping also means we don't have to read the whole file on startup. There is no way 
+ * to unmap, so when a mapped buffer is resized the old mappings are simply dropped and will 
+ * go away when they are garbage collected.
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
 	
+	/** Where to keep the data. */
+	public enum Storage {
+		/** On the Java heap. */
+		HEAP,
+		/** In direct buffers, outside the Java heap. Counts towards -XX:MaxDirectMemorySize. */
+		DIRECT,
+		/** Memory mapped from the file. Writes go to the OS page cache immediately, so
+		 * persistence just means forcing them to disk. */
+		MAPPED
+	}
+	
+	/** Maximum number of int's in one segment, so we never need a buffer over 2GB. */
+	static final int SEGMENT_INTS = 1 << 27;
+	
 	private final File filename;
 	private final RandomAccessFile raf;
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
-	private int[] buffer;
+	private final Storage storage;
+	private final int segmentShift;
+	private final int segmentMask;
+	/** The buffers. When we resize we write-lock and replace these. */
+	private ByteBuffer[] segments;
+	/** IntBuffer views of segments. */
+	private IntBuffer[] intSegments;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -41,6 +67,8 @@ public class ResizablePersistentIntBuffer {
 	// FIXME is static the best way to do this? It seems simplest at least...
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
+	/** Storage used for new buffers if not specified. */
+	private static Storage globalStorage = Storage.HEAP;
 	private Ticker ticker;
 	/** Is the buffer dirty? Protected by (this). */
 	private boolean dirty;
@@ -59,6 +87,14 @@ public class ResizablePersistentIntBuffer {
 		return globalPersistenceTime;
 	}
 	
+	public static synchronized void setDefaultStorage(Storage val) {
+		globalStorage = val;
+	}
+	
+	public static synchronized Storage getDefaultStorage() {
+		return globalStorage;
+	}
+	
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
 	 * its size.
 	 * @param f The filename.
@@ -66,39 +102,111 @@ public class ResizablePersistentIntBuffer {
 	 * @throws IOException 
 	 */
 	public ResizablePersistentIntBuffer(File f, int size) throws IOException {
+		this(f, size, getDefaultStorage());
+	}
+	
+	/** Create the buffer. Open the file, creating if necessary, read in or map the data, and
+	 * set its size.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 * @param storage Where to keep the data in memory.
+	 * @throws IOException 
+	 */
+	public ResizablePersistentIntBuffer(File f, int size, Storage storage) throws IOException {
+		this(f, size, storage, SEGMENT_INTS);
+	}
+	
+	ResizablePersistentIntBuffer(File f, int size, Storage storage, int segmentInts) throws IOException {
+		if(Integer.bitCount(segmentInts) != 1) throw new IllegalArgumentException();
 		this.filename = f;
+		this.storage = storage;
+		this.segmentShift = Integer.numberOfTrailingZeros(segmentInts);
+		this.segmentMask = segmentInts - 1;
 		isNew = !f.exists();
 		this.raf = new RandomAccessFile(f, "rw");
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		channel = raf.getChannel();
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
 			raf.setLength(expectedLength);
-		readBuffer((int)Math.min(size, realLength/4));
-		if(realLength < expectedLength)
-			raf.setLength(expectedLength);
-		channel = raf.getChannel();
+		try {
+			if(storage == Storage.MAPPED) {
+				if(realLength < expectedLength)
+					raf.setLength(expectedLength);
+				allocate(size);
+			} else {
+				allocate(size);
+				readBuffer((int)Math.min(size, realLength/4));
+				if(realLength < expectedLength)
+					raf.setLength(expectedLength);
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	/** Create, or map, buffers for the given number of int's, copying in as much of the old 
+	 * buffers as fits (unless mapped, in which case the file is the data). Caller must hold 
+	 * the write lock, or be the constructor. */
+	private void allocate(int size) throws IOException {
+		int segmentInts = segmentMask + 1;
+		int count = (int)((((long)size) + segmentInts - 1) / segmentInts);
+		ByteBuffer[] newSegments = new ByteBuffer[count];
+		IntBuffer[] newIntSegments = new IntBuffer[count];
+		for(int i=0;i<count;i++) {
+			int ints = (int)Math.min(segmentInts, ((long)size) - ((long)i) * segmentInts);
+			ByteBuffer buf;
+			switch(storage) {
+			case MAPPED:
+				buf = channel.map(MapMode.READ_WRITE, ((long)i) * segmentInts * 4, ((long)ints) * 4);
+				break;
+			case DIRECT:
+				buf = ByteBuffer.allocateDirect(ints * 4);
+				break;
+			default:
+				buf = ByteBuffer.allocate(ints * 4);
+			}
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			if(storage != Storage.MAPPED && segments != null && i < segments.length) {
+				ByteBuffer old = segments[i].duplicate();
+				old.clear();
+				if(old.remaining() > buf.remaining()) old.limit(buf.remaining());
+				buf.put(old);
+				buf.clear();
+			}
+			newSegments[i] = buf;
+			newIntSegments[i] = buf.asIntBuffer();
+		}
+		segments = newSegments;
+		intSegments = newIntSegments;
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
 	 * is completely new. */
 	public void fill(int value) {
-		for(int i=0;i<buffer.length;i++)
-			buffer[i] = value;
+		for(IntBuffer buf : intSegments) {
+			int limit = buf.limit();
+			for(int i=0;i<limit;i++)
+				buf.put(i, value);
+		}
 	}
 
 	private void readBuffer(int size) throws IOException {
-		raf.seek(0);
-		byte[] buf = new byte[32768];
-		int read = 0;
-		while(read < size) {
-			int toRead = Math.min(buf.length, (size - read) * 4);
-			raf.readFully(buf, 0, toRead);
-			int[] data = Fields.bytesToInts(buf, 0, toRead);
-			System.arraycopy(data, 0, buffer, read, data.length);
-			read += data.length;
+		long bytes = ((long)size) * 4;
+		long pos = 0;
+		for(ByteBuffer seg : segments) {
+			if(pos >= bytes) break;
+			ByteBuffer buf = seg.duplicate();
+			buf.clear();
+			if(buf.remaining() > bytes - pos) buf.limit((int)(bytes - pos));
+			while(buf.hasRemaining()) {
+				int read = channel.read(buf, pos + buf.position());
+				if(read == -1) throw new EOFException();
+			}
+			pos += buf.limit();
 		}
 	}
 	
@@ -118,7 +226,7 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
-			return buffer[offset];
+			return intSegments[offset >>> segmentShift].get(offset & segmentMask);
 		} finally {
 			lock.readLock().unlock();
 		}
@@ -133,9 +241,23 @@ public class ResizablePersistentIntBuffer {
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
 			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
-			if(persistenceTime == -1 && !noWrite) {
-				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
+			intSegments[offset >>> segmentShift].put(offset & segmentMask, value);
+			if(storage == Storage.MAPPED) {
+				// Already in the page cache, the OS will write it soon enough. We only need
+				// to force() it to disk on shutdown or when the writer job runs.
+				if(persistenceTime != -1 || noWrite) {
+					synchronized(this) {
+						if(!dirty && persistenceTime > 0 && ticker != null && !scheduled) {
+							ticker.queueTimedJob(writer, persistenceTime);
+							scheduled = true;
+						}
+						dirty = true;
+					}
+				}
+			} else if(persistenceTime == -1 && !noWrite) {
+				ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				buf.putInt(0, value);
+				channel.write(buf, ((long)offset)*4);
 			} else if(persistenceTime > 0) {
 				synchronized(this) {
 					dirty = true;
@@ -248,14 +370,18 @@ public class ResizablePersistentIntBuffer {
 	}
 
 	private void writeBuffer() throws IOException {
-		// FIXME do we need to do partial writes?
-		raf.seek(0);
-		int written = 0;
-		while(written < size) {
-			int toWrite = Math.min(32768, size - written);
-			byte[] buf = Fields.intsToBytes(buffer, written, toWrite);
-			raf.write(buf);
-			written += toWrite;
+		if(storage == Storage.MAPPED) {
+			for(ByteBuffer buf : segments)
+				((MappedByteBuffer)buf).force();
+			return;
+		}
+		long pos = 0;
+		for(ByteBuffer seg : segments) {
+			ByteBuffer buf = seg.duplicate();
+			buf.clear();
+			while(buf.hasRemaining())
+				channel.write(buf, pos + buf.position());
+			pos += buf.limit();
 		}
 	}
 	
@@ -264,10 +390,18 @@ public class ResizablePersistentIntBuffer {
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			boolean shrinking = size < this.size;
 			this.size = size;
-			buffer = Arrays.copyOf(buffer, size);
 			try {
-				raf.setLength(size * 4);
+				if(storage == Storage.MAPPED) {
+					// Must not have anything mapped past the end of the file.
+					if(!shrinking) raf.setLength(((long)size) * 4);
+					allocate(size);
+					if(shrinking) raf.setLength(((long)size) * 4);
+				} else {
+					allocate(size);
+					raf.setLength(((long)size) * 4);
+				}
 				writeBuffer();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
@@ -320,12 +454,19 @@ public class ResizablePersistentIntBuffer {
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
-		for(int i=0;i<buffer.length;i++)
-			if(buffer[i] == key) buffer[i] = value;
+		for(IntBuffer buf : intSegments) {
+			int limit = buf.limit();
+			for(int i=0;i<limit;i++)
+				if(buf.get(i) == key) buf.put(i, value);
+		}
 	}
 	
 	public int size() {
 		return size;
 	}
 	
+	public Storage getStorage() {
+		return storage;
+	}
+	
 }
@@ -12,10 +12,15 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -55,6 +60,7 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TokenBucket;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -125,6 +131,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private int flags;
 
 	private boolean preallocate = true;
+	/** If true, access the metadata and header+data files through memory mappings
+	 * rather than positional FileChannel reads and writes. */
+	private final boolean memoryMapped;
 	public static boolean NO_CLEANER_SLEEP = false;
 
 	/** If we have no space in this store, try writing it to the alternate store,
@@ -144,12 +153,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param memoryMapped If true, read and write the store files through memory mappings
+	 * once the store has been started. This saves a syscall and a buffer allocation on every
+	 * probe, but needs a 64-bit JVM for any reasonably sized store. If the files cannot be
+	 * mapped we fall back to ordinary FileChannel I/O.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean memoryMapped) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, memoryMapped);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean memoryMapped) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -169,6 +192,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.memoryMapped = memoryMapped;
 
 		lockManager = new LockManager();
 
@@ -200,7 +224,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		int size = (int)Math.max(storeSize, prevStoreSize);
 		slotFilterDisabled = !enableSlotFilters;
 		if(!slotFilterDisabled) {
-			slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size);
+			slotFilter = openSlotFilter(slotFilterFile, size);
 			System.err.println("Slot filter (" + slotFilterFile + ") for " + name + " is loaded (new="+slotFilter.isNew()+").");
 			if(newStore && slotFilter.isNew())
 				slotFilter.fill(SLOT_CHECKED);
@@ -245,6 +269,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Slot filter still needs rebuilding");
 	}
 
+	private ResizablePersistentIntBuffer openSlotFilter(File slotFilterFile, int size) throws IOException {
+		if(memoryMapped) {
+			try {
+				return new ResizablePersistentIntBuffer(slotFilterFile, size, ResizablePersistentIntBuffer.Storage.MAPPED);
+			} catch (IOException e) {
+				// E.g. out of address space on a 32-bit JVM.
+				Logger.error(this, "Unable to map slot filter " + slotFilterFile + " : " + e + " - falling back to normal I/O", e);
+				System.err.println("Unable to map slot filter " + slotFilterFile + " : " + e);
+			}
+		}
+		return new ResizablePersistentIntBuffer(slotFilterFile, size);
+	}
+
 	private boolean started = false;
 
 	/** If start can be completed quickly, or longStart is true, then do it.
@@ -286,6 +323,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		storeFileOffsetReady = Math.min(curStoreFileSize / (headerBlockLength + dataBlockLength + hdPadding), curMetaFileSize / Entry.METADATA_LENGTH);
 
+		if(memoryMapped)
+			openMappings();
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -357,7 +397,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockMap);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -438,123 +478,317 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return false;
 			}
 			try {
-				/*
-				 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
-				 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
-				 * SHA-256 hash.
-				 */
-				Entry oldEntry = probeEntry(digestedKey, routingKey, false);
-				if (oldEntry != null && !oldEntry.isFree()) {
-					long oldOffset = oldEntry.curOffset;
-					try {
-						if (!collisionPossible) {
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return true;
-						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
-						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
-						if (block.equals(oldBlock)) {
-							if(logDEBUG) Logger.debug(this, "Block already stored");
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return false; // already in store
-						} else if (!overwrite) {
-							throw new KeyCollisionException();
-						}
-					} catch (KeyVerifyException e) {
-						// ignore
+				return putLocked(block, routingKey, fullKey, digestedKey, data, header, overwrite, isOldBlock, wrongStore, null);
+			} finally {
+				unlockDigestedKey(lockMap);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Store a block. The caller must hold the config read lock and the locks on all the
+	 * slots for the key.
+	 * @param batch If not null, queue the writes on this batch rather than writing them
+	 * immediately. The caller must keep the slots locked until the batch has been written.
+	 */
+	private boolean putLocked(T block, byte[] routingKey, byte[] fullKey, byte[] digestedKey, byte[] data, byte[] header,
+			boolean overwrite, boolean isOldBlock, boolean wrongStore, WriteBatch batch) throws IOException, KeyCollisionException {
+		/*
+		 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
+		 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
+		 * SHA-256 hash.
+		 */
+		Entry oldEntry = probeEntry(digestedKey, routingKey, false);
+		if (oldEntry != null && !oldEntry.isFree()) {
+			long oldOffset = oldEntry.curOffset;
+			try {
+				if (!collisionPossible) {
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, batch);
+					}
+					return true;
+				}
+				readHD(oldEntry, oldOffset); // read from disk
+				T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
+				if (block.equals(oldBlock)) {
+					if(logDEBUG) Logger.debug(this, "Block already stored");
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, batch);
 					}
+					return false; // already in store
+				} else if (!overwrite) {
+					throw new KeyCollisionException();
+				}
+			} catch (KeyVerifyException e) {
+				// ignore
+			}
 
-					// Overwrite old offset with same key
-					Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-					writeEntry(entry, digestedKey, oldOffset);
-					if (oldEntry.generation != generation)
-						keyCount.incrementAndGet();
+			// Overwrite old offset with same key
+			Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+			writeEntry(entry, digestedKey, oldOffset, batch);
+			if (oldEntry.generation != generation)
+				keyCount.incrementAndGet();
+			return true;
+		}
+
+		Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+		long[] offset = entry.getOffset();
+
+		int firstWrongStoreIndex = -1;
+		int wrongStoreCount = 0;
+
+		for (int i = 0; i < offset.length; i++) {
+			if(offset[i] < storeFileOffsetReady) {
+				long flag = getFlag(offset[i], false);
+				if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
+					// write to free block
+					if (logDEBUG)
+						Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
+					writeEntry(entry, digestedKey, offset[i], batch);
+					keyCount.incrementAndGet();
+					onWrite();
 					return true;
+				} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
+					if (wrongStoreCount == 0)
+						firstWrongStoreIndex = i;
+					wrongStoreCount++;
 				}
+			}
+		}
 
-				Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-				long[] offset = entry.getOffset();
+		if((!wrongStore) && altStore != null) {
+			if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
+				if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
+				return true;
+			} else {
+				if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+			}
+		}
 
-				int firstWrongStoreIndex = -1;
-				int wrongStoreCount = 0;
+		// There are no free slots for this Entry, so some slot will have to get overwritten.
+		int indexToOverwrite = -1;
 
-				for (int i = 0; i < offset.length; i++) {
-					if(offset[i] < storeFileOffsetReady) {
-						long flag = getFlag(offset[i], false);
-						if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
-							// write to free block
-							if (logDEBUG)
-								Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
-							writeEntry(entry, digestedKey, offset[i]);
-							keyCount.incrementAndGet();
-							onWrite();
-							return true;
-						} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
-							if (wrongStoreCount == 0)
-								firstWrongStoreIndex = i;
-							wrongStoreCount++;
-						}
-					}
+		if(wrongStore) {
+			// Distribute overwrites evenly between the right store and the wrong store.
+			int a = OPTION_MAX_PROBE;
+			int b = wrongStoreCount;
+			if(random.nextInt(a+b) < b)
+				// Allow the overwrite to happen in the wrong store.
+				indexToOverwrite = firstWrongStoreIndex;
+			else
+				// Force the overwrite to happen in the right store.
+				return false;
+		}
+		else {
+			// By default, overwrite offset[0] when not writing to wrong store.
+			indexToOverwrite = 0;
+		}
+
+		// Do the overwriting.
+		if (logDEBUG)
+			Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
+		oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
+		writeEntry(entry, digestedKey, offset[indexToOverwrite], batch);
+		if (oldEntry.generation != generation)
+			keyCount.incrementAndGet();
+		onWrite();
+		return true;
+	}
+
+	/**
+	 * Store a batch of blocks, for example when flushing a write cache. The blocks are placed
+	 * exactly as {@link #put(StorableBlock, byte[], byte[], boolean, boolean)} would, but they
+	 * are processed in slot order, and the resulting writes are sorted by offset and runs of
+	 * adjacent slots are written with a single gathering write. On a hard disk this turns a
+	 * series of random writes into something much closer to a sequential burst.
+	 *
+	 * Blocks which collide with an existing, different block are silently dropped.
+	 * @throws IOException If writing the batch failed.
+	 */
+	public void putAll(List<PendingBlock<T>> blocks) throws IOException {
+		if (blocks.isEmpty()) return;
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			// Sort by the first slot the block can go in, that is where most of them will end up.
+			final Map<PendingBlock<T>, byte[]> digestedKeys = new HashMap<PendingBlock<T>, byte[]>();
+			final Map<PendingBlock<T>, Long> firstSlots = new HashMap<PendingBlock<T>, Long>();
+			SortedSet<Long> offsets = new TreeSet<Long>();
+			for (PendingBlock<T> pending : blocks) {
+				byte[] digestedKey = cipherManager.getDigestedKey(pending.block.getRoutingKey());
+				digestedKeys.put(pending, digestedKey);
+				long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
+				firstSlots.put(pending, offsetArray[0]);
+				for (long offset : offsetArray)
+					offsets.add(offset);
+			}
+			List<PendingBlock<T>> sorted = new ArrayList<PendingBlock<T>>(blocks);
+			Collections.sort(sorted, new Comparator<PendingBlock<T>>() {
+
+				@Override
+				public int compare(PendingBlock<T> o1, PendingBlock<T> o2) {
+					return firstSlots.get(o1).compareTo(firstSlots.get(o2));
 				}
 
-				if((!wrongStore) && altStore != null) {
-					if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
-						if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
-						return true;
-					} else {
-						if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+			});
+
+			// Lock all the slots in ascending order, same as everyone else, so we can't deadlock.
+			Map<Long, Condition> locked = new TreeMap<Long, Condition>();
+			try {
+				for (long offset : offsets) {
+					Condition condition = lockManager.lockEntry(offset);
+					if (condition == null) {
+						if (logDEBUG)
+							Logger.debug(this, "cannot lock slots for batch, shutting down?");
+						return;
 					}
+					locked.put(offset, condition);
 				}
 
-				// There are no free slots for this Entry, so some slot will have to get overwritten.
-				int indexToOverwrite = -1;
-
-				if(wrongStore) {
-					// Distribute overwrites evenly between the right store and the wrong store.
-					int a = OPTION_MAX_PROBE;
-					int b = wrongStoreCount;
-					if(random.nextInt(a+b) < b)
-						// Allow the overwrite to happen in the wrong store.
-						indexToOverwrite = firstWrongStoreIndex;
-					else
-						// Force the overwrite to happen in the right store.
-						return false;
-				}
-				else {
-					// By default, overwrite offset[0] when not writing to wrong store.
-					indexToOverwrite = 0;
+				WriteBatch batch = new WriteBatch();
+				for (PendingBlock<T> pending : sorted) {
+					byte[] digestedKey = digestedKeys.get(pending);
+					// We read the slots while deciding where to put the block, so if one of them
+					// is waiting to be written, write it out first.
+					if (batch.containsAny(getOffsetFromDigestedKey(digestedKey, storeSize)) ||
+							(prevStoreSize != 0 && batch.containsAny(getOffsetFromDigestedKey(digestedKey, prevStoreSize))))
+						writeBatch(batch);
+					try {
+						putLocked(pending.block, pending.block.getRoutingKey(), pending.block.getFullKey(), digestedKey,
+								pending.data, pending.header, pending.overwrite, pending.isOldBlock, false, batch);
+					} catch (KeyCollisionException e) {
+						if (logMINOR)
+							Logger.minor(this, "Collision in batch put on " + this + " : " + e, e);
+					}
 				}
-
-				// Do the overwriting.
-				if (logDEBUG)
-					Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
-				oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
-				writeEntry(entry, digestedKey, offset[indexToOverwrite]);
-				if (oldEntry.generation != generation)
-					keyCount.incrementAndGet();
-				onWrite();
-				return true;
+				writeBatch(batch);
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				for (Map.Entry<Long, Condition> e : locked.entrySet())
+					lockManager.unlockEntry(e.getKey(), e.getValue());
 			}
 		} finally {
 			configLock.readLock().unlock();
 		}
 	}
 
+	/** A block waiting to be written by {@link SaltedHashFreenetStore#putAll(List)}. */
+	public static final class PendingBlock<T extends StorableBlock> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean overwrite;
+		final boolean isOldBlock;
+
+		public PendingBlock(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+		}
+	}
+
+	/**
+	 * Writes queued by a batch put, sorted by offset. Only used while the slots concerned are
+	 * locked, so there is no need for synchronization.
+	 */
+	private static class WriteBatch {
+		final TreeMap<Long, ByteBuffer> metaWrites = new TreeMap<Long, ByteBuffer>();
+		final TreeMap<Long, ByteBuffer> hdWrites = new TreeMap<Long, ByteBuffer>();
+
+		boolean containsAny(long[] offsets) {
+			for (long offset : offsets)
+				if (metaWrites.containsKey(offset))
+					return true;
+			return false;
+		}
+
+		boolean isEmpty() {
+			return metaWrites.isEmpty();
+		}
+
+		void clear() {
+			metaWrites.clear();
+			hdWrites.clear();
+		}
+	}
+
+	/** Write out the batch, coalescing adjacent slots, and clear it. */
+	private void writeBatch(WriteBatch batch) throws IOException {
+		if (batch.isEmpty()) return;
+		writeBatch(batch.metaWrites, metaFC, metaMap, Entry.METADATA_LENGTH);
+		writeBatch(batch.hdWrites, hdFC, hdMap, headerBlockLength + dataBlockLength + hdPadding);
+		batch.clear();
+	}
+
+	private void writeBatch(TreeMap<Long, ByteBuffer> writes, FileChannel fc, MappedStoreFile map, int slotLength) throws IOException {
+		if (map != null) {
+			// No syscalls to save.
+			for (Map.Entry<Long, ByteBuffer> e : writes.entrySet())
+				map.write(e.getValue(), e.getKey());
+			return;
+		}
+		List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+		long runStart = -1;
+		for (Map.Entry<Long, ByteBuffer> e : writes.entrySet()) {
+			long offset = e.getKey();
+			if (runStart != -1 && offset != runStart + run.size()) {
+				writeRun(fc, runStart, slotLength, run);
+				run.clear();
+			}
+			if (run.isEmpty())
+				runStart = offset;
+			run.add(e.getValue());
+		}
+		writeRun(fc, runStart, slotLength, run);
+	}
+
+	private void writeRun(FileChannel fc, long startOffset, int slotLength, List<ByteBuffer> run) throws IOException {
+		if (run.size() == 1) {
+			ByteBuffer bf = run.get(0);
+			long pos = slotLength * startOffset;
+			do {
+				int status = fc.write(bf, pos + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+			return;
+		}
+		ByteBuffer[] bufs = run.toArray(new ByteBuffer[run.size()]);
+		long length = 0;
+		for (ByteBuffer bf : bufs)
+			length += bf.remaining();
+		// Gathering writes use the channel position, which nothing else uses.
+		synchronized (fc) {
+			fc.position(slotLength * startOffset);
+			long written = 0;
+			while (written < length)
+				written += fc.write(bufs);
+		}
+		if (logDEBUG)
+			Logger.debug(this, "Wrote " + bufs.length + " slots from " + startOffset + " in one write");
+	}
+
 	private boolean onWrite() {
 		return (writes.incrementAndGet() % (storeSize*2) == 0);
 	}
@@ -569,6 +803,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// memory mapped views of the above, null unless memoryMapped and start() has mapped them
+	private volatile MappedStoreFile metaMap;
+	private volatile MappedStoreFile hdMap;
 
 	/**
 	 * Data entry
@@ -842,6 +1079,33 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return newStore;
 	}
 
+	/**
+	 * Map the store files into memory. Until this is called, and if it fails, we use the
+	 * FileChannel's directly.
+	 */
+	private void openMappings() {
+		MappedStoreFile meta = null;
+		try {
+			meta = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH, metaFile.getName());
+			hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding, hdFile.getName());
+			metaMap = meta;
+			System.out.println("Memory mapped datastore files for " + name);
+		} catch (IOException e) {
+			mappingFailed(meta, e);
+		} catch (OutOfMemoryError e) {
+			// "Map failed", typically out of address space on a 32-bit JVM
+			mappingFailed(meta, e);
+		}
+	}
+
+	private void mappingFailed(MappedStoreFile meta, Throwable t) {
+		Logger.error(this, "Unable to memory map datastore files for " + name + ", using normal I/O: " + t, t);
+		System.err.println("Unable to memory map datastore files for " + name + ", using normal I/O: " + t);
+		if(meta != null) meta.close();
+		hdMap = null;
+		metaMap = null;
+	}
+
 	/**
 	 * Read entry from disk. Before calling this function, you should acquire all required locks.
 	 *
@@ -865,18 +1129,32 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
+		Entry entry;
+		MappedStoreFile map = metaMap;
+		if (map != null) {
+			// Decode straight from the mapping.
+			try {
+				entry = new Entry(map.acquireSlot(offset), null);
+			} catch (EOFException e) {
 				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
+				throw e;
+			} finally {
+				map.release();
 			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		} else {
+			ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		Entry entry = new Entry(mbf, null);
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+
+			entry = new Entry(mbf, null);
+		}
 		entry.curOffset = offset;
 
 		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
@@ -911,8 +1189,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 
 			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
+				readHD(entry, offset);
 				boolean decrypted = cipherManager.decrypt(entry, routingKey);
 				if (!decrypted) {
 					if(logMINOR && validCache && likelyMatch)
@@ -928,6 +1205,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/**
+	 * Read header + data from disk into an entry
+	 *
+	 * @param entry
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void readHD(Entry entry, long offset) throws IOException {
+		MappedStoreFile map = hdMap;
+		if (map != null) {
+			try {
+				entry.setHD(map.acquireSlot(offset));
+			} finally {
+				map.release();
+			}
+			return;
+		}
+		entry.setHD(readHD(offset));
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -993,6 +1290,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * </ul>
 	 */
 	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset) throws IOException {
+		writeEntry(entry, digestedRoutingKey, offset, null);
+	}
+
+	/**
+	 * Write entry to disk, or queue it on a batch.
+	 *
+	 * @param batch If not null, add the encrypted entry to the batch instead of writing it.
+	 */
+	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset, WriteBatch batch) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		
 		if(!slotFilterDisabled)
@@ -1001,27 +1307,49 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
-
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		if (batch != null) {
+			batch.metaWrites.put(offset, bf);
+			bf = entry.toHDBuffer();
+			if (bf != null)
+				batch.hdWrites.put(offset, bf);
+			entry.curOffset = offset;
+			return;
+		}
+		MappedStoreFile map = metaMap;
+		if (map != null) {
+			map.write(bf, offset);
+		} else {
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 				if (status == -1)
 					throw new EOFException();
 			} while (bf.hasRemaining());
 		}
 
+		bf = entry.toHDBuffer();
+		if (bf != null) {
+			map = hdMap;
+			if (map != null) {
+				map.write(bf, offset);
+			} else {
+				long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+				do {
+					int status = hdFC.write(bf, pos + bf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (bf.hasRemaining());
+			}
+		}
+
 		entry.curOffset = offset;
 	}
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (metaMap != null)
+			metaMap.close();
+		if (hdMap != null)
+			hdMap.close();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1115,6 +1443,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
+			// Must drop any mappings past the new end, and truncate, while no fetch can
+			// map the old length again. We don't hold configLock here.
+			if (metaMap != null)
+				metaMap.truncate(newMetaLen);
+			if (hdMap != null)
+				hdMap.truncate(newHdLen);
+
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
@@ -1136,7 +1471,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |  CT   |  Checkpoint   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
@@ -1145,6 +1480,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *   CT = Type of cleaner checkpoint (CHECKPOINT_*)
+	 *  Checkpoint = Offset the cleaner has got to, see CHECKPOINT_*
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1212,7 +1549,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
-					if (((flags & FLAG_DIRTY) != 0) && 
+					boolean dirty = (flags & FLAG_DIRTY) != 0;
+					if (dirty && 
 							// FIXME figure out a way to do this consistently!
 							// Not critical as a few blocks wrong is something we can handle.
 							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
@@ -1220,8 +1558,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					try {
 						raf.readInt(); // bloomFilterK
-						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpointType = raf.readInt();
+						cleanerCheckpoint = raf.readLong();
+						// After a crash, the slot filter may not have been written for slots
+						// below a rebuild checkpoint, so start again from scratch.
+						if (dirty || !((cleanerCheckpointType == CHECKPOINT_RESIZE && prevStoreSize != 0) || 
+								(cleanerCheckpointType == CHECKPOINT_REBUILD && prevStoreSize == 0 && 
+										(flags & FLAG_REBUILD_BLOOM) != 0)) || cleanerCheckpoint < 0) {
+							cleanerCheckpointType = CHECKPOINT_NONE;
+							cleanerCheckpoint = 0;
+						}
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1275,8 +1621,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(0); // bloomFilterK
-			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeInt(cleanerCheckpointType);
+			raf.writeLong(cleanerCheckpoint);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
@@ -1295,6 +1641,40 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
+	/** No cleaner checkpoint. */
+	private static final int CHECKPOINT_NONE = 0;
+	/** Resizing, all slots at or above cleanerCheckpoint have been moved. */
+	private static final int CHECKPOINT_RESIZE = 1;
+	/** Rebuilding the slot filter, all slots below cleanerCheckpoint have been done. */
+	private static final int CHECKPOINT_REBUILD = 2;
+	/** Protected by configLock. */
+	private int cleanerCheckpointType = CHECKPOINT_NONE;
+	/** Protected by configLock. */
+	private long cleanerCheckpoint;
+	/** Maximum number of threads used by each resize or slot filter rebuild. */
+	private static int cleanerThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	/** I/O budget for a resize or rebuild running in the background, in bytes per second,
+	 * shared between its threads. 0 = unlimited. */
+	public static final long DEFAULT_CLEANER_BANDWIDTH_LIMIT = 16 * 1024 * 1024;
+	private static long cleanerBandwidthLimit = DEFAULT_CLEANER_BANDWIDTH_LIMIT;
+	
+	public static synchronized void setCleanerThreads(int val) {
+		if (val < 1) throw new IllegalArgumentException();
+		cleanerThreads = val;
+	}
+	
+	public static synchronized int getCleanerThreads() {
+		return cleanerThreads;
+	}
+	
+	public static synchronized void setCleanerBandwidthLimit(long val) {
+		if (val < 0) throw new IllegalArgumentException();
+		cleanerBandwidthLimit = val;
+	}
+	
+	public static synchronized long getCleanerBandwidthLimit() {
+		return cleanerBandwidthLimit;
+	}
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
@@ -1304,12 +1684,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final Entry NOT_MODIFIED = new Entry();
 
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize, resuming is true if we are carrying on from a checkpoint
+		void init(boolean resuming);
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after reading RESIZE_MEMORY_ENTRIES entries, may be called from several
+		// threads at once
 		// return false to abort
-		boolean batch(long entriesLeft);
+		boolean batch();
+
+		// call this, one thread at a time, whenever every entry except the last entriesLeft
+		// (in processing order) has been processed; entriesLeft never increases
+		void checkpoint(long entriesLeft);
 
 		// call this on abort (e.g. node shutdown)
 		void abort();
@@ -1318,6 +1703,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		// return <code>null</code> to free the entry
 		// return NOT_MODIFIED to keep the old entry
+		// may be called from several threads at once
 		SaltedHashFreenetStore<T>.Entry process(SaltedHashFreenetStore<T>.Entry entry);
 
 		/** Does this batch processor want to see free entries? */
@@ -1403,6 +1789,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+		/** Number of RESIZE_MEMORY_ENTRIES batches handed to a cleaner thread at a time. */
+		private static final int BATCHES_PER_RANGE = 16;
 
 		/**
 		 * Move old entries to new location and resize store
@@ -1412,19 +1800,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-				Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				/** Entries removed from their old slots and waiting to be put back. Shared
+				 * between the cleaner threads, protected by itself. */
+				final Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				final int maxOldEntries = RESIZE_MEMORY_ENTRIES * getCleanerThreads();
+				/** I/O done by process() under the slot locks, charged in batch() once
+				 * they have been released. */
+				final AtomicLong uncharged = new AtomicLong();
 
 				@Override
-				public void init() {
+				public void init(boolean resuming) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize, false);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resuming) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1456,35 +1852,61 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						                + ", Offset=" + entry.curOffset);
 					}
 					try {
-						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
+						readHD(entry, entry.curOffset);
+						uncharged.addAndGet(headerBlockLength + dataBlockLength + hdPadding);
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > maxOldEntries)
+								oldEntryList.poll();
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
 					return null;
 				}
 
-				int i = 0;
 				@Override
-				public boolean batch(long entriesLeft) {
+				public boolean batch() {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
+					long read = uncharged.getAndSet(0);
+					if (read > 0)
+						chargeIO(read);
+
+					// try to resolve the list
+					// don't hold the list lock while locking slots, other threads may need it
+					List<Entry> toResolve;
+					synchronized (oldEntryList) {
+						toResolve = new ArrayList<Entry>(oldEntryList);
+						oldEntryList.clear();
+					}
+					List<Entry> unresolved = new ArrayList<Entry>();
+					for (Entry entry : toResolve) {
+						if (resolveOldEntry(entry))
+							chargeIO(headerBlockLength + dataBlockLength + hdPadding);
+						else
+							unresolved.add(entry);
+					}
+					if (!unresolved.isEmpty()) {
+						synchronized (oldEntryList) {
+							oldEntryList.addAll(unresolved);
+							while (oldEntryList.size() > maxOldEntries)
+								oldEntryList.poll();
+						}
+					}
 
+					return _prevStoreSize == prevStoreSize;
+				}
+
+				int i = 0;
+				@Override
+				public void checkpoint(long entriesLeft) {
 					// shrink data file to current size
 					if (storeSize < _prevStoreSize)
 						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
 
-					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
-
-					return _prevStoreSize == prevStoreSize;
+					if (i++ % 16 == 0)
+						writeCheckpoint(CHECKPOINT_RESIZE, entriesLeft);
 				}
 
 				@Override
@@ -1507,6 +1929,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						}
 
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpointType = CHECKPOINT_NONE;
+						cleanerCheckpoint = 0;
 						resizeCompleteCondition.signalAll();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1520,7 +1944,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, CHECKPOINT_RESIZE);
 		}
 		
 		/**
@@ -1532,12 +1956,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resuming) {
+					if (!resuming) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1564,19 +1990,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
-				int i = 0;
 				@Override
-				public boolean batch(long entriesLeft) {
+				public boolean batch() {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
-
-					if (i++ % 16 == 0)
-						writeConfigFile();
-					if (i++ % 1024 == 0) {
+					return prevStoreSize == 0;
+				}
+				
+				int i = 0;
+				@Override
+				public void checkpoint(long entriesLeft) {
+					if (i++ % 16 == 0) {
+						// The checkpoint is only valid once the slot filter is on disk.
 						if(!slotFilterDisabled)
 							slotFilter.forceWrite();
+						writeCheckpoint(CHECKPOINT_REBUILD, storeSize - entriesLeft);
 					}
-					
-					return prevStoreSize == 0;
 				}
 				
 				@Override
@@ -1590,6 +2018,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpointType = CHECKPOINT_NONE;
+						cleanerCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1603,59 +2033,203 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, CHECKPOINT_REBUILD);
 		}
 
+		/** Record how far the cleaner has got, so a restart can carry on from there. */
+		private void writeCheckpoint(int type, long offset) {
+			configLock.writeLock().lock();
+			try {
+				cleanerCheckpointType = type;
+				cleanerCheckpoint = offset;
+				writeConfigFile();
+			} finally {
+				configLock.writeLock().unlock();
+			}
+		}
 
+		/** I/O budget for the current run, null if unlimited. */
+		private volatile TokenBucket ioBudget;
+
+		/** Account for I/O done by the cleaner, blocking if we are over budget. */
+		private void chargeIO(long bytes) {
+			TokenBucket budget = ioBudget;
+			if (budget != null)
+				budget.blockingGrab(bytes);
+		}
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
-
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
-			}
-
-			int i = 0;
-			processor.init();
+		/**
+		 * Process every entry below storeSize. The entries are split into ranges of
+		 * BATCHES_PER_RANGE * RESIZE_MEMORY_ENTRIES slots, which are handed out in order 
+		 * (ascending, or descending if reverse) to up to {@link #getCleanerThreads()} threads.
+		 * Each range is processed a batch of RESIZE_MEMORY_ENTRIES at a time, as before. Progress
+		 * is reported to the processor's checkpoint() once every range before a given point has 
+		 * been completed, and the processor writes it to the config file, so if we are restarted
+		 * we can resume from there.
+		 * @param sleep If true, we are running in the background, so stay within the I/O budget.
+		 * @param checkpointType The type of checkpoint we can resume from.
+		 */
+		private void batchProcessEntries(final BatchProcessor<T> processor, final long storeSize, final boolean reverse, boolean sleep, int checkpointType) {
+			final long totalBatches = (storeSize + RESIZE_MEMORY_ENTRIES - 1) / RESIZE_MEMORY_ENTRIES;
+			// Process batches [loBatch, hiBatch).
+			long loBatch = 0;
+			long hiBatch = totalBatches;
+			boolean resuming = false;
+			configLock.readLock().lock();
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
+				if (cleanerCheckpointType == checkpointType) {
+					long batch = cleanerCheckpoint / RESIZE_MEMORY_ENTRIES;
+					if (batch >= 0 && batch <= totalBatches) {
+						if (reverse)
+							hiBatch = batch;
+						else
+							loBatch = batch;
+						resuming = true;
 					}
-
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
-
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
-						return;
+				}
+			} finally {
+				configLock.readLock().unlock();
+			}
+			if (resuming)
+				System.err.println(name + " cleaner resuming from checkpoint at " + 
+						(reverse ? hiBatch : loBatch) * RESIZE_MEMORY_ENTRIES);
+
+			entriesTotal = storeSize;
+			entriesLeft = Math.min(storeSize, (hiBatch - loBatch) * RESIZE_MEMORY_ENTRIES);
+
+			final RangeTracker tracker = new RangeTracker(processor, storeSize, loBatch, hiBatch, reverse);
+			long budget = getCleanerBandwidthLimit();
+			ioBudget = (sleep && budget > 0) ? 
+					new TokenBucket(budget, Math.max(1, SECONDS.toNanos(1) / budget), 0) : null;
+
+			processor.init(resuming);
+			int threadCount = (int)Math.max(1, Math.min(getCleanerThreads(), tracker.ranges));
+			Thread[] helpers = new Thread[threadCount - 1];
+			for (int i = 0; i < helpers.length; i++) {
+				helpers[i] = new NativeThread(new Runnable() {
+					@Override
+					public void run() {
+						tracker.work();
 					}
-
+				}, "Store-" + name + "-Cleaner-" + (i + 1), NativeThread.LOW_PRIORITY, false);
+				helpers[i].setDaemon(true);
+				helpers[i].start();
+			}
+			tracker.work();
+			for (Thread helper : helpers) {
+				while (true) {
 					try {
-						if (sleep)
-							Thread.sleep(100);
+						helper.join();
+						break;
 					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+						tracker.fail();
 					}
 				}
-				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
+			}
+			ioBudget = null;
+			if (tracker.failed())
 				processor.abort();
+			else
+				processor.finish();
+		}
+
+		/** Hands out ranges to the cleaner threads and keeps track of which have been done. */
+		private class RangeTracker {
+			final BatchProcessor<T> processor;
+			final long storeSize;
+			final long loBatch;
+			final long hiBatch;
+			final boolean reverse;
+			final long ranges;
+			/** Next range to hand out. Protected by this. */
+			private long nextRange;
+			/** Ranges completed, in processing order. Protected by this. */
+			private final BitSet completed = new BitSet();
+			/** Number of ranges from the start all of which are complete. Protected by this. */
+			private long contiguous;
+			private volatile boolean failed;
+			private int progressCounter;
+
+			RangeTracker(BatchProcessor<T> processor, long storeSize, long loBatch, long hiBatch, boolean reverse) {
+				this.processor = processor;
+				this.storeSize = storeSize;
+				this.loBatch = loBatch;
+				this.hiBatch = hiBatch;
+				this.reverse = reverse;
+				this.ranges = (hiBatch - loBatch + BATCHES_PER_RANGE - 1) / BATCHES_PER_RANGE;
+			}
+
+			private synchronized long claim() {
+				if (failed || nextRange >= ranges) return -1;
+				return nextRange++;
+			}
+
+			void fail() {
+				failed = true;
+			}
+
+			boolean failed() {
+				return failed;
+			}
+
+			/** Process ranges until there are none left, or we fail. */
+			void work() {
+				try {
+					long range;
+					while ((range = claim()) != -1) {
+						if (!processRange(range)) {
+							failed = true;
+							return;
+						}
+						completed(range);
+					}
+				} catch (Exception e) {
+					Logger.error(this, "Caught: "+e+" while cleaning", e);
+					failed = true;
+				}
+			}
+
+			private boolean processRange(long range) {
+				long first, last, step;
+				if (!reverse) {
+					first = loBatch + range * BATCHES_PER_RANGE;
+					last = Math.min(first + BATCHES_PER_RANGE, hiBatch) - 1;
+					step = 1;
+				} else {
+					first = hiBatch - range * BATCHES_PER_RANGE - 1;
+					last = Math.max(first - BATCHES_PER_RANGE + 1, loBatch);
+					step = -1;
+				}
+				for (long batch = first; reverse ? batch >= last : batch <= last; batch += step) {
+					if (shutdown || failed)
+						return false;
+					chargeIO(RESIZE_MEMORY_ENTRIES * Entry.METADATA_LENGTH);
+					batchProcessEntries(batch * RESIZE_MEMORY_ENTRIES, RESIZE_MEMORY_ENTRIES, processor);
+					if (!processor.batch())
+						return false;
+				}
+				return true;
+			}
+
+			private synchronized void completed(long range) {
+				completed.set((int) range);
+				long oldContiguous = contiguous;
+				while (contiguous < ranges && completed.get((int) contiguous))
+					contiguous++;
+				if (contiguous == oldContiguous) return;
+				long left;
+				if (!reverse)
+					left = Math.max(storeSize - Math.min(hiBatch, loBatch + contiguous * BATCHES_PER_RANGE) * RESIZE_MEMORY_ENTRIES, 0);
+				else
+					left = Math.max(hiBatch - contiguous * BATCHES_PER_RANGE, loBatch) * RESIZE_MEMORY_ENTRIES;
+				entriesLeft = Math.min(left, storeSize);
+				if (progressCounter++ % 4 == 0)
+					System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
+					        + entriesTotal);
+				processor.checkpoint(entriesLeft);
 			}
 		}
 
@@ -1689,11 +2263,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
+				MappedStoreFile map = metaMap;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+					if (map != null)
+						map.read(buf, offset);
+					else {
+						while (buf.hasRemaining()) {
+							int status = metaFC.read(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
 					}
 				} catch (IOException ioe) {
 					if (shutdown)
@@ -1759,8 +2338,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+							if (map != null)
+								map.write(buf, offset);
+							else {
+								while (buf.hasRemaining()) {
+									metaFC.write(buf, startFileOffset + buf.position());
+								}
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1819,7 +2402,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockMap);
 			}
 		}
 	}
@@ -1943,6 +2526,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			// Any rebuild checkpoint is meaningless now.
+			cleanerCheckpointType = CHECKPOINT_NONE;
+			cleanerCheckpoint = 0;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -2013,22 +2599,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	/**
+	 * Unlock the offsets locked by lockDigestedKey().
+	 *
+	 * @param lockMap
+	 *            The map returned by lockDigestedKey(). It holds exactly the offsets locked,
+	 *            so we don't need to recompute them.
+	 */
+	private void unlockDigestedKey(Map<Long, Condition> lockMap) {
+		for (Map.Entry<Long, Condition> e : lockMap.entrySet())
+			lockManager.unlockEntry(e.getKey(), e.getValue());
+		lockMap.clear();
 	}
 
 	public class ShutdownDB implements Runnable {
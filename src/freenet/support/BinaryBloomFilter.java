@@ -78,7 +78,8 @@ public class BinaryBloomFilter extends BloomFilter {
 			tempFile.deleteOnExit();
 			forkedFilter = new BinaryBloomFilter(tempFile, length, k);
 		} catch (IOException e) {
-			forkedFilter = new BinaryBloomFilter(length, k);
+			// Keep it off the heap anyway.
+			forkedFilter = createFilter(length, k, false, true);
 		} finally {
 			lock.writeLock().unlock();
 		}
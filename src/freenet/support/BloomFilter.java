@@ -13,6 +13,13 @@ import freenet.support.math.MersenneTwister;
 
 import com.db4o.ObjectContainer;
 
+/**
+ * Bloom filter. The bits (or 2-bit counters, for a counting filter) are kept in a ByteBuffer,
+ * which may be on the heap, a direct buffer outside the heap, or memory mapped from a file.
+ * The file format is exactly the contents of the buffer with no header: length / 8 bytes for
+ * a binary filter, length / 4 bytes for a counting filter. Bit i is bit (i % 8) of byte i / 8;
+ * counter i is bits 2 * (i % 4) and up of byte i / 4.
+ */
 public abstract class BloomFilter {
 	protected ByteBuffer filter;
 
@@ -35,6 +42,20 @@ public abstract class BloomFilter {
 			return new BinaryBloomFilter(length, k);
 	}
 	
+	/**
+	 * Create an in-memory filter.
+	 * @param offHeap If true, use a direct buffer outside the Java heap. This avoids the
+	 * garbage collector having to deal with large filters.
+	 */
+	public static BloomFilter createFilter(int length, int k, boolean counting, boolean offHeap) {
+		if (!offHeap || length == 0)
+			return createFilter(length, k, counting);
+		if (counting)
+			return new CountingBloomFilter(ByteBuffer.allocateDirect(length / 4), length, k);
+		else
+			return new BinaryBloomFilter(ByteBuffer.allocateDirect(length / 8), length, k);
+	}
+	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer, on a ring buffer.
+ * Each slot has a sequence number saying whether it is free for the producer at a given
+ * position or full for the consumer, so producers only contend on a compare-and-set of the
+ * tail, and never wait for each other or for the consumer. When the buffer is full,
+ * offer() fails immediately rather than blocking.
+ *
+ * poll() must only ever be called by one thread at a time.
+ * @param <E> The element type.
+ */
+public final class BoundedMPSCQueue<E> {
+
+	private final Object[] items;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only written by the consumer. Volatile for size(). */
+	private volatile long head;
+
+	/** @param capacity The most elements the queue will hold, rounded up to a power of two. */
+	public BoundedMPSCQueue(int capacity) {
+		if(capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Bad capacity " + capacity);
+		int size = Integer.highestOneBit(capacity * 2 - 1);
+		items = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequences.set(i, i);
+		mask = size - 1;
+	}
+
+	/** @return False if the queue is full. */
+	public boolean offer(E e) {
+		if(e == null) throw new NullPointerException();
+		while(true) {
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					items[index] = e;
+					// Publishes the item to the consumer.
+					sequences.lazySet(index, pos + 1);
+					return true;
+				}
+			} else if(diff < 0) {
+				// The consumer hasn't taken the item from a lap ago.
+				return false;
+			}
+			// Else another producer got this position first.
+		}
+	}
+
+	/** Consumer only.
+	 * @return The oldest element, or null if there is none, or the producer that claimed it
+	 * hasn't finished writing it yet. */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long pos = head;
+		int index = (int) (pos & mask);
+		if(sequences.get(index) != pos + 1) return null;
+		E e = (E) items[index];
+		items[index] = null;
+		// Free for the producer on the next lap.
+		sequences.lazySet(index, pos + items.length);
+		head = pos + 1;
+		return e;
+	}
+
+	/** @return Roughly the number of elements queued. */
+	public int size() {
+		long size = tail.get() - head;
+		return (int) Math.max(0, Math.min(size, items.length));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+}
@@ -0,0 +1,49 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Arrays;
+
+import freenet.crypt.RandomSource;
+
+/**
+ * A ConcurrentLRUMap keyed by the contents of byte arrays, e.g. routing keys and pubkey
+ * hashes, so callers don't need to wrap them in a ByteArrayWrapper. The hash is seeded per
+ * map, so an attacker who can choose the keys cannot predict which of them will collide.
+ * Keys must not be modified once they have been pushed.
+ * @param <V> The value type.
+ */
+public class ByteArrayLRUMap<V> extends ConcurrentLRUMap<byte[], V> {
+
+	private final long seed;
+
+	/** @param random Used to choose the hash seed. */
+	public ByteArrayLRUMap(int maxSize, RandomSource random) {
+		this(maxSize, 0, random);
+	}
+
+	public ByteArrayLRUMap(int maxSize, int segments, RandomSource random) {
+		super(maxSize, segments);
+		seed = random.nextLong();
+	}
+
+	@Override
+	protected int hash(byte[] key) {
+		long h = seed ^ key.length;
+		int i = 0;
+		for(; i + 8 <= key.length; i += 8)
+			h = LRUSegment.mix64(h ^ Fields.bytesToLong(key, i));
+		long last = 0;
+		for(; i < key.length; i++)
+			last = (last << 8) | (key[i] & 0xFF);
+		h = LRUSegment.mix64(h ^ last);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	protected boolean keyEquals(byte[] key, byte[] other) {
+		return Arrays.equals(key, other);
+	}
+
+}
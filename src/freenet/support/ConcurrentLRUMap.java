@@ -0,0 +1,302 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent LRU map from K to V, with the same push/pop semantics as LRUMap, but split
+ * into segments with their own locks, and without an object per entry. Optionally bounded:
+ * when a segment is full, pushing a new key drops the least recently used entry in that
+ * segment, so the map never holds more than maxSize entries, and what it drops is close to,
+ * but not always exactly, the least recently used entry overall. popKey() and friends are
+ * exact.
+ *
+ * Slots are chosen from K.hashCode(), so like a HashMap this is not safe for keys whose hash
+ * codes can be chosen by an attacker. Use LRUMap.createSafeMap() for those, or
+ * ByteArrayLRUMap if the key is really a byte array.
+ *
+ * Does not support null keys.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ConcurrentLRUMap<K, V> {
+
+	private final Segment<V>[] segments;
+	private final int segmentShift;
+	/** Stamps for push(). Taken with the segment locked, so each segment's list is in order. */
+	private final AtomicLong clock = new AtomicLong();
+	/** Stamps for pushLeast(), which count down below anything push() gives out. */
+	private final AtomicLong leastClock = new AtomicLong();
+
+	private static class Segment<V> extends LRUSegment<V> {
+
+		private Object[] keys;
+
+		Segment(int maxEntries) {
+			super(maxEntries);
+		}
+
+		@Override
+		void resizeKeys(int capacity, boolean keep) {
+			Object[] newKeys = new Object[capacity];
+			if(keep) System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			keys = newKeys;
+		}
+
+		@Override
+		void clearKey(int index) {
+			keys[index] = null;
+		}
+
+		Object keyAt(int index) {
+			return keys[index];
+		}
+
+		void setKey(int index, Object key) {
+			keys[index] = key;
+		}
+
+	}
+
+	/** An unbounded map. The caller must implement any size limit needed, as with LRUMap. */
+	public ConcurrentLRUMap() {
+		this(Integer.MAX_VALUE, 0);
+	}
+
+	/** A map that never holds more than maxSize entries. */
+	public ConcurrentLRUMap(int maxSize) {
+		this(maxSize, 0);
+	}
+
+	/**
+	 * @param maxSize The most entries the map will hold.
+	 * @param segments How many separately locked segments to use, rounded down to a power of
+	 * two. 0 means choose from the number of CPUs.
+	 */
+	public ConcurrentLRUMap(int maxSize, int segments) {
+		if(maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+		int count = LRUSegment.segmentsFor(maxSize, segments);
+		int capacity = LRUSegment.segmentCapacity(maxSize, count);
+		// Can't create a generic array.
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Segment<V>[] array = new Segment[count];
+		this.segments = array;
+		for(int i = 0; i < count; i++)
+			this.segments[i] = new Segment<V>(capacity);
+		segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+	}
+
+	/** The hash code used to place a key. Subclasses overriding keyEquals() must override
+	 * this to match. */
+	protected int hash(K key) {
+		return LRUSegment.mix(key.hashCode());
+	}
+
+	protected boolean keyEquals(K key, K other) {
+		return key.equals(other);
+	}
+
+	/** @return The slot holding the key, or NONE. */
+	@SuppressWarnings("unchecked")
+	private int find(Segment<V> segment, K key, int hash) {
+		for(int slot = segment.firstSlot(hash);; slot = segment.nextSlot(slot)) {
+			int index = segment.entryAt(slot);
+			if(index == LRUSegment.NONE) return LRUSegment.NONE;
+			if(segment.hashAt(index) == hash && keyEquals(key, (K) segment.keyAt(index))) return slot;
+		}
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		// Shifting an int by 32 doesn't give 0.
+		return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Add a mapping at the most recently used end. If the key is already present, replace
+	 * its value and move it there, rather than adding a duplicate.
+	 * @return The previous value, or null.
+	 */
+	public final V push(K key, V value) {
+		return push(key, value, true);
+	}
+
+	/** Add a mapping at the least recently used end, i.e. it will be popped first. */
+	public final V pushLeast(K key, V value) {
+		return push(key, value, false);
+	}
+
+	private V push(K key, V value, boolean mostRecent) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		Object evictedKey = null;
+		V evictedValue = null;
+		V old = null;
+		synchronized(segment) {
+			long stamp = mostRecent ? clock.incrementAndGet() : leastClock.decrementAndGet();
+			int slot = find(segment, key, hash);
+			if(slot != LRUSegment.NONE) {
+				old = segment.update(segment.entryAt(slot), value, stamp, mostRecent);
+			} else {
+				if(segment.size == segment.maxEntries) {
+					int tail = segment.tail();
+					evictedKey = segment.keyAt(tail);
+					evictedValue = segment.valueAt(tail);
+					segment.removeIndex(tail);
+				}
+				segment.setKey(segment.add(hash, value, stamp, mostRecent), key);
+			}
+		}
+		if(evictedKey != null) onEvict(evictedKey, evictedValue);
+		return old;
+	}
+
+	/**
+	 * Called, without any lock held, when pushing a new key into a full segment drops an entry.
+	 * Not called for entries removed by pop or removeKey.
+	 */
+	protected void onEvict(Object key, V value) {
+		// Do nothing.
+	}
+
+	/** Note that this does not promote the key, as with LRUMap. Use push() for that. */
+	public final V get(K key) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			return slot == LRUSegment.NONE ? null : segment.valueAt(segment.entryAt(slot));
+		}
+	}
+
+	/**
+	 * Get the value and promote the key to the most recently used end, in one lookup.
+	 * @return The value, or null if the key is not present.
+	 */
+	public final V touch(K key) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return null;
+			int index = segment.entryAt(slot);
+			V value = segment.valueAt(index);
+			segment.update(index, value, clock.incrementAndGet(), true);
+			return value;
+		}
+	}
+
+	public final boolean containsKey(K key) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			return find(segment, key, hash) != LRUSegment.NONE;
+		}
+	}
+
+	/** @return The value that was removed, or null if the key was not present. */
+	public final V remove(K key) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return null;
+			V value = segment.valueAt(segment.entryAt(slot));
+			segment.removeSlot(slot);
+			return value;
+		}
+	}
+
+	public final boolean removeKey(K key) {
+		if(key == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return false;
+			segment.removeSlot(slot);
+			return true;
+		}
+	}
+
+	/** @return Least recently pushed key, which is removed, or null if empty. */
+	@SuppressWarnings("unchecked")
+	public final K popKey() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() != stamp[0]) continue;
+				int tail = segment.tail();
+				K key = (K) segment.keyAt(tail);
+				segment.removeIndex(tail);
+				return key;
+			}
+		}
+	}
+
+	/** @return Least recently pushed value, which is removed, or null if empty. */
+	public final V popValue() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() != stamp[0]) continue;
+				int tail = segment.tail();
+				V value = segment.valueAt(tail);
+				segment.removeIndex(tail);
+				return value;
+			}
+		}
+	}
+
+	/** @return Least recently pushed key, or null if empty. */
+	@SuppressWarnings("unchecked")
+	public final K peekKey() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() == stamp[0]) return (K) segment.keyAt(segment.tail());
+			}
+		}
+	}
+
+	/** @return Least recently pushed value, or null if empty. */
+	public final V peekValue() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() == stamp[0]) return segment.valueAt(segment.tail());
+			}
+		}
+	}
+
+	public final int size() {
+		return LRUSegment.size(segments);
+	}
+
+	public final boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public final void clear() {
+		for(Segment<V> segment : segments) {
+			synchronized(segment) {
+				segment.clear();
+			}
+		}
+	}
+
+}
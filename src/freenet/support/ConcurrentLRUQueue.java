@@ -0,0 +1,72 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * The LRUQueue API over a ConcurrentLRUMap: push()ing an object that is already in the queue
+ * moves it to the most recently used end rather than adding a duplicate, and pop() returns
+ * the least recently pushed. Unlike LRUQueue, threads pushing different objects rarely
+ * contend. The same caveats about hash codes apply as for ConcurrentLRUMap.
+ * @param <T> The element type.
+ */
+public class ConcurrentLRUQueue<T> {
+
+	private final ConcurrentLRUMap<T, T> map;
+
+	/** An unbounded queue. */
+	public ConcurrentLRUQueue() {
+		map = new ConcurrentLRUMap<T, T>();
+	}
+
+	/** A queue that never holds more than maxSize objects. Pushing into a full segment
+	 * drops (approximately) the least recently used. */
+	public ConcurrentLRUQueue(int maxSize) {
+		map = new ConcurrentLRUMap<T, T>(maxSize);
+	}
+
+	public final void push(T obj) {
+		map.push(obj, obj);
+	}
+
+	/** Push to the least recently used end. */
+	public final void pushLeast(T obj) {
+		map.pushLeast(obj, obj);
+	}
+
+	/** @return Least recently pushed object, or null if empty. */
+	public final T pop() {
+		return map.popKey();
+	}
+
+	/** @return Least recently pushed object, or null if empty. */
+	public final T peek() {
+		return map.peekKey();
+	}
+
+	public final boolean remove(T obj) {
+		return map.removeKey(obj);
+	}
+
+	public final boolean contains(T obj) {
+		return map.containsKey(obj);
+	}
+
+	/** @return The object in the queue that is equal to obj, or null. */
+	public final T get(T obj) {
+		return map.get(obj);
+	}
+
+	public final int size() {
+		return map.size();
+	}
+
+	public final boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public final void clear() {
+		map.clear();
+	}
+
+}
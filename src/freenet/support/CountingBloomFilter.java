@@ -51,6 +51,20 @@ public class CountingBloomFilter extends BloomFilter {
 		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, fileLength).load();
 	}
 
+	/**
+	 * Constructor
+	 * 
+	 * @param buffer
+	 *            buffer to use, may be direct, must be length / 4 bytes
+	 * @param length
+	 *            length in bits
+	 */
+	public CountingBloomFilter(ByteBuffer buffer, int length, int k) {
+		super(length, k);
+		assert(buffer.capacity() == this.length / 4);
+		filter = buffer;
+	}
+
 	public CountingBloomFilter(int length, int k, byte[] buffer) {
 		super(length, k);
 		assert(buffer.length == length / 4);
@@ -104,7 +118,8 @@ public class CountingBloomFilter extends BloomFilter {
 			tempFile.deleteOnExit();
 			forkedFilter = new CountingBloomFilter(tempFile, length, k);
 		} catch (IOException e) {
-			forkedFilter = new CountingBloomFilter(length, k);
+			// Keep it off the heap anyway.
+			forkedFilter = createFilter(length, k, true, true);
 		} finally {
 			lock.writeLock().unlock();
 		}
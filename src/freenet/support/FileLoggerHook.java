@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -25,7 +26,8 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -50,6 +52,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 	private volatile boolean closed = false;
 	private boolean closedFinished = false;
+	private final Object closeSync = new Object();
 
 	protected int INTERVAL = Calendar.MINUTE;
 	protected int INTERVAL_MULTIPLIER = 5;
@@ -89,6 +92,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private DateFormat df;
 	private int[] fmt;
 	private String[] str;
+	/** Whether the format needs things we must capture on the logging thread. */
+	private boolean fmtHasThread;
+	private boolean fmtHasHashCode;
 
 	/** Stream to write data to (compressed if rotate is on) */
 	protected OutputStream logStream;
@@ -109,23 +115,71 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
-	 * block So run the actual write on another thread
+	 * block So run the actual write on another thread.
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * The logging thread only captures a LogEvent and puts it on a lock-free ring buffer, so
+	 * threads logging at the same time don't wait for each other. Formatting, encoding,
+	 * compression and rotation all happen on the WriterThread. When the buffer is full, or
+	 * the events on it add up to more than MAX_LIST_BYTES, new events are dropped and
+	 * counted, and the writer reports how many it lost.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final BoundedMPSCQueue<LogEvent> queue;
+	/** Estimated memory used by the events on the queue. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	/** Dropped since the writer last said so in the log. */
+	private final AtomicLong unreportedDrops = new AtomicLong();
+	private volatile Thread writerThread;
+	/** Set while the writer is parked, so we only unpark it when it is. */
+	private volatile boolean writerWaiting;
+
+	/** What we capture on the logging thread. Everything else is done by the writer. */
+	protected static final class LogEvent {
+		final long time;
+		final Class<?> c;
+		final int hashCode;
+		final boolean hasObject;
+		final String thread;
+		final LogLevel priority;
+		final String msg;
+		final Throwable e;
+		/** Already formatted, for logString(). */
+		final byte[] raw;
+		/** Estimated memory usage. */
+		final int size;
+
+		LogEvent(long time, Class<?> c, int hashCode, boolean hasObject, String thread, LogLevel priority, String msg, Throwable e) {
+			this.time = time;
+			this.c = c;
+			this.hashCode = hashCode;
+			this.hasObject = hasObject;
+			this.thread = thread;
+			this.priority = priority;
+			this.msg = msg;
+			this.e = e;
+			this.raw = null;
+			// Stack traces are big, but the Throwable is already allocated.
+			this.size = LINE_OVERHEAD + (msg == null ? 0 : msg.length() * 2) + (e == null ? 0 : 1024);
+		}
+
+		LogEvent(byte[] raw) {
+			this.time = 0;
+			this.c = null;
+			this.hashCode = 0;
+			this.hasObject = false;
+			this.thread = null;
+			this.priority = null;
+			this.msg = null;
+			this.e = null;
+			this.raw = raw;
+			this.size = LINE_OVERHEAD + raw.length;
+		}
+	}
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +199,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -238,7 +290,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -298,11 +350,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			// When we first wrote something that hasn't been flushed yet, or -1.
+			long unflushedSince = -1;
+			StringBuilder sb = new StringBuilder(1024);
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -321,65 +371,35 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500, (int)(Math.min(maxWait-thisTime, Integer.MAX_VALUE))));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
-						}
+					// Read closed before draining, so nothing logged before close() is lost.
+					boolean died = closed;
+					// Not everything, so we check for rotation now and then.
+					int written = 0;
+					while(written < MAX_BATCH && (o = next(sb)) != null) {
+						myWrite(logStream, o);
+						if(altLogStream != null)
+							myWrite(altLogStream, o);
+						written++;
 					}
-					if(timeoutFlush || died) {
+					long drops = unreportedDrops.getAndSet(0);
+					if(drops > 0) {
+						o = ("GRRR: ERROR: Logging too fast, dropped " + drops + " entries, " +
+								dropped.get() + " in total\n").getBytes(ENCODING);
+						myWrite(logStream, o);
+						if(altLogStream != null)
+							myWrite(altLogStream, o);
+						written++;
+					}
+					if(written > 0 && unflushedSince == -1)
+						unflushedSince = thisTime;
+					if(written == MAX_BATCH) continue;
+					long flush = flushTime;
+					if(died || (unflushedSince != -1 && thisTime - unflushedSince >= flush)) {
 						// Flush to disk 
 						myWrite(logStream, null);
 				        if(altLogStream != null)
 				        	myWrite(altLogStream, null);
+						unflushedSince = -1;
 					}
 					if(died) {
 						try {
@@ -394,16 +414,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closeSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closeSync.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					// Wait no more than 500ms since we need to check for rotation and closing.
+					long wait = 500;
+					if(unflushedSince != -1)
+						wait = Math.max(1, Math.min(wait, unflushedSince + flush - thisTime));
+					writerWaiting = true;
+					// Producers only wake us if there is a lot to write, so re-check after
+					// setting writerWaiting to avoid sleeping through that.
+					if(queue.isEmpty() && !closed)
+						LockSupport.parkNanos(this, MILLISECONDS.toNanos(wait));
+					writerWaiting = false;
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -805,6 +831,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -853,7 +880,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		queue = new BoundedMPSCQueue<LogEvent>(MAX_LIST_SIZE);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -895,8 +922,11 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		this.fmt = new int[fmtVec.size()];
 		int size = fmtVec.size();
-		for (int i = 0; i < size; ++i)
+		for (int i = 0; i < size; ++i) {
 			this.fmt[i] = fmtVec.get(i);
+			if(this.fmt[i] == THREAD) fmtHasThread = true;
+			if(this.fmt[i] == HASHCODE) fmtHasHashCode = true;
+		}
 
 		this.str = new String[strVec.size()];
 		str = strVec.toArray(str);
@@ -922,8 +952,17 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		if (closed)
 			return;
-		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+
+		// Only what can't be found out later. Formatting is done by the writer.
+		enqueue(new LogEvent(System.currentTimeMillis(), c,
+				(fmtHasHashCode && o != null) ? o.hashCode() : 0, o != null,
+				fmtHasThread ? Thread.currentThread().getName() : null, priority, msg, e));
+	}
+
+	/** Format an event. Only called by the writer thread, so needs no locking. */
+	private byte[] format(LogEvent event, StringBuilder sb) throws UnsupportedEncodingException {
+		if(event.raw != null) return event.raw;
+		sb.setLength(0);
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -932,29 +971,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					myDate.setTime(event.time);
+					sb.append(df.format(myDate));
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(event.c == null ? "<none>" : event.c.getName());
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!event.hasObject
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(event.hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(event.thread);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(event.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(event.msg);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -964,6 +1000,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		sb.append('\n');
 
 		// Write stacktrace if available
+		Throwable e = event.e;
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -987,70 +1024,55 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			else break;
 		}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
+		return sb.toString().getBytes(ENCODING);
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
+	/** Most lines the writer writes before checking whether to rotate. */
+	private static final int MAX_BATCH = 1024;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
+		enqueue(new LogEvent(b));
+	}
+
+	private void enqueue(LogEvent event) {
+		long bytes = queuedBytes.addAndGet(event.size);
+		if(bytes > MAX_LIST_BYTES || !queue.offer(event)) {
+			queuedBytes.addAndGet(-event.size);
+			dropped.incrementAndGet();
+			unreportedDrops.incrementAndGet();
+			wakeWriter();
+			return;
 		}
+		// Let the writer sleep until there is enough to be worth writing, or until the
+		// flush time, as before.
+		if(writerWaiting && (bytes >= LIST_WRITE_THRESHOLD || queue.size() >= queue.capacity() / 4))
+			wakeWriter();
 	}
 
+	private void wakeWriter() {
+		Thread t = writerThread;
+		if(t != null && writerWaiting) LockSupport.unpark(t);
+	}
+
+	/** Writer thread only.
+	 * @return The next line to write, or null if there are none. */
+	private byte[] next(StringBuilder sb) throws UnsupportedEncodingException {
+		LogEvent event = queue.poll();
+		if(event == null) return null;
+		queuedBytes.addAndGet(-event.size);
+		return format(event, sb);
+	}
+
+	/** @return The estimated memory used by lines waiting to be written. */
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return queuedBytes.get();
+	}
+
+	/** @return The number of lines dropped because we were logging too fast. */
+	public long droppedLines() {
+		return dropped.get();
 	}
 
 	public static int numberOf(char c) {
@@ -1077,19 +1099,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		Thread t = writerThread;
+		if(t != null) LockSupport.unpark(t);
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			close();
+			synchronized(closeSync) {
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closeSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1218,7 +1242,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
 	}
 }
@@ -0,0 +1,293 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * One segment of a ConcurrentLRUMap, LongLRUMap or ByteArrayLRUMap. An open addressing
+ * hash table over parallel arrays, with the LRU list threaded through the same arrays by
+ * index, so unlike LRUMap there is no object per entry. Subclasses store the keys and do
+ * the lookups. Everything must be called with the segment locked.
+ *
+ * The list is kept in order of stamps from the map's clock, so the least recently used
+ * entry in the whole map is the tail of one of the segments: the one with the smallest
+ * stamp.
+ * @param <V> The value type.
+ */
+abstract class LRUSegment<V> {
+
+	static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** The most entries this segment will hold. */
+	final int maxEntries;
+	/** Slot to entry index plus one, or 0 if empty. At least twice the entry capacity. */
+	private int[] table;
+	private int[] hashes;
+	private Object[] values;
+	private long[] stamps;
+	/** Towards the most recently used end. */
+	private int[] prev;
+	/** Towards the least recently used end. Also links the free list. */
+	private int[] next;
+	private int head = NONE;
+	private int tail = NONE;
+	private int free = NONE;
+	/** Entries below this have been handed out at some point. */
+	private int used;
+	/** Not locked, for size() on the map. */
+	volatile int size;
+
+	LRUSegment(int maxEntries) {
+		this.maxEntries = maxEntries;
+		allocate(Math.min(INITIAL_CAPACITY, maxEntries));
+	}
+
+	private void allocate(int capacity) {
+		table = new int[tableSize(capacity)];
+		hashes = new int[capacity];
+		values = new Object[capacity];
+		stamps = new long[capacity];
+		prev = new int[capacity];
+		next = new int[capacity];
+		resizeKeys(capacity, false);
+	}
+
+	private static int tableSize(int capacity) {
+		return Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+	}
+
+	/** Reallocate the key storage to the given capacity.
+	 * @param keep If true, copy the existing keys. */
+	abstract void resizeKeys(int capacity, boolean keep);
+
+	abstract void clearKey(int index);
+
+	/** The start of the probe sequence for a hash. Subclasses probe forwards by one. */
+	final int firstSlot(int hash) {
+		return hash & (table.length - 1);
+	}
+
+	final int nextSlot(int slot) {
+		return (slot + 1) & (table.length - 1);
+	}
+
+	/** @return The entry index in a slot, or NONE if the slot is empty. */
+	final int entryAt(int slot) {
+		return table[slot] - 1;
+	}
+
+	final int hashAt(int index) {
+		return hashes[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	final V valueAt(int index) {
+		return (V) values[index];
+	}
+
+	final int tail() {
+		return tail;
+	}
+
+	final long tailStamp() {
+		return tail == NONE ? Long.MAX_VALUE : stamps[tail];
+	}
+
+	/**
+	 * Replace the value of an existing entry and move it to one end of the list.
+	 * @return The old value.
+	 */
+	final V update(int index, V value, long stamp, boolean mostRecent) {
+		V old = valueAt(index);
+		values[index] = value;
+		stamps[index] = stamp;
+		unlink(index);
+		link(index, mostRecent);
+		return old;
+	}
+
+	/**
+	 * Add a new entry at one end of the list. The caller must have made room by removing
+	 * the tail if the segment is full, and must then store the key at the returned index.
+	 */
+	final int add(int hash, V value, long stamp, boolean mostRecent) {
+		int index;
+		if(free != NONE) {
+			index = free;
+			free = next[index];
+		} else {
+			if(used == hashes.length) grow();
+			index = used++;
+		}
+		hashes[index] = hash;
+		values[index] = value;
+		stamps[index] = stamp;
+		int slot = firstSlot(hash);
+		while(table[slot] != 0)
+			slot = nextSlot(slot);
+		table[slot] = index + 1;
+		link(index, mostRecent);
+		size++;
+		return index;
+	}
+
+	private void grow() {
+		int capacity = hashes.length;
+		int newCapacity = (int) Math.min((long) capacity * 2, maxEntries);
+		if(newCapacity <= capacity) throw new IllegalStateException("Segment full");
+		int[] oldHashes = hashes;
+		Object[] oldValues = values;
+		long[] oldStamps = stamps;
+		int[] oldPrev = prev;
+		int[] oldNext = next;
+		table = new int[tableSize(newCapacity)];
+		hashes = new int[newCapacity];
+		values = new Object[newCapacity];
+		stamps = new long[newCapacity];
+		prev = new int[newCapacity];
+		next = new int[newCapacity];
+		System.arraycopy(oldHashes, 0, hashes, 0, capacity);
+		System.arraycopy(oldValues, 0, values, 0, capacity);
+		System.arraycopy(oldStamps, 0, stamps, 0, capacity);
+		System.arraycopy(oldPrev, 0, prev, 0, capacity);
+		System.arraycopy(oldNext, 0, next, 0, capacity);
+		resizeKeys(newCapacity, true);
+		// Only called when there are no free entries, so everything below used is live.
+		for(int index = 0; index < used; index++) {
+			int slot = firstSlot(hashes[index]);
+			while(table[slot] != 0)
+				slot = nextSlot(slot);
+			table[slot] = index + 1;
+		}
+	}
+
+	/** Remove the entry in a slot. */
+	final void removeSlot(int slot) {
+		int index = table[slot] - 1;
+		deleteSlot(slot);
+		unlink(index);
+		clearKey(index);
+		values[index] = null;
+		next[index] = free;
+		free = index;
+		size--;
+	}
+
+	/** Remove an entry, given its index rather than its slot. */
+	final void removeIndex(int index) {
+		int slot = firstSlot(hashes[index]);
+		while(table[slot] != index + 1)
+			slot = nextSlot(slot);
+		removeSlot(slot);
+	}
+
+	/** Empty a slot, shifting back any later entries in the same probe sequence so that
+	 * lookups don't need tombstones. */
+	private void deleteSlot(int slot) {
+		int mask = table.length - 1;
+		int hole = slot;
+		table[hole] = 0;
+		int i = hole;
+		while(true) {
+			i = (i + 1) & mask;
+			int entry = table[i];
+			if(entry == 0) return;
+			int home = hashes[entry - 1] & mask;
+			// Leave it if its home slot is cyclically in (hole, i].
+			if(hole <= i ? (hole < home && home <= i) : (hole < home || home <= i)) continue;
+			table[hole] = entry;
+			table[i] = 0;
+			hole = i;
+		}
+	}
+
+	private void link(int index, boolean mostRecent) {
+		if(head == NONE) {
+			head = tail = index;
+			prev[index] = next[index] = NONE;
+		} else if(mostRecent) {
+			prev[index] = NONE;
+			next[index] = head;
+			prev[head] = index;
+			head = index;
+		} else {
+			next[index] = NONE;
+			prev[index] = tail;
+			next[tail] = index;
+			tail = index;
+		}
+	}
+
+	private void unlink(int index) {
+		int p = prev[index];
+		int n = next[index];
+		if(p == NONE) head = n; else next[p] = n;
+		if(n == NONE) tail = p; else prev[n] = p;
+	}
+
+	/** Drop everything, and go back to the initial capacity. */
+	final void clear() {
+		head = tail = free = NONE;
+		used = 0;
+		size = 0;
+		allocate(Math.min(INITIAL_CAPACITY, maxEntries));
+	}
+
+	/** Spread the bits of a hash code, so that both the segment (top bits) and the slot
+	 * (bottom bits) depend on all of them. This is the MurmurHash3 finalizer. */
+	static int mix(long x) {
+		return (int) mix64(x);
+	}
+
+	static long mix64(long x) {
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/** Number of segments for a map of the given size: enough that threads rarely share
+	 * one, but not so many that a small map has tiny segments. */
+	static int segmentsFor(int maxSize, int requested) {
+		int segments = requested > 0 ? requested : 4 * Runtime.getRuntime().availableProcessors();
+		segments = Math.min(segments, Math.max(1, maxSize / 16));
+		return Integer.highestOneBit(Math.min(Math.max(segments, 1), 1 << 16));
+	}
+
+	/** The most entries each segment may hold, so that the map holds at most maxSize. */
+	static int segmentCapacity(int maxSize, int segments) {
+		return Math.max(1, maxSize / segments);
+	}
+
+	static int size(LRUSegment<?>[] segments) {
+		long size = 0;
+		for(LRUSegment<?> segment : segments)
+			size += segment.size;
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/** Find the segment whose tail is the least recently used entry in the map.
+	 * @return The segment, or null if the map is empty. The caller must lock it and check
+	 * that the tail still has the stamp it was chosen for, and try again if not. */
+	static <S extends LRUSegment<?>> S oldest(S[] segments, long[] stamp) {
+		S oldest = null;
+		long oldestStamp = Long.MAX_VALUE;
+		for(S segment : segments) {
+			if(segment.size == 0) continue;
+			long s;
+			synchronized(segment) {
+				s = segment.tailStamp();
+			}
+			if(s < oldestStamp) {
+				oldest = segment;
+				oldestStamp = s;
+			}
+		}
+		stamp[0] = oldestStamp;
+		return oldest;
+	}
+
+}
@@ -0,0 +1,289 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.RandomSource;
+
+/**
+ * A ConcurrentLRUMap keyed by primitive longs, e.g. request UIDs, so that keys are neither
+ * boxed nor stored as objects. popKey() and peekKey() throw rather than returning null when
+ * the map is empty.
+ * @param <V> The value type.
+ */
+public class LongLRUMap<V> {
+
+	private final Segment<V>[] segments;
+	private final int segmentShift;
+	private final long seed;
+	/** Stamps for push(). Taken with the segment locked, so each segment's list is in order. */
+	private final AtomicLong clock = new AtomicLong();
+	/** Stamps for pushLeast(), which count down below anything push() gives out. */
+	private final AtomicLong leastClock = new AtomicLong();
+
+	private static class Segment<V> extends LRUSegment<V> {
+
+		private long[] keys;
+
+		Segment(int maxEntries) {
+			super(maxEntries);
+		}
+
+		@Override
+		void resizeKeys(int capacity, boolean keep) {
+			long[] newKeys = new long[capacity];
+			if(keep) System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			keys = newKeys;
+		}
+
+		@Override
+		void clearKey(int index) {
+			// Nothing to release.
+		}
+
+		long keyAt(int index) {
+			return keys[index];
+		}
+
+		void setKey(int index, long key) {
+			keys[index] = key;
+		}
+
+	}
+
+	/** An unbounded map. The caller must implement any size limit needed, as with LRUMap.
+	 * @param random Used to choose the hash seed. */
+	public LongLRUMap(RandomSource random) {
+		this(Integer.MAX_VALUE, 0, random);
+	}
+
+	/** A map that never holds more than maxSize entries. */
+	public LongLRUMap(int maxSize, RandomSource random) {
+		this(maxSize, 0, random);
+	}
+
+	/**
+	 * @param maxSize The most entries the map will hold.
+	 * @param segments How many separately locked segments to use, rounded down to a power of
+	 * two. 0 means choose from the number of CPUs.
+	 * @param random Used to choose the hash seed, so that an attacker who can choose the
+	 * keys, e.g. request UIDs, cannot predict which of them will collide.
+	 */
+	public LongLRUMap(int maxSize, int segments, RandomSource random) {
+		if(maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+		int count = LRUSegment.segmentsFor(maxSize, segments);
+		int capacity = LRUSegment.segmentCapacity(maxSize, count);
+		// Can't create a generic array.
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Segment<V>[] array = new Segment[count];
+		this.segments = array;
+		for(int i = 0; i < count; i++)
+			this.segments[i] = new Segment<V>(capacity);
+		segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+		seed = random.nextLong();
+	}
+
+	private int hash(long key) {
+		return LRUSegment.mix(key ^ seed);
+	}
+
+	/** @return The slot holding the key, or NONE. */
+	private static int find(Segment<?> segment, long key, int hash) {
+		for(int slot = segment.firstSlot(hash);; slot = segment.nextSlot(slot)) {
+			int index = segment.entryAt(slot);
+			if(index == LRUSegment.NONE) return LRUSegment.NONE;
+			if(segment.keyAt(index) == key) return slot;
+		}
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		// Shifting an int by 32 doesn't give 0.
+		return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Add a mapping at the most recently used end. If the key is already present, replace
+	 * its value and move it there, rather than adding a duplicate.
+	 * @return The previous value, or null.
+	 */
+	public final V push(long key, V value) {
+		return push(key, value, true);
+	}
+
+	/** Add a mapping at the least recently used end, i.e. it will be popped first. */
+	public final V pushLeast(long key, V value) {
+		return push(key, value, false);
+	}
+
+	private V push(long key, V value, boolean mostRecent) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		boolean evicted = false;
+		long evictedKey = 0;
+		V evictedValue = null;
+		V old = null;
+		synchronized(segment) {
+			long stamp = mostRecent ? clock.incrementAndGet() : leastClock.decrementAndGet();
+			int slot = find(segment, key, hash);
+			if(slot != LRUSegment.NONE) {
+				old = segment.update(segment.entryAt(slot), value, stamp, mostRecent);
+			} else {
+				if(segment.size == segment.maxEntries) {
+					int tail = segment.tail();
+					evicted = true;
+					evictedKey = segment.keyAt(tail);
+					evictedValue = segment.valueAt(tail);
+					segment.removeIndex(tail);
+				}
+				segment.setKey(segment.add(hash, value, stamp, mostRecent), key);
+			}
+		}
+		if(evicted) onEvict(evictedKey, evictedValue);
+		return old;
+	}
+
+	/**
+	 * Called, without any lock held, when pushing a new key into a full segment drops an entry.
+	 * Not called for entries removed by pop or removeKey.
+	 */
+	protected void onEvict(long key, V value) {
+		// Do nothing.
+	}
+
+	/** Note that this does not promote the key, as with LRUMap. Use push() for that. */
+	public final V get(long key) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			return slot == LRUSegment.NONE ? null : segment.valueAt(segment.entryAt(slot));
+		}
+	}
+
+	/**
+	 * Get the value and promote the key to the most recently used end, in one lookup.
+	 * @return The value, or null if the key is not present.
+	 */
+	public final V touch(long key) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return null;
+			int index = segment.entryAt(slot);
+			V value = segment.valueAt(index);
+			segment.update(index, value, clock.incrementAndGet(), true);
+			return value;
+		}
+	}
+
+	public final boolean containsKey(long key) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			return find(segment, key, hash) != LRUSegment.NONE;
+		}
+	}
+
+	/** @return The value that was removed, or null if the key was not present. */
+	public final V remove(long key) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return null;
+			V value = segment.valueAt(segment.entryAt(slot));
+			segment.removeSlot(slot);
+			return value;
+		}
+	}
+
+	public final boolean removeKey(long key) {
+		int hash = hash(key);
+		Segment<V> segment = segmentFor(hash);
+		synchronized(segment) {
+			int slot = find(segment, key, hash);
+			if(slot == LRUSegment.NONE) return false;
+			segment.removeSlot(slot);
+			return true;
+		}
+	}
+
+	/** @return Least recently pushed key, which is removed.
+	 * @throws NoSuchElementException If the map is empty. */
+	public final long popKey() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) throw new NoSuchElementException();
+			synchronized(segment) {
+				if(segment.tailStamp() != stamp[0]) continue;
+				int tail = segment.tail();
+				long key = segment.keyAt(tail);
+				segment.removeIndex(tail);
+				return key;
+			}
+		}
+	}
+
+	/** @return Least recently pushed value, which is removed, or null if empty. */
+	public final V popValue() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() != stamp[0]) continue;
+				int tail = segment.tail();
+				V value = segment.valueAt(tail);
+				segment.removeIndex(tail);
+				return value;
+			}
+		}
+	}
+
+	/** @return Least recently pushed key.
+	 * @throws NoSuchElementException If the map is empty. */
+	public final long peekKey() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) throw new NoSuchElementException();
+			synchronized(segment) {
+				if(segment.tailStamp() == stamp[0]) return segment.keyAt(segment.tail());
+			}
+		}
+	}
+
+	/** @return Least recently pushed value, or null if empty. */
+	public final V peekValue() {
+		long[] stamp = new long[1];
+		while(true) {
+			Segment<V> segment = LRUSegment.oldest(segments, stamp);
+			if(segment == null) return null;
+			synchronized(segment) {
+				if(segment.tailStamp() == stamp[0]) return segment.valueAt(segment.tail());
+			}
+		}
+	}
+
+	public final int size() {
+		return LRUSegment.size(segments);
+	}
+
+	public final boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public final void clear() {
+		for(Segment<V> segment : segments) {
+			synchronized(segment) {
+				segment.clear();
+			}
+		}
+	}
+
+}
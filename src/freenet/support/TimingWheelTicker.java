@@ -0,0 +1,360 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * A Ticker using a hierarchical timing wheel, so that queueing and removing a job are O(1)
+ * however many are queued, rather than O(log n) plus copying arrays as in PrioritizedTicker.
+ * This matters because MessageFilter timeouts and request timeouts queue and cancel a job
+ * for nearly every message on a busy node.
+ *
+ * Time is in ticks of one millisecond, from System.nanoTime() so it doesn't jump with the
+ * clock. The innermost wheel has a slot per tick for the next 256ms; each outer wheel has 64
+ * slots each covering a whole turn of the wheel inside it. When the inner wheel wraps, the
+ * next slot of the outer wheel is cascaded, i.e. its jobs are moved inwards. Jobs due in
+ * more than 2^32ms, about 49 days, wait in the last slot of the outermost wheel and are
+ * placed again when it comes round.
+ *
+ * The ticker thread sleeps until the next occupied slot (or the next cascade), then takes
+ * everything that is due in one go and hands it to the executor outside the lock.
+ * FastRunnable's are run in-line, as with PrioritizedTicker.
+ */
+public class TimingWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Bits of the tick that index the innermost wheel. */
+	private static final int INNER_BITS = 8;
+	/** Bits of the tick that index each outer wheel. */
+	private static final int OUTER_BITS = 6;
+	private static final int LEVELS = 5;
+	/** The furthest ahead any wheel can hold a job. */
+	private static final long MAX_DELTA = 1L << (INNER_BITS + OUTER_BITS * (LEVELS - 1));
+
+	private static final class Timeout {
+		final Runnable job;
+		final String name;
+		final long deadline;
+		int level;
+		int slot;
+		Timeout prev;
+		Timeout next;
+		/** The next Timeout for the same job, if it has been queued more than once. */
+		Timeout sameJob;
+
+		Timeout(Runnable job, String name, long deadline) {
+			this.job = job;
+			this.name = name;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** Heads of the slot lists for each level. */
+	private final Timeout[][] wheels;
+	/** Queued Timeout's by job, for removeQueuedJob() and noDupes. Jobs are compared by
+	 * identity, as with PrioritizedTicker. */
+	private final IdentityHashMap<Runnable, Timeout> byJob;
+	/** The last tick we have processed. Everything due at or before it has been run. */
+	private long current;
+	/** When the ticker thread will next wake up of its own accord. */
+	private long wakeAt = Long.MAX_VALUE;
+	private int count;
+	private final long startNanos;
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		wheels = new Timeout[LEVELS][];
+		wheels[0] = new Timeout[1 << INNER_BITS];
+		for(int i = 1; i < LEVELS; i++)
+			wheels[i] = new Timeout[1 << OUTER_BITS];
+		byJob = new IdentityHashMap<Runnable, Timeout>();
+		startNanos = System.nanoTime();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	private long now() {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		ArrayList<Timeout> due = null;
+		synchronized(this) {
+			long now = now();
+			if(count == 0) {
+				current = Math.max(current, now);
+			} else {
+				while(current < now) {
+					// Nothing happens on the ticks in between.
+					current = Math.min(now, nextWakeup());
+					due = advance(current, due);
+				}
+			}
+			wakeAt = nextWakeup();
+			if(due == null) {
+				long sleep = wakeAt == Long.MAX_VALUE ? 0 : wakeAt - now;
+				if(logMINOR) Logger.minor(this, "Sleeping for " + sleep);
+				try {
+					// 0 means until notified.
+					wait(sleep);
+				} catch(InterruptedException e) {
+					// Ignore.
+				}
+				return;
+			}
+		}
+		for(Timeout t : due) {
+			if(logMINOR)
+				Logger.minor(this, "Running " + t);
+			if(t.job instanceof FastRunnable) {
+				// Run in-line
+				try {
+					t.job.run();
+				} catch(Throwable e) {
+					Logger.error(this, "Caught " + e + " running " + t, e);
+				}
+			} else {
+				try {
+					executor.execute(t.job, t.name, true);
+				} catch(OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					System.err.println("Will retry above failed operation...");
+					queueTimedJob(t.job, t.name, 200, true, false);
+				} catch(Throwable e) {
+					Logger.error(this, "Caught in Ticker: " + e, e);
+					System.err.println("Caught in Ticker: " + e);
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** Move on to the given tick: cascade any outer slots that have come round, then take
+	 * everything in the inner slot for this tick. */
+	private ArrayList<Timeout> advance(long tick, ArrayList<Timeout> due) {
+		if((tick & ((1 << INNER_BITS) - 1)) == 0) {
+			// Outermost first, so that jobs cascaded from further out can be cascaded again
+			// from the level below on the same tick.
+			for(int level = LEVELS - 1; level >= 1; level--) {
+				int shift = shift(level);
+				if((tick & ((1L << shift) - 1)) != 0) continue;
+				int slot = (int) ((tick >>> shift) & ((1 << OUTER_BITS) - 1));
+				Timeout t = wheels[level][slot];
+				wheels[level][slot] = null;
+				while(t != null) {
+					Timeout next = t.next;
+					// May be due on this very tick.
+					place(t, tick);
+					t = next;
+				}
+			}
+		}
+		int slot = (int) (tick & ((1 << INNER_BITS) - 1));
+		Timeout t = wheels[0][slot];
+		if(t == null) return due;
+		wheels[0][slot] = null;
+		if(due == null) due = new ArrayList<Timeout>();
+		while(t != null) {
+			Timeout next = t.next;
+			forget(t);
+			count--;
+			due.add(t);
+			t = next;
+		}
+		return due;
+	}
+
+	private static int shift(int level) {
+		return INNER_BITS + OUTER_BITS * (level - 1);
+	}
+
+	/** Put a Timeout in the right slot for its deadline.
+	 * @param earliest The earliest tick it can go in, if it is already due. */
+	private void place(Timeout t, long earliest) {
+		long deadline = Math.max(t.deadline, earliest);
+		long delta = deadline - current;
+		int level;
+		if(delta >= MAX_DELTA) {
+			level = LEVELS - 1;
+			deadline = current + MAX_DELTA - 1;
+		} else if(delta < (1 << INNER_BITS)) {
+			level = 0;
+		} else {
+			level = 1;
+			while(level < LEVELS - 1 && delta >= 1L << shift(level + 1))
+				level++;
+		}
+		int slot = level == 0 ? (int) (deadline & ((1 << INNER_BITS) - 1)) :
+			(int) ((deadline >>> shift(level)) & ((1 << OUTER_BITS) - 1));
+		t.level = level;
+		t.slot = slot;
+		t.prev = null;
+		t.next = wheels[level][slot];
+		if(t.next != null) t.next.prev = t;
+		wheels[level][slot] = t;
+	}
+
+	private void unlink(Timeout t) {
+		if(t.prev == null) wheels[t.level][t.slot] = t.next;
+		else t.prev.next = t.next;
+		if(t.next != null) t.next.prev = t.prev;
+		t.prev = t.next = null;
+	}
+
+	/** Remove a Timeout from the byJob chain for its job. */
+	private void forget(Timeout t) {
+		Timeout first = byJob.get(t.job);
+		if(first == t) {
+			if(t.sameJob == null) byJob.remove(t.job);
+			else byJob.put(t.job, t.sameJob);
+		} else {
+			while(first != null && first.sameJob != t)
+				first = first.sameJob;
+			if(first != null) first.sameJob = t.sameJob;
+		}
+		t.sameJob = null;
+	}
+
+	/** @return The tick at which the thread needs to wake up next: the next occupied inner
+	 * slot, or the next cascade if the inner wheel is empty. */
+	private long nextWakeup() {
+		if(count == 0) return Long.MAX_VALUE;
+		int size = 1 << INNER_BITS;
+		long boundary = (current | (size - 1)) + 1;
+		for(long tick = current + 1; tick < boundary; tick++)
+			if(wheels[0][(int) (tick & (size - 1))] != null) return tick;
+		return boundary;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time. Same semantics as PrioritizedTicker.
+	 * @param runner The job to run. FastRunnable's get run directly on the ticker thread.
+	 * @param name The name of the job, the thread running it will temporarily take this name,
+	 * assuming it is run on a separate thread.
+	 * @param offset The time at which to run the job in milliseconds from now.
+	 * @param runOnTickerAnyway If false, run jobs with offset <= 0 immediately through the
+	 * executor; if true, queue them to run on the next tick.
+	 * @param noDupes Don't queue this job if it is already queued to run no later. If it is
+	 * queued to run later, it is moved to the earlier time.
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		// Run directly *if* that won't cause any priority problems.
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		if(offset < 0) offset = 0;
+		synchronized(this) {
+			long deadline = now() + offset;
+			Timeout existing = byJob.get(runner);
+			if(noDupes && existing != null) {
+				for(Timeout t = existing; t != null; t = t.sameJob) {
+					if(t.deadline <= deadline) {
+						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+						return;
+					}
+				}
+				// The new job will run first.
+				removeAll(existing);
+				existing = null;
+			}
+			Timeout t = new Timeout(runner, name, deadline);
+			t.sameJob = existing;
+			byJob.put(runner, t);
+			// The current tick has already been run.
+			long tick = Math.max(deadline, current + 1);
+			place(t, tick);
+			count++;
+			if(tick < wakeAt) {
+				wakeAt = tick;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Remove every Timeout in a byJob chain. */
+	private void removeAll(Timeout first) {
+		byJob.remove(first.job);
+		for(Timeout t = first; t != null;) {
+			Timeout next = t.sameJob;
+			unlink(t);
+			t.sameJob = null;
+			count--;
+			t = next;
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public synchronized int queuedJobs() {
+		return count;
+	}
+
+	/** Remove a job, however many times it has been queued. */
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(this) {
+			Timeout t = byJob.get(runnable);
+			if(t != null) removeAll(t);
+		}
+	}
+
+}
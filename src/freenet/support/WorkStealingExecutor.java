@@ -0,0 +1,509 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * An Executor with a queue per priority and work stealing, as an alternative to
+ * PooledExecutor. Threads keep their NativeThread priority for life, and only run jobs of
+ * that priority, as with PooledExecutor. But rather than handing each job to a particular
+ * thread under a global lock, jobs go on a lock-free queue for their priority, or on the
+ * submitting thread's own deque if it is a worker of the same priority and a sibling is
+ * idle to steal it. Idle workers take
+ * from their own deque, then the shared queue, then steal from the other workers at their
+ * priority.
+ *
+ * The number of threads has a soft cap. Below it, a job that finds no idle thread starts a
+ * new one, as with PooledExecutor. Above it, jobs queue, unless a queue makes no progress
+ * for STARVED_MILLIS, e.g. because all its threads are blocked, in which case the watchdog
+ * starts another thread anyway. So blocking jobs can't deadlock the pool, but a burst of
+ * short jobs doesn't create hundreds of threads.
+ *
+ * Keeps queue depth, wait time and run time per priority and per job name, for the
+ * statistics page. Job names are normalised with NativeThread.normalizeName().
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+	/** How long a queue can go without a job being taken before we exceed the soft cap. */
+	static final long STARVED_MILLIS = 100;
+	static final long STARVED_TIME = MILLISECONDS.toNanos(STARVED_MILLIS);
+	public static final int DEFAULT_SOFT_CAP = 500;
+	/** Beyond this, jobs are counted under OTHER_JOBS, so a caller putting e.g. a key in the
+	 * job name can't use up memory. */
+	static final int MAX_JOB_NAMES = 500;
+	static final String OTHER_JOBS = "(other)";
+
+	private final Lane[] lanes = new Lane[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final AtomicInteger totalThreads = new AtomicInteger();
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private volatile int softCap;
+	private final ConcurrentHashMap<String, JobCounter> byName = new ConcurrentHashMap<String, JobCounter>();
+	/** Set when a job has been queued without a thread to run it. */
+	private final AtomicBoolean starving = new AtomicBoolean();
+	private Thread watchdog;
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+
+	/** The queues and threads for one priority. */
+	private class Lane {
+		final int prio;
+		final ConcurrentLinkedQueue<Job> shared = new ConcurrentLinkedQueue<Job>();
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Most recently idle at the end, since its cache is warmest. */
+		final LinkedBlockingDeque<Worker> idle = new LinkedBlockingDeque<Worker>();
+		final AtomicLong threadCounter = new AtomicLong();
+		/** Jobs waiting, whether on the shared queue or a worker's deque. */
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong jobsRun = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong runNanos = new AtomicLong();
+		/** When a job was last taken from this lane. */
+		volatile long lastTaken = System.nanoTime();
+
+		Lane(int prio) {
+			this.prio = prio;
+		}
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+		private final long queuedAt;
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+	private static class JobCounter {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong runNanos = new AtomicLong();
+	}
+
+	/** A snapshot of the counters for one job name. */
+	public static final class JobStats {
+		public final String name;
+		public final long count;
+		public final long waitNanos;
+		public final long runNanos;
+
+		JobStats(String name, JobCounter counter) {
+			this.name = name;
+			this.count = counter.count.get();
+			this.waitNanos = counter.waitNanos.get();
+			this.runNanos = counter.runNanos.get();
+		}
+	}
+
+	public WorkStealingExecutor() {
+		this(DEFAULT_SOFT_CAP);
+	}
+
+	/** @param softCap The number of threads above which new jobs queue rather than start a
+	 * thread, unless a queue is starved. */
+	public WorkStealingExecutor(int softCap) {
+		if(softCap < 1) throw new IllegalArgumentException("Soft cap must be at least 1");
+		this.softCap = softCap;
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i] = new Lane(i + 1);
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	public void setSoftCap(int softCap) {
+		if(softCap < 1) throw new IllegalArgumentException("Soft cap must be at least 1");
+		this.softCap = softCap;
+	}
+
+	public int getSoftCap() {
+		return softCap;
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Lane lane = lanes[prio - 1];
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).lane == lane && ((Worker) current).owner() == this) {
+			// Our own deque avoids contention, but only if an idle sibling will steal the
+			// job from it. Otherwise it couldn't run until the current job returns, which
+			// may be never if the current job waits for it.
+			Worker sibling = lane.idle.pollLast();
+			if(sibling != null) {
+				lane.queued.incrementAndGet();
+				((Worker) current).local.offerLast(new Job(runnable, jobName));
+				waitingThreadsCount.decrementAndGet();
+				sibling.wake();
+				return;
+			}
+			lane.queued.incrementAndGet();
+			lane.shared.offer(new Job(runnable, jobName));
+			if(wakeIdle(lane)) return;
+			startThreadIfAllowed(lane, fromTicker);
+			return;
+		}
+		if(!lane.idle.isEmpty()) {
+			lane.queued.incrementAndGet();
+			lane.shared.offer(new Job(runnable, jobName));
+			if(wakeIdle(lane)) return;
+			// They all went away in the meantime.
+			startThreadIfAllowed(lane, fromTicker);
+			return;
+		}
+		// Must create new thread
+		if(totalThreads.get() < softCap && ticker != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > current.getPriority()) {
+			// Get the ticker to create a thread for it with the right priority, since we can't.
+			ticker.queueTimedJob(runnable, jobName, 0, true, false);
+			return;
+		}
+		lane.queued.incrementAndGet();
+		lane.shared.offer(new Job(runnable, jobName));
+		// An idle worker may have turned up while we were deciding.
+		if(wakeIdle(lane)) return;
+		startThreadIfAllowed(lane, fromTicker);
+	}
+
+	/** @return True if we woke a thread. */
+	private boolean wakeIdle(Lane lane) {
+		Worker w = lane.idle.pollLast();
+		if(w == null) return false;
+		waitingThreadsCount.decrementAndGet();
+		w.wake();
+		return true;
+	}
+
+	private void startThreadIfAllowed(Lane lane, boolean fromTicker) {
+		while(true) {
+			int threads = totalThreads.get();
+			if(threads >= softCap) {
+				if(logMINOR) Logger.minor(this, "At soft cap of " + softCap + " threads, queueing at prio " + lane.prio);
+				if(!starving.getAndSet(true)) startWatchdog();
+				return;
+			}
+			if(totalThreads.compareAndSet(threads, threads + 1)) break;
+		}
+		startThread(lane, !fromTicker);
+	}
+
+	/** Start a thread whether or not we are over the soft cap. The caller must have
+	 * incremented totalThreads. */
+	private void startThread(Lane lane, boolean dontCheckRenice) {
+		long threadNo = lane.threadCounter.getAndIncrement();
+		// Will be coalesced by thread count listings if we use "@" or "for"
+		Worker w = new Worker("Pooled thread awaiting work @" + threadNo + " for prio " + lane.prio, lane, threadNo, dontCheckRenice);
+		w.setDaemon(true);
+		lane.workers.add(w);
+		w.start();
+	}
+
+	private synchronized void startWatchdog() {
+		if(watchdog == null) {
+			watchdog = new NativeThread(new Watchdog(), "Work-stealing executor watchdog", NativeThread.MAX_PRIORITY, false);
+			watchdog.setDaemon(true);
+			watchdog.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/** Starts an extra thread for any queue that is starved while we are at the soft cap. */
+	private class Watchdog implements Runnable {
+
+		@Override
+		public void run() {
+			while(true) {
+				synchronized(WorkStealingExecutor.this) {
+					while(!starving.get()) {
+						try {
+							WorkStealingExecutor.this.wait();
+						} catch(InterruptedException e) {
+							// Ignore
+						}
+					}
+				}
+				try {
+					Thread.sleep(STARVED_MILLIS);
+				} catch(InterruptedException e) {
+					// Ignore
+				}
+				// Cleared before looking, so a job queued while we look sets it again.
+				starving.set(false);
+				boolean waiting = false;
+				long now = System.nanoTime();
+				for(Lane lane : lanes) {
+					if(lane.queued.get() == 0 || !lane.idle.isEmpty()) continue;
+					waiting = true;
+					if(now - lane.lastTaken < STARVED_TIME) continue;
+					Logger.normal(this, "Prio " + lane.prio + " starved with " + lane.queued.get() + " jobs queued, exceeding soft cap of " + softCap + " threads");
+					totalThreads.incrementAndGet();
+					lane.lastTaken = now;
+					startThread(lane, false);
+				}
+				if(waiting) starving.set(true);
+			}
+		}
+
+	}
+
+	private class Worker extends NativeThread {
+		final String defaultName;
+		final Lane lane;
+		final long threadNo;
+		/** Jobs queued by this thread for its own priority. Taken from the front by this
+		 * thread and stolen from the back by others. */
+		final LinkedBlockingDeque<Job> local = new LinkedBlockingDeque<Job>();
+		private volatile boolean woken;
+
+		Worker(String defaultName, Lane lane, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, lane.prio, dontCheckRenice);
+			this.defaultName = defaultName;
+			this.lane = lane;
+			this.threadNo = threadNo;
+		}
+
+		WorkStealingExecutor owner() {
+			return WorkStealingExecutor.this;
+		}
+
+		void wake() {
+			woken = true;
+			LockSupport.unpark(this);
+		}
+
+		private Job next() {
+			Job job = local.pollFirst();
+			if(job == null) job = lane.shared.poll();
+			if(job == null) job = steal();
+			if(job != null) {
+				lane.queued.decrementAndGet();
+				lane.lastTaken = System.nanoTime();
+			}
+			return job;
+		}
+
+		private Job steal() {
+			Object[] workers = lane.workers.toArray();
+			if(workers.length < 2) return null;
+			int start = (int) (threadNo % workers.length);
+			for(int i = 1; i < workers.length; i++) {
+				Worker victim = (Worker) workers[(start + i) % workers.length];
+				Job job = victim.local.pollLast();
+				if(job != null) return job;
+			}
+			return null;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			try {
+				while(true) {
+					Job job = next();
+					if(job == null) {
+						job = idle();
+						if(job == null) {
+							if(logMINOR)
+								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+							return;
+						}
+					}
+					run(job);
+					ranJobs++;
+				}
+			} finally {
+				lane.workers.remove(this);
+				totalThreads.decrementAndGet();
+			}
+		}
+
+		/** Wait for a job.
+		 * @return The job, or null if we timed out and should exit. */
+		private Job idle() {
+			setName(defaultName);
+			while(true) {
+				woken = false;
+				lane.idle.offerLast(this);
+				waitingThreadsCount.incrementAndGet();
+				// A job may have been queued before we were on the idle list.
+				Job job = next();
+				if(job != null) {
+					if(lane.idle.removeFirstOccurrence(this))
+						waitingThreadsCount.decrementAndGet();
+					return job;
+				}
+				long deadline = System.nanoTime() + MILLISECONDS.toNanos(TIMEOUT);
+				long left;
+				while(!woken && (left = deadline - System.nanoTime()) > 0)
+					LockSupport.parkNanos(this, left);
+				if(!woken) {
+					if(lane.idle.removeFirstOccurrence(this)) {
+						waitingThreadsCount.decrementAndGet();
+						// Timed out, but check once more since we are no longer findable.
+						return next();
+					}
+					// Someone took us off the idle list, so they queued a job for us.
+				}
+				job = next();
+				if(job != null) return job;
+				// Stolen by another thread; wait again.
+			}
+		}
+
+		private void run(Job job) {
+			long started = System.nanoTime();
+			long waited = started - job.queuedAt;
+			try {
+				setName(job.name + "(" + threadNo + ")");
+				job.runnable.run();
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + job.name, t);
+			}
+			long ran = System.nanoTime() - started;
+			lane.jobsRun.incrementAndGet();
+			lane.waitNanos.addAndGet(waited);
+			lane.runNanos.addAndGet(ran);
+			JobCounter counter = counterFor(job.name);
+			counter.count.incrementAndGet();
+			counter.waitNanos.addAndGet(waited);
+			counter.runNanos.addAndGet(ran);
+		}
+	}
+
+	private JobCounter counterFor(String jobName) {
+		String name = jobName == null ? "<noname>" : NativeThread.normalizeName(jobName);
+		JobCounter counter = byName.get(name);
+		if(counter != null) return counter;
+		if(byName.size() >= MAX_JOB_NAMES) name = OTHER_JOBS;
+		counter = new JobCounter();
+		JobCounter old = byName.putIfAbsent(name, counter);
+		return old == null ? counter : old;
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, lanes[i].workers.size() - lanes[i].idle.size());
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].idle.size();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	/** @return The number of jobs waiting for a thread at each priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].queued.get();
+		return result;
+	}
+
+	/** @return The number of jobs run at each priority. */
+	public long[] jobsRun() {
+		long[] result = new long[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].jobsRun.get();
+		return result;
+	}
+
+	/** @return The total time jobs have spent queued at each priority, in nanoseconds. */
+	public long[] waitTime() {
+		long[] result = new long[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].waitNanos.get();
+		return result;
+	}
+
+	/** @return The total time jobs have spent running at each priority, in nanoseconds. */
+	public long[] runTime() {
+		long[] result = new long[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].runNanos.get();
+		return result;
+	}
+
+	/** @return The counters for each job name, most total run time first. */
+	public JobStats[] jobStats() {
+		List<JobStats> list = new ArrayList<JobStats>(byName.size());
+		for(Map.Entry<String, JobCounter> entry : byName.entrySet())
+			list.add(new JobStats(entry.getKey(), entry.getValue()));
+		JobStats[] stats = list.toArray(new JobStats[list.size()]);
+		Arrays.sort(stats, new Comparator<JobStats>() {
+			@Override
+			public int compare(JobStats a, JobStats b) {
+				return a.runNanos > b.runNanos ? -1 : a.runNanos < b.runNanos ? 1 : 0;
+			}
+		});
+		return stats;
+	}
+
+}
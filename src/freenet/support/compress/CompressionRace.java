@@ -0,0 +1,328 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Compress the same data with several codecs at once, and choose the result exactly as
+ * trying them one at a time in order would have: the first codec whose output fits in
+ * minSize, or else the smallest output (the earliest codec wins a tie), provided it is
+ * smaller than the data. The choice must not depend on timing, because it decides the key
+ * the data is inserted under.
+ *
+ * Each codec gets an extra thread only if there is a spare permit on the semaphore which
+ * limits compression (RealCompressor.compressorSemaphore), so we never run more codecs
+ * than there are compression threads; the rest run on the calling thread in order.
+ *
+ * Whenever a codec finishes, the others are told how big their output may get before it
+ * can no longer be chosen, and give up as soon as they pass it. So the slower codecs stop
+ * early if a faster one has already done better, or has fitted the data into one block.
+ *
+ * We don't split large inputs between threads: the codecs' formats have no way to join
+ * independently compressed chunks that older nodes could decompress.
+ *
+ * The listener sees the same codecs start, in the same order, as it would if we tried
+ * them one at a time, since the events go to the client: a codec is only reported once
+ * the ones before it have finished without fitting the data into minSize.
+ */
+public class CompressionRace {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Called for each codec that trying them one at a time would have started, in order,
+	 * once it has started and the codecs before it have finished. Never called after
+	 * run() returns. */
+	public interface Listener {
+		public void onStart(COMPRESSOR_TYPE codec);
+	}
+
+	private static final long RUNNING = -1;
+	private static final long FAILED = Long.MAX_VALUE;
+
+	private final COMPRESSOR_TYPE[] codecs;
+	private final Bucket data;
+	private final long dataSize;
+	private final BucketFactory bf;
+	private final long minSize;
+	/** A codec can only be chosen if its output is no bigger than this. Read while
+	 * compressing, so atomic rather than locked. */
+	private final AtomicLongArray limits;
+	/** Output size of each codec, RUNNING until it finishes, or FAILED if it gave up. */
+	private final long[] sizes;
+	private final Bucket[] results;
+	private final boolean[] started;
+	/** How many codecs have been passed to the listener. */
+	private int reported;
+	/** Held while calling the listener, so the events are in order. */
+	private final Object reportLock = new Object();
+	private int running;
+	private IOException failure;
+
+	/**
+	 * @param codecs The codecs to try, in order of preference.
+	 * @param data The data to compress.
+	 * @param bf Factory for the compressed data.
+	 * @param minSize If the output is no bigger than this, later codecs need not be tried.
+	 */
+	public CompressionRace(COMPRESSOR_TYPE[] codecs, Bucket data, BucketFactory bf, long minSize) {
+		this.codecs = codecs;
+		this.data = data;
+		this.dataSize = data.size();
+		this.bf = bf;
+		this.minSize = minSize;
+		limits = new AtomicLongArray(codecs.length);
+		sizes = new long[codecs.length];
+		results = new Bucket[codecs.length];
+		started = new boolean[codecs.length];
+		for(int i=0;i<codecs.length;i++) {
+			limits.set(i, dataSize);
+			sizes[i] = RUNNING;
+		}
+	}
+
+	/**
+	 * Run all the codecs and wait for them to finish.
+	 * @param executor Runs codecs which get a permit.
+	 * @param permits Taken with tryAcquire() for each extra thread, and released when it
+	 * finishes. The caller should already hold a permit for the calling thread.
+	 * @param listener May be null.
+	 * @return The index of the chosen codec, or -1 if none made the data smaller.
+	 * @throws IOException If any codec failed to read the data or write its output. All
+	 * the output buckets will have been freed.
+	 */
+	public int run(Executor executor, final Semaphore permits, final Listener listener) throws IOException {
+		boolean[] threaded = new boolean[codecs.length];
+		synchronized(this) {
+			running = codecs.length;
+		}
+		// The first codec is the fastest, so it runs here, and sets a target for the others.
+		for(int i=1;i<codecs.length;i++) {
+			if(!permits.tryAcquire()) break;
+			threaded[i] = true;
+			final int codec = i;
+			try {
+				executor.execute(new PrioRunnable() {
+
+					@Override
+					public void run() {
+						attempt(codec, listener, permits);
+					}
+
+					@Override
+					public int getPriority() {
+						return NativeThread.MIN_PRIORITY;
+					}
+
+				}, "Compressing with "+codecs[i]+" for "+data);
+			} catch (Throwable t) {
+				permits.release();
+				threaded[i] = false;
+				Logger.error(this, "Unable to start compression thread: "+t, t);
+			}
+		}
+		for(int i=0;i<codecs.length;i++) {
+			if(!threaded[i]) attempt(i, listener, null);
+		}
+		synchronized(this) {
+			while(running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		// Anything the other threads haven't reported yet.
+		report(listener);
+		synchronized(this) {
+			if(failure != null) {
+				for(Bucket b : results)
+					if(b != null) b.free();
+				throw failure;
+			}
+			int best = choose();
+			for(int i=0;i<results.length;i++)
+				if(i != best && results[i] != null) results[i].free();
+			return best;
+		}
+	}
+
+	/** @return The compressed data from the chosen codec. The caller must free it. */
+	public synchronized Bucket getResult(int codec) {
+		return results[codec];
+	}
+
+	/** The same choice as trying the codecs one at a time. */
+	private int choose() {
+		int best = -1;
+		long bestSize = dataSize;
+		for(int i=0;i<sizes.length;i++) {
+			if(sizes[i] == FAILED) continue;
+			if(sizes[i] <= minSize) return i;
+			if(sizes[i] < bestSize) {
+				best = i;
+				bestSize = sizes[i];
+			}
+		}
+		return best;
+	}
+
+	/** @param permit If not null, release a permit to this when done. */
+	private void attempt(int codec, Listener listener, Semaphore permit) {
+		Bucket result = null;
+		long size = FAILED;
+		IOException failed = null;
+		try {
+			if(limits.get(codec) < 0) {
+				if(logMINOR) Logger.minor(this, "Not starting "+codecs[codec]+" : can't win");
+				return;
+			}
+			synchronized(this) {
+				started[codec] = true;
+			}
+			report(listener);
+			if(logMINOR) Logger.minor(this, "Compressing "+data+" with "+codecs[codec]);
+			InputStream is = null;
+			OutputStream os = null;
+			try {
+				is = data.getInputStream();
+				result = bf.makeBucket(-1);
+				os = new LimitedOutputStream(result.getOutputStream(), codec);
+				codecs[codec].compress(is, os, dataSize, dataSize);
+				// It is essential that the close()'s throw if there is any problem.
+				is.close(); is = null;
+				os.close(); os = null;
+			} finally {
+				Closer.close(is);
+				Closer.close(os);
+			}
+			size = result.size();
+			if(logMINOR) Logger.minor(this, codecs[codec]+" compressed "+dataSize+" bytes to "+size);
+		} catch (CompressionOutputSizeException e) {
+			if(logMINOR) Logger.minor(this, "Giving up on "+codecs[codec]+" : can't win");
+		} catch (IOException e) {
+			failed = e;
+		} catch (RuntimeException e) {
+			// ArithmeticException has been seen in bzip2 codec.
+			Logger.error(this, "Compression failed with codec "+codecs[codec]+" : "+e, e);
+		} finally {
+			if(size == FAILED && result != null) {
+				result.free();
+				result = null;
+			}
+			// Before the caller can see that we have finished.
+			if(permit != null) permit.release();
+			finished(codec, size, result, failed);
+			report(listener);
+		}
+	}
+
+	/** Pass the codecs which trying them in order would have started by now to the
+	 * listener. */
+	private void report(Listener listener) {
+		if(listener == null) return;
+		synchronized(reportLock) {
+			while(true) {
+				COMPRESSOR_TYPE codec;
+				synchronized(this) {
+					if(reported == codecs.length || !started[reported]) return;
+					if(reported > 0) {
+						// We would have stopped after a failure, or once the data fitted.
+						long prev = sizes[reported - 1];
+						if(prev == RUNNING || failure != null || (prev != FAILED && prev <= minSize))
+							return;
+					}
+					codec = codecs[reported++];
+				}
+				listener.onStart(codec);
+			}
+		}
+	}
+
+	private synchronized void finished(int codec, long size, Bucket result, IOException failed) {
+		sizes[codec] = size;
+		results[codec] = result;
+		if(failed != null) {
+			if(failure == null) failure = failed;
+			// Stop everything.
+			for(int i=0;i<limits.length();i++)
+				limits.set(i, -1);
+		} else if(size != FAILED) {
+			for(int i=0;i<limits.length();i++) {
+				if(i == codec || sizes[i] != RUNNING) continue;
+				long limit;
+				if(i > codec)
+					// We come first, so it must be strictly smaller, and it isn't
+					// even considered if we fit.
+					limit = size <= minSize ? -1 : size - 1;
+				else
+					// It comes first, so it wins a tie, or if it fits.
+					limit = Math.max(size, minSize);
+				if(limit < limits.get(i))
+					limits.set(i, limit);
+			}
+		}
+		running--;
+		notifyAll();
+	}
+
+	/** Aborts a codec once its output is too big to be chosen. */
+	private class LimitedOutputStream extends FilterOutputStream {
+
+		private final int codec;
+		private long written;
+
+		LimitedOutputStream(OutputStream os, int codec) {
+			super(os);
+			this.codec = codec;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+			check();
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			out.write(buf, offset, length);
+			written += length;
+			check();
+		}
+
+		private void check() throws CompressionOutputSizeException {
+			if(written > limits.get(codec))
+				throw new CompressionOutputSizeException(written);
+		}
+
+	}
+
+}
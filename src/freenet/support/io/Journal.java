@@ -0,0 +1,361 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A persistent map from strings to byte arrays. It is kept in memory, and on disk as a
+ * snapshot plus an append-only journal of the changes since the snapshot. A change is
+ * one record appended to the journal, so writes are sequential and cheap, and commit()
+ * is a single fsync however many changes it covers. When the journal gets bigger than
+ * the snapshot, we write a new snapshot and start a new journal.
+ *
+ * Every record has a CRC32. On startup we read the snapshot and replay the journal up to
+ * the first record which is incomplete or fails its checksum, i.e. the changes that were
+ * not committed when we crashed, and cut the journal off there. Each record holds the
+ * whole value, so replaying records which are already in the snapshot does no harm; hence
+ * we can crash between replacing the snapshot and truncating the journal.
+ *
+ * LOCKING: Synchronized on this.
+ */
+public class Journal {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final int SNAPSHOT_MAGIC = 0x46534e50;
+	private static final int JOURNAL_MAGIC = 0x464a524e;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	/** A record longer than this must be garbage. */
+	private static final int MAX_RECORD_LENGTH = 64*1024*1024;
+
+	private final File snapshotFile;
+	private final File snapshotTempFile;
+	private final File journalFile;
+	/** Don't write a snapshot until the journal is at least this big. */
+	private final long minCheckpointLength;
+	private final LinkedHashMap<String, byte[]> map;
+	private final CRC32 crc = new CRC32();
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+	private FileOutputStream journalStream;
+	private DataOutputStream journalOut;
+	private long journalLength;
+	private long snapshotLength;
+	private boolean uncommitted;
+	private boolean closed;
+
+	/**
+	 * Open a journal, creating it if it doesn't exist.
+	 * @param base The files used are this with .snapshot and .journal appended.
+	 * @param minCheckpointLength Don't write a new snapshot until the journal is at least
+	 * this long.
+	 * @throws IOException If the files can't be read or written, or the snapshot is
+	 * corrupt.
+	 */
+	public Journal(File base, long minCheckpointLength) throws IOException {
+		snapshotFile = new File(base.getPath()+".snapshot");
+		snapshotTempFile = new File(base.getPath()+".snapshot.tmp");
+		journalFile = new File(base.getPath()+".journal");
+		this.minCheckpointLength = minCheckpointLength;
+		map = new LinkedHashMap<String, byte[]>();
+		if(!snapshotFile.exists() && snapshotTempFile.exists()) {
+			// Either we crashed while replacing the snapshot, after deleting the old one, in
+			// which case the new one is complete, or while writing the first snapshot, in
+			// which case the journal has everything.
+			try {
+				readSnapshot(snapshotTempFile, true);
+				if(!FileUtil.renameTo(snapshotTempFile, snapshotFile))
+					throw new IOException("Unable to rename "+snapshotTempFile+" to "+snapshotFile);
+			} catch (IOException e) {
+				Logger.error(this, "Discarding incomplete snapshot "+snapshotTempFile+": "+e);
+				map.clear();
+				snapshotLength = 0;
+				if(!snapshotTempFile.delete() && snapshotTempFile.exists())
+					throw new IOException("Unable to delete "+snapshotTempFile);
+			}
+		} else if(snapshotFile.exists()) {
+			readSnapshot(snapshotFile, false);
+		}
+		replayJournal();
+		openJournal(false);
+	}
+
+	/**
+	 * Read a snapshot into the map.
+	 * @param exact If true, there must be nothing after the last record.
+	 * @throws IOException If the snapshot is truncated or corrupt.
+	 */
+	private void readSnapshot(File file, boolean exact) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			checkHeader(dis, SNAPSHOT_MAGIC, file);
+			int count = dis.readInt();
+			for(int i=0;i<count;i++) {
+				if(!readRecord(dis))
+					throw new IOException("Snapshot "+file+" is corrupt at record "+i+" of "+count);
+			}
+			if(exact && dis.read() != -1)
+				throw new IOException("Snapshot "+file+" has data after the last record");
+			snapshotLength = file.length();
+		} finally {
+			dis.close();
+		}
+		if(logMINOR) Logger.minor(this, "Read "+map.size()+" entries from "+file);
+	}
+
+	private void checkHeader(DataInputStream dis, int magic, File file) throws IOException {
+		if(dis.readInt() != magic)
+			throw new IOException("Not a journal file: "+file);
+		int version = dis.readInt();
+		if(version != VERSION)
+			throw new IOException("Unknown version "+version+" in "+file);
+	}
+
+	private void replayJournal() throws IOException {
+		if(!journalFile.exists()) return;
+		long length = journalFile.length();
+		if(length < HEADER_LENGTH) {
+			// Crashed while creating it.
+			journalLength = 0;
+			return;
+		}
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 65536));
+		long good = HEADER_LENGTH;
+		int records = 0;
+		try {
+			checkHeader(dis, JOURNAL_MAGIC, journalFile);
+			while(good < length) {
+				if(!readRecord(dis)) break;
+				good += lastRecordLength;
+				records++;
+			}
+		} finally {
+			dis.close();
+		}
+		if(good < length) {
+			Logger.error(this, "Journal "+journalFile+" has "+(length - good)+" bytes of incomplete or corrupt records after "+records+" records, discarding them");
+			RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+		journalLength = good;
+		if(logMINOR) Logger.minor(this, "Replayed "+records+" records from "+journalFile+", now "+map.size()+" entries");
+	}
+
+	/** Length on disk of the record most recently read by readRecord(). */
+	private int lastRecordLength;
+
+	/**
+	 * Read a record and apply it to the map.
+	 * @return False if the record is truncated or corrupt, in which case nothing was
+	 * applied.
+	 */
+	private boolean readRecord(DataInputStream dis) throws IOException {
+		byte[] payload;
+		int checksum;
+		try {
+			int length = dis.readInt();
+			if(length <= 0 || length > MAX_RECORD_LENGTH) return false;
+			payload = new byte[length];
+			dis.readFully(payload);
+			checksum = dis.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+		crc.reset();
+		crc.update(payload);
+		if((int)crc.getValue() != checksum) return false;
+		DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+		try {
+			byte type = record.readByte();
+			String key = record.readUTF();
+			if(type == PUT) {
+				byte[] value = new byte[record.readInt()];
+				record.readFully(value);
+				map.put(key, value);
+			} else if(type == REMOVE) {
+				map.remove(key);
+			} else {
+				return false;
+			}
+		} catch (IOException e) {
+			// Checksum matched but contents don't parse.
+			return false;
+		}
+		lastRecordLength = payload.length + 8;
+		return true;
+	}
+
+	private void openJournal(boolean truncate) throws IOException {
+		boolean create = truncate || journalLength < HEADER_LENGTH;
+		journalStream = new FileOutputStream(journalFile, !create);
+		journalOut = new DataOutputStream(new BufferedOutputStream(journalStream, 65536));
+		if(create) {
+			journalOut.writeInt(JOURNAL_MAGIC);
+			journalOut.writeInt(VERSION);
+			journalLength = HEADER_LENGTH;
+			uncommitted = true;
+		}
+	}
+
+	/** Encode a record into recordBuffer. */
+	private void encode(byte type, String key, byte[] value) throws IOException {
+		recordBuffer.reset();
+		DataOutputStream dos = new DataOutputStream(recordBuffer);
+		dos.writeByte(type);
+		dos.writeUTF(key);
+		if(type == PUT) {
+			dos.writeInt(value.length);
+			dos.write(value);
+		}
+		dos.flush();
+	}
+
+	private int writeRecord(DataOutputStream out) throws IOException {
+		byte[] payload = recordBuffer.toByteArray();
+		crc.reset();
+		crc.update(payload);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int)crc.getValue());
+		return payload.length + 8;
+	}
+
+	public synchronized byte[] get(String key) {
+		return map.get(key);
+	}
+
+	public synchronized boolean containsKey(String key) {
+		return map.containsKey(key);
+	}
+
+	/** @return A copy of the whole map, in order of insertion. */
+	public synchronized Map<String, byte[]> getAll() {
+		return new LinkedHashMap<String, byte[]>(map);
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/** Add or replace an entry. It will not survive a crash until commit() is called. The
+	 * caller must not change the value afterwards. */
+	public synchronized void put(String key, byte[] value) throws IOException {
+		checkOpen();
+		encode(PUT, key, value);
+		journalLength += writeRecord(journalOut);
+		map.put(key, value);
+		uncommitted = true;
+	}
+
+	public synchronized void remove(String key) throws IOException {
+		checkOpen();
+		if(!map.containsKey(key)) return;
+		encode(REMOVE, key, null);
+		journalLength += writeRecord(journalOut);
+		map.remove(key);
+		uncommitted = true;
+	}
+
+	/** Write everything to disk, and fsync. Writes a new snapshot if the journal is big
+	 * enough. */
+	public synchronized void commit() throws IOException {
+		checkOpen();
+		if(!uncommitted) return;
+		journalOut.flush();
+		journalStream.getChannel().force(false);
+		uncommitted = false;
+		if(journalLength > minCheckpointLength && journalLength > snapshotLength)
+			checkpoint();
+	}
+
+	/** Write a new snapshot of the whole map, and start a new journal. */
+	public synchronized void checkpoint() throws IOException {
+		checkOpen();
+		long start = System.currentTimeMillis();
+		FileOutputStream fos = new FileOutputStream(snapshotTempFile);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+		long length = 12;
+		try {
+			dos.writeInt(SNAPSHOT_MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(map.size());
+			for(Map.Entry<String, byte[]> entry : map.entrySet()) {
+				encode(PUT, entry.getKey(), entry.getValue());
+				length += writeRecord(dos);
+			}
+			dos.flush();
+			fos.getChannel().force(false);
+		} finally {
+			dos.close();
+		}
+		// The journal must be on disk before the snapshot which includes it replaces the
+		// old snapshot, or a crash could lose the changes in neither.
+		journalOut.flush();
+		journalStream.getChannel().force(false);
+		if(!FileUtil.renameTo(snapshotTempFile, snapshotFile))
+			throw new IOException("Unable to rename "+snapshotTempFile+" to "+snapshotFile);
+		snapshotLength = length;
+		journalOut.close();
+		openJournal(true);
+		journalOut.flush();
+		journalStream.getChannel().force(false);
+		uncommitted = false;
+		if(logMINOR) Logger.minor(this, "Wrote snapshot of "+map.size()+" entries, "+length+" bytes, in "+(System.currentTimeMillis() - start)+"ms");
+	}
+
+	/** Commit and close. */
+	public synchronized void close() throws IOException {
+		if(closed) return;
+		try {
+			commit();
+		} finally {
+			closed = true;
+			journalOut.close();
+		}
+	}
+
+	/** @return The current length of the journal in bytes. */
+	public synchronized long journalLength() {
+		return journalLength;
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed) throw new IOException("Journal closed");
+	}
+
+}
@@ -134,7 +134,7 @@ public class TempBucketFactory implements BucketFactory {
 		}
 		
 		/** A blocking method to force-migrate from a RAMBucket to a FileBucket */
-		final void migrateToFileBucket() throws IOException {
+		public final void migrateToFileBucket() throws IOException {
 			Bucket toMigrate = null;
 			long size;
 			synchronized(this) {
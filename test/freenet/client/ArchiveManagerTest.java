@@ -0,0 +1,425 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.NativeThread;
+import freenet.support.io.TempBucketFactory;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	private static class Callback implements ArchiveExtractCallback {
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ObjectContainer container, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ObjectContainer container, ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ObjectContainer container, ClientContext context) {
+			fail("Restarted: "+e);
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ObjectContainer container, ClientContext context) {
+			fail("Failed: "+e);
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			// Not persistent.
+		}
+	}
+
+	/** A TAR of count files, each filled with its index, plus .metadata so that we don't
+	 * need to generate any. */
+	private static Bucket makeTar(int count, int fileSize) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		for(int i=0;i<=count;i++) {
+			String name = i == count ? ArchiveManager.METADATA_NAME : "file"+i;
+			byte[] data = new byte[fileSize];
+			for(int j=0;j<data.length;j++) data[j] = (byte)i;
+			TarArchiveEntry entry = new TarArchiveEntry(name);
+			entry.setSize(data.length);
+			tar.putArchiveEntry(entry);
+			tar.write(data);
+			tar.closeArchiveEntry();
+		}
+		tar.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	/** A ZIP of count files, alternately deflated and stored, each filled with its index. */
+	private static Bucket makeZip(int count, int fileSize) throws IOException {
+		return makeZip(count, fileSize, false);
+	}
+
+	/** @param metadata If true, add .metadata, so that we don't need to generate any. */
+	private static Bucket makeZip(int count, int fileSize, boolean metadata) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(baos);
+		zip.putNextEntry(new ZipEntry("dir/"));
+		zip.closeEntry();
+		if(metadata) {
+			zip.putNextEntry(new ZipEntry(ArchiveManager.METADATA_NAME));
+			zip.write(new byte[fileSize]);
+			zip.closeEntry();
+		}
+		for(int i=0;i<count;i++) {
+			byte[] data = new byte[fileSize];
+			for(int j=0;j<data.length;j++) data[j] = (byte)i;
+			ZipEntry entry = new ZipEntry("dir/file"+i);
+			if((i & 1) != 0) {
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(data.length);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				entry.setCrc(crc.getValue());
+			}
+			zip.putNextEntry(entry);
+			zip.write(data);
+			zip.closeEntry();
+		}
+		zip.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static FreenetURI uri(String name) throws IOException {
+		return new FreenetURI(CHK + name);
+	}
+
+	private static Callback extract(ArchiveManager manager, FreenetURI key, Bucket tar, String element) throws ArchiveFailureException, ArchiveRestartException {
+		return extract(manager, key, ARCHIVE_TYPE.TAR, tar, element, new Callback());
+	}
+
+	private static Callback extract(ArchiveManager manager, FreenetURI key, ARCHIVE_TYPE type, Bucket data, String element, Callback cb) throws ArchiveFailureException, ArchiveRestartException {
+		ArchiveStoreContext ctx = manager.makeContext(key, type, null, false);
+		manager.extractToCache(key, type, null, data, new ArchiveContext(1024*1024, 100), ctx, element, cb, null, null);
+		return cb;
+	}
+
+	public void testExtractOnce() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		FreenetURI key = uri("site.tar");
+		Bucket tar = makeTar(10, 100);
+		Callback cb = extract(manager, key, tar, "file3");
+		assertEquals(3, BucketTools.toByteArray(cb.data)[0]);
+		assertEquals(11, manager.countCachedElements());
+		assertEquals(1100, manager.getCachedData());
+		// Another fetch of the same archive uses what we already extracted.
+		cb = extract(manager, key, tar, "file4");
+		assertEquals(4, BucketTools.toByteArray(cb.data)[0]);
+		cb = extract(manager, key, tar, "nonexistent");
+		assertTrue(cb.notInArchive);
+		assertEquals(1, manager.getExtractions());
+		assertEquals(2, manager.getExtractionsAvoided());
+		assertEquals(5, BucketTools.toByteArray(manager.getCached(key, "file5"))[0]);
+		assertNull(manager.getCached(key, "nonexistent"));
+		assertEquals(1, manager.getHits());
+		assertEquals(1, manager.getMisses());
+		// Once something has been dropped, we have to extract it again.
+		manager.setMaxCachedData(1000);
+		assertTrue(manager.getEvictions() > 0);
+		assertTrue(manager.getCachedData() <= 1000 - 1000 / ArchiveManager.TRIM_FRACTION);
+		cb = extract(manager, key, tar, "file4");
+		assertEquals(4, BucketTools.toByteArray(cb.data)[0]);
+		assertEquals(2, manager.getExtractions());
+	}
+
+	public void testZip() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1000, 1000, new ArrayBucketFactory());
+		FreenetURI key = uri("site.zip");
+		Bucket zip = makeZip(10, 500);
+		// Too big to cache, but we asked for it.
+		Bucket big = makeZip(1, 2000);
+		Callback cb = extract(manager, uri("big.zip"), ARCHIVE_TYPE.ZIP, big, "dir/file0", new Callback());
+		assertEquals(2000, BucketTools.toByteArray(cb.data).length);
+		cb = extract(manager, key, ARCHIVE_TYPE.ZIP, zip, "dir/file7", new Callback());
+		byte[] data = BucketTools.toByteArray(cb.data);
+		assertEquals(500, data.length);
+		assertEquals(7, data[499]);
+		for(int i=0;i<10;i++)
+			assertEquals(i, BucketTools.toByteArray(manager.getCached(key, "dir/file"+i))[0]);
+		// No .metadata in the ZIP, so we made some.
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		cb = extract(manager, uri("other.zip"), ARCHIVE_TYPE.ZIP, zip, "nonexistent", new Callback());
+		assertTrue(cb.notInArchive);
+	}
+
+	/** Extracting every file must not read the archive once per file. */
+	public void testZipReadOnce() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1000, 1000, new ArrayBucketFactory());
+		final int[] reads = new int[1];
+		Bucket zip = new ArrayBucket(BucketTools.toByteArray(makeZip(50, 100))) {
+			@Override
+			public InputStream getInputStream() {
+				reads[0]++;
+				return super.getInputStream();
+			}
+		};
+		Callback cb = extract(manager, uri("site.zip"), ARCHIVE_TYPE.ZIP, zip, "dir/file20", new Callback());
+		assertEquals(20, BucketTools.toByteArray(cb.data)[0]);
+		for(int i=0;i<50;i++)
+			assertEquals(i, BucketTools.toByteArray(manager.getCached(uri("site.zip"), "dir/file"+i))[99]);
+		// The end of the file, which includes the central directory, and then everything in
+		// one pass.
+		assertEquals(2, reads[0]);
+	}
+
+	/** A central directory too big to read along with the end of the file. */
+	public void testZipBigCentralDirectory() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		final int[] reads = new int[1];
+		Bucket zip = new ArrayBucket(BucketTools.toByteArray(makeZip(5000, 1, true))) {
+			@Override
+			public InputStream getInputStream() {
+				reads[0]++;
+				return super.getInputStream();
+			}
+		};
+		Callback cb = extract(manager, uri("site.zip"), ARCHIVE_TYPE.ZIP, zip, "dir/file4321", new Callback());
+		assertEquals((byte) 4321, BucketTools.toByteArray(cb.data)[0]);
+		assertEquals(3, reads[0]);
+	}
+
+	/** The central directory of a plain file is read without reading the rest. */
+	public void testZipFileReadOnce() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1000, 1000, new ArrayBucketFactory());
+		File file = File.createTempFile("archivetest", ".zip");
+		try {
+			BucketTools.copy(makeZip(50, 100), new FileBucket(file, false, false, false, false, false));
+			final int[] reads = new int[1];
+			Bucket zip = new FileBucket(file, true, false, false, false, false) {
+				@Override
+				public synchronized InputStream getInputStream() throws IOException {
+					reads[0]++;
+					return super.getInputStream();
+				}
+			};
+			Callback cb = extract(manager, uri("site.zip"), ARCHIVE_TYPE.ZIP, zip, "dir/file20", new Callback());
+			assertEquals(20, BucketTools.toByteArray(cb.data)[0]);
+			assertEquals(1, reads[0]);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testCorruptZip() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		byte[] data = BucketTools.toByteArray(makeZip(4, 500));
+		// Corrupt the first (deflated) file.
+		for(int i=50;i<60;i++) data[i] ^= 0x55;
+		try {
+			extract(manager, uri("corrupt.zip"), ARCHIVE_TYPE.ZIP, new ArrayBucket(data), "dir/file1", new Callback());
+			fail("Extracted a corrupt ZIP");
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		}
+	}
+
+	public void testWaitForExtraction() throws Exception {
+		final ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		final FreenetURI key = uri("site.tar");
+		final Bucket[] got = new Bucket[1];
+		final Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					got[0] = manager.getCached(key, "file9", true);
+				} catch (ArchiveFailureException e) {
+					// Leave it null.
+				}
+			}
+		};
+		// Ask for a later file while the archive is still being extracted.
+		extract(manager, key, ARCHIVE_TYPE.TAR, makeTar(10, 100), "file0", new Callback() {
+			@Override
+			public void gotBucket(Bucket data, ObjectContainer container, ClientContext context) {
+				super.gotBucket(data, container, context);
+				other.start();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		});
+		other.join();
+		assertNotNull(got[0]);
+		assertEquals(9, BucketTools.toByteArray(got[0])[0]);
+		// Not being extracted, so no need to wait.
+		assertNull(manager.getCached(key, "nonexistent", true));
+	}
+
+	/** Queues jobs instead of running them. */
+	private static class QueueExecutor implements Executor {
+		final List<Runnable> jobs = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable job) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			jobs.add(job);
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+	}
+
+	private static ClientContext makeContext(ArchiveManager manager, Executor exec) {
+		return new ClientContext(0, 0, null, null, exec, null, manager, null, null, null, null, null, null, null, null, null, null, null, null, null);
+	}
+
+	/** Persistent extraction is done off the database thread, and the caller reads the
+	 * element as soon as extractToCache() returns. */
+	public void testPersistentDeliversBeforeReturning() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		QueueExecutor exec = new QueueExecutor();
+		ClientContext context = makeContext(manager, exec);
+		FreenetURI key = uri("site.tar");
+		ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.TAR, null, false, true);
+		Callback cb = new Callback();
+		handler.extractToCache(makeTar(10, 100), new ArchiveContext(1024*1024, 100), "file3", cb, manager, null, context);
+		assertNotNull(cb.data);
+		assertEquals(3, BucketTools.toByteArray(cb.data)[0]);
+		assertTrue(exec.jobs.isEmpty());
+	}
+
+	/** Transient callers can opt in to getting the element on another thread. */
+	public void testDeliverOffThread() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory());
+		QueueExecutor exec = new QueueExecutor();
+		ClientContext context = makeContext(manager, exec);
+		FreenetURI key = uri("site.tar");
+		Callback cb = new Callback();
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.TAR, null, false);
+		manager.extractToCache(key, ARCHIVE_TYPE.TAR, null, makeTar(10, 100), new ArchiveContext(1024*1024, 100), ctx, "file3",
+				ArchiveManager.deliverOffThread(cb, context), null, context);
+		assertNull(cb.data);
+		assertEquals(1, exec.jobs.size());
+		exec.jobs.get(0).run();
+		assertEquals(3, BucketTools.toByteArray(cb.data)[0]);
+		// Only the element is delivered off-thread.
+		cb = new Callback();
+		manager.extractToCache(uri("other.tar"), ARCHIVE_TYPE.TAR, null, makeTar(1, 100), new ArchiveContext(1024*1024, 100),
+				manager.makeContext(uri("other.tar"), ARCHIVE_TYPE.TAR, null, false), "nonexistent",
+				ArchiveManager.deliverOffThread(cb, context), null, context);
+		assertTrue(cb.notInArchive);
+		assertEquals(1, exec.jobs.size());
+	}
+
+	public void testBiggerThanCache() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 500, 500, 1024*1024, 1000, new ArrayBucketFactory());
+		FreenetURI key = uri("site.tar");
+		Bucket tar = makeTar(10, 100);
+		extract(manager, key, tar, "file0").data.free();
+		// Not all cached, so we can't tell whether it is in the archive without extracting it.
+		Callback cb = extract(manager, key, tar, "file9");
+		assertEquals(9, BucketTools.toByteArray(cb.data)[0]);
+		assertEquals(2, manager.getExtractions());
+		assertEquals(0, manager.getExtractionsAvoided());
+	}
+
+	public void testLeastRecentlyUsedDropped() throws Exception {
+		// Room for 2 archives of 5 files.
+		ArchiveManager manager = new ArchiveManager(10, 1200, 1200, 1024*1024, 1000, new ArrayBucketFactory());
+		Bucket tar = makeTar(5, 100);
+		extract(manager, uri("a.tar"), tar, "file0").data.free();
+		extract(manager, uri("b.tar"), tar, "file0").data.free();
+		// Use a, so b is least recently used.
+		for(int i=0;i<5;i++)
+			manager.getCached(uri("a.tar"), "file"+i).free();
+		extract(manager, uri("c.tar"), tar, "file0").data.free();
+		assertNotNull(manager.getCached(uri("a.tar"), "file0"));
+		assertNotNull(manager.getCached(uri("c.tar"), "file0"));
+		assertNull(manager.getCached(uri("b.tar"), "file0"));
+		assertTrue(manager.getCachedData() <= 1200);
+	}
+
+	public void testSpillToDisk() throws Exception {
+		Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		Random weakPRNG = new Random(12340);
+		FilenameGenerator fg = new FilenameGenerator(weakPRNG, false, null, "junit");
+		TempBucketFactory tbf = new TempBucketFactory(exec, fg, 4096, 1024*1024, new DummyRandomSource(43210), weakPRNG, false);
+		// Everything fits, but only 1000 bytes in RAM.
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1000, 1024*1024, 1000, tbf);
+		FreenetURI key = uri("site.tar");
+		Bucket tar = makeTar(20, 100);
+		Callback cb = extract(manager, key, tar, "file0");
+		cb.data.free();
+		assertEquals(21, manager.countCachedElements());
+		assertEquals(0, manager.getEvictions());
+		assertTrue(manager.getSpilledBytes() > 0);
+		assertTrue(manager.getCachedDataInRAM() <= 1000);
+		// Moved to disk, but still there.
+		for(int i=0;i<20;i++) {
+			Bucket data = manager.getCached(key, "file"+i);
+			assertEquals(i, BucketTools.toByteArray(data)[99]);
+			data.free();
+		}
+		manager.setMaxCachedData(0);
+		assertEquals(0, manager.countCachedElements());
+		assertEquals(0, manager.getCachedDataInRAM());
+	}
+
+}
@@ -0,0 +1,144 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.client.async.MinimalSplitfileBlock;
+import freenet.keys.CHKBlock;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Tests encoding and decoding segments with FECCodec, splitting stripes across threads.
+ */
+public class FECCodecTest extends TestCase {
+
+	private static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+	/** Data and check blocks: a full segment, the largest segment, and a cross-segment. */
+	private static final int[][] SEGMENTS = new int[][] { { 128, 128 }, { 136, 120 }, { 133, 3 } };
+
+	private final BucketFactory bf = new ArrayBucketFactory();
+	private final Random random = new Random(1234);
+	private PooledExecutor exec;
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	private Bucket[] randomBlocks(int count) {
+		Bucket[] blocks = new Bucket[count];
+		for(int i=0;i<count;i++) {
+			byte[] buf = new byte[BLOCK_SIZE];
+			random.nextBytes(buf);
+			blocks[i] = new ArrayBucket(buf);
+		}
+		return blocks;
+	}
+
+	private Bucket[] encode(FECCodec codec, Bucket[] data, Executor executor, int threads) throws IOException {
+		Bucket[] check = new Bucket[codec.countCheckBlocks()];
+		codec.realEncode(data, check, BLOCK_SIZE, bf, executor, threads);
+		return check;
+	}
+
+	/** Decode with the first few data blocks missing, using check blocks instead. */
+	private byte[][] decode(FECCodec codec, Bucket[] data, Bucket[] check, int missing, Executor executor, int threads) throws IOException {
+		SplitfileBlock[] dataStatus = new SplitfileBlock[data.length];
+		for(int i=0;i<data.length;i++) {
+			dataStatus[i] = new MinimalSplitfileBlock(i);
+			if(i >= missing)
+				dataStatus[i].assertSetData(data[i]);
+		}
+		SplitfileBlock[] checkStatus = new SplitfileBlock[check.length];
+		for(int i=0;i<check.length;i++) {
+			checkStatus[i] = new MinimalSplitfileBlock(data.length + i);
+			if(i < missing)
+				checkStatus[i].assertSetData(check[i]);
+		}
+		codec.realDecode(dataStatus, checkStatus, BLOCK_SIZE, bf, executor, threads);
+		byte[][] decoded = new byte[data.length][];
+		for(int i=0;i<data.length;i++)
+			decoded[i] = BucketTools.toByteArray(dataStatus[i].getData());
+		return decoded;
+	}
+
+	private static void assertSameBlocks(Bucket[] expected, Bucket[] actual) throws IOException {
+		assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++)
+			assertTrue(Arrays.equals(BucketTools.toByteArray(expected[i]), BucketTools.toByteArray(actual[i])));
+	}
+
+	public void testParallelMatchesSerial() throws IOException {
+		for(int[] segment : SEGMENTS) {
+			FECCodec codec = StandardOnionFECCodec.getInstance(segment[0], segment[1]);
+			Bucket[] data = randomBlocks(segment[0]);
+			Bucket[] serialCheck = encode(codec, data, null, 1);
+			for(int threads = 2; threads <= 8; threads *= 2) {
+				Bucket[] parallelCheck = encode(codec, data, exec, threads);
+				assertSameBlocks(serialCheck, parallelCheck);
+			}
+			int missing = Math.min(segment[1], segment[0] / 2);
+			byte[][] serial = decode(codec, data, serialCheck, missing, null, 1);
+			for(int threads = 2; threads <= 8; threads *= 2) {
+				byte[][] parallel = decode(codec, data, serialCheck, missing, exec, threads);
+				for(int i=0;i<serial.length;i++)
+					assertTrue(Arrays.equals(serial[i], parallel[i]));
+			}
+		}
+	}
+
+	public void testBufferPool() {
+		FECCodec.clearBufferPool();
+		byte[] buf = FECCodec.allocateBuffer(1024);
+		FECCodec.releaseBuffer(buf);
+		assertSame(buf, FECCodec.allocateBuffer(1024));
+		assertEquals(0, FECCodec.pooledBuffers());
+		FECCodec.releaseBuffer(buf);
+		assertNotSame(buf, FECCodec.allocateBuffer(2048));
+		for(int i=0;i<FECCodec.MAX_POOLED_BUFFERS*2;i++)
+			FECCodec.releaseBuffer(new byte[1024]);
+		assertEquals(FECCodec.MAX_POOLED_BUFFERS, FECCodec.pooledBuffers());
+		FECCodec.clearBufferPool();
+		assertEquals(0, FECCodec.pooledBuffers());
+	}
+
+	public void testBenchmarkSegments() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		int cores = Runtime.getRuntime().availableProcessors();
+		int iterations = 10;
+		for(int[] segment : SEGMENTS) {
+			FECCodec codec = StandardOnionFECCodec.getInstance(segment[0], segment[1]);
+			Bucket[] data = randomBlocks(segment[0]);
+			Bucket[] check = encode(codec, data, null, 1);
+			int missing = Math.min(segment[1], segment[0] / 2);
+			for(int threads = 1; threads <= cores; threads *= 2) {
+				Executor executor = threads == 1 ? null : exec;
+				// Warm up.
+				encode(codec, data, executor, threads);
+				decode(codec, data, check, missing, executor, threads);
+				long start = System.nanoTime();
+				for(int i=0;i<iterations;i++)
+					encode(codec, data, executor, threads);
+				long encodeTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(int i=0;i<iterations;i++)
+					decode(codec, data, check, missing, executor, threads);
+				long decodeTime = System.nanoTime() - start;
+				long bytes = (long)segment[0] * BLOCK_SIZE * iterations;
+				System.out.println(segment[0] + "+" + segment[1] + " blocks, " + threads + " threads: encode " +
+						(bytes * 1000 / encodeTime) + "MB/s, decode " + (bytes * 1000 / decodeTime) + "MB/s");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.db4o.Db4o;
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.config.Configuration;
+import com.db4o.query.Query;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+public class JournalRequestStoreTest extends TestCase {
+
+	private File dir;
+	private File base;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File("tmp.journalrequeststoretest");
+		FileUtil.removeAll(dir);
+		assertTrue(dir.mkdir());
+		base = new File(dir, "requests");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.removeAll(dir);
+	}
+
+	/** Roughly what a PersistentGet looks like. */
+	private static SimpleFieldSet makeState(int i, int progress) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("MessageName", "PersistentGet");
+		fs.putSingle("Identifier", "request-" + i);
+		fs.putSingle("URI", "CHK@" + Integer.toHexString(i * 7919) + "qwertyuiopasdfghjklzxcvbnm,AAIC--8/file" + i + ".zip");
+		fs.putSingle("Verbosity", "1");
+		fs.putSingle("ReturnType", "disk");
+		fs.putSingle("Filename", "/home/user/Downloads/file" + i + ".zip");
+		fs.putSingle("PriorityClass", "4");
+		fs.putSingle("Global", "true");
+		fs.put("MaxRetries", -1);
+		fs.put("Progress", progress);
+		return fs;
+	}
+
+	public void testStoreAndLoad() throws IOException {
+		PersistentRequestStore store = new JournalRequestStore(base);
+		for(int i = 0; i < 50; i++)
+			store.store("client/" + i, makeState(i, 0));
+		store.commit();
+		for(int i = 0; i < 50; i += 2)
+			store.store("client/" + i, makeState(i, 1));
+		store.remove("client/7");
+		store.close();
+		store = new JournalRequestStore(base);
+		assertEquals(49, store.size());
+		Map<String, SimpleFieldSet> loaded = store.load();
+		assertEquals(49, loaded.size());
+		assertNull(loaded.get("client/7"));
+		for(int i = 0; i < 50; i++) {
+			if(i == 7) continue;
+			SimpleFieldSet fs = loaded.get("client/" + i);
+			assertEquals(makeState(i, i % 2 == 0 ? 1 : 0).toString(), fs.toString());
+		}
+		store.close();
+	}
+
+	/** What node.db4o does: one object per request, found by an indexed query. */
+	private static class Db4oRequestStore implements PersistentRequestStore {
+
+		private static class StoredRequest {
+			String key;
+			String state;
+			long order;
+		}
+
+		private final ObjectContainer container;
+		private long nextOrder;
+
+		Db4oRequestStore(File file) {
+			Configuration config = Db4o.newConfiguration();
+			config.objectClass(StoredRequest.class).objectField("key").indexed(true);
+			container = Db4o.openFile(config, file.getPath());
+			for(StoredRequest r : container.query(StoredRequest.class))
+				nextOrder = Math.max(nextOrder, r.order + 1);
+		}
+
+		private StoredRequest find(String key) {
+			Query query = container.query();
+			query.constrain(StoredRequest.class);
+			query.descend("key").constrain(key);
+			@SuppressWarnings("unchecked")
+			ObjectSet<StoredRequest> results = query.execute();
+			return results.hasNext() ? results.next() : null;
+		}
+
+		@Override
+		public void store(String key, SimpleFieldSet state) {
+			StoredRequest r = find(key);
+			if(r == null) {
+				r = new StoredRequest();
+				r.key = key;
+				r.order = nextOrder++;
+			}
+			r.state = state.toString();
+			container.store(r);
+		}
+
+		@Override
+		public void remove(String key) {
+			StoredRequest r = find(key);
+			if(r != null) container.delete(r);
+		}
+
+		@Override
+		public void commit() {
+			container.commit();
+		}
+
+		@Override
+		public Map<String, SimpleFieldSet> load() throws IOException {
+			ArrayList<StoredRequest> all = new ArrayList<StoredRequest>(container.query(StoredRequest.class));
+			Collections.sort(all, new Comparator<StoredRequest>() {
+				@Override
+				public int compare(StoredRequest r1, StoredRequest r2) {
+					return r1.order < r2.order ? -1 : (r1.order > r2.order ? 1 : 0);
+				}
+			});
+			LinkedHashMap<String, SimpleFieldSet> ret = new LinkedHashMap<String, SimpleFieldSet>(all.size() * 2);
+			for(StoredRequest r : all)
+				ret.put(r.key, new SimpleFieldSet(r.state, false, true, false));
+			return ret;
+		}
+
+		@Override
+		public int size() {
+			return container.query(StoredRequest.class).size();
+		}
+
+		@Override
+		public void close() {
+			container.commit();
+			container.close();
+		}
+
+	}
+
+	private abstract static class StoreOpener {
+		final String name;
+
+		StoreOpener(String name) {
+			this.name = name;
+		}
+
+		abstract PersistentRequestStore open() throws IOException;
+	}
+
+	/** Compares the journal with storing the same state in db4o, as node.db4o does now. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		StoreOpener journal = new StoreOpener("Journal") {
+			@Override
+			PersistentRequestStore open() throws IOException {
+				return new JournalRequestStore(base);
+			}
+		};
+		StoreOpener db4o = new StoreOpener("db4o") {
+			@Override
+			PersistentRequestStore open() {
+				return new Db4oRequestStore(new File(dir, "requests.db4o"));
+			}
+		};
+		for(int requests : new int[] { 10000, 100000 }) {
+			benchmark(journal, requests);
+			benchmark(db4o, requests);
+		}
+	}
+
+	private void benchmark(StoreOpener opener, int requests) throws IOException {
+		FileUtil.removeAll(dir);
+		assertTrue(dir.mkdir());
+		PersistentRequestStore store = opener.open();
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < requests; i++) {
+			store.store("client/" + i, makeState(i, 0));
+			if(i % 100 == 99) store.commit();
+		}
+		store.commit();
+		long queued = System.currentTimeMillis() - start;
+		// Progress updates, each committed on its own as a database job would be.
+		int updates = Math.min(requests, 10000);
+		start = System.currentTimeMillis();
+		for(int i = 0; i < updates; i++) {
+			store.store("client/" + (i * 7 % requests), makeState(i, 1));
+			store.commit();
+		}
+		long updated = System.currentTimeMillis() - start;
+		store.close();
+		start = System.currentTimeMillis();
+		store = opener.open();
+		Map<String, SimpleFieldSet> loaded = store.load();
+		long loadTime = System.currentTimeMillis() - start;
+		assertEquals(requests, loaded.size());
+		store.close();
+		System.out.println(opener.name + ": " + requests + " requests: queued at " + (requests * 1000L / Math.max(1, queued)) +
+				"/sec in batches of 100, " + (updates * 1000L / Math.max(1, updated)) +
+				" single committed updates/sec, loaded in " + loadTime + "ms");
+	}
+
+}
@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.CountingBloomFilter;
+import freenet.support.TestProperty;
+
+public class KeyListenerIndexTest extends TestCase {
+
+	/** Wants a set of salted keys, checked with a bloom filter as SplitFileFetcherKeyListener
+	 * does. */
+	private static class TestListener implements KeyListener {
+		final HashSet<ByteArrayWrapper> keys = new HashSet<ByteArrayWrapper>();
+		final CountingBloomFilter filter;
+		final KeySummary summary;
+
+		TestListener(int keys, boolean summary) {
+			filter = new CountingBloomFilter(Math.max(64, keys * 19), 13);
+			this.summary = summary ? new KeySummary(keys) : null;
+		}
+
+		void add(byte[] saltedKey) {
+			keys.add(new ByteArrayWrapper(saltedKey));
+			filter.addKey(saltedKey);
+			if(summary != null) summary.add(saltedKey);
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return filter.checkFilter(saltedKey);
+		}
+
+		@Override
+		public KeySummary getKeySummary(ClientRequestSchedulerBase sched) {
+			return summary;
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return keys.size();
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Ignore
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public boolean isRealTime() {
+			return false;
+		}
+	}
+
+	private static byte[] randomKey(Random random) {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	/** One in ten listeners has no summary unless allIndexed. */
+	private static TestListener[] makeListeners(Random random, int count, int maxKeys, KeyListenerIndex index, boolean allIndexed) {
+		TestListener[] listeners = new TestListener[count];
+		for(int i = 0; i < count; i++) {
+			int keys = 1 + random.nextInt(maxKeys);
+			listeners[i] = new TestListener(keys, allIndexed || i % 10 != 0);
+			for(int j = 0; j < keys; j++)
+				listeners[i].add(randomKey(random));
+			index.add(listeners[i], listeners[i].summary);
+		}
+		return listeners;
+	}
+
+	/** Every listener which wants a key is a candidate for it, exactly once. */
+	public void testNoFalseNegatives() {
+		Random random = new Random(1234);
+		KeyListenerIndex index = new KeyListenerIndex();
+		TestListener[] listeners = makeListeners(random, 300, 2000, index, false);
+		assertEquals(300, index.size());
+		assertEquals(30, index.unindexedSize());
+		for(TestListener listener : listeners) {
+			for(ByteArrayWrapper key : listener.keys) {
+				KeyListener[] candidates = index.candidates(key.get());
+				assertTrue(Arrays.asList(candidates).contains(listener));
+				assertEquals(candidates.length, new HashSet<KeyListener>(Arrays.asList(candidates)).size());
+			}
+		}
+	}
+
+	/** A key nobody wants only reaches the unindexed listeners and a few false positives. */
+	public void testFewCandidates() {
+		Random random = new Random(5678);
+		KeyListenerIndex index = new KeyListenerIndex();
+		makeListeners(random, 300, 1000, index, false);
+		int total = 0;
+		int tries = 1000;
+		for(int i = 0; i < tries; i++)
+			total += index.candidates(randomKey(random)).length - index.unindexedSize();
+		// Summaries use 8 bits per key with 2 hashes, so about 5% false positives each.
+		assertTrue("Too many candidates: " + total, total < tries * 270 / 10);
+	}
+
+	/** Keys added after registration are seen, and removal takes effect. */
+	public void testAddAfterRegistrationAndRemove() {
+		Random random = new Random(42);
+		KeyListenerIndex index = new KeyListenerIndex();
+		ArrayList<TestListener> listeners = new ArrayList<TestListener>();
+		// More than one group.
+		for(int i = 0; i < 200; i++) {
+			TestListener listener = new TestListener(100, true);
+			listeners.add(listener);
+			index.add(listener, listener.summary);
+		}
+		byte[] late = randomKey(random);
+		TestListener target = listeners.get(150);
+		assertFalse(Arrays.asList(index.candidates(late)).contains(target));
+		target.add(late);
+		assertTrue(Arrays.asList(index.candidates(late)).contains(target));
+		index.remove(target);
+		assertFalse(Arrays.asList(index.candidates(late)).contains(target));
+		assertEquals(199, index.size());
+		// The slot is reused without inheriting the old bits.
+		TestListener replacement = new TestListener(100, true);
+		index.add(replacement, replacement.summary);
+		assertFalse(Arrays.asList(index.candidates(late)).contains(replacement));
+		// The removed summary no longer feeds the index.
+		byte[] later = randomKey(random);
+		target.add(later);
+		assertEquals(0, index.candidates(later).length);
+		for(TestListener listener : listeners)
+			index.remove(listener);
+		index.remove(replacement);
+		assertEquals(0, index.size());
+		assertEquals(0, index.candidates(late).length);
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(1);
+		for(int count = 100; count <= 10000; count *= 10) {
+			KeyListenerIndex index = new KeyListenerIndex();
+			TestListener[] listeners = makeListeners(random, count, 200, index, true);
+			byte[][] keys = new byte[1000][];
+			for(int i = 0; i < keys.length; i++)
+				keys[i] = randomKey(random);
+			for(int round = 0; round < 3; round++) {
+				int found = 0;
+				long start = System.nanoTime();
+				for(byte[] key : keys)
+					for(TestListener listener : listeners)
+						if(listener.probablyWantKey(null, key)) found++;
+				long linear = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(byte[] key : keys)
+					for(KeyListener listener : index.candidates(key))
+						if(listener.probablyWantKey(null, key)) found--;
+				long indexed = System.nanoTime() - start;
+				assertTrue(found >= 0);
+				System.out.println(count + " listeners: linear " + (linear / keys.length) + "ns/key, indexed " +
+						(indexed / keys.length) + "ns/key");
+			}
+		}
+	}
+
+}
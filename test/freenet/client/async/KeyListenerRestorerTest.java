@@ -0,0 +1,329 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.RequestStarter;
+
+public class KeyListenerRestorerTest extends TestCase {
+
+	private static class FakeRequest implements HasKeyListener {
+		final short prio;
+		boolean cancelled;
+		/** getPriorityClass() throws. */
+		boolean broken;
+		/** Restoring the listener throws. */
+		boolean failRestore;
+		/** Deactivating it throws. */
+		boolean failDeactivate;
+
+		FakeRequest(int prio) {
+			this.prio = (short) prio;
+		}
+
+		@Override
+		public KeyListener makeKeyListener(ObjectContainer container, ClientContext context, boolean onStartup) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isCancelled(ObjectContainer container) {
+			return cancelled;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			if(broken) throw new IllegalStateException("Broken");
+			return prio;
+		}
+
+		@Override
+		public void onFailed(KeyListenerConstructionException e, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** Looks the requests up in a map instead of the database, and records what it does. */
+	private static class TestRestorer extends KeyListenerRestorer {
+		final HashMap<Long, FakeRequest> requests = new HashMap<Long, FakeRequest>();
+		/** The priority class each request was restored in. */
+		final IdentityHashMap<FakeRequest, Integer> restoredIn = new IdentityHashMap<FakeRequest, Integer>();
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		/** The lowest restored class, each time onRestored() is called. */
+		final List<Integer> wakeups = new ArrayList<Integer>();
+		/** get() throws for these. */
+		final HashSet<Long> unreadable = new HashSet<Long>();
+		/** onRestored() throws. */
+		boolean failWakeup;
+		/** The restorer catches everything, so remember our own failures. */
+		AssertionFailedError failure;
+		int restoring;
+		int batch;
+
+		@Override
+		HasKeyListener get(long id, ObjectContainer container) {
+			if(unreadable.contains(id)) throw new IllegalStateException("Unreadable");
+			return requests.get(id);
+		}
+
+		@Override
+		void restoreKeyListener(HasKeyListener l, ObjectContainer container, ClientContext context) {
+			try {
+				check((FakeRequest) l);
+			} catch (AssertionFailedError e) {
+				failure = e;
+				throw e;
+			}
+			if(((FakeRequest) l).failRestore) throw new IllegalStateException("Unable to restore");
+		}
+
+		private void check(FakeRequest req) {
+			int prio = req.cancelled || req.broken || req.prio > RequestStarter.MINIMUM_PRIORITY_CLASS ? RequestStarter.MINIMUM_PRIORITY_CLASS : req.prio;
+			assertFalse(restoredIn.containsKey(req));
+			// Highest priority first, and nothing in the class can run until it is done.
+			assertTrue(prio >= restoring);
+			restoring = prio;
+			assertFalse(isRestored(prio));
+			if(prio > RequestStarter.MAXIMUM_PRIORITY_CLASS)
+				assertTrue(isRestored(prio - 1));
+			restoredIn.put(req, prio);
+			batch++;
+		}
+
+		@Override
+		void onRestored(ClientContext context) {
+			wakeups.add(lowestRestored(this));
+			if(failWakeup) throw new IllegalStateException("Unable to wake up");
+		}
+
+		/** Scan or restore one batch, as run() does.
+		 * @return True if we scanned. */
+		boolean step() {
+			batch = 0;
+			boolean scanned = step(container, null);
+			if(failure != null) throw failure;
+			if(!scanned) batchSizes.add(batch);
+			return scanned;
+		}
+	}
+
+	/** Does nothing: we only deactivate. */
+	private static final ObjectContainer container = (ObjectContainer) Proxy.newProxyInstance(
+			ObjectContainer.class.getClassLoader(), new Class<?>[] { ObjectContainer.class }, new InvocationHandler() {
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if(!method.getName().equals("deactivate"))
+						throw new UnsupportedOperationException(method.getName());
+					if(((FakeRequest) args[0]).failDeactivate)
+						throw new IllegalStateException("Unable to deactivate");
+					return null;
+				}
+
+			});
+
+	private static int lowestRestored(KeyListenerRestorer restorer) {
+		int prio = RequestStarter.MAXIMUM_PRIORITY_CLASS - 1;
+		while(prio < RequestStarter.MINIMUM_PRIORITY_CLASS && restorer.isRestored(prio + 1))
+			prio++;
+		return prio;
+	}
+
+	private static FakeRequest add(TestRestorer restorer, FakeRequest req) {
+		restorer.requests.put(restorer.requests.size() + 1000L, req);
+		return req;
+	}
+
+	private static long idOf(TestRestorer restorer, FakeRequest req) {
+		for(Map.Entry<Long, FakeRequest> entry : restorer.requests.entrySet())
+			if(entry.getValue() == req) return entry.getKey();
+		throw new IllegalArgumentException();
+	}
+
+	private static long[] ids(TestRestorer restorer, int deleted) {
+		long[] ids = new long[restorer.requests.size() + deleted];
+		int i = 0;
+		for(long id : restorer.requests.keySet())
+			ids[i++] = id;
+		// Deleted since the query.
+		while(i < ids.length)
+			ids[i++] = 1000 + i * 1000;
+		return ids;
+	}
+
+	public void testNothingToRestore() {
+		KeyListenerRestorer restorer = new KeyListenerRestorer();
+		assertFalse(restorer.isRestoring());
+		for(int i=RequestStarter.MAXIMUM_PRIORITY_CLASS;i<=RequestStarter.MINIMUM_PRIORITY_CLASS;i++)
+			assertTrue(restorer.isRestored(i));
+		assertFalse(restorer.init(new long[0]));
+		assertFalse(restorer.isRestoring());
+	}
+
+	public void testRestore() {
+		TestRestorer restorer = new TestRestorer();
+		int batch = KeyListenerRestorer.RESTORE_BATCH;
+		// Classes 0, 2, 3 and 5 are empty. Class 1 takes three batches, the last one
+		// partial; class 4 is exactly one batch.
+		for(int i=0;i<batch*2+3;i++)
+			add(restorer, new FakeRequest(1));
+		for(int i=0;i<batch;i++)
+			add(restorer, new FakeRequest(4));
+		add(restorer, new FakeRequest(6));
+		// Broken and invalid priorities go last.
+		add(restorer, new FakeRequest(2)).broken = true;
+		add(restorer, new FakeRequest(42));
+		// Cancelled requests are skipped.
+		for(int i=0;i<KeyListenerRestorer.SCAN_BATCH;i++)
+			add(restorer, new FakeRequest(3)).cancelled = true;
+		int live = batch * 3 + 6;
+		long[] ids = ids(restorer, 10);
+		assertTrue(restorer.init(ids));
+		assertTrue(restorer.isRestoring());
+		// Nothing persistent can run while we scan.
+		int scans = 0;
+		while(restorer.step()) {
+			scans++;
+			assertEquals(RequestStarter.MAXIMUM_PRIORITY_CLASS - 1, lowestRestored(restorer));
+			assertTrue(restorer.restoredIn.isEmpty());
+		}
+		assertEquals((ids.length + KeyListenerRestorer.SCAN_BATCH - 1) / KeyListenerRestorer.SCAN_BATCH, scans);
+		while(restorer.isRestoring())
+			assertFalse(restorer.step());
+		assertEquals(live, restorer.restoredIn.size());
+		for(FakeRequest req : restorer.requests.values())
+			assertEquals(req.cancelled, !restorer.restoredIn.containsKey(req));
+		// Empty class 0, then class 1 in three batches, class 4, and 6.
+		assertEquals(asList(0, batch, batch, 3, batch, 3), restorer.batchSizes);
+		// Each time a class is done we skip the empty ones after it.
+		assertEquals(asList(0, 3, 5, 6), restorer.wakeups);
+		for(int i=RequestStarter.MAXIMUM_PRIORITY_CLASS;i<=RequestStarter.MINIMUM_PRIORITY_CLASS;i++)
+			assertTrue(restorer.isRestored(i));
+	}
+
+	/** Everything was cancelled or deleted. */
+	public void testAllEmpty() {
+		TestRestorer restorer = new TestRestorer();
+		for(int i=0;i<10;i++)
+			add(restorer, new FakeRequest(i % 7)).cancelled = true;
+		assertTrue(restorer.init(ids(restorer, 5)));
+		assertTrue(restorer.step());
+		assertFalse(restorer.step());
+		assertFalse(restorer.isRestoring());
+		assertTrue(restorer.restoredIn.isEmpty());
+		assertEquals(asList((int) RequestStarter.MINIMUM_PRIORITY_CLASS), restorer.wakeups);
+	}
+
+	/** Only the last class has anything in it. */
+	public void testLastClassOnly() {
+		TestRestorer restorer = new TestRestorer();
+		for(int i=0;i<KeyListenerRestorer.RESTORE_BATCH+1;i++)
+			add(restorer, new FakeRequest(RequestStarter.MINIMUM_PRIORITY_CLASS));
+		assertTrue(restorer.init(ids(restorer, 0)));
+		assertTrue(restorer.step());
+		assertFalse(restorer.step());
+		// Class 0 was empty, and so was everything up to the last.
+		assertEquals(asList(RequestStarter.MINIMUM_PRIORITY_CLASS - 1), restorer.wakeups);
+		assertFalse(restorer.isRestored(RequestStarter.MINIMUM_PRIORITY_CLASS));
+		assertFalse(restorer.step());
+		assertTrue(restorer.isRestoring());
+		assertFalse(restorer.step());
+		assertFalse(restorer.isRestoring());
+		assertEquals(asList(0, KeyListenerRestorer.RESTORE_BATCH, 1), restorer.batchSizes);
+	}
+
+	/** Requests which can't be loaded, restored or deactivated are skipped. */
+	public void testBrokenRequests() {
+		TestRestorer restorer = new TestRestorer();
+		for(int i=0;i<5;i++)
+			add(restorer, new FakeRequest(1));
+		FakeRequest lost = add(restorer, new FakeRequest(1));
+		restorer.unreadable.add(idOf(restorer, lost));
+		FakeRequest lostLater = add(restorer, new FakeRequest(2));
+		FakeRequest failRestore = add(restorer, new FakeRequest(2));
+		failRestore.failRestore = true;
+		FakeRequest failDeactivate = add(restorer, new FakeRequest(3));
+		failDeactivate.failDeactivate = true;
+		add(restorer, new FakeRequest(3));
+		assertTrue(restorer.init(ids(restorer, 0)));
+		while(restorer.step()) {}
+		restorer.unreadable.add(idOf(restorer, lostLater));
+		while(restorer.isRestoring())
+			assertFalse(restorer.step());
+		assertFalse(restorer.restoredIn.containsKey(lost));
+		assertFalse(restorer.restoredIn.containsKey(lostLater));
+		assertTrue(restorer.restoredIn.containsKey(failRestore));
+		assertTrue(restorer.restoredIn.containsKey(failDeactivate));
+		assertEquals(8, restorer.restoredIn.size());
+		assertEquals(asList(0, 1, 2, 6), restorer.wakeups);
+	}
+
+	/** If a job fails, it is queued again anyway, so that we don't stay restoring forever. */
+	public void testRequeuedAfterFailure() {
+		TestRestorer restorer = new TestRestorer();
+		add(restorer, new FakeRequest(1));
+		add(restorer, new FakeRequest(4));
+		final List<DBJob> queued = new ArrayList<DBJob>();
+		DBJobRunner jobRunner = (DBJobRunner) Proxy.newProxyInstance(
+				DBJobRunner.class.getClassLoader(), new Class<?>[] { DBJobRunner.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(!method.getName().equals("queue"))
+							throw new UnsupportedOperationException(method.getName());
+						queued.add((DBJob) args[0]);
+						return null;
+					}
+
+				});
+		ClientContext context = new ClientContext(0, 0, jobRunner, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+		assertTrue(restorer.init(ids(restorer, 0)));
+		restorer.failWakeup = true;
+		int runs = 0;
+		int failures = 0;
+		while(restorer.isRestoring()) {
+			assertTrue(runs < 10);
+			try {
+				restorer.run(container, context);
+			} catch (IllegalStateException e) {
+				failures++;
+			}
+			runs++;
+			if(restorer.isRestoring())
+				assertEquals(runs, queued.size());
+		}
+		// Scan, then empty class 0, class 1 and class 4, each of which fails after it is
+		// restored. The last one doesn't need to be queued again.
+		assertEquals(4, runs);
+		assertEquals(3, failures);
+		assertEquals(3, queued.size());
+		for(DBJob job : queued)
+			assertSame(restorer, job);
+		assertEquals(2, restorer.restoredIn.size());
+		for(int i=RequestStarter.MAXIMUM_PRIORITY_CLASS;i<=RequestStarter.MINIMUM_PRIORITY_CLASS;i++)
+			assertTrue(restorer.isRestored(i));
+	}
+
+	private static List<Integer> asList(int... values) {
+		List<Integer> list = new ArrayList<Integer>();
+		for(int v : values)
+			list.add(v);
+		return list;
+	}
+
+}
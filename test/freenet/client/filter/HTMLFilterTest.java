@@ -0,0 +1,204 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+
+public class HTMLFilterTest extends TestCase {
+
+	private static final String BASE_URI = "http://localhost:8888/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/Ultimate-Freenet-Index/55/";
+
+	private static final String[] WORDS = { "freenet", "anonymous", "index", "the", "of", "a", "site",
+		"\u00e9t\u00e9", "\u65e5\u672c", "&amp;", "&lt;tag&gt;", "&nbsp;", "&#8212;", "edition", "flog" };
+
+	/** Pages shaped like typical freesites: indexes, flogs and link lists. */
+	static ArrayList<String> corpus(int pages, long seed) {
+		Random r = new Random(seed);
+		ArrayList<String> corpus = new ArrayList<String>();
+		for(int i=0;i<pages;i++) {
+			StringBuilder sb = new StringBuilder();
+			if(r.nextBoolean())
+				sb.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\n");
+			sb.append(r.nextInt(4) == 0 ? "<HTML>\n<HEAD>\n" : "<html>\n<head>\n");
+			sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+			sb.append("<title>Page ").append(i).append(" &amp; more</title>\n");
+			sb.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
+			sb.append("<style type=\"text/css\">\nbody { color: #333; background: url(bg.png) }\n.c").append(i).append(" { margin: 0 auto; width: 80% }\n</style>\n");
+			if(r.nextInt(3) == 0)
+				sb.append("<script type=\"text/javascript\">document.write('<b>x</b>');</script>\n");
+			sb.append("</head>\n<body class=\"main\" onload=\"init()\">\n<!-- generated page ").append(i).append(" -->\n");
+			int blocks = 20 + r.nextInt(60);
+			for(int b=0;b<blocks;b++) {
+				switch(r.nextInt(6)) {
+				case 0:
+					sb.append("<h2 id=\"s").append(b).append("\">").append(words(r, 4)).append("</h2>\n");
+					break;
+				case 1:
+					sb.append("<p style=\"text-align: justify\">").append(words(r, 40)).append("</p>\n");
+					break;
+				case 2:
+					sb.append("<ul>\n");
+					for(int j=0;j<5;j++)
+						sb.append("<li><a href=\"/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/site").append(j).append("/").append(r.nextInt(100)).append("/\">").append(words(r, 3)).append("</a></li>\n");
+					sb.append("</ul>\n");
+					break;
+				case 3:
+					sb.append("<table border=\"0\" cellpadding=2>\n<tr><th>Name</th><th>Size</th></tr>\n");
+					for(int j=0;j<4;j++)
+						sb.append("<tr><td><a href='file").append(j).append(".html'>").append(words(r, 2)).append("</a></td><td align=right>").append(r.nextInt(10000)).append(" KiB</td></tr>\n");
+					sb.append("</table>\n");
+					break;
+				case 4:
+					sb.append("<div class=\"img\"><img src=\"images/").append(b).append(".png\" alt=\"").append(words(r, 2)).append("\" width=\"64\" height=\"64\"><br>\n");
+					sb.append("<a href=\"http://www.example.com/").append(b).append("\">external</a></div>\n");
+					break;
+				default:
+					sb.append("<P>").append(words(r, 15)).append("<BR>\n<b>").append(words(r, 3)).append("</b> <i>").append(words(r, 3)).append("</i>\n");
+				}
+			}
+			sb.append("</body>\n</html>\n");
+			corpus.add(sb.toString());
+		}
+		return corpus;
+	}
+
+	private static String words(Random r, int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<count;i++) {
+			if(i > 0) sb.append(' ');
+			sb.append(WORDS[r.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	private static byte[] filter(InputStream is) throws IOException {
+		return filter(is, null);
+	}
+
+	private static byte[] filter(InputStream is, FoundURICallback cb) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		HTMLFilter filter = new HTMLFilter();
+		filter.readFilter(is, os, "UTF-8", null, new GenericReadFilterCallback(URI.create(BASE_URI), cb, null, null));
+		return os.toByteArray();
+	}
+
+	/** Records the text, and the type the filter gives it. */
+	private static class TextRecorder implements FoundURICallback {
+
+		final ArrayList<String> text = new ArrayList<String>();
+
+		@Override
+		public void foundURI(FreenetURI uri) {
+			// Ignore.
+		}
+
+		@Override
+		public void foundURI(FreenetURI uri, boolean inline) {
+			// Ignore.
+		}
+
+		@Override
+		public void onText(String s, String type, URI baseURI) {
+			text.add(type+": "+s);
+		}
+
+		@Override
+		public void onFinishedPage() {
+			// Ignore.
+		}
+
+	}
+
+	/** Returns at most one byte per read, so the parser's window is refilled after every character. */
+	private static class TrickleInputStream extends FilterInputStream {
+
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return super.read(buf, offset, Math.min(length, 1));
+		}
+
+	}
+
+	public void testWindowBoundaries() throws IOException {
+		for(String page : corpus(10, 1)) {
+			byte[] data = page.getBytes("UTF-8");
+			String whole = new String(filter(new ByteArrayInputStream(data)), "UTF-8");
+			String trickled = new String(filter(new TrickleInputStream(new ByteArrayInputStream(data))), "UTF-8");
+			assertEquals(whole, trickled);
+			// Sanity check the output itself.
+			assertFalse(whole.contains("<script"));
+			assertFalse(whole.contains("onload"));
+			assertTrue(whole.contains("<title>Page "));
+		}
+	}
+
+	/** The text given to a FoundURICallback, and its type, must not depend on where the
+	 * window boundaries fall. */
+	public void testWindowBoundariesText() throws IOException {
+		ArrayList<String> pages = corpus(5, 2);
+		// Put text, end tags and slashes across the first boundary.
+		String tail = "a/b</b>c//d<i>e</i>f/</p>g</ br>h";
+		for(int i=0;i<tail.length()+2;i++) {
+			StringBuilder sb = new StringBuilder("<html><head><title>t/u</title></head><body><p><b>");
+			while(sb.length() < HTMLFilter.HTMLParseContext.WINDOW_SIZE - i) sb.append('x');
+			sb.append(tail).append("</body></html>");
+			pages.add(sb.toString());
+		}
+		for(String page : pages) {
+			byte[] data = page.getBytes("UTF-8");
+			TextRecorder whole = new TextRecorder();
+			TextRecorder trickled = new TextRecorder();
+			String out = new String(filter(new ByteArrayInputStream(data), whole), "UTF-8");
+			assertEquals(out, new String(filter(new TrickleInputStream(new ByteArrayInputStream(data)), trickled), "UTF-8"));
+			assertFalse(whole.text.isEmpty());
+			assertEquals(trickled.text, whole.text);
+		}
+	}
+
+	public void testTextRuns() throws IOException {
+		// Control characters and nulls are dropped, a BOM after the start is deleted.
+		String page = "<html><body>a\u0001b\u0000c\uFEFFd<p>x<b>y</b> z</p></body></html>";
+		String out = new String(filter(new ByteArrayInputStream(page.getBytes("UTF-8"))), "UTF-8");
+		assertEquals("<html><body>abcd<p>x<b>y</b> z</p></body></html>", out);
+	}
+
+	public void testBenchmarkThroughput() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		ArrayList<byte[]> pages = new ArrayList<byte[]>();
+		long bytes = 0;
+		for(String page : corpus(200, 0)) {
+			byte[] data = page.getBytes("UTF-8");
+			pages.add(data);
+			bytes += data.length;
+		}
+		// Warm up.
+		for(int i=0;i<3;i++)
+			for(byte[] data : pages)
+				filter(new ByteArrayInputStream(data));
+		int rounds = 10;
+		long start = System.nanoTime();
+		for(int i=0;i<rounds;i++)
+			for(byte[] data : pages)
+				filter(new ByteArrayInputStream(data));
+		long elapsed = System.nanoTime() - start;
+		System.out.println("HTML filter: "+pages.size()+" pages, "+(bytes / pages.size())+" bytes average, "+
+				(bytes * rounds * 1000 / elapsed)+" MB/s, "+(elapsed / (rounds * pages.size()) / 1000)+"us per page (one thread)");
+	}
+
+}
@@ -0,0 +1,114 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+
+public class FProxyToadletTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	@Override
+	protected void setUp() throws Exception {
+		// Normally set when fproxy starts.
+		Field random = FProxyToadlet.class.getDeclaredField("random");
+		random.setAccessible(true);
+		if(random.get(null) == null)
+			random.set(null, new byte[32]);
+	}
+
+	private static void assertRange(long from, long to, String header) throws HTTPRangeException {
+		assertTrue(header, Arrays.equals(new long[] { from, to }, FProxyToadlet.parseRange(header)));
+	}
+
+	private static void assertBadRange(String header) {
+		try {
+			FProxyToadlet.parseRange(header);
+			fail("Accepted "+header);
+		} catch (HTTPRangeException e) {
+			// Expected
+		}
+	}
+
+	public void testParseRange() throws HTTPRangeException {
+		assertRange(0, 499, "bytes=0-499");
+		assertRange(500, 500, "bytes=500-500");
+		assertRange(500, -1, "bytes=500-");
+		assertRange(7, 9, "bytes= 7 - 9");
+		assertBadRange("bytes=500-499");
+		assertBadRange("bytes=a-b");
+		assertBadRange("bytes=500");
+		assertBadRange("items=0-499");
+	}
+
+	public void testParseSuffixRange() throws HTTPRangeException {
+		assertRange(-1, 500, "bytes=-500");
+		assertRange(-1, 1, "bytes=-1");
+		assertRange(-1, 500, "bytes= -500");
+		assertBadRange("bytes=-0");
+		assertBadRange("bytes=-");
+		assertBadRange("bytes=--5");
+	}
+
+	public void testMatchesETag() {
+		String etag = "\"abc\"";
+		assertTrue(FProxyToadlet.matchesETag("\"abc\"", etag));
+		assertTrue(FProxyToadlet.matchesETag("W/\"abc\"", etag));
+		assertTrue(FProxyToadlet.matchesETag("\"xyz\", \"abc\"", etag));
+		assertTrue(FProxyToadlet.matchesETag("\"xyz\",W/\"abc\"", etag));
+		assertFalse(FProxyToadlet.matchesETag(null, etag));
+		assertFalse(FProxyToadlet.matchesETag("", etag));
+		assertFalse(FProxyToadlet.matchesETag("\"xyz\"", etag));
+		assertFalse(FProxyToadlet.matchesETag("abc", etag));
+		assertFalse(FProxyToadlet.matchesETag("\"abcd\"", etag));
+	}
+
+	/** The browser having some version doesn't mean we have it, or can fetch it. */
+	public void testStarDoesNotMatch() {
+		assertFalse(FProxyToadlet.matchesETag("*", "\"abc\""));
+		assertFalse(FProxyToadlet.matchesETag("W/*", "\"abc\""));
+		assertFalse(FProxyToadlet.matchesETag("\"xyz\", *", "\"abc\""));
+	}
+
+	public void testGetETag() throws MalformedURLException {
+		FreenetURI chk = new FreenetURI(CHK);
+		String etag = FProxyToadlet.getETag(chk, null, null, false, false, REFILTER_POLICY.RE_FILTER, false);
+		assertNotNull(etag);
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertTrue(FProxyToadlet.matchesETag(etag, etag));
+		assertEquals(etag, FProxyToadlet.getETag(new FreenetURI(CHK), null, null, false, false, REFILTER_POLICY.RE_FILTER, false));
+		// Everything which changes what we send changes the tag.
+		String[] others = new String[] {
+				FProxyToadlet.getETag(new FreenetURI(CHK+"file.txt"), null, null, false, false, REFILTER_POLICY.RE_FILTER, false),
+				FProxyToadlet.getETag(chk, "text/plain", null, false, false, REFILTER_POLICY.RE_FILTER, false),
+				FProxyToadlet.getETag(chk, null, "UTF-8", false, false, REFILTER_POLICY.RE_FILTER, false),
+				FProxyToadlet.getETag(chk, null, null, true, false, REFILTER_POLICY.RE_FILTER, false),
+				FProxyToadlet.getETag(chk, null, null, false, true, REFILTER_POLICY.RE_FILTER, false),
+				FProxyToadlet.getETag(chk, null, null, false, false, REFILTER_POLICY.ACCEPT_OLD, false)
+		};
+		for(int i=0;i<others.length;i++) {
+			assertFalse(etag.equals(others[i]));
+			for(int j=i+1;j<others.length;j++)
+				assertFalse(others[i].equals(others[j]));
+		}
+	}
+
+	/** Only CHKs can't change, so only they get a tag. */
+	public void testGetETagNotCHK() throws MalformedURLException {
+		assertNull(FProxyToadlet.getETag(new FreenetURI("KSK@test"), null, null, false, false, REFILTER_POLICY.RE_FILTER, false));
+		assertNull(FProxyToadlet.getETag(new FreenetURI("USK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AQACAAE/site/1/"), null, null, false, false, REFILTER_POLICY.RE_FILTER, false));
+	}
+
+	/** With web pushing, the page depends on the request, not just the key. */
+	public void testGetETagTagsReplaced() throws MalformedURLException {
+		assertNull(FProxyToadlet.getETag(new FreenetURI(CHK), null, null, false, false, REFILTER_POLICY.RE_FILTER, true));
+	}
+
+}
@@ -0,0 +1,142 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.client.async.CacheFetchResult;
+import freenet.client.events.SimpleEventProducer;
+import freenet.client.filter.HTMLFilter.ParsedTag;
+import freenet.client.filter.TagReplacerCallback;
+import freenet.client.filter.URIProcessor;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FilteredOutputCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	private static class TrackingBucket extends ArrayBucket {
+		boolean freed;
+
+		TrackingBucket(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+	}
+
+	private FilteredOutputCache cache;
+
+	@Override
+	protected void setUp() {
+		cache = new FilteredOutputCache(1000, new ArrayBucketFactory());
+	}
+
+	private static FetchContext fctx(String overrideMIME, String charset) {
+		return new FetchContext(1 << 20, 1 << 20, 1024, 1, 1, 1, false, 0, 0, 0, true, true, false, true, 0, 0,
+				new ArrayBucketFactory(), new SimpleEventProducer(), false, false, charset, overrideMIME);
+	}
+
+	private static FreenetURI uri(String name) throws MalformedURLException {
+		return new FreenetURI(CHK + name);
+	}
+
+	public void testHitAndMiss() throws IOException {
+		TrackingBucket data = new TrackingBucket(100);
+		Bucket ref = cache.put(uri("a.html"), "text/html", fctx(null, null), data);
+		assertNotSame(data, ref);
+		assertNull(cache.get(uri("b.html"), fctx(null, null), Long.MAX_VALUE));
+		// Different filter settings are different entries.
+		assertNull(cache.get(uri("a.html"), fctx("text/plain", null), Long.MAX_VALUE));
+		assertNull(cache.get(uri("a.html"), fctx(null, "UTF-8"), Long.MAX_VALUE));
+		// Too big for the request.
+		assertNull(cache.get(uri("a.html"), fctx(null, null), 99));
+		CacheFetchResult result = cache.get(uri("a.html"), fctx(null, null), Long.MAX_VALUE);
+		assertNotNull(result);
+		assertTrue(result.alreadyFiltered);
+		assertEquals("text/html", result.getMimeType());
+		assertEquals(100, BucketTools.toByteArray(result.asBucket()).length);
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(100, cache.getBytesHit());
+		assertEquals(100, cache.getCachedBytes());
+		ref.free();
+		result.asBucket().free();
+		// Still cached.
+		assertFalse(data.freed);
+		assertNotNull(cache.lookupInstant(uri("a.html"), false, false, null));
+		assertNull(cache.lookupInstant(uri("a.html"), true, false, null));
+	}
+
+	public void testNotCached() throws MalformedURLException {
+		TrackingBucket data = new TrackingBucket(300);
+		// More than a quarter of the cache.
+		assertSame(data, cache.put(uri("big"), "text/html", fctx(null, null), data));
+		data = new TrackingBucket(10);
+		assertSame(data, cache.put(new FreenetURI("KSK@test"), "text/html", fctx(null, null), data));
+		assertEquals(0, cache.countEntries());
+	}
+
+	public void testEviction() throws MalformedURLException {
+		TrackingBucket[] data = new TrackingBucket[5];
+		Bucket[] refs = new Bucket[5];
+		for(int i=0;i<4;i++) {
+			data[i] = new TrackingBucket(250);
+			refs[i] = cache.put(uri(Integer.toString(i)), "text/html", fctx(null, null), data[i]);
+		}
+		assertEquals(4, cache.countEntries());
+		// Use 0, so 1 is the least recently used.
+		cache.get(uri("0"), fctx(null, null), Long.MAX_VALUE).asBucket().free();
+		refs[1].free();
+		data[4] = new TrackingBucket(250);
+		refs[4] = cache.put(uri("4"), "text/html", fctx(null, null), data[4]);
+		assertEquals(4, cache.countEntries());
+		assertEquals(1000, cache.getCachedBytes());
+		assertEquals(1, cache.getEvictions());
+		assertTrue(data[1].freed);
+		assertNull(cache.get(uri("1"), fctx(null, null), Long.MAX_VALUE));
+		// Dropped while still referenced: freed when the reference is.
+		cache.setMaxSize(500);
+		assertEquals(2, cache.countEntries());
+		assertFalse(data[2].freed);
+		refs[2].free();
+		assertTrue(data[2].freed);
+		// Freeing twice doesn't release twice.
+		refs[0].free();
+		refs[0].free();
+		assertFalse(data[0].freed);
+		assertFalse(data[4].freed);
+	}
+
+	/** Pages filtered for web pushing contain one browser's IDs, so mustn't be shared. */
+	public void testTagReplacerNotCached() throws IOException {
+		FetchContext pushing = fctx(null, null);
+		pushing.tagReplacer = new TagReplacerCallback() {
+			@Override
+			public String processTag(ParsedTag pt, URIProcessor uriProcessor) {
+				return null;
+			}
+		};
+		TrackingBucket data = new TrackingBucket(100);
+		assertSame(data, cache.put(uri("a.html"), "text/html", pushing, data));
+		assertEquals(0, cache.countEntries());
+		cache.put(uri("a.html"), "text/html", fctx(null, null), data).free();
+		assertNull(cache.get(uri("a.html"), pushing, Long.MAX_VALUE));
+		CacheFetchResult result = cache.get(uri("a.html"), fctx(null, null), Long.MAX_VALUE);
+		assertNotNull(result);
+		result.asBucket().free();
+	}
+
+}
@@ -0,0 +1,120 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.support.MultiValueTable;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+public class ToadletContextImplTest extends TestCase {
+
+	private File dir;
+	private ServerSocket server;
+	private byte[] data;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File("tmp.toadletcontextimpltest");
+		FileUtil.removeAll(dir);
+		assertTrue(dir.mkdir());
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		data = new byte[10000];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) (i * 31 + i / 256);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		FileUtil.removeAll(dir);
+	}
+
+	private Bucket makeFileBucket() throws IOException {
+		File f = new File(dir, "data");
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(data);
+		fos.close();
+		return new FileBucket(f, true, false, false, false, false);
+	}
+
+	/** Send part of the bucket through a ToadletContextImpl on the socket, and return what
+	 * arrives at the other end. */
+	private byte[] send(Socket sock, Bucket bucket, long offset, long length) throws Exception {
+		Socket accepted = server.accept();
+		try {
+			ToadletContextImpl ctx = new ToadletContextImpl(sock, new MultiValueTable<String, String>(), null, null, null, null, null, null, 0);
+			// Small enough to fit in the socket buffers, so we don't need another thread.
+			ctx.writeData(bucket, offset, length);
+			sock.shutdownOutput();
+			InputStream is = accepted.getInputStream();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while((read = is.read(buf)) > 0)
+				bos.write(buf, 0, read);
+			return bos.toByteArray();
+		} finally {
+			accepted.close();
+			sock.close();
+		}
+	}
+
+	private Socket connectStream() throws IOException {
+		return new Socket(server.getInetAddress(), server.getLocalPort());
+	}
+
+	/** Has a channel, so file buckets are sent with transferTo(). */
+	private Socket connectChannel() throws IOException {
+		return SocketChannel.open(new InetSocketAddress(server.getInetAddress(), server.getLocalPort())).socket();
+	}
+
+	private void checkRanges(boolean channel, boolean file) throws Exception {
+		long[][] ranges = new long[][] { { 0, data.length }, { 0, 1 }, { 1234, 5678 }, { data.length - 500, 500 }, { 100, 0 } };
+		for(long[] range : ranges) {
+			Socket sock = channel ? connectChannel() : connectStream();
+			Bucket bucket = file ? makeFileBucket() : new ArrayBucket(data);
+			byte[] received = send(sock, bucket, range[0], range[1]);
+			byte[] expected = Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1]));
+			assertTrue("Range "+range[0]+"+"+range[1], Arrays.equals(expected, received));
+		}
+	}
+
+	public void testWriteDataStream() throws Exception {
+		checkRanges(false, false);
+		checkRanges(false, true);
+	}
+
+	public void testWriteDataChannel() throws Exception {
+		checkRanges(true, false);
+		checkRanges(true, true);
+	}
+
+	public void testWriteDataPastEnd() throws Exception {
+		for(boolean channel : new boolean[] { false, true }) {
+			Socket sock = channel ? connectChannel() : connectStream();
+			try {
+				send(sock, makeFileBucket(), data.length - 10, 20);
+				fail("Sent more than the bucket holds");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+}
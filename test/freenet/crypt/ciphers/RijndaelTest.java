@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -16,12 +17,17 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import junit.framework.TestCase;
+import freenet.crypt.BlockCipher;
+import freenet.crypt.CTRBlockCipher;
 import freenet.crypt.CTRBlockCipherTest;
+import freenet.crypt.PCFBMode;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.io.Closer;
 
 /**
@@ -2011,4 +2017,246 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	public void testBulkCFB() throws UnsupportedCipherException {
+		for(int size : new int[] { 128, 256 }) {
+			Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			for(int len : new int[] { 0, 1, 4, size/8 - 1, size/8, size/8 + 1, 1024, 1397 }) {
+				byte[] iv = new byte[size/8];
+				rand.nextBytes(iv);
+				byte[] ivCopy = iv.clone();
+				byte[] plain = new byte[len + 10];
+				rand.nextBytes(plain);
+				byte[] expected = plain.clone();
+				PCFBMode.create(aes, iv).blockEncipher(expected, 5, len);
+				byte[] buf = plain.clone();
+				aes.encipherCFB(iv, buf, 5, len);
+				assertTrue(Arrays.equals(expected, buf));
+				assertTrue(Arrays.equals(ivCopy, iv));
+				aes.decipherCFB(iv, buf, 5, len);
+				assertTrue(Arrays.equals(plain, buf));
+				buf = expected.clone();
+				PCFBMode.blockDecipher(aes, iv, buf, 5, len);
+				assertTrue(Arrays.equals(plain, buf));
+			}
+		}
+	}
+
+	public void testBulkCTR() throws UnsupportedCipherException {
+		for(int size : new int[] { 128, 256 }) {
+			Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			for(int len : new int[] { 0, 1, size/8, size/8 + 1, 1397 }) {
+				byte[] iv = new byte[size/8];
+				rand.nextBytes(iv);
+				// Make sure the counter carries.
+				iv[iv.length-1] = (byte)0xff;
+				iv[iv.length-2] = (byte)0xff;
+				byte[] plain = new byte[len];
+				rand.nextBytes(plain);
+				CTRBlockCipher ctr = new CTRBlockCipher(aes);
+				ctr.init(iv);
+				byte[] expected = new byte[len];
+				ctr.processBytes(plain, 0, len, expected, 0);
+				byte[] output = new byte[len];
+				aes.processCTR(iv, plain, 0, len, output, 0);
+				assertTrue(Arrays.equals(expected, output));
+				aes.processCTR(iv, output, 0, len, output, 0);
+				assertTrue(Arrays.equals(plain, output));
+			}
+		}
+	}
+
+	/** Many threads sharing one cipher must get the same results as one thread. */
+	public void testConcurrentBulkCFB() throws Exception {
+		final Rijndael aes = new Rijndael(256, 256);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		aes.initialize(key);
+		final byte[][] ivs = new byte[64][32];
+		final byte[][] plain = new byte[ivs.length][1024];
+		final byte[][] expected = new byte[ivs.length][];
+		for(int i=0;i<ivs.length;i++) {
+			rand.nextBytes(ivs[i]);
+			rand.nextBytes(plain[i]);
+			expected[i] = plain[i].clone();
+			aes.encipherCFB(ivs[i], expected[i], 0, expected[i].length);
+		}
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<50;j++) {
+						for(int i=0;i<ivs.length;i++) {
+							byte[] buf = plain[i].clone();
+							aes.encipherCFB(ivs[i], buf, 0, buf.length);
+							if(!Arrays.equals(expected[i], buf)) {
+								synchronized(failed) {
+									failed[0] = true;
+								}
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		synchronized(failed) {
+			assertFalse(failed[0]);
+		}
+	}
+
+	/** How the packet path used to use the cipher: one lock for every block. */
+	private static class SynchronizedRijndael implements BlockCipher {
+
+		private final Object sessionKey;
+
+		SynchronizedRijndael(byte[] key) throws InvalidKeyException {
+			sessionKey = Rijndael_Algorithm.makeKey(key, 32);
+		}
+
+		@Override
+		public void initialize(byte[] key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int getKeySize() {
+			return 256;
+		}
+
+		@Override
+		public int getBlockSize() {
+			return 256;
+		}
+
+		@Override
+		public synchronized void encipher(byte[] block, byte[] result) {
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, 32);
+		}
+
+		@Override
+		public synchronized void decipher(byte[] block, byte[] result) {
+			Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, 32);
+		}
+
+	}
+
+	private interface PacketCipher {
+		void encrypt(byte[] iv, byte[] buf) throws GeneralSecurityException;
+	}
+
+	/** @return Packets per second, with the given number of threads sharing one cipher. */
+	private static long benchmarkPackets(final PacketCipher cipher, int threadCount, final int size) throws InterruptedException {
+		final int packets = 100000 / threadCount;
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[threadCount];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] iv = new byte[32];
+					byte[] buf = new byte[size];
+					try {
+						for(int i=0;i<packets;i++) {
+							iv[0] = (byte) i;
+							cipher.encrypt(iv, buf);
+						}
+					} catch (Throwable e) {
+						synchronized(failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		long time = System.nanoTime() - start;
+		synchronized(failure) {
+			if(failure[0] != null) throw new RuntimeException(failure[0]);
+		}
+		return (long)packets * threadCount * 1000L * 1000L * 1000L / time;
+	}
+
+	/** Packet encryption: the old locked cipher, the lock-free bulk CFB, and JCE AES (128-bit blocks). */
+	public void testBenchmarkPacketCiphers() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final byte[] key = new byte[32];
+		rand.nextBytes(key);
+		final SynchronizedRijndael locked = new SynchronizedRijndael(key);
+		final Rijndael aes = new Rijndael(256, 256);
+		aes.initialize(key);
+		final Rijndael aes128 = new Rijndael(256, 128);
+		aes128.initialize(key);
+		final SecretKeySpec k = new SecretKeySpec(key, "AES");
+		final ThreadLocal<Cipher> jce = new ThreadLocal<Cipher>() {
+			@Override
+			protected Cipher initialValue() {
+				try {
+					return Cipher.getInstance("AES/CFB/NoPadding");
+				} catch (GeneralSecurityException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		PacketCipher[] ciphers = new PacketCipher[] {
+			new PacketCipher() {
+				@Override
+				public void encrypt(byte[] iv, byte[] buf) {
+					locked.encipher(iv, iv);
+					PCFBMode.create(locked, iv).blockEncipher(buf, 0, buf.length);
+				}
+			},
+			new PacketCipher() {
+				@Override
+				public void encrypt(byte[] iv, byte[] buf) {
+					aes.encipher(iv, iv);
+					aes.encipherCFB(iv, buf, 0, buf.length);
+				}
+			},
+			new PacketCipher() {
+				@Override
+				public void encrypt(byte[] iv, byte[] buf) {
+					aes128.encipherCFB(iv, buf, 0, buf.length);
+				}
+			},
+			new PacketCipher() {
+				@Override
+				public void encrypt(byte[] iv, byte[] buf) throws GeneralSecurityException {
+					Cipher c = jce.get();
+					c.init(Cipher.ENCRYPT_MODE, k, new IvParameterSpec(iv, 0, 16));
+					c.doFinal(buf, 0, buf.length, buf, 0);
+				}
+			}
+		};
+		String[] names = new String[] { "Locked Rijndael(256,256) PCFB", "Lock-free Rijndael(256,256) CFB",
+				"Lock-free Rijndael(256,128) CFB", "JCE AES/CFB" };
+		int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		for(int size : new int[] { 64, 512, 1280 }) {
+			for(int i=0;i<ciphers.length;i++) {
+				try {
+					benchmarkPackets(ciphers[i], 1, size); // Warm up.
+				} catch (RuntimeException e) {
+					System.out.println(names[i] + ": unavailable: " + e);
+					continue;
+				}
+				for(int threads = 1; threads <= maxThreads; threads *= 2)
+					System.out.println(names[i] + ", " + size + " bytes, " + threads + " threads: " +
+							benchmarkPackets(ciphers[i], threads, size) + " packets/sec");
+			}
+		}
+	}
 }
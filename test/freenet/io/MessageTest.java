@@ -1,10 +1,17 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -34,6 +41,24 @@ public class MessageTest extends TestCase {
 		addField(FLOAT_ARRAY, float[].class);
 	}};
 
+	private static final String STRING = "string";
+	private static final String SHORT_BUFFER = "shortBuffer";
+	private static final String BUFFER = "buffer";
+
+	/** Only fields whose length is known without serializing them. */
+	private static final MessageType testFixed = new MessageType("testFixed", DMT.PRIORITY_LOW) {{
+		addField(BOOLEAN, Boolean.class);
+		addField(BYTE, Byte.class);
+		addField(SHORT, Short.class);
+		addField(INT, Integer.class);
+		addField(LONG, Long.class);
+		addField(DOUBLE, Double.class);
+		addField(FLOAT, Float.class);
+		addField(STRING, String.class);
+		addField(SHORT_BUFFER, ShortBuffer.class);
+		addField(BUFFER, Buffer.class);
+	}};
+
 	/**
 	 * Test that different types can be set and retrieved to and from a Message.
 	 */
@@ -73,4 +98,117 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/** Encode a message the way Message used to, field by field with Serializer. */
+	private static byte[] encodeWithSerializer(Message msg) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(msg.getSpec().getName().hashCode());
+		for (String name : msg.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(msg.getObject(name), dos);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static Message createTest() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, false);
+		msg.set(BYTE, (byte)1);
+		msg.set(SHORT, (short)2);
+		msg.set(INT, 3);
+		msg.set(LONG, 4L);
+		msg.set(DOUBLE, 5.0);
+		msg.set(FLOAT, 6.0f);
+		msg.set(DOUBLE_ARRAY, new double[] { Math.PI, Math.E });
+		msg.set(FLOAT_ARRAY, new float[] { 1234.5678f, 912345.6789f });
+		return msg;
+	}
+
+	private static Message createFixed() {
+		Message msg = new Message(testFixed);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-5);
+		msg.set(SHORT, (short)-456);
+		msg.set(INT, -78912);
+		msg.set(LONG, 3456789123L);
+		msg.set(DOUBLE, Math.E);
+		msg.set(FLOAT, -0.5f);
+		msg.set(STRING, "Hello \u00e9");
+		byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7 };
+		msg.set(SHORT_BUFFER, new ShortBuffer(data, 2, 3));
+		msg.set(BUFFER, new Buffer(data, 1, 6));
+		return msg;
+	}
+
+	/**
+	 * Test that the encoding is the same as field by field serialization, and that it
+	 * decodes to the same values.
+	 */
+	public void testEncodeDecode() throws IOException {
+		for (Message msg : new Message[] { createFixed(), createTest(), DMT.createFNPAccepted(12345L) }) {
+			byte[] encoded = msg.encodeToPacket();
+			assertTrue(Arrays.equals(encodeWithSerializer(msg), encoded));
+			Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+			assertNotNull(decoded);
+			assertSame(msg.getSpec(), decoded.getSpec());
+			for (String name : msg.getSpec().getOrderedFields()) {
+				Object o = msg.getObject(name);
+				if (o instanceof double[])
+					assertTrue(Arrays.equals((double[]) o, decoded.getDoubleArray(name)));
+				else if (o instanceof float[])
+					assertTrue(Arrays.equals((float[]) o, decoded.getFloatArray(name)));
+				else if (o instanceof ShortBuffer) // equals() compares the offset too
+					assertTrue(Arrays.equals(((ShortBuffer) o).getData(), decoded.getShortBufferBytes(name)));
+				else if (o instanceof Buffer)
+					assertTrue(Arrays.equals(((Buffer) o).getData(), ((Buffer) decoded.getObject(name)).getData()));
+				else
+					assertEquals(o, decoded.getObject(name));
+			}
+			assertTrue(Arrays.equals(encoded, decoded.encodeToPacket()));
+		}
+	}
+
+	public void testSubMessages() {
+		Message msg = createFixed();
+		msg.addSubMessage(DMT.createFNPAccepted(1L));
+		byte[] encoded = msg.encodeToPacket();
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertEquals(msg.getLong(LONG), decoded.getLong(LONG));
+		Message sub = decoded.getSubMessage(DMT.FNPAccepted);
+		assertNotNull(sub);
+		assertEquals(1L, sub.getLong(DMT.UID));
+	}
+
+	public void testUnsetAndWrongType() {
+		Message msg = new Message(testFixed);
+		assertFalse(msg.isSet(INT));
+		assertNull(msg.getObject(INT));
+		try {
+			msg.getInt(INT);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected, same as unboxing a missing value
+		}
+		try {
+			msg.set(INT, 1L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		msg.set(INT, 1);
+		assertTrue(msg.isSet(INT));
+		assertEquals(Integer.valueOf(1), msg.getObject(INT));
+		try {
+			msg.getLong(INT);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected, same as casting the wrong boxed type
+		}
+		try {
+			msg.encodeToPacket();
+			fail();
+		} catch (NullPointerException e) {
+			// Expected, other fields are not set
+		}
+	}
 }
@@ -0,0 +1,196 @@
+package freenet.io.comm;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+/**
+ * Tests dispatching messages to filters in MessageCore.
+ */
+public class MessageCoreTest extends TestCase {
+
+	private PooledExecutor exec;
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+		core = new MessageCore(exec);
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+
+		Message matched;
+		int matchCount;
+		int timeoutCount;
+		boolean shouldTimeout;
+
+		@Override
+		public void onMatched(Message m) {
+			matched = m;
+			matchCount++;
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			timeoutCount++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			// Ignore
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore
+		}
+
+	}
+
+	private static MessageFilter acceptedFilter(long uid, long timeout) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	public void testMatchByUID() throws DisconnectedException {
+		Callback[] callbacks = new Callback[100];
+		for(int i=0;i<callbacks.length;i++) {
+			callbacks[i] = new Callback();
+			core.addAsyncFilter(acceptedFilter(i, 60000), callbacks[i], null);
+		}
+		Message m = DMT.createFNPAccepted(42);
+		core.checkFilters(m, null);
+		for(int i=0;i<callbacks.length;i++) {
+			if(i == 42) {
+				assertEquals(1, callbacks[i].matchCount);
+				assertSame(m, callbacks[i].matched);
+			} else
+				assertEquals(0, callbacks[i].matchCount);
+		}
+		// Filter is removed once matched.
+		core.checkFilters(DMT.createFNPAccepted(42), null);
+		assertEquals(1, callbacks[42].matchCount);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		// Wrong type with the right UID doesn't match.
+		core.checkFilters(DMT.createFNPRejectedLoop(43), null);
+		assertEquals(0, callbacks[43].matchCount);
+		assertEquals(2, core.getUnclaimedFIFOSize());
+	}
+
+	public void testNearestTimeoutWins() throws DisconnectedException {
+		Callback later = new Callback();
+		Callback sooner = new Callback();
+		Callback typeOnly = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(50000), typeOnly, null);
+		core.addAsyncFilter(acceptedFilter(1, 60000), later, null);
+		core.addAsyncFilter(acceptedFilter(1, 30000), sooner, null);
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, sooner.matchCount);
+		assertEquals(0, later.matchCount);
+		assertEquals(0, typeOnly.matchCount);
+		// The filter on type only comes before the later one.
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, typeOnly.matchCount);
+		assertEquals(0, later.matchCount);
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, later.matchCount);
+	}
+
+	public void testOr() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter rejected = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 7L).setTimeout(60000);
+		core.addAsyncFilter(acceptedFilter(7, 60000).or(rejected), cb, null);
+		Message m = DMT.createFNPRejectedLoop(7);
+		core.checkFilters(m, null);
+		assertEquals(1, cb.matchCount);
+		assertSame(m, cb.matched);
+		core.checkFilters(DMT.createFNPAccepted(7), null);
+		assertEquals(1, cb.matchCount);
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		Message m = DMT.createFNPAccepted(5);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		Callback cb = new Callback();
+		core.addAsyncFilter(acceptedFilter(5, 60000), cb, null);
+		assertEquals(1, cb.matchCount);
+		assertSame(m, cb.matched);
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testTimeout() throws DisconnectedException, InterruptedException {
+		Callback expires = new Callback();
+		Callback stays = new Callback();
+		Callback asked = new Callback();
+		core.addAsyncFilter(acceptedFilter(1, 10), expires, null);
+		core.addAsyncFilter(acceptedFilter(2, 60000), stays, null);
+		core.addAsyncFilter(acceptedFilter(3, 60000), asked, null);
+		Thread.sleep(50);
+		asked.shouldTimeout = true;
+		long next = System.currentTimeMillis() + 1000;
+		assertEquals(next, core.removeTimedOutFilters(next));
+		assertEquals(1, expires.timeoutCount);
+		assertEquals(0, stays.timeoutCount);
+		assertEquals(1, asked.timeoutCount);
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		core.checkFilters(DMT.createFNPAccepted(3), null);
+		assertEquals(0, expires.matchCount);
+		assertEquals(1, stays.matchCount);
+		assertEquals(0, asked.matchCount);
+	}
+
+	public void testWaitFor() throws DisconnectedException {
+		final MessageFilter filter = acceptedFilter(9, 60000);
+		final Message m = DMT.createFNPAccepted(9);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				core.checkFilters(m, null);
+			}
+		};
+		t.start();
+		assertSame(m, core.waitFor(filter, null));
+		assertNull(core.waitFor(acceptedFilter(10, 10), null));
+	}
+
+	/** Dispatch latency against the number of filters waiting. */
+	public void testBenchmarkDispatch() throws DisconnectedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int dispatches = 200000;
+		for(int filters = 10; filters <= 100000; filters *= 10) {
+			core = new MessageCore(exec);
+			Callback cb = new Callback();
+			for(int i=0;i<filters;i++)
+				core.addAsyncFilter(acceptedFilter(i, 3600000), cb, null);
+			Message[] messages = new Message[filters];
+			for(int i=0;i<filters;i++)
+				messages[i] = DMT.createFNPAccepted(i);
+			long time = 0;
+			long uid = 0;
+			for(int i=0;i<dispatches;i++) {
+				uid = (uid * 6364136223846793005L + 1442695040888963407L);
+				int x = (int)((uid >>> 33) % filters);
+				long start = System.nanoTime();
+				core.checkFilters(messages[x], null);
+				time += System.nanoTime() - start;
+				core.addAsyncFilter(acceptedFilter(x, 3600000), cb, null);
+			}
+			assertEquals(dispatches, cb.matchCount);
+			System.out.println(filters + " filters: " + (time / dispatches) + "ns per dispatch");
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import freenet.node.RequestTracker.CountedRequests;
+import freenet.support.TestProperty;
+
+public class RequestTrackerTest extends TestCase {
+
+	private RequestTracker tracker;
+
+	@Override
+	protected void setUp() {
+		tracker = new RequestTracker(null, null);
+	}
+
+	private InsertTag insert(boolean ssk, boolean realTimeFlag, long uid) {
+		return new InsertTag(ssk, InsertTag.START.LOCAL, null, realTimeFlag, uid, tracker);
+	}
+
+	private RequestTag request(boolean ssk, boolean realTimeFlag, long uid) {
+		return new RequestTag(ssk, RequestTag.START.LOCAL, null, realTimeFlag, uid, tracker);
+	}
+
+	private CountedRequests count(boolean ssk, boolean insert, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequests(true, ssk, insert, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, null);
+		return counter;
+	}
+
+	private void assertCounts(CountedRequests counter, int total, int in, int out) {
+		assertEquals(total, counter.total());
+		assertEquals(in, counter.expectedTransfersIn());
+		assertEquals(out, counter.expectedTransfersOut());
+	}
+
+	public void testLockAndUnlock() {
+		InsertTag a = insert(false, false, 1);
+		InsertTag b = insert(false, false, 2);
+		assertCounts(count(false, true, false, 3, false), 0, 0, 0);
+		assertTrue(tracker.lockUID(a));
+		assertTrue(tracker.lockUID(b));
+		assertFalse(tracker.lockUID(insert(false, false, 2)));
+		assertCounts(count(false, true, false, 3, false), 2, 0, 6);
+		assertCounts(count(false, true, false, 5, true), 2, 2, 10);
+		// Other classes are not affected.
+		assertCounts(count(true, true, false, 3, false), 0, 0, 0);
+		assertCounts(count(false, false, false, 3, false), 0, 0, 0);
+		assertCounts(count(false, true, true, 3, false), 0, 0, 0);
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequests(false, false, true, false, false, 3, false, counter, null);
+		assertCounts(counter, 0, 0, 0);
+		a.unlockHandler(true);
+		assertCounts(count(false, true, false, 3, false), 1, 0, 3);
+		// Unlocking twice doesn't count twice.
+		tracker.unlockUID(a, true, true);
+		assertCounts(count(false, true, false, 3, false), 1, 0, 3);
+		b.setNotRoutedOnwards();
+		assertCounts(count(false, true, false, 3, false), 1, 0, 0);
+		b.unlockHandler(true);
+		assertCounts(count(false, true, false, 3, false), 0, 0, 0);
+	}
+
+	public void testStateChanges() {
+		RequestTag a = request(true, true, 1);
+		RequestTag b = request(true, true, 2);
+		tracker.lockUID(a);
+		tracker.lockUID(b);
+		assertCounts(count(true, false, true, 0, true), 2, 2, 2);
+		a.setNotRoutedOnwards();
+		assertCounts(count(true, false, true, 0, true), 2, 1, 2);
+		CountedRequests counter = new CountedRequests();
+		CountedRequests counterSR = new CountedRequests();
+		tracker.countRequests(true, true, false, false, true, 0, true, counter, counterSR);
+		assertCounts(counterSR, 0, 0, 0);
+		b.onRestartOrDisconnectSource();
+		counter = new CountedRequests();
+		counterSR = new CountedRequests();
+		tracker.countRequests(true, true, false, false, true, 0, true, counter, counterSR);
+		assertCounts(counter, 2, 1, 1);
+		assertCounts(counterSR, 1, 1, 0);
+		// Counted by source too. Local requests have a null source.
+		counter = new CountedRequests();
+		counterSR = new CountedRequests();
+		tracker.countRequests(null, false, true, true, false, false, true, 0, true, counter, counterSR);
+		assertCounts(counter, 2, 1, 1);
+		assertCounts(counterSR, 1, 1, 0);
+		a.completedDownstreamTransfers();
+		assertCounts(count(true, false, true, 0, true), 2, 1, 0);
+		a.unlockHandler(true);
+		b.unlockHandler(true);
+		counter = new CountedRequests();
+		tracker.countRequests(null, false, true, true, false, false, true, 0, true, counter, null);
+		assertCounts(counter, 0, 0, 0);
+	}
+
+	public void testBenchmarkAdmission() {
+		if(!TestProperty.BENCHMARK) return;
+		benchmarkAdmission(1000);
+		benchmarkAdmission(10000);
+	}
+
+	private void benchmarkAdmission(int running) {
+		tracker = new RequestTracker(null, null);
+		ArrayList<UIDTag> tags = new ArrayList<UIDTag>();
+		for(int i=0;i<running;i++) {
+			boolean ssk = (i & 1) != 0;
+			boolean realTimeFlag = (i & 4) != 0;
+			UIDTag tag = (i & 2) != 0 ? insert(ssk, realTimeFlag, i) : request(ssk, realTimeFlag, i);
+			tracker.lockUID(tag);
+			tags.add(tag);
+		}
+		int iterations = 10000;
+		long start = System.nanoTime();
+		for(int i=0;i<iterations;i++)
+			snapshot(tracker);
+		long incremental = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(int i=0;i<iterations / 10;i++)
+			iterate(tags);
+		long iterating = (System.nanoTime() - start) * 10;
+		System.out.println("Admission snapshot with "+running+" running UIDs: "+
+				(incremental / iterations)+"ns incremental, "+(iterating / iterations)+"ns iterating");
+	}
+
+	/** The counts NodeStats takes for each incoming request: global and from the source. */
+	private static int snapshot(RequestTracker tracker) {
+		CountedRequests counter = new CountedRequests();
+		CountedRequests counterSR = new CountedRequests();
+		for(int i=0;i<16;i++) {
+			boolean local = (i & 1) != 0;
+			boolean ssk = (i & 2) != 0;
+			boolean insert = (i & 4) != 0;
+			boolean realTimeFlag = (i & 8) != 0;
+			tracker.countRequests(local, ssk, insert, false, realTimeFlag, 3, false, counter, counterSR);
+			tracker.countRequests(null, false, local, ssk, insert, false, realTimeFlag, 3, false, counter, counterSR);
+		}
+		return counter.total();
+	}
+
+	/** What counting used to cost: looking at every running tag, for both snapshots. */
+	private static int iterate(ArrayList<UIDTag> tags) {
+		int total = 0;
+		for(int i=0;i<2;i++) {
+			for(UIDTag tag : tags) {
+				total += tag.expectedTransfersIn(false, 3, true);
+				total += tag.expectedTransfersOut(false, 3, true);
+				if(tag.countAsSourceRestarted()) total++;
+				if(tag.getSource() == null) total++;
+			}
+		}
+		return total;
+	}
+
+}
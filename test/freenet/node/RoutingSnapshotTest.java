@@ -0,0 +1,341 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that closerPeer() chooses the same peer from RoutingSnapshot.candidates() as it
+ * would from a scan of every peer.
+ */
+public class RoutingSnapshotTest extends TestCase {
+
+	private static class FakePeer implements RoutingSnapshot.RoutablePeer {
+		double location;
+		double[] peersLocation;
+		/** Does closerPeer() use its peers' locations? */
+		boolean foaf = true;
+		boolean routable = true;
+		/** Neither backed off nor timed out. */
+		boolean available = true;
+
+		FakePeer(double location, double... peersLocation) {
+			this.location = location;
+			this.peersLocation = peersLocation.length == 0 ? null : peersLocation;
+		}
+
+		@Override
+		public double getLocation() {
+			return location;
+		}
+
+		@Override
+		public double[] getPeersLocation() {
+			return peersLocation;
+		}
+
+		@Override
+		public String toString() {
+			return "FakePeer@"+location;
+		}
+	}
+
+	/** Peers' peers' locations we have already been to. */
+	private static class Filter implements RoutingSnapshot.CandidateFilter<FakePeer> {
+		final HashSet<Double> visited = new HashSet<Double>();
+
+		@Override
+		public boolean usePeersLocation(FakePeer peer, double location) {
+			return peer.foaf && !visited.contains(location);
+		}
+
+		@Override
+		public boolean canRouteTo(FakePeer peer, int index) {
+			return peer.routable;
+		}
+
+		@Override
+		public boolean isAvailable(FakePeer peer) {
+			return peer.available;
+		}
+	}
+
+	/** How far closerPeer() thinks the peer is from the target, or -1 if it can't use it. */
+	private static double diff(FakePeer p, double target, double maxDistance, Filter filter) {
+		if(!p.routable) return -1;
+		double diff = Location.distance(p.location, target);
+		if(p.peersLocation != null && p.foaf) {
+			for(double l : p.peersLocation) {
+				if(filter.visited.contains(l)) continue;
+				diff = Math.min(diff, Location.distance(l, target));
+			}
+		}
+		return diff > maxDistance ? -1 : diff;
+	}
+
+	/**
+	 * The peer closerPeer() chooses from those given: the closest available peer, or the
+	 * closest unavailable one if there are none. Ties are broken as closerPeer() does.
+	 */
+	private static FakePeer choose(FakePeer[] peers, int[] indexes, double target, double maxDistance, Filter filter) {
+		FakePeer best = null;
+		double bestDiff = Double.MAX_VALUE;
+		double bestReal = Double.MAX_VALUE;
+		FakePeer bestUnavailable = null;
+		double bestUnavailableDiff = Double.MAX_VALUE;
+		double bestUnavailableReal = Double.MAX_VALUE;
+		for(int i : indexes) {
+			FakePeer p = peers[i];
+			double diff = diff(p, target, maxDistance, filter);
+			if(diff < 0) continue;
+			double realDiff = Location.distance(p.location, target);
+			boolean direct = diff == realDiff;
+			if(p.available) {
+				if(diff < bestDiff || (Math.abs(diff - bestDiff) < Double.MIN_VALUE*2 && (direct || realDiff < bestReal))) {
+					best = p;
+					bestDiff = diff;
+					bestReal = realDiff;
+				}
+			} else {
+				if(diff < bestUnavailableDiff || (Math.abs(diff - bestUnavailableDiff) < Double.MIN_VALUE*2 && (direct || realDiff < bestUnavailableReal))) {
+					bestUnavailable = p;
+					bestUnavailableDiff = diff;
+					bestUnavailableReal = realDiff;
+				}
+			}
+		}
+		return best != null ? best : bestUnavailable;
+	}
+
+	private static int[] all(FakePeer[] peers) {
+		int[] all = new int[peers.length];
+		for(int i=0;i<all.length;i++)
+			all[i] = i;
+		return all;
+	}
+
+	/** Check the candidates against a full scan of the peers. */
+	private static void check(RoutingSnapshot<FakePeer> snapshot, FakePeer[] peers, double target, double maxDistance, Filter filter) {
+		int[] candidates = snapshot.candidates(target, maxDistance, filter);
+		String msg = "target "+target+" max "+maxDistance+" candidates "+Arrays.toString(candidates);
+		HashSet<FakePeer> found = new HashSet<FakePeer>();
+		for(int i=0;i<candidates.length;i++) {
+			if(i > 0) assertTrue(msg, candidates[i] > candidates[i-1]);
+			// May be slightly out of range, see SLACK.
+			assertTrue(msg, diff(peers[candidates[i]], target, maxDistance + RoutingSnapshot.SLACK, filter) >= 0);
+			found.add(peers[candidates[i]]);
+		}
+		FakePeer expected = choose(peers, all(peers), target, maxDistance, filter);
+		assertSame(msg, expected, choose(peers, candidates, target, maxDistance, filter));
+		if(expected == null || !expected.available) {
+			// The fallbacks need to see every peer in range.
+			for(FakePeer p : peers)
+				if(diff(p, target, maxDistance, filter) >= 0)
+					assertTrue(msg+" missing "+p, found.contains(p));
+		}
+	}
+
+	private static FakePeer[] randomPeers(Random r, int count, boolean coarse) {
+		FakePeer[] peers = new FakePeer[count];
+		for(int i=0;i<count;i++) {
+			double[] foaf = new double[r.nextInt(4)];
+			for(int j=0;j<foaf.length;j++)
+				foaf[j] = randomLocation(r, coarse);
+			peers[i] = new FakePeer(randomLocation(r, coarse), foaf);
+			randomise(r, peers[i]);
+		}
+		return peers;
+	}
+
+	/** Coarse locations give lots of ties, including at 0.0 and 1.0. */
+	private static double randomLocation(Random r, boolean coarse) {
+		return coarse ? r.nextInt(33) / 32.0 : r.nextDouble();
+	}
+
+	private static void randomise(Random r, FakePeer p) {
+		p.foaf = r.nextInt(4) != 0;
+		p.routable = r.nextInt(8) != 0;
+		p.available = r.nextInt(3) != 0;
+	}
+
+	/** Some of the peers' locations, to ignore as already visited. */
+	private static Filter randomFilter(Random r, FakePeer[] peers) {
+		Filter filter = new Filter();
+		for(FakePeer p : peers) {
+			if(p.peersLocation != null && r.nextInt(10) == 0)
+				filter.visited.add(p.peersLocation[0]);
+		}
+		return filter;
+	}
+
+	private static void checkRandom(Random r, RoutingSnapshot<FakePeer> snapshot, FakePeer[] peers, boolean coarse) {
+		Filter filter = randomFilter(r, peers);
+		for(int j=0;j<20;j++) {
+			double target = randomLocation(r, coarse);
+			check(snapshot, peers, target, 1.0, filter);
+			check(snapshot, peers, target, r.nextDouble() * 0.2, filter);
+		}
+	}
+
+	public void testRandomPeers() {
+		Random r = new Random(1234);
+		for(int i=0;i<200;i++) {
+			boolean coarse = i % 2 == 0;
+			FakePeer[] peers = randomPeers(r, r.nextInt(40), coarse);
+			checkRandom(r, RoutingSnapshot.create(peers), peers, coarse);
+		}
+	}
+
+	/** The cursor visits every point once, in order of distance, across 0.0/1.0. */
+	public void testCursorOrder() {
+		Random r = new Random(5678);
+		for(int i=0;i<100;i++) {
+			FakePeer[] peers = randomPeers(r, 1 + r.nextInt(20), i % 2 == 0);
+			RoutingSnapshot<FakePeer> snapshot = RoutingSnapshot.create(peers);
+			ArrayList<Double> expected = new ArrayList<Double>();
+			for(FakePeer p : peers) {
+				expected.add(p.location);
+				if(p.peersLocation != null)
+					for(double l : p.peersLocation) expected.add(l);
+			}
+			assertEquals(expected.size(), snapshot.size());
+			double target = i % 10 == 0 ? 0.0 : r.nextDouble();
+			RoutingSnapshot<FakePeer>.Cursor cursor = snapshot.cursor(target);
+			ArrayList<Double> visited = new ArrayList<Double>();
+			double last = 0.0;
+			while(cursor.next()) {
+				assertEquals(Location.distance(cursor.location(), target), cursor.distance());
+				assertTrue(cursor.distance() >= last - RoutingSnapshot.SLACK);
+				last = cursor.distance();
+				visited.add(cursor.location());
+			}
+			Collections.sort(expected);
+			Collections.sort(visited);
+			assertEquals(expected, visited);
+		}
+		assertFalse(RoutingSnapshot.create(new FakePeer[0]).cursor(0.5).next());
+	}
+
+	public void testWrapAround() {
+		FakePeer high = new FakePeer(0.99);
+		FakePeer low = new FakePeer(0.02);
+		FakePeer middle = new FakePeer(0.5);
+		FakePeer[] peers = new FakePeer[] { high, low, middle };
+		RoutingSnapshot<FakePeer> snapshot = RoutingSnapshot.create(peers);
+		Filter filter = new Filter();
+		// 0.99 is closer to 0.001 than 0.02 is.
+		assertTrue(Arrays.equals(new int[] { 0 }, snapshot.candidates(0.001, 1.0, filter)));
+		assertTrue(Arrays.equals(new int[] { 0 }, snapshot.candidates(0.0, 1.0, filter)));
+		assertTrue(Arrays.equals(new int[] { 1 }, snapshot.candidates(0.03, 1.0, filter)));
+		// And the other way.
+		RoutingSnapshot<FakePeer> other = RoutingSnapshot.create(new FakePeer[] { new FakePeer(0.97), new FakePeer(0.005) });
+		assertTrue(Arrays.equals(new int[] { 1 }, other.candidates(0.995, 1.0, filter)));
+		assertTrue(Arrays.equals(new int[] { 1 }, other.candidates(1.0, 1.0, filter)));
+		assertTrue(Arrays.equals(new int[] { 0 }, other.candidates(0.98, 1.0, filter)));
+		// If the closest is backed off, we go round to the next.
+		high.available = false;
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, snapshot.candidates(0.001, 1.0, filter)));
+		// A FOAF location across the boundary.
+		FakePeer foaf = new FakePeer(0.6, 0.0005);
+		peers = new FakePeer[] { high, low, middle, foaf };
+		snapshot = RoutingSnapshot.create(peers);
+		assertTrue(Arrays.equals(new int[] { 3 }, snapshot.candidates(0.9999, 1.0, filter)));
+		foaf.foaf = false;
+		check(snapshot, peers, 0.9999, 1.0, filter);
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, snapshot.candidates(0.9999, 1.0, filter)));
+		for(double target : new double[] { 0.0, 0.0005, 0.005, 0.5, 0.75, 0.995, 1.0 })
+			for(double max : new double[] { 0.001, 0.01, 0.5, 1.0 })
+				check(snapshot, peers, target, max, filter);
+	}
+
+	/** Distances within SLACK of the best, or of the limit, are included. */
+	public void testSlack() {
+		double d = 0.1;
+		FakePeer best = new FakePeer(0.5 + d);
+		FakePeer justOver = new FakePeer(0.5 - d - RoutingSnapshot.SLACK / 4);
+		FakePeer over = new FakePeer(0.5 + d + 1e-9);
+		FakePeer[] peers = new FakePeer[] { best, justOver, over };
+		RoutingSnapshot<FakePeer> snapshot = RoutingSnapshot.create(peers);
+		Filter filter = new Filter();
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, snapshot.candidates(0.5, 1.0, filter)));
+		check(snapshot, peers, 0.5, 1.0, filter);
+		// The same for the maximum distance, when nothing is available.
+		for(FakePeer p : peers)
+			p.available = false;
+		double max = Location.distance(best.location, 0.5);
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, snapshot.candidates(0.5, max, filter)));
+		check(snapshot, peers, 0.5, max, filter);
+		// Ties from rounding: 0.1 and 0.5 are not quite the same distance from 0.3.
+		FakePeer a = new FakePeer(0.1);
+		FakePeer b = new FakePeer(0.5);
+		FakePeer c = new FakePeer(0.7, 0.1);
+		peers = new FakePeer[] { b, c, a };
+		snapshot = RoutingSnapshot.create(peers);
+		assertTrue(Arrays.equals(new int[] { 0, 1, 2 }, snapshot.candidates(0.3, 1.0, filter)));
+		check(snapshot, peers, 0.3, 1.0, filter);
+		// The FOAF location ties with a's, and direct wins.
+		a.available = false;
+		check(snapshot, peers, 0.3, 1.0, filter);
+	}
+
+	/** update() gives the same snapshot as building a new one. */
+	public void testUpdate() {
+		Random r = new Random(9012);
+		for(int i=0;i<100;i++) {
+			boolean coarse = i % 2 == 0;
+			FakePeer[] peers = randomPeers(r, r.nextInt(30), coarse);
+			RoutingSnapshot<FakePeer> snapshot = RoutingSnapshot.create(peers);
+			for(int round=0;round<5;round++) {
+				// Some disconnect, some connect, some move.
+				ArrayList<FakePeer> list = new ArrayList<FakePeer>();
+				HashSet<FakePeer> changed = new HashSet<FakePeer>();
+				for(FakePeer p : peers) {
+					if(r.nextInt(5) == 0) continue;
+					if(r.nextInt(4) == 0) {
+						p.location = randomLocation(r, coarse);
+						if(p.peersLocation != null && r.nextBoolean())
+							p.peersLocation[0] = randomLocation(r, coarse);
+						changed.add(p);
+					}
+					list.add(p);
+				}
+				FakePeer[] removed = peers;
+				list.addAll(Arrays.asList(randomPeers(r, r.nextInt(5), coarse)));
+				Collections.shuffle(list, r);
+				boolean samePeers = round == 4;
+				if(samePeers) {
+					// Only locations changed.
+					list = new ArrayList<FakePeer>(Arrays.asList(peers));
+					for(FakePeer p : peers) {
+						p.location = randomLocation(r, coarse);
+						changed.add(p);
+					}
+				}
+				FakePeer[] newPeers = samePeers ? peers : list.toArray(new FakePeer[list.size()]);
+				snapshot = snapshot.update(newPeers, changed);
+				assertSame(newPeers, snapshot.peers);
+				RoutingSnapshot<FakePeer> fresh = RoutingSnapshot.create(newPeers);
+				assertEquals(fresh.size(), snapshot.size());
+				for(FakePeer p : removed)
+					assertEquals(list.indexOf(p), snapshot.indexOf(p));
+				for(int j=0;j<20;j++) {
+					double target = randomLocation(r, coarse);
+					Filter filter = randomFilter(r, newPeers);
+					double max = r.nextBoolean() ? 1.0 : r.nextDouble() * 0.2;
+					assertTrue(Arrays.equals(fresh.candidates(target, max, filter), snapshot.candidates(target, max, filter)));
+					check(snapshot, newPeers, target, max, filter);
+				}
+				peers = newPeers;
+			}
+			checkRandom(r, snapshot, peers, coarse);
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the bounded buffer between the FCP selector and a message handler.
+ */
+public class FCPDataInputStreamTest extends TestCase {
+
+	private static class Counter implements Runnable {
+		int count;
+
+		@Override
+		public synchronized void run() {
+			count++;
+			notifyAll();
+		}
+	}
+
+	public void testBounded() throws IOException {
+		Counter spaces = new Counter();
+		FCPDataInputStream is = new FCPDataInputStream(100, 16, spaces);
+		byte[] data = new byte[120];
+		new Random(1).nextBytes(data);
+		ByteBuffer src = ByteBuffer.wrap(data);
+		assertFalse(is.offer(src));
+		assertEquals(16, src.position());
+		assertEquals(16, is.available());
+		byte[] out = new byte[100];
+		assertEquals(10, is.read(out, 0, 10));
+		assertEquals(1, spaces.count);
+		// Wraps around the end of the buffer.
+		assertFalse(is.offer(src));
+		assertEquals(26, src.position());
+		int read = 10;
+		while(read < 100) {
+			int r = is.read(out, read, 100 - read);
+			assertTrue(r > 0);
+			read += r;
+			is.offer(src);
+		}
+		// Only the message's data is taken, the rest is left for the next message.
+		assertEquals(100, src.position());
+		assertEquals(0, is.remainingToOffer());
+		assertEquals(-1, is.read());
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 100), out));
+	}
+
+	public void testBlockingReadAndAbort() throws Exception {
+		final FCPDataInputStream is = new FCPDataInputStream(1000, 64, new Counter());
+		final byte[] data = new byte[1000];
+		new Random(2).nextBytes(data);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				ByteBuffer src = ByteBuffer.wrap(data);
+				while(src.hasRemaining()) {
+					if(!is.offer(src))
+						Thread.yield();
+				}
+			}
+		};
+		producer.start();
+		byte[] out = new byte[1000];
+		int read = 0;
+		while(read < out.length) {
+			int r = is.read(out, read, out.length - read);
+			assertTrue(r > 0);
+			read += r;
+		}
+		producer.join();
+		assertTrue(Arrays.equals(data, out));
+
+		FCPDataInputStream aborted = new FCPDataInputStream(10, 64, new Counter());
+		aborted.offer(ByteBuffer.wrap(new byte[4]));
+		aborted.abort();
+		assertEquals(4, aborted.read(new byte[10], 0, 10));
+		try {
+			aborted.read();
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+}
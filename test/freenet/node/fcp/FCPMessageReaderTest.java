@@ -0,0 +1,98 @@
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests parsing FCP message headers incrementally.
+ */
+public class FCPMessageReaderTest extends TestCase {
+
+	private static final String MESSAGES =
+		"\r\nClientHello\r\nName=test\r\nExpectedVersion=2.0\r\nEndMessage\r\n" +
+		"ClientPut\n# comment\nURI=CHK@\nIdentifier=été\nDataLength=5\nData\nhello" +
+		"\nListPeers\nEndMessage\n";
+
+	/** Read the three messages, feeding the reader the given number of bytes at a time. */
+	private void readAll(int chunk) throws IOException {
+		byte[] bytes = MESSAGES.getBytes("UTF-8");
+		FCPMessageReader reader = new FCPMessageReader();
+		ByteBuffer buf = ByteBuffer.allocate(bytes.length);
+		buf.flip();
+		int fed = 0;
+		int message = 0;
+		while(message < 3) {
+			int len = Math.min(chunk, bytes.length - fed);
+			assertTrue("Ran out of data at message "+message, len > 0 || buf.hasRemaining());
+			buf.compact();
+			buf.put(bytes, fed, len);
+			fed += len;
+			buf.flip();
+			while(reader.read(buf)) {
+				SimpleFieldSet fs = reader.getFieldSet();
+				String type = reader.getMessageType();
+				reader.reset();
+				if(message == 0) {
+					assertEquals("ClientHello", type);
+					assertEquals("test", fs.get("Name"));
+					assertEquals("2.0", fs.get("ExpectedVersion"));
+					assertEquals("EndMessage", fs.getEndMarker());
+				} else if(message == 1) {
+					assertEquals("ClientPut", type);
+					assertEquals("été", fs.get("Identifier"));
+					assertEquals("Data", fs.getEndMarker());
+					assertEquals(5, fs.getInt("DataLength", -1));
+					// The data is left for the caller.
+					while(buf.remaining() < 5) {
+						buf.compact();
+						buf.put(bytes, fed++, 1);
+						buf.flip();
+					}
+					byte[] data = new byte[5];
+					buf.get(data);
+					assertEquals("hello", new String(data, "UTF-8"));
+				} else {
+					assertEquals("ListPeers", type);
+					assertEquals("EndMessage", fs.getEndMarker());
+				}
+				message++;
+				if(message == 3) break;
+			}
+		}
+		assertFalse(reader.inProgress());
+	}
+
+	public void testChunks() throws IOException {
+		for(int chunk = 1; chunk <= 64; chunk++)
+			readAll(chunk);
+		readAll(Integer.MAX_VALUE);
+	}
+
+	public void testTooLong() throws IOException {
+		FCPMessageReader reader = new FCPMessageReader();
+		byte[] name = new byte[FCPMessageReader.MAX_NAME_LENGTH + 1];
+		Arrays.fill(name, (byte)'a');
+		try {
+			reader.read(ByteBuffer.wrap(name));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		reader = new FCPMessageReader();
+		assertFalse(reader.read(ByteBuffer.wrap("ClientHello\nName=".getBytes("UTF-8"))));
+		assertTrue(reader.inProgress());
+		byte[] value = new byte[FCPMessageReader.MAX_LINE_LENGTH];
+		Arrays.fill(value, (byte)'b');
+		try {
+			reader.read(ByteBuffer.wrap(value));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+}
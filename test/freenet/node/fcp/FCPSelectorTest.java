@@ -0,0 +1,201 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.client.async.ClientContext;
+import freenet.crypt.DummyRandomSource;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.TempBucketFactory;
+
+/**
+ * Talks FCP to the non-blocking transport over a loopback connection. There is no real
+ * node: the FCPServer only needs a few of its fields, for the messages we send.
+ */
+public class FCPSelectorTest extends TestCase {
+
+	private static final int MAX_QUEUED = 8;
+
+	private PooledExecutor executor;
+	private FCPServer server;
+	private ServerSocketChannel listener;
+	private SocketChannel accepted;
+	private Socket client;
+	private DataInputStream in;
+	private OutputStream out;
+	private FCPConnectionHandler handler;
+
+	/** A message read from the node. */
+	private static class Reply {
+		final String name;
+		final SimpleFieldSet fs = new SimpleFieldSet(true);
+		byte[] data;
+
+		Reply(String name) {
+			this.name = name;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		executor = new PooledExecutor();
+		executor.start();
+		Random weakPRNG = new Random(1234);
+		TempBucketFactory tbf = new TempBucketFactory(executor, new FilenameGenerator(weakPRNG, false, null, "junit"),
+				4096, 1024*1024, new DummyRandomSource(4321), weakPRNG, false);
+		Node node = allocate(Node.class);
+		set(node, "executor", executor);
+		set(node, "random", new DummyRandomSource(1234));
+		NodeClientCore core = allocate(NodeClientCore.class);
+		set(core, "tempBucketFactory", tbf);
+		set(core, "clientContext", new ClientContext(0, 0, null, null, executor, null, null, null, tbf, null, null, null, null, weakPRNG, null, null, null, null, null, null));
+		server = new FCPServer("127.0.0.1", "127.0.0.1", "127.0.0.1", 0, node, core, true, false, false, false, MAX_QUEUED, true, null);
+		FCPSelector selector = new FCPSelector(executor);
+		selector.start();
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		client = new Socket();
+		// Small buffers, so that we can fill them.
+		client.setReceiveBufferSize(4096);
+		client.connect(listener.socket().getLocalSocketAddress());
+		client.setSoTimeout(30000);
+		accepted = listener.accept();
+		accepted.socket().setSendBufferSize(4096);
+		in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+		out = client.getOutputStream();
+		handler = new FCPConnectionHandler(accepted.socket(), server);
+		selector.register(handler);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		accepted.close();
+		listener.close();
+	}
+
+	/** Create an object without running its constructor. */
+	private static <T> T allocate(Class<T> clazz) throws Exception {
+		Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+		f.setAccessible(true);
+		Object unsafe = f.get(null);
+		Method allocateInstance = unsafe.getClass().getMethod("allocateInstance", Class.class);
+		return clazz.cast(allocateInstance.invoke(unsafe, clazz));
+	}
+
+	private static void set(Object o, String name, Object value) throws Exception {
+		Field f = o.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	private void send(String message) throws IOException {
+		out.write(message.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while(true) {
+			int b = in.read();
+			if(b == -1) throw new IOException("Connection closed");
+			if(b == '\n') return new String(line.toByteArray(), "UTF-8");
+			line.write(b);
+		}
+	}
+
+	private Reply read() throws IOException {
+		Reply reply = new Reply(readLine());
+		while(true) {
+			String line = readLine();
+			if(line.equals("EndMessage")) return reply;
+			if(line.equals("Data")) {
+				reply.data = new byte[Integer.parseInt(reply.fs.get("DataLength"))];
+				in.readFully(reply.data);
+				return reply;
+			}
+			int eq = line.indexOf('=');
+			reply.fs.putSingle(line.substring(0, eq), line.substring(eq + 1));
+		}
+	}
+
+	private void hello() throws IOException {
+		send("ClientHello\nName=test\nExpectedVersion=2.0\nEndMessage\n");
+		Reply reply = read();
+		assertEquals("NodeHello", reply.name);
+		assertEquals("2.0", reply.fs.get("FCPVersion"));
+		assertEquals(handler.connectionIdentifier, reply.fs.get("ConnectionIdentifier"));
+	}
+
+	public void testHello() throws IOException {
+		hello();
+		// Only one ClientHello is allowed.
+		send("ClientHello\nName=test\nExpectedVersion=2.0\nEndMessage\n");
+		Reply reply = read();
+		assertEquals("ProtocolError", reply.name);
+		assertEquals(Integer.toString(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS), reply.fs.get("Code"));
+	}
+
+	/** Much more data than fits in any of the buffers, both ways. */
+	public void testBulkData() throws IOException {
+		hello();
+		byte[] data = new byte[1024*1024];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + i % 26);
+		send("Filter\nIdentifier=filter1\nOperation=BOTH\nDataSource=DIRECT\nMimeType=text/plain\nDataLength="+data.length+"\nData\n");
+		out.write(data);
+		out.flush();
+		Reply reply = read();
+		assertEquals("FilterResult", reply.name);
+		assertEquals("filter1", reply.fs.get("Identifier"));
+		assertTrue(Arrays.equals(data, reply.data));
+		// The connection still works.
+		send("Filter\nIdentifier=filter2\nOperation=BOTH\nDataSource=DIRECT\nMimeType=text/plain\nDataLength=3\nData\nabc");
+		reply = read();
+		assertEquals("filter2", reply.fs.get("Identifier"));
+		assertEquals("abc", new String(reply.data, "UTF-8"));
+	}
+
+	/** Messages are only taken off the queue as the client reads them, so a slow client
+	 * shows up as a full queue, which tells the node to stop sending. */
+	public void testBackPressure() throws Exception {
+		hello();
+		byte[] data = new byte[256*1024];
+		new Random(5678).nextBytes(data);
+		ArrayBucket bucket = new ArrayBucket(data);
+		for(int i=0;i<MAX_QUEUED;i++)
+			handler.outputHandler.queue(new AllDataMessage(bucket, "get"+i, false, 0, 0, "application/octet-stream"));
+		// Give the selector a chance to send as much as it can.
+		Thread.sleep(500);
+		assertTrue(handler.outputHandler.isQueueHalfFull());
+		for(int i=0;i<MAX_QUEUED;i++) {
+			Reply reply = read();
+			assertEquals("AllData", reply.name);
+			assertEquals("get"+i, reply.fs.get("Identifier"));
+			assertTrue(Arrays.equals(data, reply.data));
+		}
+		assertFalse(handler.outputHandler.hasQueued());
+		assertFalse(handler.isClosed());
+	}
+
+}
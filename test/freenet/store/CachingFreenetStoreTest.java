@@ -244,6 +244,67 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 
+	/* Concurrent puts and fetches, with write-backs happening at the same time because the cache is small */
+	public void testConcurrentCHK() throws Throwable {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		final int threads = 4;
+		final int perThread = 25;
+		
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreConcurrent", store, weakPRNG, 1000, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, 5*CHKBlock.DATA_LENGTH, cachingFreenetStorePeriod, saltStore, ticker);
+		cachingStore.start(null, true);
+		
+		final ClientCHKBlock[][] blocks = new ClientCHKBlock[threads][perThread];
+		for(int i=0;i<threads;i++)
+			for(int j=0;j<perThread;j++)
+				blocks[i][j] = encodeBlockCHK("test" + i + "-" + j);
+		
+		final Throwable[] failure = new Throwable[1];
+		Thread[] workers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int t = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int j=0;j<perThread;j++) {
+							ClientCHKBlock block = blocks[t][j];
+							store.put(block.getBlock(), false);
+							ClientCHK key = block.getClientKey();
+							CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+							assertEquals("test" + t + "-" + j, decodeBlockCHK(verify, key));
+						}
+					} catch (Throwable e) {
+						synchronized(failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for(Thread worker : workers)
+			worker.join();
+		synchronized(failure) {
+			if(failure[0] != null) throw failure[0];
+		}
+		
+		cachingStore.close();
+		
+		// Everything should have been written back.
+		saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreConcurrent", new CHKStore(), weakPRNG, 1000, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<threads;i++) {
+			for(int j=0;j<perThread;j++) {
+				ClientCHKBlock block = blocks[i][j];
+				assertNotNull(saltStore.fetch(block.getKey().getRoutingKey(), block.getKey().getFullKey(), false, false, false, false, null));
+			}
+		}
+		saltStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -296,6 +296,19 @@ public class RAMSaltMigrationTest extends TestCase {
 		checkSaltedStoreResize(5, 10, 20, true, 60*60*1000, true, false);
 	}
 	
+	/* Large enough that the resize is split between several cleaner threads. */
+	public void testSaltedStoreResizeParallel() throws CHKEncodeException, CHKVerifyException, CHKDecodeException, IOException {
+		int threads = SaltedHashFreenetStore.getCleanerThreads();
+		SaltedHashFreenetStore.setCleanerThreads(4);
+		try {
+			checkSaltedStoreResize(50, 6000, 12000, true, -1, false, true);
+			checkSaltedStoreResize(50, 12000, 6000, true, -1, false, true);
+			checkSaltedStoreResize(50, 12000, 6000, false, -1, false, true);
+		} finally {
+			SaltedHashFreenetStore.setCleanerThreads(threads);
+		}
+	}
+	
 	public void checkSaltedStoreResize(int keycount, int size, int newSize, boolean useSlotFilter, int persistenceTime, boolean abort, boolean openNewSize) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		
 		File f = new File(tempDir, "saltstore-"+keycount+"-"+size+"-"+useSlotFilter);
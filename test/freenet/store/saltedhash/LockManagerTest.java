@@ -0,0 +1,108 @@
+package freenet.store.saltedhash;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class LockManagerTest extends TestCase {
+
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lockManager = new LockManager(4);
+		final int[] counters = new int[8];
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<2000;j++) {
+						int slot = (seed + j) % counters.length;
+						Condition c = lockManager.lockEntry(slot);
+						if(c == null) {
+							errors.incrementAndGet();
+							return;
+						}
+						try {
+							// Not atomic, so lost updates would show if locking didn't work.
+							int v = counters[slot];
+							Thread.yield();
+							counters[slot] = v + 1;
+						} finally {
+							lockManager.unlockEntry(slot, c);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, errors.get());
+		int total = 0;
+		for(int c : counters)
+			total += c;
+		assertEquals(threads.length * 2000, total);
+	}
+
+	public void testShutdown() throws InterruptedException {
+		final LockManager lockManager = new LockManager();
+		final Condition held = lockManager.lockEntry(42);
+		assertNotNull(held);
+		final AtomicInteger shutdownDone = new AtomicInteger();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				lockManager.shutdown();
+				shutdownDone.set(1);
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		// shutdown() waits for held locks.
+		assertEquals(0, shutdownDone.get());
+		// But no new locks can be taken.
+		assertNull(lockManager.lockEntry(43));
+		lockManager.unlockEntry(42, held);
+		t.join(10*1000);
+		assertEquals(1, shutdownDone.get());
+	}
+
+	/* Raw lock throughput, one stripe (the old behaviour) vs the default.
+	 * Run with -Dtest.benchmark=true. */
+	public void testBenchmarkStripes() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int opsPerThread = 200000;
+		for(int stripes : new int[] { 1, new LockManager().stripeCount() }) {
+			for(int threadCount = 1; threadCount <= 32; threadCount *= 2) {
+				final LockManager lockManager = new LockManager(stripes);
+				Thread[] threads = new Thread[threadCount];
+				for(int i=0;i<threadCount;i++) {
+					final int seed = i;
+					threads[i] = new Thread() {
+						@Override
+						public void run() {
+							long slot = seed * 7919L;
+							for(int j=0;j<opsPerThread;j++) {
+								slot = (slot * 6364136223846793005L + 1442695040888963407L) & 0xFFFFF;
+								Condition c = lockManager.lockEntry(slot);
+								lockManager.unlockEntry(slot, c);
+							}
+						}
+					};
+				}
+				long start = System.nanoTime();
+				for(Thread t : threads)
+					t.start();
+				for(Thread t : threads)
+					t.join();
+				long time = System.nanoTime() - start;
+				System.out.println(stripes + " stripes, " + threadCount + " threads: " + 
+						(threadCount * (long)opsPerThread * 1000L * 1000L * 1000L / time) + " lock/unlock per second");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package freenet.store.saltedhash;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class MappedStoreFileTest extends TestCase {
+
+	private static final int SLOT = 100;
+	/** Three slots per segment, so we test crossing segment boundaries. */
+	private static final int SEGMENT = 350;
+
+	private File tempDir;
+	private Random random = new Random(1234);
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-mappedstorefiletest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private byte[] slotData(int slot) {
+		byte[] buf = new byte[SLOT];
+		new Random(slot).nextBytes(buf);
+		return buf;
+	}
+
+	public void testReadWrite() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(new File(tempDir, "test"), "rw");
+		try {
+			raf.setLength(SLOT * 10);
+			MappedStoreFile map = new MappedStoreFile(raf.getChannel(), SLOT, SEGMENT, "test");
+			for(int i=0;i<10;i++)
+				map.write(ByteBuffer.wrap(slotData(i)), i);
+			map.force();
+			// Check via the file.
+			for(int i=0;i<10;i++) {
+				byte[] buf = new byte[SLOT];
+				raf.seek(i * SLOT);
+				raf.readFully(buf);
+				assertTrue(Arrays.equals(slotData(i), buf));
+			}
+			// Check via the mapping.
+			for(int i=0;i<10;i++) {
+				ByteBuffer buf;
+				try {
+					buf = map.acquireSlot(i);
+					assertEquals(0, buf.position());
+					assertEquals(SLOT, buf.remaining());
+					byte[] b = new byte[SLOT];
+					buf.get(b);
+					assertTrue(Arrays.equals(slotData(i), b));
+				} finally {
+					map.release();
+				}
+			}
+			// Bulk read across segment boundaries.
+			ByteBuffer bulk = ByteBuffer.allocate(SLOT * 5);
+			assertEquals(SLOT * 5, map.read(bulk, 2));
+			bulk.flip();
+			for(int i=2;i<7;i++) {
+				byte[] b = new byte[SLOT];
+				bulk.get(b);
+				assertTrue(Arrays.equals(slotData(i), b));
+			}
+			map.close();
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void testGrowAndShrink() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(new File(tempDir, "test"), "rw");
+		try {
+			raf.setLength(SLOT * 4);
+			MappedStoreFile map = new MappedStoreFile(raf.getChannel(), SLOT, SEGMENT, "test");
+			try {
+				map.acquireSlot(5);
+				fail();
+			} catch (EOFException e) {
+				// Expected.
+			} finally {
+				map.release();
+			}
+			// Grow the file behind its back, new space should be mapped lazily.
+			byte[] data = new byte[SLOT];
+			random.nextBytes(data);
+			raf.setLength(SLOT * 8);
+			raf.seek(SLOT * 7);
+			raf.write(data);
+			try {
+				ByteBuffer buf = map.acquireSlot(7);
+				byte[] b = new byte[SLOT];
+				buf.get(b);
+				assertTrue(Arrays.equals(data, b));
+			} finally {
+				map.release();
+			}
+			// Shrink.
+			map.truncate(SLOT * 3);
+			assertEquals(SLOT * 3, raf.length());
+			// Growing is up to the caller.
+			map.truncate(SLOT * 5);
+			assertEquals(SLOT * 3, raf.length());
+			try {
+				map.acquireSlot(3);
+				fail();
+			} catch (EOFException e) {
+				// Expected.
+			} finally {
+				map.release();
+			}
+			assertEquals(-1, map.read(ByteBuffer.allocate(SLOT), 3));
+			assertEquals(SLOT, map.read(ByteBuffer.allocate(SLOT * 2), 2));
+			map.close();
+			// Already flushed.
+			map.force();
+			try {
+				map.acquireSlot(0);
+				fail();
+			} catch (IOException e) {
+				// Expected.
+			} finally {
+				map.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+}
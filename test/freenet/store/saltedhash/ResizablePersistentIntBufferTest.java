@@ -0,0 +1,111 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.store.saltedhash.ResizablePersistentIntBuffer.Storage;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	/** Small segments so we test crossing segment boundaries. */
+	private static final int SEGMENT = 64;
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private void fill(ResizablePersistentIntBuffer buf, int size, long seed) throws IOException {
+		Random r = new Random(seed);
+		for(int i=0;i<size;i++)
+			buf.put(i, r.nextInt());
+	}
+
+	private void check(ResizablePersistentIntBuffer buf, int size, long seed) {
+		Random r = new Random(seed);
+		for(int i=0;i<size;i++)
+			assertEquals(r.nextInt(), buf.get(i));
+	}
+
+	/** Data written with any storage can be read back with any other. */
+	public void testPersistAcrossStorage() throws IOException {
+		int size = 1000;
+		for(Storage write : Storage.values()) {
+			for(Storage read : Storage.values()) {
+				File f = new File(tempDir, "buffer");
+				FileUtil.removeAll(f);
+				ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, size, write, SEGMENT);
+				assertTrue(buf.isNew());
+				fill(buf, size, 1);
+				buf.shutdown();
+				assertEquals(size * 4, f.length());
+				buf = new ResizablePersistentIntBuffer(f, size, read, SEGMENT);
+				assertFalse(buf.isNew());
+				assertEquals(read, buf.getStorage());
+				check(buf, size, 1);
+				buf.shutdown();
+			}
+		}
+	}
+
+	/** The on-disk format is unchanged: little-endian ints, no header. */
+	public void testFormat() throws IOException {
+		for(Storage storage : Storage.values()) {
+			File f = new File(tempDir, "buffer");
+			FileUtil.removeAll(f);
+			ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, 2, storage);
+			buf.put(0, 0x01020304);
+			buf.put(1, -1);
+			buf.shutdown();
+			assertEquals(8, f.length());
+			byte[] data = new byte[8];
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			raf.readFully(data);
+			raf.close();
+			assertEquals(4, data[0]);
+			assertEquals(3, data[1]);
+			assertEquals(2, data[2]);
+			assertEquals(1, data[3]);
+			for(int i=4;i<8;i++)
+				assertEquals(-1, data[i]);
+		}
+	}
+
+	public void testResize() throws IOException {
+		for(Storage storage : Storage.values()) {
+			File f = new File(tempDir, "buffer");
+			FileUtil.removeAll(f);
+			ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, 300, storage, SEGMENT);
+			fill(buf, 300, 2);
+			buf.resize(500);
+			assertEquals(500, buf.size());
+			assertEquals(2000, f.length());
+			check(buf, 300, 2);
+			for(int i=300;i<500;i++)
+				assertEquals(0, buf.get(i));
+			buf.resize(100);
+			assertEquals(400, f.length());
+			check(buf, 100, 2);
+			buf.fill(7);
+			buf.shutdown();
+			buf = new ResizablePersistentIntBuffer(f, 100, storage, SEGMENT);
+			for(int i=0;i<100;i++)
+				assertEquals(7, buf.get(i));
+			buf.shutdown();
+		}
+	}
+
+}
@@ -2,6 +2,8 @@ package freenet.store.saltedhash;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -37,6 +39,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -95,6 +98,182 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/* Simple test with CHK for SaltedHashFreenetStore using memory mapped I/O */
+	public void testSimpleCHKMemoryMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			blocks[i] = block;
+			store.put(block.getBlock(), false);
+			ClientCHK key = block.getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+		
+		saltStore.close();
+		
+		// Written through the mapping, read back through the FileChannel.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals("test" + i, data);
+		}
+		
+		saltStore.close();
+	}
+	
+	/* Batch put, with and without memory mapped I/O */
+	public void testPutAllCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		for(boolean mapped : new boolean[] { false, true }) {
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStorePutAll", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, mapped);
+			saltStore.start(null, true);
+
+			ClientCHKBlock[] blocks = new ClientCHKBlock[20];
+			List<SaltedHashFreenetStore.PendingBlock<CHKBlock>> pending = new ArrayList<SaltedHashFreenetStore.PendingBlock<CHKBlock>>();
+			for(int i=0;i<blocks.length;i++) {
+				blocks[i] = encodeBlockCHK("test" + i);
+				CHKBlock block = blocks[i].getBlock();
+				pending.add(new SaltedHashFreenetStore.PendingBlock<CHKBlock>(block, block.getRawData(), block.getRawHeaders(), false, false));
+			}
+			saltStore.putAll(pending);
+			
+			int found = 0;
+			for(int i=0;i<blocks.length;i++) {
+				ClientCHK key = blocks[i].getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				// Some may have been overwritten, the store is small.
+				if(verify == null) continue;
+				assertEquals("test" + i, decodeBlockCHK(verify, key));
+				found++;
+			}
+			assertTrue(found > blocks.length / 2);
+			assertEquals(found, saltStore.keyCount());
+			
+			saltStore.close();
+		}
+	}
+	
+	/* Compare probe performance with and without memory mapped I/O. 
+	 * Run with -Dtest.benchmark=true. */
+	public void testBenchmarkMemoryMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		if(!TestProperty.BENCHMARK) return;
+		
+		final int keys = 2000;
+		final int inserted = 1000;
+		final int rounds = 20;
+		ClientCHKBlock[] blocks = new ClientCHKBlock[inserted];
+		for(int i=0;i<inserted;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+		ClientCHKBlock[] missing = new ClientCHKBlock[inserted];
+		for(int i=0;i<inserted;i++)
+			missing[i] = encodeBlockCHK("missing" + i);
+		
+		for(boolean mapped : new boolean[] { false, true, false, true }) {
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, keys, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, mapped);
+			saltStore.start(null, true);
+			
+			long start = System.currentTimeMillis();
+			for(ClientCHKBlock block : blocks)
+				store.put(block.getBlock(), false);
+			long putTime = System.currentTimeMillis() - start;
+			
+			start = System.currentTimeMillis();
+			int hits = 0;
+			for(int i=0;i<rounds;i++) {
+				for(ClientCHKBlock block : blocks)
+					if(store.fetch(block.getClientKey().getNodeCHK(), false, false, null) != null) hits++;
+				for(ClientCHKBlock block : missing)
+					store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+			}
+			long fetchTime = System.currentTimeMillis() - start;
+			
+			System.out.println((mapped ? "Memory mapped: " : "FileChannel:   ") + inserted + " puts in " + putTime + "ms, " + 
+					(rounds * inserted * 2) + " fetches in " + fetchTime + "ms (" + hits + " hits)");
+			saltStore.close();
+		}
+	}
+	
+	/* Concurrent fetch/put throughput for 1 to 32 threads, mostly fetches.
+	 * Run with -Dtest.benchmark=true. */
+	public void testBenchmarkConcurrent() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		
+		final int keys = 4000;
+		final int inserted = 1000;
+		final int totalOps = 32000;
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[inserted];
+		for(int i=0;i<inserted;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+		
+		for(int threadCount = 1; threadCount <= 32; threadCount *= 2) {
+			final int opsPerThread = totalOps / threadCount;
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+			final CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreConcurrent", store, weakPRNG, keys, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(null, true);
+			for(int i=0;i<inserted;i+=2)
+				store.put(blocks[i].getBlock(), false);
+			
+			final Throwable[] failure = new Throwable[1];
+			Thread[] threads = new Thread[threadCount];
+			for(int i=0;i<threadCount;i++) {
+				final Random r = new Random(i);
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int j=0;j<opsPerThread;j++) {
+								ClientCHKBlock block = blocks[r.nextInt(inserted)];
+								if(r.nextInt(5) == 0)
+									store.put(block.getBlock(), false);
+								else
+									store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+							}
+						} catch (Throwable t) {
+							synchronized(failure) {
+								failure[0] = t;
+							}
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread t : threads)
+				t.start();
+			for(Thread t : threads)
+				t.join();
+			long time = System.nanoTime() - start;
+			synchronized(failure) {
+				if(failure[0] != null) throw failure[0];
+			}
+			System.out.println(threadCount + " threads: " + 
+					(threadCount * (long)opsPerThread * 1000L * 1000L * 1000L / time) + " ops per second");
+			saltStore.close();
+		}
+	}
+	
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
@@ -2,6 +2,7 @@ package freenet.store.saltedhash;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -301,6 +302,73 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/** A slot filter rebuild resumes from its checkpoint after a clean shutdown, but starts
+	 * again after an unclean one, because the slot filter may not have been written. */
+	public void testRebuildCheckpoint() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		int found = checkRebuildCheckpoint(false);
+		assertTrue(found > 0);
+		assertTrue(found < TEST_COUNT);
+		assertEquals(TEST_COUNT, checkRebuildCheckpoint(true));
+	}
+
+	/** @return The number of keys the slot filter finds after the rebuild. */
+	private int checkRebuildCheckpoint(boolean dirty) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		int storeSize = 512;
+		long checkpoint = 256;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		String name = "testRebuildCheckpoint";
+		File slotFilterFile = new File(f, name + ".slotfilter");
+		File savedSlotFilter = new File(tempDir, "saved.slotfilter");
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, storeSize, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		saltStore.close();
+		// The slot filter of the empty store: as if none of the updates below were written.
+		assertTrue(FileUtil.copyFile(slotFilterFile, savedSlotFilter));
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, storeSize, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[TEST_COUNT];
+		for(int i=0;i<TEST_COUNT;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		saltStore.close();
+		assertTrue(FileUtil.copyFile(savedSlotFilter, slotFilterFile));
+
+		// A rebuild had got halfway.
+		RandomAccessFile raf = new RandomAccessFile(new File(f, name + ".config"), "rw");
+		try {
+			raf.seek(0x2C);
+			raf.writeInt(dirty ? 0x3 : 0x2); // FLAG_REBUILD_BLOOM, maybe FLAG_DIRTY
+			raf.seek(0x34);
+			raf.writeInt(2); // CHECKPOINT_REBUILD
+			raf.writeLong(checkpoint);
+		} finally {
+			raf.close();
+		}
+
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, storeSize, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		saltStore.testingWaitForCleanerDone(50, 100);
+		int found = 0;
+		for(int i=0;i<TEST_COUNT;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			if(!saltStore.probablyInStore(key.getRoutingKey())) continue;
+			found++;
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+		return found;
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
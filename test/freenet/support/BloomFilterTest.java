@@ -45,6 +45,12 @@ public class BloomFilterTest extends TestCase {
 		_testFilterPositive(filter);
 	}
 
+	public void testOffHeapFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, true, true));
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, false, true));
+	}
+
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
@@ -0,0 +1,259 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+
+public class ConcurrentLRUMapTest extends TestCase {
+
+	/** Lots of these share a hash code, so they collide in the table. */
+	private static class Colliding {
+		final int value;
+
+		Colliding(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public int hashCode() {
+			return value / 8;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Colliding && ((Colliding) o).value == value;
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(value);
+		}
+	}
+
+	/** Random pushes, promotions, removals and pops, checked against a LinkedHashMap in
+	 * access order. */
+	public void testAgainstLinkedHashMap() {
+		Random r = new Random(0);
+		for(int segments : new int[] { 1, 4 }) {
+			ConcurrentLRUMap<Colliding, Integer> map = new ConcurrentLRUMap<Colliding, Integer>(Integer.MAX_VALUE, segments);
+			// Least recently used first.
+			LinkedHashMap<Integer, Integer> model = new LinkedHashMap<Integer, Integer>(16, 0.75f, true);
+			for(int i=0;i<100000;i++) {
+				int k = r.nextInt(500);
+				Colliding key = new Colliding(k);
+				switch(r.nextInt(8)) {
+				case 0:
+				case 1:
+				case 2:
+					assertEquals(model.put(k, i), map.push(key, i));
+					break;
+				case 3:
+					assertEquals(model.get(k), map.touch(key));
+					break;
+				case 4:
+					assertEquals(model.remove(k), map.remove(key));
+					break;
+				case 5:
+					Integer head = model.isEmpty() ? null : model.keySet().iterator().next();
+					Colliding popped = map.popKey();
+					assertEquals(head, popped == null ? null : popped.value);
+					if(head != null) model.remove(head);
+					break;
+				case 6:
+					// Doesn't promote.
+					assertEquals(model.containsKey(k) ? model.get(k) : null, map.get(key));
+					if(model.containsKey(k)) {
+						Integer v = model.remove(k);
+						model.put(k, v);
+						map.touch(key);
+					}
+					break;
+				default:
+					assertEquals(model.containsKey(k), map.containsKey(key));
+					if(model.containsKey(k)) model.get(k);
+					map.touch(key);
+				}
+				assertEquals(model.size(), map.size());
+			}
+			// Drain in order.
+			for(Iterator<Integer> it = model.keySet().iterator(); it.hasNext();) {
+				int k = it.next();
+				assertEquals(k, map.peekKey().value);
+				assertEquals(k, map.popKey().value);
+			}
+			assertTrue(map.isEmpty());
+			assertNull(map.popValue());
+		}
+	}
+
+	public void testPushLeast() {
+		ConcurrentLRUQueue<String> queue = new ConcurrentLRUQueue<String>();
+		queue.push("b");
+		queue.push("c");
+		queue.pushLeast("a");
+		queue.push("d");
+		queue.push("b");
+		assertEquals(4, queue.size());
+		assertEquals("a", queue.pop());
+		assertEquals("c", queue.pop());
+		assertTrue(queue.remove("d"));
+		assertFalse(queue.contains("d"));
+		assertEquals("b", queue.pop());
+		assertNull(queue.pop());
+	}
+
+	public void testBounded() {
+		final AtomicInteger evictions = new AtomicInteger();
+		ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(256, 4) {
+			@Override
+			protected void onEvict(Object key, Integer value) {
+				assertEquals(key, value);
+				evictions.incrementAndGet();
+			}
+		};
+		for(int i=0;i<10000;i++) {
+			map.push(i, i);
+			assertTrue(map.size() <= 256);
+		}
+		assertEquals(256, map.size());
+		assertEquals(10000 - 256, evictions.get());
+		// The most recent are all still there.
+		for(int i=10000-32;i<10000;i++)
+			assertEquals(Integer.valueOf(i), map.get(i));
+		map.clear();
+		assertTrue(map.isEmpty());
+		map.push(1, 1);
+		assertEquals(Integer.valueOf(1), map.peekValue());
+	}
+
+	public void testLongKeys() {
+		LongLRUMap<String> map = new LongLRUMap<String>(new DummyRandomSource());
+		for(long i=0;i<1000;i++)
+			map.push(i * 0x100000000L, Long.toString(i));
+		map.touch(0);
+		assertEquals("500", map.remove(500L * 0x100000000L));
+		assertEquals(999, map.size());
+		assertEquals(0x100000000L, map.peekKey());
+		assertEquals(0x100000000L, map.popKey());
+		assertEquals("2", map.popValue());
+		assertEquals("3", map.get(3L * 0x100000000L));
+		map.clear();
+		try {
+			map.popKey();
+			fail("Popped from an empty map");
+		} catch (NoSuchElementException e) {
+			// Expected.
+		}
+	}
+
+	public void testByteArrayKeys() {
+		ByteArrayLRUMap<Integer> map = new ByteArrayLRUMap<Integer>(1000, new DummyRandomSource());
+		Random r = new Random(1);
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		for(int i=0;i<500;i++) {
+			byte[] key = new byte[1 + r.nextInt(40)];
+			r.nextBytes(key);
+			keys.add(key);
+			map.push(key, i);
+		}
+		for(int i=0;i<keys.size();i++)
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i).clone()));
+		assertNull(map.get(new byte[41]));
+		assertEquals(Integer.valueOf(0), map.popValue());
+	}
+
+	/** Threads pushing and popping the same keys shouldn't lose or duplicate any. */
+	public void testConcurrent() throws InterruptedException {
+		final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(Integer.MAX_VALUE, 8);
+		final AtomicInteger popped = new AtomicInteger();
+		final AtomicInteger added = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(id);
+					for(int i=0;i<50000;i++) {
+						int key = r.nextInt(1000);
+						if(r.nextInt(4) == 0) {
+							if(map.popKey() != null) popped.incrementAndGet();
+						} else if(map.push(key, key) == null)
+							added.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(added.get() - popped.get(), map.size());
+		int count = 0;
+		while(map.popKey() != null)
+			count++;
+		assertEquals(added.get() - popped.get(), count);
+	}
+
+	public void testBenchmarkContention() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		final int keys = 20000;
+		final int ops = 1000000;
+		for(int round=0;round<3;round++) {
+			final LRUMap<Integer, Integer> old = new LRUMap<Integer, Integer>();
+			long oldTime = run(threads, new Op() {
+				@Override
+				public void run(int key) {
+					synchronized(old) {
+						if(old.get(key) == null) {
+							old.push(key, key);
+							while(old.size() > keys / 2) old.popKey();
+						} else
+							old.push(key, key);
+					}
+				}
+			}, keys, ops);
+			final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(keys / 2);
+			long newTime = run(threads, new Op() {
+				@Override
+				public void run(int key) {
+					if(map.touch(key) == null) map.push(key, key);
+				}
+			}, keys, ops);
+			System.out.println("LRU cache, "+threads+" threads, "+ops+" operations each: LRUMap "+(oldTime/1000000)+"ms, ConcurrentLRUMap "+(newTime/1000000)+"ms");
+		}
+	}
+
+	private interface Op {
+		void run(int key);
+	}
+
+	private static long run(int threads, final Op op, final int keys, final int ops) throws InterruptedException {
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int seed = i;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int j=0;j<ops;j++)
+						op.run(r.nextInt(keys));
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread thread : t) thread.start();
+		for(Thread thread : t) thread.join();
+		return System.nanoTime() - start;
+	}
+
+}
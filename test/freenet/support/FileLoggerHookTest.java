@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final int THREADS = 4;
+
+	private static String waitFor(ByteArrayOutputStream out, String expected, int count) throws UnsupportedEncodingException, InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+		while(true) {
+			String s = out.toString("UTF-8");
+			if(count(s, expected) >= count || System.currentTimeMillis() > deadline) return s;
+			Thread.sleep(10);
+		}
+	}
+
+	private static int count(String s, String expected) {
+		int count = 0;
+		for(int i = s.indexOf(expected); i != -1; i = s.indexOf(expected, i + 1))
+			count++;
+		return count;
+	}
+
+	/** Lines from several threads all arrive, each thread's in order. */
+	public void testConcurrentLogging() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(out, "t: m", "", LogLevel.MINOR);
+		hook.start();
+		final int lines = 2000;
+		Thread[] threads = new Thread[THREADS];
+		for(int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread("Logger " + i) {
+				@Override
+				public void run() {
+					for(int j = 0; j < lines; j++)
+						hook.log(this, FileLoggerHookTest.class, "line " + j, null, LogLevel.NORMAL);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		hook.log(this, FileLoggerHookTest.class, "ignored", null, LogLevel.DEBUG);
+		String s = waitFor(out, "\n", THREADS * lines);
+		assertEquals(0, hook.droppedLines());
+		assertEquals(THREADS * lines, count(s, "\n"));
+		assertEquals(-1, s.indexOf("ignored"));
+		for(int i = 0; i < THREADS; i++) {
+			int last = -1;
+			for(int j = 0; j < lines; j++) {
+				int pos = s.indexOf("Logger " + i + ": line " + j + "\n");
+				assertTrue(pos > last);
+				last = pos;
+			}
+		}
+		hook.close();
+	}
+
+	/** When we log faster than the writer can keep up, lines are dropped and counted. */
+	public void testDrops() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "m", "", LogLevel.MINOR);
+		hook.setMaxListBytes(10000);
+		// The writer isn't running yet.
+		for(int i = 0; i < 1000; i++)
+			hook.log(this, FileLoggerHookTest.class, "line " + i, null, LogLevel.NORMAL);
+		long dropped = hook.droppedLines();
+		assertTrue(dropped > 0);
+		assertTrue(hook.listBytes() <= 10000);
+		hook.start();
+		String s = waitFor(out, "Logging too fast", 1);
+		assertTrue(s.indexOf("dropped " + dropped + " entries") != -1);
+		assertEquals(1000 - dropped, count(s, "line "));
+		hook.close();
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int threads = 1; threads <= 8; threads *= 2) {
+			for(int round = 0; round < 2; round++) {
+				final FileLoggerHook hook = new FileLoggerHook(new NullOutputStream(), "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+				hook.setMaxListBytes(10 * 1024 * 1024);
+				hook.start();
+				Logger.globalAddHook(hook);
+				final int lines = 200000;
+				Thread[] t = new Thread[threads];
+				long start = System.nanoTime();
+				for(int i = 0; i < threads; i++) {
+					t[i] = new Thread() {
+						@Override
+						public void run() {
+							for(int j = 0; j < lines; j++)
+								Logger.normal(this, "Benchmark line " + j);
+						}
+					};
+					t[i].start();
+				}
+				for(Thread thread : t)
+					thread.join();
+				long logged = System.nanoTime() - start;
+				while(hook.listBytes() > 0)
+					Thread.sleep(1);
+				long written = System.nanoTime() - start;
+				Logger.globalRemoveHook(hook);
+				hook.close();
+				long total = (long) lines * threads;
+				long dropped = hook.droppedLines();
+				System.out.println(threads + " threads: " + (total * 1000000000L / logged) + " lines/sec logged, " +
+						((total - dropped) * 1000000000L / written) + " lines/sec written, " + dropped + " dropped");
+			}
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+			// Discard.
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// Discard.
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.node.FastRunnable;
+
+public class TimingWheelTickerTest extends TestCase {
+
+	private TimingWheelTicker ticker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ticker = new TimingWheelTicker(new PooledExecutor(), 0);
+		ticker.start();
+	}
+
+	/** Records when it ran. */
+	private static class Job implements FastRunnable {
+		final long due;
+		long ran;
+		int runs;
+
+		Job(long due) {
+			this.due = due;
+		}
+
+		@Override
+		public synchronized void run() {
+			ran = System.currentTimeMillis();
+			runs++;
+		}
+
+		synchronized int runs() {
+			return runs;
+		}
+	}
+
+	public void testRunsOnTime() throws InterruptedException {
+		Random r = new Random(0);
+		Job[] jobs = new Job[500];
+		long start = System.currentTimeMillis();
+		for(int i=0;i<jobs.length;i++) {
+			// Some in the inner wheel, some cascaded from the next one out.
+			long offset = r.nextInt(i % 2 == 0 ? 256 : 1500);
+			jobs[i] = new Job(start + offset);
+			ticker.queueTimedJob(jobs[i], "Job "+i, offset, true, false);
+		}
+		Thread.sleep(1800);
+		assertEquals(0, ticker.queuedJobs());
+		for(Job job : jobs) {
+			assertEquals(1, job.runs());
+			// Allow for the clock granularity.
+			assertTrue(job.ran >= job.due - 5);
+			assertTrue("Ran "+(job.ran - job.due)+"ms late", job.ran <= job.due + 200);
+		}
+	}
+
+	public void testRemove() throws InterruptedException {
+		Job job = new Job(0);
+		Job other = new Job(0);
+		ticker.queueTimedJob(job, "Job", 100, true, false);
+		ticker.queueTimedJob(job, "Job", 300, true, false);
+		ticker.queueTimedJob(other, "Other", 100, true, false);
+		assertEquals(3, ticker.queuedJobs());
+		// Removes both.
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(400);
+		assertEquals(0, job.runs());
+		assertEquals(1, other.runs());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testNoDupes() throws InterruptedException {
+		Job job = new Job(0);
+		ticker.queueTimedJob(job, "Job", 200, true, true);
+		ticker.queueTimedJob(job, "Job", 300, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		// Earlier, so replaces it.
+		ticker.queueTimedJob(job, "Job", 50, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(150);
+		assertEquals(1, job.runs());
+		Thread.sleep(250);
+		assertEquals(1, job.runs());
+	}
+
+	public void testLongDelay() {
+		Job job = new Job(0);
+		// Further than the outermost wheel reaches.
+		ticker.queueTimedJob(job, "Job", 1L << 40, true, false);
+		ticker.queueTimedJob(job, "Job", 1L << 30, true, false);
+		assertEquals(2, ticker.queuedJobs());
+		ticker.removeQueuedJob(job);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	/** Schedule and cancel timeouts the way MessageFilter and request timeouts do: almost
+	 * all are cancelled long before they would run. */
+	public void testBenchmarkScheduleCancel() {
+		if(!TestProperty.BENCHMARK) return;
+		final int count = 2000000;
+		final int live = 10000;
+		Runnable[] jobs = new Runnable[live];
+		for(int i=0;i<live;i++)
+			jobs[i] = new Runnable() {
+				@Override
+				public void run() {
+					// Never runs.
+				}
+			};
+		for(int round=0;round<3;round++) {
+			// Not started, so nothing runs; we only measure queueing and removing.
+			PrioritizedTicker old = new PrioritizedTicker(new PooledExecutor(), 0);
+			long oldTime = scheduleCancel(old, jobs, count);
+			TimingWheelTicker wheel = new TimingWheelTicker(new PooledExecutor(), 0);
+			long newTime = scheduleCancel(wheel, jobs, count);
+			System.out.println("Ticker: "+count+" timeouts queued and cancelled with "+live+" outstanding: PrioritizedTicker "+
+					(oldTime / 1000000)+"ms, TimingWheelTicker "+(newTime / 1000000)+"ms");
+		}
+	}
+
+	private static long scheduleCancel(Ticker ticker, Runnable[] jobs, int count) {
+		Random r = new Random(0);
+		long start = System.nanoTime();
+		for(int i=0;i<count;i++) {
+			Runnable job = jobs[i % jobs.length];
+			if(i >= jobs.length) ticker.removeQueuedJob(job);
+			// Typical timeouts: seconds to minutes.
+			ticker.queueTimedJob(job, "Timeout", 5000 + r.nextInt(120000), true, false);
+		}
+		for(Runnable job : jobs)
+			ticker.removeQueuedJob(job);
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,265 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static class PrioJob implements PrioRunnable {
+		final int prio;
+		final CountDownLatch done;
+		volatile int ranAt;
+
+		PrioJob(int prio, CountDownLatch done) {
+			this.prio = prio;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			ranAt = Thread.currentThread().getPriority();
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	public void testRunsEverything() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor();
+		final int jobs = 10000;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger count = new AtomicInteger();
+		for(int i = 0; i < jobs; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					count.incrementAndGet();
+					done.countDown();
+				}
+			}, "Test job " + i);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(jobs, count.get());
+		assertEquals(jobs, executor.jobsRun()[NativeThread.NORM_PRIORITY - 1]);
+		assertEquals(0, executor.queuedJobs()[NativeThread.NORM_PRIORITY - 1]);
+	}
+
+	/** Jobs queued by a worker go on its own deque, and must still all run. */
+	public void testJobsFromWorkers() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor();
+		final CountDownLatch done = new CountDownLatch(1000);
+		for(int i = 0; i < 10; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 100; j++) {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								done.countDown();
+							}
+						}, "Child");
+					}
+				}
+			}, "Parent");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+	}
+
+	/** A worker which waits for a job it queued must not deadlock, even with no idle
+	 * siblings, and at the soft cap. */
+	public void testWorkerWaitsForItsJob() throws InterruptedException {
+		for(int softCap : new int[] { WorkStealingExecutor.DEFAULT_SOFT_CAP, 1 }) {
+			final WorkStealingExecutor executor = new WorkStealingExecutor(softCap);
+			final CountDownLatch done = new CountDownLatch(1);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final CountDownLatch child = new CountDownLatch(1);
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							child.countDown();
+						}
+					}, "Child");
+					try {
+						if(child.await(30, TimeUnit.SECONDS))
+							done.countDown();
+					} catch(InterruptedException e) {
+						// Fail
+					}
+				}
+			}, "Parent");
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testPriorities() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor();
+		CountDownLatch done = new CountDownLatch(NativeThread.MAX_PRIORITY);
+		PrioJob[] jobs = new PrioJob[NativeThread.MAX_PRIORITY];
+		for(int prio = NativeThread.MIN_PRIORITY; prio <= NativeThread.MAX_PRIORITY; prio++) {
+			jobs[prio - 1] = new PrioJob(prio, done);
+			executor.execute(jobs[prio - 1], "Prio " + prio);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		// The stats are updated after the job returns.
+		long[] run = executor.jobsRun();
+		for(int i = 0; i < 100 && anyZero(run); i++) {
+			Thread.sleep(10);
+			run = executor.jobsRun();
+		}
+		for(int prio = NativeThread.MIN_PRIORITY; prio <= NativeThread.MAX_PRIORITY; prio++) {
+			assertEquals(1, run[prio - 1]);
+			if(!NativeThread.usingNativeCode())
+				assertEquals(prio, jobs[prio - 1].ranAt);
+		}
+		try {
+			executor.execute(new PrioJob(NativeThread.MAX_PRIORITY + 1, done), "Bogus");
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	private static boolean anyZero(long[] counts) {
+		for(long c : counts)
+			if(c == 0) return true;
+		return false;
+	}
+
+	/** If every thread is blocked, the soft cap must not stop other jobs from running. */
+	public void testSoftCapExceededWhenBlocked() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(2);
+		for(int i = 0; i < 2; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException e) {
+						// Ignore
+					}
+				}
+			}, "Blocker");
+		}
+		assertTrue(blocked.await(30, TimeUnit.SECONDS));
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}, "Starved");
+		assertEquals(1, executor.queuedJobs()[NativeThread.NORM_PRIORITY - 1]);
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(executor.runningThreads()[NativeThread.NORM_PRIORITY - 1] + executor.waitingThreads()[NativeThread.NORM_PRIORITY - 1] > 2);
+		release.countDown();
+	}
+
+	public void testJobStats() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor();
+		final CountDownLatch done = new CountDownLatch(30);
+		for(int i = 0; i < 30; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			}, (i % 3 == 0 ? "Sleeper for " : "Worker for ") + i);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		// The counters are updated just after the job returns.
+		Thread.sleep(100);
+		long sleepers = 0;
+		long workers = 0;
+		for(WorkStealingExecutor.JobStats stats : executor.jobStats()) {
+			if(stats.name.equals("Sleeper")) sleepers = stats.count;
+			else if(stats.name.equals("Worker")) workers = stats.count;
+			else fail("Unexpected job name " + stats.name);
+		}
+		assertEquals(10, sleepers);
+		assertEquals(20, workers);
+	}
+
+	public void testManyJobNames() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor();
+		int jobs = WorkStealingExecutor.MAX_JOB_NAMES * 2;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		for(int i = 0; i < jobs; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			}, "Job " + i);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		WorkStealingExecutor.JobStats[] stats = executor.jobStats();
+		assertTrue(stats.length <= WorkStealingExecutor.MAX_JOB_NAMES + 1);
+		long total = 0;
+		for(WorkStealingExecutor.JobStats s : stats)
+			total += s.count;
+		assertEquals(jobs, total);
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round = 0; round < 3; round++) {
+			System.out.println("PooledExecutor: " + benchmark(new PooledExecutor()) + "ms");
+			System.out.println("WorkStealingExecutor: " + benchmark(new WorkStealingExecutor()) + "ms");
+		}
+	}
+
+	/** Short jobs from several submitting threads, some of which queue further jobs. */
+	private long benchmark(final Executor executor) throws InterruptedException {
+		final int submitters = 4;
+		final int jobs = 50000;
+		final CountDownLatch done = new CountDownLatch(submitters * jobs * 2);
+		final Runnable leaf = new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		};
+		final Runnable parent = new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(leaf, "Leaf");
+				done.countDown();
+			}
+		};
+		Thread[] threads = new Thread[submitters];
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < submitters; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < jobs; j++)
+						executor.execute(parent, "Parent");
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertTrue(done.await(300, TimeUnit.SECONDS));
+		return System.currentTimeMillis() - start;
+	}
+
+}
@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+import freenet.support.TestProperty;
+import freenet.support.WorkStealingExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.Closer;
+
+public class CompressionRaceTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] CODECS = new COMPRESSOR_TYPE[] {
+		COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+
+	private final Executor executor = new WorkStealingExecutor();
+
+	/** Text-like data, which each codec compresses to a different size. */
+	private static byte[] makeData(int length, long seed) {
+		Random random = new Random(seed);
+		String[] words = new String[200];
+		for(int i = 0; i < words.length; i++) {
+			char[] c = new char[2 + random.nextInt(8)];
+			for(int j = 0; j < c.length; j++)
+				c[j] = (char) ('a' + random.nextInt(26));
+			words[i] = new String(c);
+		}
+		StringBuilder sb = new StringBuilder(length);
+		while(sb.length() < length)
+			sb.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+		sb.setLength(length);
+		return sb.toString().getBytes();
+	}
+
+	/** What trying each codec in turn chooses, as InsertCompressor used to.
+	 * @param tried If not null, the codecs started are added to this. */
+	private static int sequential(byte[] data, long minSize, BucketFactory bf, List<COMPRESSOR_TYPE> tried) throws IOException {
+		int best = -1;
+		long bestSize = data.length;
+		for(int i = 0; i < CODECS.length; i++) {
+			if(tried != null) tried.add(CODECS[i]);
+			Bucket result = bf.makeBucket(-1);
+			InputStream is = new ArrayBucket(data).getInputStream();
+			OutputStream os = result.getOutputStream();
+			try {
+				CODECS[i].compress(is, os, data.length, bestSize);
+			} catch(CompressionOutputSizeException e) {
+				continue;
+			} finally {
+				Closer.close(is);
+				Closer.close(os);
+			}
+			if(result.size() <= minSize) return i;
+			if(result.size() < bestSize) {
+				best = i;
+				bestSize = result.size();
+			}
+		}
+		return best;
+	}
+
+	private void checkSameAsSequential(byte[] data, long minSize, int permits) throws IOException {
+		BucketFactory bf = new ArrayBucketFactory();
+		ArrayList<COMPRESSOR_TYPE> tried = new ArrayList<COMPRESSOR_TYPE>();
+		int expected = sequential(data, minSize, bf, tried);
+		CompressionRace race = new CompressionRace(CODECS, new ArrayBucket(data), bf, minSize);
+		final ArrayList<COMPRESSOR_TYPE> started = new ArrayList<COMPRESSOR_TYPE>();
+		Semaphore semaphore = new Semaphore(permits);
+		int best = race.run(executor, semaphore, new CompressionRace.Listener() {
+			@Override
+			public void onStart(COMPRESSOR_TYPE codec) {
+				synchronized(started) {
+					started.add(codec);
+				}
+			}
+		});
+		assertEquals(expected, best);
+		assertEquals(permits, semaphore.availablePermits());
+		// The client sees the same events.
+		assertEquals(tried, started);
+		if(best >= 0) {
+			Bucket result = race.getResult(best);
+			ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+			InputStream is = result.getInputStream();
+			CODECS[best].decompress(is, decompressed, data.length, data.length);
+			is.close();
+			assertTrue(Arrays.equals(data, decompressed.toByteArray()));
+		}
+	}
+
+	public void testSmallest() throws IOException {
+		byte[] data = makeData(200000, 1);
+		for(int permits = 0; permits <= CODECS.length; permits++)
+			checkSameAsSequential(data, 100, permits);
+	}
+
+	/** If an earlier codec fits the data in minSize, it wins even if a later one does better. */
+	public void testFirstToFit() throws IOException {
+		byte[] data = makeData(200000, 2);
+		for(int permits = 0; permits <= CODECS.length; permits++)
+			checkSameAsSequential(data, data.length / 2, permits);
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[50000];
+		new Random(3).nextBytes(data);
+		for(int permits = 0; permits <= CODECS.length; permits++)
+			checkSameAsSequential(data, 100, permits);
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(8 * 1024 * 1024, 4);
+		BucketFactory bf = new ArrayBucketFactory();
+		for(int round = 0; round < 3; round++) {
+			long start = System.currentTimeMillis();
+			sequential(data, 32768, bf, null);
+			long sequential = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			new CompressionRace(CODECS, new ArrayBucket(data), bf, 32768).run(executor, new Semaphore(CODECS.length - 1), null);
+			long race = System.currentTimeMillis() - start;
+			System.out.println("Sequential: " + sequential + "ms, race: " + race + "ms (" +
+					Runtime.getRuntime().availableProcessors() + " processors)");
+		}
+	}
+
+}
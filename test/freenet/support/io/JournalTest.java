@@ -0,0 +1,208 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class JournalTest extends TestCase {
+
+	private File dir;
+	private File base;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File("tmp.journaltest");
+		FileUtil.removeAll(dir);
+		assertTrue(dir.mkdir());
+		base = new File(dir, "test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.removeAll(dir);
+	}
+
+	private static byte[] value(int i) {
+		byte[] b = new byte[10 + i % 50];
+		Arrays.fill(b, (byte) i);
+		return b;
+	}
+
+	public void testReopen() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		for(int i = 0; i < 100; i++)
+			journal.put("key" + i, value(i));
+		for(int i = 0; i < 100; i += 3)
+			journal.remove("key" + i);
+		journal.put("key1", value(1000));
+		journal.close();
+		journal = new Journal(base, Long.MAX_VALUE);
+		check(journal, 100);
+		journal.close();
+	}
+
+	private void check(Journal journal, int count) {
+		int expected = 0;
+		for(int i = 0; i < count; i++) {
+			if(i % 3 == 0) {
+				assertNull(journal.get("key" + i));
+			} else {
+				expected++;
+				assertTrue(Arrays.equals(i == 1 ? value(1000) : value(i), journal.get("key" + i)));
+			}
+		}
+		assertEquals(expected, journal.size());
+		// In order of first insertion.
+		Map<String, byte[]> all = journal.getAll();
+		assertEquals("key1", all.keySet().iterator().next());
+	}
+
+	public void testCheckpoint() throws IOException {
+		// Small enough to write several snapshots.
+		Journal journal = new Journal(base, 1000);
+		for(int i = 0; i < 100; i++) {
+			journal.put("key" + i, value(i));
+			journal.commit();
+		}
+		for(int i = 0; i < 100; i += 3) {
+			journal.remove("key" + i);
+			journal.commit();
+		}
+		journal.put("key1", value(1000));
+		journal.commit();
+		assertTrue(new File(dir, "test.snapshot").exists());
+		assertTrue(journal.journalLength() < 2000);
+		journal.close();
+		journal = new Journal(base, 1000);
+		check(journal, 100);
+		journal.close();
+	}
+
+	/** Uncommitted records cut off by a crash are discarded, along with anything after
+	 * them. */
+	public void testTornTail() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		journal.put("a", value(1));
+		journal.put("b", value(2));
+		journal.commit();
+		long good = journal.journalLength();
+		journal.put("c", value(3));
+		journal.close();
+		File file = new File(dir, "test.journal");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		journal = new Journal(base, Long.MAX_VALUE);
+		assertEquals(2, journal.size());
+		assertNull(journal.get("c"));
+		assertEquals(good, file.length());
+		// And we can carry on from there.
+		journal.put("d", value(4));
+		journal.close();
+		journal = new Journal(base, Long.MAX_VALUE);
+		assertEquals(3, journal.size());
+		assertTrue(Arrays.equals(value(4), journal.get("d")));
+		journal.close();
+	}
+
+	public void testCorruptRecord() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		journal.put("a", value(1));
+		journal.commit();
+		long good = journal.journalLength();
+		journal.put("b", value(2));
+		journal.put("c", value(3));
+		journal.close();
+		File file = new File(dir, "test.journal");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(good + 10);
+		raf.write(raf.read() ^ 1);
+		raf.close();
+		journal = new Journal(base, Long.MAX_VALUE);
+		assertEquals(1, journal.size());
+		assertNotNull(journal.get("a"));
+		journal.close();
+	}
+
+	/** If we crash after writing the snapshot but before starting a new journal, the old
+	 * journal is replayed on top of the new snapshot, which must do no harm. */
+	public void testReplayOverSnapshot() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		for(int i = 0; i < 100; i++)
+			journal.put("key" + i, value(i));
+		for(int i = 0; i < 100; i += 3)
+			journal.remove("key" + i);
+		journal.put("key1", value(1000));
+		journal.commit();
+		File file = new File(dir, "test.journal");
+		File saved = new File(dir, "saved");
+		FileUtil.copyFile(file, saved);
+		journal.checkpoint();
+		journal.close();
+		assertTrue(FileUtil.renameTo(saved, file));
+		journal = new Journal(base, Long.MAX_VALUE);
+		check(journal, 100);
+		journal.close();
+	}
+
+	/** If we crash while writing the first snapshot, the partial snapshot is discarded and
+	 * the journal alone is replayed. */
+	public void testTruncatedFirstSnapshot() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		for(int i = 0; i < 100; i++)
+			journal.put("key" + i, value(i));
+		for(int i = 0; i < 100; i += 3)
+			journal.remove("key" + i);
+		journal.put("key1", value(1000));
+		journal.commit();
+		File file = new File(dir, "test.journal");
+		File saved = new File(dir, "saved");
+		FileUtil.copyFile(file, saved);
+		journal.checkpoint();
+		journal.close();
+		File snapshot = new File(dir, "test.snapshot");
+		File temp = new File(dir, "test.snapshot.tmp");
+		assertTrue(FileUtil.renameTo(snapshot, temp));
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+		assertTrue(FileUtil.renameTo(saved, file));
+		journal = new Journal(base, Long.MAX_VALUE);
+		check(journal, 100);
+		assertFalse(temp.exists());
+		assertFalse(snapshot.exists());
+		journal.close();
+		journal = new Journal(base, Long.MAX_VALUE);
+		check(journal, 100);
+		journal.close();
+	}
+
+	/** If we crash after deleting the old snapshot but before renaming the new one, the new
+	 * one is used. */
+	public void testCompleteTempSnapshot() throws IOException {
+		Journal journal = new Journal(base, Long.MAX_VALUE);
+		for(int i = 0; i < 100; i++)
+			journal.put("key" + i, value(i));
+		for(int i = 0; i < 100; i += 3)
+			journal.remove("key" + i);
+		journal.put("key1", value(1000));
+		journal.checkpoint();
+		journal.close();
+		File snapshot = new File(dir, "test.snapshot");
+		File temp = new File(dir, "test.snapshot.tmp");
+		assertTrue(FileUtil.renameTo(snapshot, temp));
+		journal = new Journal(base, Long.MAX_VALUE);
+		check(journal, 100);
+		assertTrue(snapshot.exists());
+		assertFalse(temp.exists());
+		journal.close();
+	}
+
+}